@@ -0,0 +1,182 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import net.lingala.zip4j.model.enums.CompressionLevel;
+
+/**
+ * Chooses the compression level for each new archive entry such that the ZIP writers achieve a target throughput.
+ * <p>
+ *   The writers report how long it took to compress (and encrypt and write) each entry. When the measured throughput
+ *   falls below the target, later entries get a lower (faster) level; when it is well above the target, later
+ *   entries get a higher (better) level, as long as that level is not known to be too slow. The level moves between
+ *   {@link CompressionLevel#FASTEST} and {@link CompressionLevel#ULTRA}.
+ * </p>
+ * <p>
+ *   One instance may be shared by any number of writers, in any number of threads; the target then applies to each
+ *   writer individually.
+ * </p>
+ *
+ * @see ZipArchiveFormat#setAdaptiveCompressionLevel(AdaptiveCompressionLevel)
+ * @see ZipArchiveFormat#SYSTEM_PROPERTY_OUTPUT_ENTRY_TARGET_THROUGHPUT
+ */
+public final
+class AdaptiveCompressionLevel {
+
+    private static final CompressionLevel[] LEVELS = {
+        CompressionLevel.FASTEST,
+        CompressionLevel.FASTER,
+        CompressionLevel.FAST,
+        CompressionLevel.MEDIUM_FAST,
+        CompressionLevel.NORMAL,
+        CompressionLevel.HIGHER,
+        CompressionLevel.MAXIMUM,
+        CompressionLevel.PRE_ULTRA,
+        CompressionLevel.ULTRA,
+    };
+
+    /**
+     * The level is only changed after this many bytes were measured at the current level, so that many small
+     * entries don't make the level jitter.
+     */
+    private static final long MIN_SAMPLE_SIZE = 1 << 20;
+
+    /**
+     * A higher level is only tried when the current throughput exceeds the target by this factor.
+     */
+    private static final double HEADROOM = 1.2;
+
+    private final double   targetBytesPerSecond;
+    private int            index = 4; // NORMAL
+    private long           sampleBytes, sampleNanos;
+    private final double[] throughputs = new double[AdaptiveCompressionLevel.LEVELS.length];
+    private final long[]   entryCounts = new long[AdaptiveCompressionLevel.LEVELS.length];
+
+    /**
+     * @param targetBytesPerSecond The desired number of uncompressed bytes per second that each writer processes
+     */
+    public
+    AdaptiveCompressionLevel(double targetBytesPerSecond) {
+        if (targetBytesPerSecond <= 0) throw new IllegalArgumentException(Double.toString(targetBytesPerSecond));
+        this.targetBytesPerSecond = targetBytesPerSecond;
+    }
+
+    public double
+    getTargetBytesPerSecond() { return this.targetBytesPerSecond; }
+
+    /**
+     * @return The level that the next entry will be compressed with
+     */
+    public synchronized CompressionLevel
+    getCurrentLevel() { return AdaptiveCompressionLevel.LEVELS[this.index]; }
+
+    /**
+     * @return The measured throughput (uncompressed bytes per second) of the given level, or 0 iff that level was not
+     *         measured yet
+     */
+    public synchronized double
+    getThroughput(CompressionLevel level) {
+        int idx = AdaptiveCompressionLevel.indexOf(level);
+        return idx == -1 ? 0 : this.throughputs[idx];
+    }
+
+    /**
+     * @return For each level, the number of entries that were compressed with it
+     */
+    public synchronized Map<CompressionLevel, Long>
+    getEntryCounts() {
+        Map<CompressionLevel, Long> result = new EnumMap<>(CompressionLevel.class);
+        for (int i = 0; i < AdaptiveCompressionLevel.LEVELS.length; i++) {
+            if (this.entryCounts[i] > 0) result.put(AdaptiveCompressionLevel.LEVELS[i], this.entryCounts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Chooses the level for a new entry.
+     */
+    synchronized CompressionLevel
+    nextLevel() {
+        this.entryCounts[this.index]++;
+        return AdaptiveCompressionLevel.LEVELS[this.index];
+    }
+
+    /**
+     * Reports that an entry of <var>size</var> bytes was processed with the given <var>level</var> within the given
+     * time.
+     */
+    synchronized void
+    update(CompressionLevel level, long size, long nanos) {
+
+        int idx = AdaptiveCompressionLevel.indexOf(level);
+        if (idx == -1 || nanos <= 0) return;
+
+        // Measurements from entries that started before the last level change are not representative.
+        if (idx != this.index) return;
+
+        this.sampleBytes += size;
+        this.sampleNanos += nanos;
+        if (this.sampleBytes < AdaptiveCompressionLevel.MIN_SAMPLE_SIZE) return;
+
+        double throughput = 1E9 * this.sampleBytes / this.sampleNanos;
+        this.sampleBytes  = 0;
+        this.sampleNanos  = 0;
+
+        double previous = this.throughputs[idx];
+        this.throughputs[idx] = previous == 0 ? throughput : .7 * previous + .3 * throughput;
+
+        if (throughput < this.targetBytesPerSecond) {
+            if (this.index > 0) this.index--;
+        } else
+        if (throughput > AdaptiveCompressionLevel.HEADROOM * this.targetBytesPerSecond) {
+            if (
+                this.index < AdaptiveCompressionLevel.LEVELS.length - 1
+                && (this.throughputs[this.index + 1] == 0 || this.throughputs[this.index + 1] >= this.targetBytesPerSecond)
+            ) this.index++;
+        }
+    }
+
+    @Override public synchronized String
+    toString() {
+        return (
+            "target "
+            + Math.round(this.targetBytesPerSecond / 1E6)
+            + " MB/s, current level "
+            + AdaptiveCompressionLevel.LEVELS[this.index]
+        );
+    }
+
+    private static int
+    indexOf(CompressionLevel level) {
+        for (int i = 0; i < AdaptiveCompressionLevel.LEVELS.length; i++) {
+            if (AdaptiveCompressionLevel.LEVELS[i] == level) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * WinZip AES encryption (AE-1 and AE-2) through the JCA, which (unlike zip4j's pure-Java AES engine) uses the AES
+ * instructions of the CPU where available.
+ * <p>
+ *   The JCA's "AES/CTR" transformation increments the counter block in big-endian order, while WinZip increments it in
+ *   little-endian order; thus the key stream is computed by encrypting the counter blocks with "AES/ECB", many blocks
+ *   at a time.
+ * </p>
+ *
+ * @see <a href="https://www.winzip.com/en/support/aes-encryption/">AES Encryption Information</a>
+ */
+final
+class AesCipher {
+
+    /**
+     * The key strength that zip4j and WinZip use by default (256 bits).
+     */
+    static final int DEFAULT_STRENGTH = 3;
+
+    static final int VERIFIER_LENGTH = 2;
+    static final int MAC_LENGTH      = 10;
+
+    private static final int          PBKDF2_ITERATIONS = 1000;
+    private static final int          BLOCK_SIZE        = 16;
+    private static final int          KEY_STREAM_LENGTH = 256 * AesCipher.BLOCK_SIZE;
+    private static final SecureRandom RANDOM            = new SecureRandom();
+
+    private final byte[] salt;
+    private final byte[] verifier;
+    private final Cipher ecb;
+    private final Mac    mac;
+
+    private long         counter           = 1;
+    private final byte[] counterBlocks     = new byte[AesCipher.KEY_STREAM_LENGTH];
+    private final byte[] keyStream         = new byte[AesCipher.KEY_STREAM_LENGTH];
+    private int          keyStreamPosition = AesCipher.KEY_STREAM_LENGTH;
+
+    /**
+     * Derives the encryption key, the authentication key and the password verifier from the <var>password</var>
+     * and the <var>salt</var>.
+     *
+     * @param strength 1, 2 or 3 (for 128, 192 or 256 bit keys)
+     */
+    AesCipher(char[] password, byte[] salt, int strength) throws ZipException {
+
+        int keyLength = AesCipher.keyLength(strength);
+        if (salt.length != keyLength / 2) throw new ZipException("Invalid AES salt length " + salt.length);
+
+        this.salt = salt;
+        try {
+            byte[] derivedKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(
+                new PBEKeySpec(password, salt, AesCipher.PBKDF2_ITERATIONS, 8 * (2 * keyLength + AesCipher.VERIFIER_LENGTH))
+            ).getEncoded();
+
+            this.ecb = Cipher.getInstance("AES/ECB/NoPadding");
+            this.ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(derivedKey, 0, keyLength, "AES"));
+
+            this.mac = Mac.getInstance("HmacSHA1");
+            this.mac.init(new SecretKeySpec(derivedKey, keyLength, keyLength, "HmacSHA1"));
+
+            this.verifier = Arrays.copyOfRange(derivedKey, 2 * keyLength, 2 * keyLength + AesCipher.VERIFIER_LENGTH);
+        } catch (GeneralSecurityException gse) {
+            throw new ZipException(gse);
+        }
+    }
+
+    /**
+     * @return A cipher with a random salt, for encrypting an entry
+     */
+    static AesCipher
+    forEncryption(char[] password, int strength) throws ZipException {
+        byte[] salt = new byte[AesCipher.keyLength(strength) / 2];
+        AesCipher.RANDOM.nextBytes(salt);
+        return new AesCipher(password, salt, strength);
+    }
+
+    /**
+     * @return The AES key length in bytes
+     */
+    static int
+    keyLength(int strength) throws ZipException {
+        if (strength < 1 || strength > 3) throw new ZipException("Invalid AES key strength " + strength);
+        return 8 + 8 * strength;
+    }
+
+    /**
+     * @return The number of bytes that encryption adds to the (compressed) entry data: The salt, the password verifier
+     *         and the authentication code
+     */
+    static int
+    overhead(int strength) throws ZipException {
+        return AesCipher.keyLength(strength) / 2 + AesCipher.VERIFIER_LENGTH + AesCipher.MAC_LENGTH;
+    }
+
+    /**
+     * @return The salt and the password verifier, which precede the encrypted data
+     */
+    byte[]
+    header() {
+        byte[] result = Arrays.copyOf(this.salt, this.salt.length + AesCipher.VERIFIER_LENGTH);
+        System.arraycopy(this.verifier, 0, result, this.salt.length, AesCipher.VERIFIER_LENGTH);
+        return result;
+    }
+
+    /**
+     * @throws ZipException The <var>verifier</var> does not match, i.e. the password is wrong
+     */
+    void
+    checkVerifier(byte[] verifier) throws ZipException {
+        if (!MessageDigest.isEqual(verifier, this.verifier)) {
+            throw new ZipException("Wrong password", ZipException.Type.WRONG_PASSWORD);
+        }
+    }
+
+    /**
+     * Encrypts the given data in place, and feeds the encrypted data to the authentication code.
+     */
+    void
+    encrypt(byte[] b, int off, int len) {
+        this.crypt(b, off, len);
+        this.mac.update(b, off, len);
+    }
+
+    /**
+     * Feeds the encrypted data to the authentication code, and decrypts it in place.
+     */
+    void
+    decrypt(byte[] b, int off, int len) {
+        this.mac.update(b, off, len);
+        this.crypt(b, off, len);
+    }
+
+    /**
+     * Feeds the encrypted data to the authentication code, without decrypting it.
+     */
+    void
+    authenticate(byte[] b, int off, int len) { this.mac.update(b, off, len); }
+
+    /**
+     * @return The authentication code of all data encrypted resp. decrypted so far
+     */
+    byte[]
+    mac() { return Arrays.copyOf(this.mac.doFinal(), AesCipher.MAC_LENGTH); }
+
+    private void
+    crypt(byte[] b, int off, int len) {
+
+        while (len > 0) {
+            if (this.keyStreamPosition == AesCipher.KEY_STREAM_LENGTH) this.nextKeyStream();
+
+            int    n  = Math.min(len, AesCipher.KEY_STREAM_LENGTH - this.keyStreamPosition);
+            byte[] ks = this.keyStream;
+            for (int i = 0, j = this.keyStreamPosition; i < n; i++, j++) b[off + i] ^= ks[j];
+
+            this.keyStreamPosition += n;
+            off                    += n;
+            len                    -= n;
+        }
+    }
+
+    /**
+     * Encrypts the next counter blocks. The counter is a little-endian number, starting at 1.
+     */
+    private void
+    nextKeyStream() {
+
+        byte[] cb = this.counterBlocks;
+        for (int i = 0; i < AesCipher.KEY_STREAM_LENGTH; i += AesCipher.BLOCK_SIZE) {
+            long c = this.counter++;
+            for (int j = 0; j < 8; j++, c >>>= 8) cb[i + j] = (byte) c;
+        }
+
+        try {
+            this.ecb.update(cb, 0, AesCipher.KEY_STREAM_LENGTH, this.keyStream, 0);
+        } catch (GeneralSecurityException gse) {
+            throw new AssertionError(gse);
+        }
+        this.keyStreamPosition = 0;
+    }
+
+    /**
+     * Decrypts the data of a WinZip AES-encrypted entry, and verifies its authentication code when the end of the
+     * data is reached.
+     */
+    static
+    class DecryptingInputStream extends FilterInputStream {
+
+        private final String    entryName;
+        private final AesCipher cipher;
+        private long            remaining;
+        private boolean         verified;
+
+        /**
+         * Reads the salt and the password verifier from the <var>in</var>, and verifies the <var>password</var>.
+         *
+         * @param in     The (compressed and) encrypted entry data
+         * @param length The length of the <var>in</var>, i.e. the "compressed size" of the entry
+         */
+        DecryptingInputStream(InputStream in, long length, char[] password, int strength, String entryName)
+        throws IOException {
+            super(in);
+            this.entryName = entryName;
+
+            int saltLength = AesCipher.keyLength(strength) / 2;
+            this.remaining = length - AesCipher.overhead(strength);
+            if (this.remaining < 0) throw new ZipException("Entry \"" + entryName + "\": AES-encrypted data too short");
+
+            this.cipher = new AesCipher(password, this.readFully(saltLength), strength);
+            this.cipher.checkVerifier(this.readFully(AesCipher.VERIFIER_LENGTH));
+        }
+
+        @Override public int
+        read() throws IOException {
+            byte[] ba = new byte[1];
+            return this.read(ba, 0, 1) == -1 ? -1 : ba[0] & 0xff;
+        }
+
+        @Override @NotNullByDefault(false) public int
+        read(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) return 0;
+
+            if (this.remaining == 0) {
+                if (!this.verified) {
+                    if (!MessageDigest.isEqual(this.readFully(AesCipher.MAC_LENGTH), this.cipher.mac())) {
+                        throw new ZipException("Entry \"" + this.entryName + "\": AES authentication code mismatch");
+                    }
+                    this.verified = true;
+                }
+                return -1;
+            }
+
+            int n = this.in.read(b, off, (int) Math.min(len, this.remaining));
+            if (n == -1) throw new EOFException();
+
+            this.cipher.decrypt(b, off, n);
+            this.remaining -= n;
+            return n;
+        }
+
+        @Override public long
+        skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long   result = 0;
+            while (result < n) {
+                int x = this.read(buffer, 0, (int) Math.min(n - result, buffer.length));
+                if (x == -1) break;
+                result += x;
+            }
+            return result;
+        }
+
+        @Override public int
+        available() throws IOException { return (int) Math.min(this.in.available(), this.remaining); }
+
+        @Override public boolean
+        markSupported() { return false; }
+
+        private byte[]
+        readFully(int n) throws IOException {
+            byte[] result = new byte[n];
+            for (int off = 0; off < n;) {
+                int x = this.in.read(result, off, n - off);
+                if (x == -1) throw new EOFException();
+                off += x;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Feeds the {@link ZipArchiveStatistics} and emits the {@link JfrEvents} for one archive reader or writer.
+ * <p>
+ *   While monitoring is disabled, the factory methods return {@code null}, so that the readers and writers incur no
+ *   overhead besides a {@code null} check.
+ * </p>
+ */
+final
+class ArchiveMonitor {
+
+    /**
+     * Whether monitoring is enabled; see {@link ZipArchiveFormat#setMonitoringEnabled(boolean)}.
+     */
+    static volatile boolean enabled;
+
+    /**
+     * Whether the {@code jdk.jfr} API is available.
+     */
+    private static final boolean JFR_AVAILABLE;
+    static {
+        boolean jfrAvailable;
+        try {
+            Class.forName("jdk.jfr.Event");
+            jfrAvailable = true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            jfrAvailable = false;
+        }
+        JFR_AVAILABLE = jfrAvailable;
+
+        if (Boolean.getBoolean(ZipArchiveFormat.SYSTEM_PROPERTY_MONITORING)) ArchiveMonitor.setEnabled(true);
+    }
+
+    private final String               archive;
+    private final boolean              writer;
+    private final ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+
+    // The current entry.
+    @Nullable private String entry;
+    private long             entryStart, entryBytes;
+    @Nullable private Object entryEvent;
+
+    private boolean closed;
+
+    private
+    ArchiveMonitor(String archive, boolean writer) {
+        this.archive = archive;
+        this.writer  = writer;
+        (writer ? this.statistics.openWriters : this.statistics.openReaders).increment();
+    }
+
+    static void
+    setEnabled(boolean value) {
+        if (value) ZipArchiveStatistics.get().register();
+        ArchiveMonitor.enabled = value;
+    }
+
+    /**
+     * To be invoked before an archive file is opened.
+     *
+     * @return An object to pass to {@link #opened(Object, String, long, int)}, or {@code null} iff monitoring is
+     *         disabled
+     */
+    @Nullable static Object
+    beforeOpen() {
+        if (!ArchiveMonitor.enabled) return null;
+        return ArchiveMonitor.JFR_AVAILABLE ? JfrEvents.beginArchiveOpen() : "";
+    }
+
+    /**
+     * @param token      The return value of {@link #beforeOpen()}
+     * @param startNanos The {@link System#nanoTime()} before the archive was opened
+     * @return           A monitor for the opened archive, or {@code null} iff monitoring is disabled
+     */
+    @Nullable static ArchiveMonitor
+    opened(@Nullable Object token, String archive, long startNanos, int entryCount) {
+
+        if (token == null) return null;
+
+        ArchiveMonitor result = new ArchiveMonitor(archive, false);
+        ZipArchiveStatistics.record(result.statistics.openLatency, System.nanoTime() - startNanos);
+        if (ArchiveMonitor.JFR_AVAILABLE) JfrEvents.commitArchiveOpen(token, archive, entryCount);
+
+        return result;
+    }
+
+    /**
+     * @return A monitor for a streaming reader, or {@code null} iff monitoring is disabled
+     */
+    @Nullable static ArchiveMonitor
+    reader(String archive) { return ArchiveMonitor.enabled ? new ArchiveMonitor(archive, false) : null; }
+
+    /**
+     * @return A monitor for a writer, or {@code null} iff monitoring is disabled
+     */
+    @Nullable static ArchiveMonitor
+    writer(String archive) { return ArchiveMonitor.enabled ? new ArchiveMonitor(archive, true) : null; }
+
+    /**
+     * Counts a failure to decrypt an entry, iff monitoring is enabled.
+     */
+    static void
+    passwordFailure() {
+        if (ArchiveMonitor.enabled) ZipArchiveStatistics.get().passwordFailures.increment();
+    }
+
+    /**
+     * A reader has positioned to the next entry.
+     *
+     * @param startNanos The {@link System#nanoTime()} before the reader started looking for the next entry
+     * @param entry      The name of the next entry, or {@code null} iff there are no more entries
+     */
+    void
+    nextEntry(long startNanos, @Nullable String entry) {
+
+        this.endEntry();
+
+        long now = System.nanoTime();
+        ZipArchiveStatistics.record(this.statistics.nextEntryLatency, now - startNanos);
+
+        if (entry == null) return;
+
+        this.statistics.entriesRead.increment();
+        this.beginEntry(entry, now);
+        if (ArchiveMonitor.JFR_AVAILABLE) this.entryEvent = JfrEvents.beginEntryRead();
+    }
+
+    /**
+     * A reader has read entry bytes.
+     */
+    void
+    bytesRead(int n) {
+        this.statistics.bytesRead.add(n);
+        this.entryBytes += n;
+    }
+
+    /**
+     * A writer has started an entry.
+     */
+    void
+    putEntry(String entry) {
+        this.beginEntry(entry, System.nanoTime());
+        if (ArchiveMonitor.JFR_AVAILABLE) this.entryEvent = JfrEvents.beginEntryWrite();
+    }
+
+    /**
+     * A writer has written entry bytes.
+     */
+    void
+    bytesWritten(long n) { this.entryBytes += n; }
+
+    /**
+     * A writer has completed the current entry.
+     *
+     * @param startNanos   The {@link System#nanoTime()} before the writer started completing the entry
+     * @param archiveBytes The number of archive bytes that the entry occupies
+     */
+    void
+    closeEntry(long startNanos, long archiveBytes) {
+
+        String entry = this.entry;
+        if (entry == null) return;
+        this.entry = null;
+
+        ZipArchiveStatistics.record(this.statistics.closeArchiveEntryLatency, System.nanoTime() - startNanos);
+        this.statistics.entriesWritten.increment();
+        this.statistics.bytesWritten.add(this.entryBytes);
+        this.statistics.archiveBytesWritten.add(archiveBytes);
+
+        Object event = this.entryEvent;
+        if (event != null) {
+            this.entryEvent = null;
+            JfrEvents.commitEntryWrite(event, this.archive, entry, this.entryBytes, archiveBytes);
+        }
+    }
+
+    /**
+     * The reader or writer was closed. Has no effect if it is already closed.
+     */
+    void
+    close() {
+
+        if (this.closed) return;
+        this.closed = true;
+
+        if (!this.writer) this.endEntry();
+        (this.writer ? this.statistics.openWriters : this.statistics.openReaders).decrement();
+    }
+
+    private void
+    beginEntry(String entry, long now) {
+        this.entry      = entry;
+        this.entryStart = now;
+        this.entryBytes = 0;
+    }
+
+    /**
+     * Completes the entry that a reader is currently reading, if any.
+     */
+    private void
+    endEntry() {
+
+        String entry = this.entry;
+        if (entry == null) return;
+        this.entry = null;
+
+        Object event = this.entryEvent;
+        if (event != null) {
+            this.entryEvent = null;
+            JfrEvents.commitEntryRead(event, this.archive, entry, this.entryBytes);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * A share of the entries of a ZIP archive file, as computed by {@link ZipArchiveFormat#partition(File, int)}, for
+ * distributed processing of the archive: Each partition can be serialized, sent to a worker process, and read there
+ * with {@link ZipArchiveFormat#openPartition(File, ArchivePartition, char[])}, which reads only the partition's
+ * entries (through positional reads), and not the central directory.
+ * <p>
+ *   Besides the positions and the compressed sizes of the entries, a partition also holds their sizes and CRCs,
+ *   because these are often missing in the local file headers (when the archive was written with data descriptors).
+ * </p>
+ */
+public final
+class ArchivePartition implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long   archiveLength;
+    private final long[] localHeaderOffsets, compressedSizes, sizes, crcs;
+
+    private
+    ArchivePartition(long archiveLength, List<ZipEntryRecord> records) {
+
+        int n = records.size();
+
+        this.archiveLength      = archiveLength;
+        this.localHeaderOffsets = new long[n];
+        this.compressedSizes    = new long[n];
+        this.sizes              = new long[n];
+        this.crcs               = new long[n];
+
+        for (int i = 0; i < n; i++) {
+            ZipEntryRecord r = records.get(i);
+            this.localHeaderOffsets[i] = r.localHeaderOffset;
+            this.compressedSizes[i]    = r.compressedSize;
+            this.sizes[i]              = r.size;
+            this.crcs[i]               = r.crc;
+        }
+    }
+
+    /**
+     * @return The number of entries in this partition
+     */
+    public int
+    getEntryCount() { return this.localHeaderOffsets.length; }
+
+    /**
+     * @return The sum of the compressed sizes of the entries in this partition
+     */
+    public long
+    getCompressedSize() {
+        long result = 0;
+        for (long cs : this.compressedSizes) result += cs;
+        return result;
+    }
+
+    /**
+     * @return The positions of the local file headers of the entries in this partition, in ascending order
+     */
+    public long[]
+    getLocalHeaderOffsets() { return this.localHeaderOffsets.clone(); }
+
+    @Override public String
+    toString() { return this.getEntryCount() + " entries, " + this.getCompressedSize() + " bytes"; }
+
+    /**
+     * Distributes the <var>records</var> over <var>n</var> partitions, such that the compressed sizes of the
+     * partitions are balanced ("longest processing time first"). Within each partition, the entries are ordered by
+     * their positions in the archive.
+     */
+    static List<ArchivePartition>
+    of(long archiveLength, List<ZipEntryRecord> records, int n) {
+
+        if (n <= 0) throw new IllegalArgumentException(Integer.toString(n));
+
+        List<ZipEntryRecord> sorted = new ArrayList<>(records);
+        sorted.sort((r1, r2) -> Long.compare(ArchivePartition.weight(r2), ArchivePartition.weight(r1)));
+
+        List<List<ZipEntryRecord>> shares = new ArrayList<>();
+        PriorityQueue<long[]>      loads  = new PriorityQueue<>((l1, l2) -> Long.compare(l1[0], l2[0]));
+        for (int i = 0; i < n; i++) {
+            shares.add(new ArrayList<>());
+            loads.add(new long[] { 0, i });
+        }
+
+        for (ZipEntryRecord r : sorted) {
+            long[] lightest = loads.remove();
+            shares.get((int) lightest[1]).add(r);
+            lightest[0] += ArchivePartition.weight(r);
+            loads.add(lightest);
+        }
+
+        List<ArchivePartition> result = new ArrayList<>();
+        for (List<ZipEntryRecord> share : shares) {
+            share.sort((r1, r2) -> Long.compare(r1.localHeaderOffset, r2.localHeaderOffset));
+            result.add(new ArchivePartition(archiveLength, share));
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Reads the local file headers of the entries of this partition from the <var>input</var>, and completes them
+     * with the sizes and CRCs.
+     *
+     * @throws ZipException The <var>input</var> is not the archive that this partition was computed for
+     */
+    List<ZipEntryRecord>
+    records(RandomAccessInput input) throws IOException {
+
+        if (input.size() != this.archiveLength) {
+            throw new ZipException(
+                "Archive length is "
+                + input.size()
+                + " instead of "
+                + this.archiveLength
+                + "; partition does not belong to this archive"
+            );
+        }
+
+        List<ZipEntryRecord> result = new ArrayList<>();
+        for (int i = 0; i < this.localHeaderOffsets.length; i++) {
+            long offset = this.localHeaderOffsets[i];
+
+            ByteBuffer fixed = ZipReader.readFully(input, offset, ZipFormat.LOCAL_FILE_HEADER_LENGTH);
+            int        nameAndExtraLength = (fixed.getShort(26) & 0xffff) + (fixed.getShort(28) & 0xffff);
+
+            ZipEntryRecord r = ZipEntryRecord.readLocal(
+                ZipReader.readFully(input, offset, ZipFormat.LOCAL_FILE_HEADER_LENGTH + nameAndExtraLength)
+            );
+            r.localHeaderOffset = offset;
+            r.compressedSize    = this.compressedSizes[i];
+            r.size              = this.sizes[i];
+            r.crc               = this.crcs[i];
+
+            result.add(r);
+        }
+
+        return result;
+    }
+
+    /**
+     * The cost of processing an entry, approximately.
+     */
+    private static long
+    weight(ZipEntryRecord r) { return ZipFormat.LOCAL_FILE_HEADER_LENGTH + r.compressedSize; }
+}
@@ -0,0 +1,145 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * An {@link OutputStream} that collects the written bytes in a large direct buffer, and writes them to a channel in
+ * few, large write operations. Writes that do not fit into the buffer are "gather-written" together with the buffer
+ * contents, without copying them. Closing the stream closes the channel.
+ * <p>
+ *   The buffer is accounted against the {@link MemoryBudget}; thus the construction blocks while the budget is
+ *   exhausted.
+ * </p>
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private final GatheringByteChannel channel;
+    private final ByteBuffer           buffer;
+    private boolean                    closed;
+
+    ChannelOutputStream(GatheringByteChannel channel, int bufferSize) throws InterruptedIOException {
+        MemoryBudget.acquire(bufferSize);
+        this.channel = channel;
+        this.buffer  = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Override public void
+    write(int b) throws IOException {
+        if (!this.buffer.hasRemaining()) this.flush();
+        this.buffer.put((byte) b);
+    }
+
+    @Override @NotNullByDefault(false) public void
+    write(byte[] b, int off, int len) throws IOException {
+
+        if (len <= this.buffer.remaining()) {
+            this.buffer.put(b, off, len);
+            return;
+        }
+
+        // Write the buffer contents and the data in one system call.
+        this.buffer.flip();
+        ByteBuffer[] srcs = { this.buffer, ByteBuffer.wrap(b, off, len) };
+        while (srcs[1].hasRemaining()) this.channel.write(srcs);
+        this.buffer.clear();
+    }
+
+    /**
+     * Writes the remaining bytes of the <var>src</var>, like {@link #write(byte[], int, int)}.
+     */
+    void
+    write(ByteBuffer src) throws IOException {
+
+        if (src.remaining() <= this.buffer.remaining()) {
+            this.buffer.put(src);
+            return;
+        }
+
+        this.buffer.flip();
+        ByteBuffer[] srcs = { this.buffer, src };
+        while (src.hasRemaining()) this.channel.write(srcs);
+        this.buffer.clear();
+    }
+
+    /**
+     * Writes the given range of the <var>source</var> to the channel; where possible, the kernel copies the bytes
+     * (see {@link RandomAccessInput#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
+     */
+    void
+    transferFrom(RandomAccessInput source, long position, long count) throws IOException {
+        this.flush();
+        source.transferTo(position, count, this.channel);
+    }
+
+    @Override public void
+    flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) this.channel.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    /**
+     * @return The channel, iff it is a {@link FileChannel}, otherwise {@code null}
+     */
+    @Nullable FileChannel
+    fileChannel() { return this.channel instanceof FileChannel ? (FileChannel) this.channel : null; }
+
+    /**
+     * Flushes the buffer, and, iff the channel is a {@link FileChannel}, forces its content to the storage device.
+     */
+    void
+    force() throws IOException {
+        this.flush();
+        if (this.channel instanceof FileChannel) ((FileChannel) this.channel).force(false);
+    }
+
+    @Override public void
+    close() throws IOException {
+
+        if (this.closed) return;
+        this.closed = true;
+
+        try {
+            this.flush();
+        } finally {
+            try {
+                this.channel.close();
+            } finally {
+                MemoryBudget.release(this.buffer.capacity());
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * Makes the writing of an archive file resumable: While the archive is being written, the central directory records
+ * of the completed entries are periodically persisted in a "checkpoint file" next to the archive. When a job that
+ * writes the archive is killed, the next job re-opens the archive with {@link #open(File, long, Collection)}, which
+ * rebuilds the list of completed entries from the checkpoint file, plus the entries that were completed after the
+ * last checkpoint (by scanning their local file headers), truncates the archive after the last complete entry, and
+ * appends from there.
+ * <p>
+ *   The checkpoint file has the following layout (all numbers little-endian):
+ * </p>
+ * <pre>
+ *   magic            4 bytes  "ZCK1"
+ *   archive length   8 bytes  The position after the last complete entry
+ *   record count     4 bytes
+ *   records          n bytes  The central directory records of the complete entries
+ *   CRC              4 bytes  The CRC-32 of all preceding bytes
+ * </pre>
+ * <p>
+ *   The file is replaced atomically, and only after the archive data that it describes has been forced to the
+ *   storage device. It is deleted when the archive is finished.
+ * </p>
+ *
+ * @see ZipArchiveFormat#createResumable(File, Collection)
+ */
+final
+class Checkpoint {
+
+    private static final int MAGIC = 'Z' | 'C' << 8 | 'K' << 16 | '1' << 24;
+
+    private final File file;
+    private final long intervalMillis;
+    private long       lastWrite = System.currentTimeMillis();
+
+    private
+    Checkpoint(File file, long intervalMillis) {
+        this.file           = file;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * @return The checkpoint file that belongs to the given <var>archiveFile</var>
+     */
+    static File
+    fileFor(File archiveFile) { return new File(archiveFile.getPath() + ".checkpoint"); }
+
+    /**
+     * Opens the <var>archiveFile</var> for writing. Iff it exists, then its complete entries are retained, their
+     * names are added to <var>completedEntries</var>, and the returned writer appends to them; otherwise the archive
+     * file is created.
+     *
+     * @param intervalMillis The minimum time between two checkpoints; 0 means "after each entry"
+     */
+    static ZipWriter
+    open(File archiveFile, long intervalMillis, Collection<? super String> completedEntries) throws IOException {
+
+        File checkpointFile = Checkpoint.fileFor(archiveFile);
+
+        FileChannel fc = FileChannel.open(
+            archiveFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        try {
+            RandomAccessInput input = RandomAccessInput.of(fc);
+
+            List<ZipEntryRecord> records = new ArrayList<>();
+            long                 end     = 0;
+
+            // Retain the entries recorded in the checkpoint file, if it is intact and matches the archive.
+            List<ZipEntryRecord> checkpointRecords = new ArrayList<>();
+            long                 checkpointEnd     = Checkpoint.read(checkpointFile, checkpointRecords);
+            if (checkpointEnd != -1 && checkpointEnd <= input.size() && Checkpoint.matches(input, checkpointRecords)) {
+                records = checkpointRecords;
+                end     = checkpointEnd;
+            }
+
+            // Retain the entries that were completed after the checkpoint.
+            end = Checkpoint.scan(input, end, records);
+
+            fc.truncate(end);
+            fc.position(end);
+
+            for (ZipEntryRecord r : records) completedEntries.add(r.getName());
+
+            ZipWriter result = new ZipWriter(
+                new ChannelOutputStream(fc, ZipArchiveFormat.FILE_WRITE_BUFFER_SIZE),
+                end,
+                records
+            );
+            result.setCheckpoint(new Checkpoint(checkpointFile, intervalMillis));
+            return result;
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether the interval since the last checkpoint has elapsed
+     */
+    boolean
+    isDue() { return System.currentTimeMillis() - this.lastWrite >= this.intervalMillis; }
+
+    /**
+     * Replaces the checkpoint file. The caller must make sure that the archive data up to <var>archiveLength</var>
+     * is durable.
+     */
+    void
+    write(long archiveLength, List<ZipEntryRecord> records) throws IOException {
+
+        int length = 20;
+        for (ZipEntryRecord r : records) length += r.centralLength();
+
+        ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(Checkpoint.MAGIC);
+        bb.putLong(archiveLength);
+        bb.putInt(records.size());
+        for (ZipEntryRecord r : records) r.writeCentral(bb);
+
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.position());
+        bb.order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue());
+        bb.flip();
+
+        File tmp = new File(this.file.getPath() + ".tmp");
+        try (FileChannel fc = FileChannel.open(
+            tmp.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        )) {
+            while (bb.hasRemaining()) fc.write(bb);
+            fc.force(false);
+        }
+
+        try {
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        this.lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes the checkpoint file, because the archive is complete.
+     */
+    void
+    delete() throws IOException { Files.deleteIfExists(this.file.toPath()); }
+
+    /**
+     * Reads the records from the <var>checkpointFile</var>.
+     *
+     * @return The archive length recorded in the checkpoint file, or -1 iff the file does not exist or is corrupt
+     */
+    private static long
+    read(File checkpointFile, List<ZipEntryRecord> records) throws IOException {
+
+        if (!checkpointFile.isFile()) return -1;
+
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(checkpointFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.remaining() < 20 || bb.getInt(0) != Checkpoint.MAGIC) return -1;
+
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.limit() - 4);
+        if (bb.getInt(bb.limit() - 4) != (int) crc.getValue()) return -1;
+
+        bb.position(4);
+        long archiveLength = bb.getLong();
+        int  count         = bb.getInt();
+        bb.limit(bb.limit() - 4);
+        try {
+            for (int i = 0; i < count; i++) records.add(ZipEntryRecord.readCentral(bb));
+        } catch (ZipException ze) {
+            records.clear();
+            return -1;
+        }
+
+        return archiveLength;
+    }
+
+    /**
+     * @return Whether the last of the <var>records</var> (if any) points to a local file header in the <var>input</var>
+     */
+    private static boolean
+    matches(RandomAccessInput input, List<ZipEntryRecord> records) throws IOException {
+
+        if (records.isEmpty()) return true;
+
+        ZipEntryRecord last = records.get(records.size() - 1);
+        try {
+            ByteBuffer lfh = ZipReader.readFully(input, last.localHeaderOffset, ZipFormat.LOCAL_FILE_HEADER_LENGTH);
+            return lfh.getInt(0) == ZipFormat.LOCAL_FILE_HEADER_SIGNATURE;
+        } catch (EOFException eofe) {
+            return false;
+        }
+    }
+
+    /**
+     * Scans the local file headers, starting at the given <var>offset</var>, and adds a record to <var>records</var>
+     * for each complete entry. Scanning stops at the first incomplete or corrupt entry, at anything that is not a
+     * local file header (e.g. a central directory), and at an entry with a data descriptor that is not an
+     * unencrypted DEFLATED entry (because its end cannot be determined).
+     *
+     * @return The position after the last complete entry
+     */
+    static long
+    scan(RandomAccessInput input, long offset, List<ZipEntryRecord> records) throws IOException {
+
+        for (;;) {
+            long end;
+            try {
+                end = Checkpoint.scanEntry(input, offset, records);
+            } catch (EOFException | ZipException e) {
+                return offset;
+            }
+            if (end == -1) return offset;
+
+            offset = end;
+        }
+    }
+
+    /**
+     * @return The position after the entry at <var>offset</var>, or -1 iff there is no complete entry
+     */
+    private static long
+    scanEntry(RandomAccessInput input, long offset, List<ZipEntryRecord> records) throws IOException {
+
+        long size = input.size();
+        if (offset + ZipFormat.LOCAL_FILE_HEADER_LENGTH > size) return -1;
+
+        ByteBuffer lfh = ZipReader.readFully(input, offset, ZipFormat.LOCAL_FILE_HEADER_LENGTH);
+        if (lfh.getInt(0) != ZipFormat.LOCAL_FILE_HEADER_SIGNATURE) return -1;
+
+        int headerLength = (
+            ZipFormat.LOCAL_FILE_HEADER_LENGTH
+            + (lfh.getShort(26) & 0xffff)
+            + (lfh.getShort(28) & 0xffff)
+        );
+        if (offset + headerLength > size) return -1;
+
+        // A ZIP64 local file header implies a ZIP64 data descriptor.
+        boolean zip64 = (lfh.getInt(18) & 0xffffffffL) == ZipFormat.ZIP64_MAGIC;
+
+        ZipEntryRecord record     = ZipEntryRecord.readLocal(ZipReader.readFully(input, offset, headerLength));
+        ZipEntryRecord actual     = new ZipEntryRecord("", 0);
+        long           dataOffset = offset + headerLength;
+
+        record.localHeaderOffset = offset;
+        if (record.isDirectory()) record.externalAttributes = ZipFormat.EXTERNAL_ATTRIBUTES_DIRECTORY;
+
+        boolean inflatable = record.method == ZipFormat.METHOD_DEFLATED && !record.isEncrypted();
+
+        long end;
+        if (!record.hasDataDescriptor()) {
+            end = dataOffset + record.compressedSize;
+            if (end > size) return -1;
+
+            // Verify the data (unless encrypted), so that an entry that was torn by a crash is not retained.
+            if (record.isEncrypted()) {
+                ; // Cannot be verified without the password.
+            } else
+            if (record.method == ZipFormat.METHOD_STORED) {
+                if (record.compressedSize != record.size) return -1;
+                if (Checkpoint.crc(input, dataOffset, record.size) != record.crc) return -1;
+            } else
+            if (inflatable) {
+                if (
+                    !Checkpoint.inflate(input, dataOffset, actual)
+                    || actual.compressedSize != record.compressedSize
+                    || actual.size != record.size
+                    || actual.crc != record.crc
+                ) return -1;
+            } else
+            {
+                return -1;
+            }
+        } else
+        if (inflatable) {
+
+            // The end of the entry data is where the DEFLATE stream ends; the data descriptor must confirm that.
+            if (!Checkpoint.inflate(input, dataOffset, actual)) return -1;
+
+            long       ddOffset = dataOffset + actual.compressedSize;
+            int        ddLength = zip64 ? 24 : 16;
+            ByteBuffer dd       = ZipReader.readFully(input, ddOffset, ddLength);
+            if (dd.getInt() != ZipFormat.DATA_DESCRIPTOR_SIGNATURE) {
+
+                // The data descriptor signature is optional.
+                ddLength -= 4;
+                dd.position(0);
+            }
+            record.crc            = dd.getInt() & 0xffffffffL;
+            record.compressedSize = zip64 ? dd.getLong() : dd.getInt() & 0xffffffffL;
+            record.size           = zip64 ? dd.getLong() : dd.getInt() & 0xffffffffL;
+            if (
+                actual.compressedSize != record.compressedSize
+                || actual.size != record.size
+                || actual.crc != record.crc
+            ) return -1;
+
+            end = ddOffset + ddLength;
+        } else
+        {
+            return -1;
+        }
+
+        records.add(record);
+        return end;
+    }
+
+    private static long
+    crc(RandomAccessInput input, long offset, long length) throws IOException {
+
+        CRC32  crc = new CRC32();
+        byte[] buf = new byte[8192];
+        try (InputStream is = new RandomAccessInputStream(input, offset, length)) {
+            for (int n; (n = is.read(buf)) != -1;) crc.update(buf, 0, n);
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Inflates the DEFLATE stream at the given <var>offset</var>, and sets the <var>record</var>'s compressed size,
+     * size and CRC.
+     *
+     * @return Whether the DEFLATE stream is complete and valid
+     */
+    private static boolean
+    inflate(RandomAccessInput input, long offset, ZipEntryRecord record) throws IOException {
+
+        CRC32    crc      = new CRC32();
+        byte[]   in       = new byte[8192];
+        byte[]   out      = new byte[32768];
+        Inflater inflater = ZlibPool.getInflater();
+        try (InputStream is = new RandomAccessInputStream(input, offset, input.size() - offset)) {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    int n = is.read(in);
+                    if (n == -1) return false;
+                    inflater.setInput(in, 0, n);
+                }
+                int n = inflater.inflate(out);
+                if (n == 0 && inflater.needsDictionary()) return false;
+                crc.update(out, 0, n);
+            }
+
+            record.compressedSize = inflater.getBytesRead();
+            record.size           = inflater.getBytesWritten();
+            record.crc            = crc.getValue();
+            return true;
+        } catch (DataFormatException dfe) {
+            return false;
+        } finally {
+            ZlibPool.release(inflater);
+        }
+    }
+
+    @Override public String
+    toString() { return this.file.toString(); }
+}
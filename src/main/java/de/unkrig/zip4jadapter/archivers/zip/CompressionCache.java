@@ -0,0 +1,363 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A persistent, content-addressed cache of compressed entry data, which the ZIP writers use to avoid compressing the
+ * same content over and over again.
+ * <p>
+ *   Each cached item is keyed by the SHA-256 hash of the uncompressed content, the compression method and the
+ *   compression level, and holds the compressed data and the CRC-32 of the uncompressed content. The cache lives in a
+ *   directory, one file per item, and may be shared by several processes. When the total size of the items exceeds
+ *   the configured maximum, the least recently used items are deleted.
+ * </p>
+ * <p>
+ *   Each instance keeps an index of the items, for the LRU eviction; however lookups always check the directory,
+ *   so that items added by other processes (or other instances) are found, and are then added to the index. The
+ *   item files are read and written without holding the instance's lock, so that concurrent writers do not wait for
+ *   each other.
+ * </p>
+ * <p>
+ *   Encrypted entries are never cached, because that would store their (compressed) plaintext on disk.
+ * </p>
+ *
+ * @see ZipArchiveFormat#setCompressionCache(CompressionCache)
+ * @see ZipArchiveFormat#SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY
+ */
+public final
+class CompressionCache {
+
+    /**
+     * Entries smaller than this are not worth a file system round trip.
+     */
+    static final int MIN_CACHEABLE_SIZE = 1024;
+
+    /**
+     * Larger entries are not cached, because they would have to be buffered in memory (or in a temporary file).
+     */
+    static final int MAX_CACHEABLE_SIZE = 64 << 20;
+
+    private static final int ITEM_MAGIC       = 0x5a434331; // "ZCC1"
+    private static final int ITEM_HEADER_SIZE = 16;
+
+    private final File directory;
+    private final long maxSize;
+
+    /**
+     * Maps item file names to item file sizes, in LRU order.
+     */
+    private final LinkedHashMap<String, Long> items = new LinkedHashMap<>(16, .75f, true);
+    private long                              size;
+
+    private long hitCount, missCount, evictionCount;
+
+    /**
+     * @param directory Is created if it does not exist
+     * @param maxSize   The maximum total size of the cached items, in bytes
+     */
+    public
+    CompressionCache(File directory, long maxSize) throws IOException {
+
+        if (maxSize < 0) throw new IllegalArgumentException("maxSize");
+
+        this.directory = directory;
+        this.maxSize   = maxSize;
+
+        Files.createDirectories(directory.toPath());
+
+        // Load the items that are already in the directory, least recently used first.
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".z"));
+        if (files == null) throw new IOException("Cannot list \"" + directory + "\"");
+        Arrays.sort(files, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        for (File f : files) {
+            long length = f.length();
+            this.items.put(f.getName(), length);
+            this.size += length;
+        }
+
+        this.evict();
+    }
+
+    /**
+     * The compressed data of a cached item, and the CRC-32 and the size of the uncompressed content.
+     */
+    static final
+    class Item {
+
+        final long   crc;
+        final long   size;
+        final byte[] compressedData;
+
+        Item(long crc, long size, byte[] compressedData) {
+            this.crc            = crc;
+            this.size           = size;
+            this.compressedData = compressedData;
+        }
+    }
+
+    /**
+     * @return The SHA-256 hash of the given byte array range
+     */
+    static byte[]
+    contentHash(byte[] data, int off, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(data, off, len);
+            return md.digest();
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AssertionError(nsae);
+        }
+    }
+
+    /**
+     * @return The cached item, or {@code null} iff there is no such item in the cache
+     */
+    @Nullable Item
+    get(byte[] contentHash, long size, int method, int level) {
+
+        String name = CompressionCache.itemName(contentHash, method, level);
+        File   file = new File(this.directory, name);
+
+        // Check the directory even if the item is not in the index, because another process may have added it.
+        byte[] ba;
+        try {
+            ba = Files.readAllBytes(file.toPath());
+        } catch (IOException ioe) {
+
+            // No such item, or another process has evicted it.
+            ba = null;
+        }
+
+        Item item = ba == null ? null : CompressionCache.parseItem(ba, size);
+
+        // Persist the LRU order for the next process that uses the cache.
+        if (item != null) file.setLastModified(System.currentTimeMillis());
+
+        synchronized (this) {
+            if (item != null) {
+                this.hitCount++;
+                this.index(name, CompressionCache.ITEM_HEADER_SIZE + item.compressedData.length);
+            } else {
+                this.missCount++;
+
+                // The item file is corrupt or gone. (Iff it is gone, then don't delete it, because another process may
+                // just have added it.)
+                if (ba != null) file.delete();
+                this.unindex(name);
+            }
+        }
+
+        return item;
+    }
+
+    /**
+     * @return {@code null} iff the <var>ba</var> is not a valid item for content of the given <var>size</var>
+     */
+    @Nullable private static Item
+    parseItem(byte[] ba, long size) {
+
+        ByteBuffer bb = ByteBuffer.wrap(ba);
+        if (bb.remaining() < CompressionCache.ITEM_HEADER_SIZE) return null;
+        if (bb.getInt() != CompressionCache.ITEM_MAGIC) return null;
+
+        long crc      = bb.getInt() & 0xffffffffL;
+        long itemSize = bb.getLong();
+        if (itemSize != size) return null;
+
+        byte[] compressedData = new byte[bb.remaining()];
+        bb.get(compressedData);
+
+        return new Item(crc, size, compressedData);
+    }
+
+    /**
+     * Stores an item in the cache, replacing any existing item with the same key, and evicts least recently used items
+     * as necessary. I/O errors are ignored, because the cache is only an optimization.
+     */
+    void
+    put(byte[] contentHash, int method, int level, long crc, long size, byte[] compressedData) {
+
+        long itemSize = CompressionCache.ITEM_HEADER_SIZE + compressedData.length;
+        if (itemSize > this.maxSize) return;
+
+        String name = CompressionCache.itemName(contentHash, method, level);
+        File   file = new File(this.directory, name);
+
+        ByteBuffer bb = ByteBuffer.allocate((int) itemSize);
+        bb.putInt(CompressionCache.ITEM_MAGIC);
+        bb.putInt((int) crc);
+        bb.putLong(size);
+        bb.put(compressedData);
+
+        // Write to a temporary file first, so that concurrent readers never see a partially written item.
+        try {
+            File tmp = File.createTempFile(name, ".tmp", this.directory);
+            try {
+                Files.write(tmp.toPath(), bb.array());
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            return;
+        }
+
+        synchronized (this) {
+            this.index(name, itemSize);
+        }
+    }
+
+    /**
+     * Deletes all cached items.
+     */
+    public synchronized void
+    clear() {
+        for (String name : this.items.keySet()) new File(this.directory, name).delete();
+        this.items.clear();
+        this.size = 0;
+    }
+
+    /**
+     * @return The directory where the cached items are stored
+     */
+    public File
+    getDirectory() { return this.directory; }
+
+    /**
+     * @return The maximum total size of the cached items, in bytes
+     */
+    public long
+    getMaxSize() { return this.maxSize; }
+
+    /**
+     * @return The current total size of the cached items, in bytes
+     */
+    public synchronized long
+    getSize() { return this.size; }
+
+    /**
+     * @return The number of cached items
+     */
+    public synchronized int
+    getItemCount() { return this.items.size(); }
+
+    /**
+     * @return How often an entry's compressed data was found in the cache
+     */
+    public synchronized long
+    getHitCount() { return this.hitCount; }
+
+    /**
+     * @return How often an entry's compressed data was not found in the cache
+     */
+    public synchronized long
+    getMissCount() { return this.missCount; }
+
+    /**
+     * @return The number of items that were deleted to keep the total size of the cache within its limit
+     */
+    public synchronized long
+    getEvictionCount() { return this.evictionCount; }
+
+    /**
+     * @return The ratio of hits to lookups, or 0 if there were no lookups yet
+     */
+    public synchronized double
+    getHitRate() {
+        long lookups = this.hitCount + this.missCount;
+        return lookups == 0 ? 0 : (double) this.hitCount / lookups;
+    }
+
+    @Override public String
+    toString() {
+        return (
+            this.directory
+            + " ("
+            + this.getSize()
+            + " of "
+            + this.maxSize
+            + " bytes, hit rate "
+            + Math.round(100 * this.getHitRate())
+            + "%)"
+        );
+    }
+
+    private void
+    evict() {
+        for (Iterator<Map.Entry<String, Long>> it = this.items.entrySet().iterator(); this.size > this.maxSize;) {
+            Map.Entry<String, Long> e = it.next();
+            new File(this.directory, e.getKey()).delete();
+            this.size -= e.getValue();
+            it.remove();
+            this.evictionCount++;
+        }
+    }
+
+    /**
+     * Adds the item to the index, or marks it as most recently used, and evicts least recently used items as
+     * necessary.
+     */
+    private void
+    index(String name, long itemSize) {
+
+        Long previousSize = this.items.put(name, itemSize);
+        if (previousSize != null) this.size -= previousSize;
+        this.size += itemSize;
+
+        this.evict();
+    }
+
+    private void
+    unindex(String name) {
+        Long itemSize = this.items.remove(name);
+        if (itemSize != null) this.size -= itemSize;
+    }
+
+    private static String
+    itemName(byte[] contentHash, int method, int level) {
+
+        StringBuilder sb = new StringBuilder(contentHash.length * 2 + 8);
+        for (byte b : contentHash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.append('-').append(method).append('-').append(level).append(".z").toString();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * Reads the data of an unencrypted STORED or DEFLATED entry directly into the caller's buffers: STORED data is read
+ * from the archive through positional reads, and DEFLATED data is read into a direct buffer and inflated through
+ * {@code Inflater.setInput(ByteBuffer)} and {@code Inflater.inflate(ByteBuffer)} (which are only available as of
+ * Java 11, see {@link #isSupported(int)}). Thus, iff the caller's buffer is direct, no entry data passes through the
+ * heap.
+ * <p>
+ *   When the end of the entry is reached, then its size and CRC have been verified.
+ * </p>
+ */
+final
+class EntryChannel implements ReadableByteChannel {
+
+    @Nullable private static final MethodHandle INFLATER_SET_INPUT_BYTE_BUFFER;
+    @Nullable private static final MethodHandle INFLATER_INFLATE_BYTE_BUFFER;
+    static {
+        MethodHandle setInput, inflate;
+        try {
+            setInput = MethodHandles.publicLookup().findVirtual(
+                Inflater.class,
+                "setInput",
+                MethodType.methodType(void.class, ByteBuffer.class)
+            );
+            inflate = MethodHandles.publicLookup().findVirtual(
+                Inflater.class,
+                "inflate",
+                MethodType.methodType(int.class, ByteBuffer.class)
+            );
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            setInput = null;
+            inflate  = null;
+        }
+        INFLATER_SET_INPUT_BYTE_BUFFER = setInput;
+        INFLATER_INFLATE_BYTE_BUFFER   = inflate;
+    }
+
+    private final RandomAccessInput    input;
+    private final ZipEntryRecord       record;
+    private long                       position;
+    private final long                 end;
+    private final CRC32                crc = new CRC32();
+    private long                       count;
+    @Nullable private Inflater         inflater;
+    @Nullable private final ByteBuffer inflaterInput;
+    private boolean                    dummyByteFed;
+    private boolean                    open = true;
+
+    /**
+     * @param dataOffset The position of the entry data in the <var>input</var>
+     */
+    EntryChannel(RandomAccessInput input, ZipEntryRecord record, long dataOffset) {
+
+        assert EntryChannel.isSupported(record.method);
+
+        this.input    = input;
+        this.record   = record;
+        this.position = dataOffset;
+        this.end      = dataOffset + record.compressedSize;
+
+        if (record.method == ZipFormat.METHOD_DEFLATED) {
+            this.inflater      = ZlibPool.getInflater();
+            this.inflaterInput = ByteBuffer.allocateDirect(8192);
+            this.inflaterInput.limit(0);
+        } else {
+            this.inflaterInput = null;
+        }
+    }
+
+    /**
+     * @return Whether entries with the given compression <var>method</var> can be read through an {@link
+     *         EntryChannel}
+     */
+    static boolean
+    isSupported(int method) {
+        return (
+            method == ZipFormat.METHOD_STORED
+            || (method == ZipFormat.METHOD_DEFLATED && EntryChannel.INFLATER_INFLATE_BYTE_BUFFER != null)
+        );
+    }
+
+    @Override public int
+    read(ByteBuffer dst) throws IOException {
+
+        if (!this.open) throw new ClosedChannelException();
+        if (!dst.hasRemaining()) return 0;
+
+        int start = dst.position();
+        int n     = this.inflater == null ? this.readStored(dst) : this.readDeflated(dst);
+
+        if (n == -1) {
+            if (this.count != this.record.size) {
+                throw new ZipException(
+                    "Entry \""
+                    + this.record
+                    + "\": Size is "
+                    + this.count
+                    + " instead of "
+                    + this.record.size
+                );
+            }
+            if (this.crc.getValue() != this.record.crc) {
+                throw new ZipException("Entry \"" + this.record + "\": CRC mismatch");
+            }
+            return -1;
+        }
+
+        ByteBuffer data = dst.duplicate();
+        data.position(start);
+        data.limit(start + n);
+        this.crc.update(data);
+        this.count += n;
+
+        return n;
+    }
+
+    private int
+    readStored(ByteBuffer dst) throws IOException {
+
+        long remaining = this.end - this.position;
+        if (remaining == 0) return -1;
+
+        int limit = dst.limit();
+        if (dst.remaining() > remaining) dst.limit(dst.position() + (int) remaining);
+        try {
+            int n = this.input.read(dst, this.position);
+            if (n == -1) throw new EOFException();
+            this.position += n;
+            return n;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    private int
+    readDeflated(ByteBuffer dst) throws IOException {
+
+        Inflater   inflater = this.inflater;
+        ByteBuffer in       = this.inflaterInput;
+        assert inflater != null;
+        assert in != null;
+
+        MethodHandle setInput = EntryChannel.INFLATER_SET_INPUT_BYTE_BUFFER;
+        MethodHandle inflate  = EntryChannel.INFLATER_INFLATE_BYTE_BUFFER;
+        assert setInput != null;
+        assert inflate != null;
+
+        try {
+            for (;;) {
+                if (inflater.finished()) return -1;
+
+                if (inflater.needsInput()) {
+                    in.clear();
+                    long remaining = this.end - this.position;
+                    if (remaining == 0) {
+                        if (this.dummyByteFed) throw new EOFException("Unexpected end of DEFLATE data");
+
+                        // The "nowrap" inflater may need an extra dummy byte at the end of its input, see
+                        // "Inflater(boolean)".
+                        in.put((byte) 0);
+                        this.dummyByteFed = true;
+                    } else {
+                        if (in.remaining() > remaining) in.limit((int) remaining);
+                        int n = this.input.read(in, this.position);
+                        if (n == -1) throw new EOFException();
+                        this.position += n;
+                    }
+                    in.flip();
+                    setInput.invokeExact(inflater, in);
+                }
+
+                int n = (int) inflate.invokeExact(inflater, dst);
+                if (n > 0) return n;
+
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Entry \"" + this.record + "\": Preset dictionary not supported");
+                }
+            }
+        } catch (DataFormatException dfe) {
+            throw new ZipException("Entry \"" + this.record + "\": " + dfe.getMessage(), dfe);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    @Override public boolean
+    isOpen() { return this.open; }
+
+    @Override public void
+    close() {
+
+        if (!this.open) return;
+        this.open = false;
+
+        Inflater inflater = this.inflater;
+        if (inflater != null) {
+            this.inflater = null;
+            ZlibPool.release(inflater);
+        }
+    }
+}
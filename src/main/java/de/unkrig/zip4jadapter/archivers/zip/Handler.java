@@ -26,7 +26,10 @@
 
 package de.unkrig.zip4jadapter.archivers.zip;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLStreamHandler;
 
 import org.apache.commons.compress.archivers.ArchiveException;
@@ -34,6 +37,7 @@ import org.apache.commons.compress.archivers.ArchiveInputStream;
 
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormatFactory;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveURLStreamHandler;
+import de.unkrig.commons.nullanalysis.Nullable;
 
 /**
  * A {@link URLStreamHandler} for the protocol "{@code zip}".
@@ -45,14 +49,151 @@ import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveURLSt
  *   The contents of the container must be in the ZIP archive format.
  * </p>
  * <p>
+ *   The container URL may itself be a "{@code zip:}" URL, which designates an archive nested in another archive, e.g.
+ *   "{@code zip:zip:file:/a.zip!/inner.zip!/dir/file}". If the outermost container is a file, then the central
+ *   directories of the archive file and of all nested archives are cached, so that such URLs are resolved without
+ *   scanning any archive. STORED nested archives are read directly from the archive file; other nested archives are
+ *   decompressed once into a memory cache, whose size is limited by the system property {@value
+ *   #SYSTEM_PROPERTY_NESTED_ARCHIVE_CACHE_MAX_SIZE}.
+ * </p>
+ * <p>
+ *   Optionally, the decompressed contents of small entries of such archives are cached as well, so that repeatedly
+ *   loaded resources are not decompressed again; see {@link #SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_SIZE}.
+ * </p>
+ * <p>
  *   This handler is registered by {@link ArchiveFormatFactory}.
  * </p>
  */
 public
 class Handler extends ArchiveURLStreamHandler {
 
+    /**
+     * The maximum number of bytes of decompressed nested archives that are held in memory (default 64 MB).
+     */
+    public static final String SYSTEM_PROPERTY_NESTED_ARCHIVE_CACHE_MAX_SIZE = "zip4j.nestedArchiveCacheMaxSize";
+
+    /**
+     * The maximum number of bytes of decompressed entry contents that are held in memory, in LRU order (default 0,
+     * which disables the resource cache).
+     *
+     * @see ZipArchiveStatistics#getResourceCacheHitRate()
+     */
+    public static final String SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_SIZE = "zip4j.resourceCacheMaxSize";
+
+    /**
+     * Entries that are larger than this are not held in the {@link #SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_SIZE resource
+     * cache} (default 64 kB).
+     */
+    public static final String SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_ENTRY_SIZE = "zip4j.resourceCacheMaxEntrySize";
+
+    @Nullable private static ZipArchiveCache zipArchiveCache;
+
+    private static long resourceCacheMaxSize = -1, resourceCacheMaxEntrySize;
+
     @Override protected ArchiveInputStream
     open(InputStream containerInputStream) throws ArchiveException {
         return ZipArchiveFormat.get().archiveInputStream(containerInputStream);
     }
+
+    @Override protected URLConnection
+    openConnection(URL url) {
+
+        URLConnection streamingConnection = super.openConnection(url);
+
+        return new URLConnection(url) {
+
+            @Override public void
+            connect() { this.connected = true; }
+
+            @Override public InputStream
+            getInputStream() throws IOException {
+
+                String path = url.getPath();
+                int    idx  = path.lastIndexOf('!');
+                if (idx != -1 && url.getAuthority() == null && url.getQuery() == null && url.getRef() == null) {
+
+                    String entryName = path.substring(idx + 1);
+                    while (entryName.startsWith("/")) entryName = entryName.substring(1);
+
+                    InputStream result = Handler.getZipArchiveCache().getInputStream(
+                        path.substring(0, idx),
+                        entryName,
+                        ZipArchiveFormat.getInputPassword()
+                    );
+                    if (result != null) return result;
+                }
+
+                // The container cannot be accessed randomly, so fall back to scanning its entries.
+                return streamingConnection.getInputStream();
+            }
+        };
+    }
+
+    /**
+     * Limits the number of bytes of decompressed nested archives that are held in memory. Overrides the system
+     * property {@value #SYSTEM_PROPERTY_NESTED_ARCHIVE_CACHE_MAX_SIZE}. Also discards all cached archives.
+     */
+    public static synchronized void
+    setNestedArchiveCacheMaxSize(long value) {
+
+        ZipArchiveCache previous = Handler.zipArchiveCache;
+        if (previous != null) {
+            try {
+                previous.clear();
+            } catch (IOException ioe) {
+                ; // Closing a read-only file should never fail.
+            }
+        }
+
+        ZipArchiveCache zac = (Handler.zipArchiveCache = new ZipArchiveCache(value));
+        Handler.configureResourceCache(zac);
+    }
+
+    /**
+     * Configures the cache of decompressed entry contents. Overrides the system properties {@value
+     * #SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_SIZE} and {@value #SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_ENTRY_SIZE}.
+     * <p>
+     *   Only entries of archives that are (directly or indirectly) contained in an archive <em>file</em> are cached;
+     *   they are invalidated when that file is modified. Encrypted entries are never cached.
+     * </p>
+     *
+     * @param maxSize      The maximum total size of the cached contents, in bytes; 0 disables the cache
+     * @param maxEntrySize Entries larger than this are not cached
+     */
+    public static synchronized void
+    setResourceCacheMaxSize(long maxSize, long maxEntrySize) {
+
+        Handler.resourceCacheMaxSize      = maxSize;
+        Handler.resourceCacheMaxEntrySize = maxEntrySize;
+
+        ZipArchiveCache zac = Handler.zipArchiveCache;
+        if (zac != null) Handler.configureResourceCache(zac);
+    }
+
+    private static void
+    configureResourceCache(ZipArchiveCache zac) {
+
+        if (Handler.resourceCacheMaxSize >= 0) {
+            zac.setContentCacheLimits(Handler.resourceCacheMaxSize, Handler.resourceCacheMaxEntrySize);
+            return;
+        }
+
+        zac.setContentCacheLimits(
+            Long.getLong(Handler.SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_SIZE, 0),
+            Long.getLong(Handler.SYSTEM_PROPERTY_RESOURCE_CACHE_MAX_ENTRY_SIZE, 64 << 10)
+        );
+    }
+
+    private static synchronized ZipArchiveCache
+    getZipArchiveCache() {
+
+        ZipArchiveCache result = Handler.zipArchiveCache;
+        if (result == null) {
+            String maxSize = System.getProperty(Handler.SYSTEM_PROPERTY_NESTED_ARCHIVE_CACHE_MAX_SIZE);
+            result = (Handler.zipArchiveCache = new ZipArchiveCache(maxSize == null ? 64L << 20 : Long.parseLong(maxSize)));
+            Handler.configureResourceCache(result);
+        }
+
+        return result;
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events of the "zip" archive format. This is the only class that references the {@code
+ * jdk.jfr} API, which older JREs lack; it is only loaded iff that API is available.
+ */
+final
+class JfrEvents {
+
+    private JfrEvents() {}
+
+    @Name("de.unkrig.zip4jadapter.ArchiveOpen") @Label("Archive Open") @Category("ZIP Archives")
+    @Description("Opening of a ZIP archive file")
+    static
+    class ArchiveOpenEvent extends Event {
+        @Label("Archive") String archive;
+        @Label("Entries") int    entryCount;
+    }
+
+    @Name("de.unkrig.zip4jadapter.EntryRead") @Label("Entry Read") @Category("ZIP Archives")
+    @Description("Reading of a ZIP archive entry, from getNextEntry() until the next entry or the closing of the archive")
+    static
+    class EntryReadEvent extends Event {
+        @Label("Archive")                 String archive;
+        @Label("Entry")                   String entry;
+        @Label("Bytes Read") @DataAmount long   bytesRead;
+    }
+
+    @Name("de.unkrig.zip4jadapter.EntryWrite") @Label("Entry Write") @Category("ZIP Archives")
+    @Description("Writing of a ZIP archive entry, from putArchiveEntry() until closeArchiveEntry()")
+    static
+    class EntryWriteEvent extends Event {
+        @Label("Archive")                    String archive;
+        @Label("Entry")                      String entry;
+        @Label("Size") @DataAmount           long   size;
+        @Label("Archive Bytes") @DataAmount  long   archiveBytes;
+    }
+
+    static Object
+    beginArchiveOpen() {
+        ArchiveOpenEvent result = new ArchiveOpenEvent();
+        result.begin();
+        return result;
+    }
+
+    static void
+    commitArchiveOpen(Object event, String archive, int entryCount) {
+        ArchiveOpenEvent e = (ArchiveOpenEvent) event;
+        if (!e.shouldCommit()) return;
+        e.archive    = archive;
+        e.entryCount = entryCount;
+        e.commit();
+    }
+
+    static Object
+    beginEntryRead() {
+        EntryReadEvent result = new EntryReadEvent();
+        result.begin();
+        return result;
+    }
+
+    static void
+    commitEntryRead(Object event, String archive, String entry, long bytesRead) {
+        EntryReadEvent e = (EntryReadEvent) event;
+        if (!e.shouldCommit()) return;
+        e.archive   = archive;
+        e.entry     = entry;
+        e.bytesRead = bytesRead;
+        e.commit();
+    }
+
+    static Object
+    beginEntryWrite() {
+        EntryWriteEvent result = new EntryWriteEvent();
+        result.begin();
+        return result;
+    }
+
+    static void
+    commitEntryWrite(Object event, String archive, String entry, long size, long archiveBytes) {
+        EntryWriteEvent e = (EntryWriteEvent) event;
+        if (!e.shouldCommit()) return;
+        e.archive      = archive;
+        e.entry        = entry;
+        e.size         = size;
+        e.archiveBytes = archiveBytes;
+        e.commit();
+    }
+}
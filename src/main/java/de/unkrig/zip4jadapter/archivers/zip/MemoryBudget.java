@@ -0,0 +1,225 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * The process-wide limit on the memory that the readers and writers of the "zip" archive format use for their
+ * buffers.
+ * <p>
+ *   Fixed-size stream buffers are {@link #acquire(long) acquired}, which blocks while the budget is exhausted, and
+ *   thus throttles the creation of new streams. Buffers for complete entries are only {@link #tryAcquire(long)
+ *   tried}; if that fails, the caller falls back to a temporary file, or to an unbuffered strategy. Each acquired
+ *   amount must be {@link #release(long) released} exactly once.
+ * </p>
+ * <p>
+ *   Caches hold their memory until it is {@link Reclaimable#reclaim(long) reclaimed}: Before a thread waits for
+ *   memory, it asks all {@link #register(Reclaimable) registered} caches to give back what it lacks. While threads
+ *   are waiting, {@link #tryAcquire(long)} fails, so that the caches cannot take the released memory again.
+ * </p>
+ * <p>
+ *   The current usage is reported by the {@link ZipArchiveStatistics}.
+ * </p>
+ *
+ * @see ZipArchiveFormat#SYSTEM_PROPERTY_MEMORY_BUDGET
+ */
+final
+class MemoryBudget {
+
+    private MemoryBudget() {}
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * The number of bytes that may be acquired at the same time; {@link Long#MAX_VALUE} means "unlimited".
+     */
+    private static long limit = MemoryBudget.parse(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_MEMORY_BUDGET));
+
+    private static long used, peak;
+
+    /**
+     * The number of threads that are waiting in {@link #acquire(long)}.
+     */
+    private static int waiters;
+
+    /**
+     * Something that holds memory of the budget for caching only, and can give it back on demand.
+     */
+    interface Reclaimable {
+
+        /**
+         * Releases cached data, least recently used first, until at least <var>n</var> bytes were {@link
+         * MemoryBudget#release(long) released} (or nothing is cached anymore).
+         *
+         * @return The number of bytes released
+         */
+        long reclaim(long n);
+    }
+
+    private static final List<WeakReference<Reclaimable>> RECLAIMABLES = new CopyOnWriteArrayList<>();
+
+    /**
+     * Lets {@link #acquire(long)} reclaim memory from the <var>reclaimable</var> before it waits. The reclaimable is
+     * weakly referenced.
+     */
+    static void
+    register(Reclaimable reclaimable) { MemoryBudget.RECLAIMABLES.add(new WeakReference<>(reclaimable)); }
+
+    static long
+    getLimit() { synchronized (MemoryBudget.LOCK) { return MemoryBudget.limit; } }
+
+    /**
+     * @param value The number of bytes, or 0 for "unlimited"
+     */
+    static void
+    setLimit(long value) {
+        synchronized (MemoryBudget.LOCK) {
+            MemoryBudget.limit = value <= 0 ? Long.MAX_VALUE : value;
+            MemoryBudget.LOCK.notifyAll();
+        }
+    }
+
+    static long
+    getUsed() { synchronized (MemoryBudget.LOCK) { return MemoryBudget.used; } }
+
+    static long
+    getPeak() { synchronized (MemoryBudget.LOCK) { return MemoryBudget.peak; } }
+
+    static void
+    resetPeak() { synchronized (MemoryBudget.LOCK) { MemoryBudget.peak = MemoryBudget.used; } }
+
+    /**
+     * Waits until <var>n</var> bytes are available, and acquires them. If they are not available, then memory is
+     * first reclaimed from the {@link #register(Reclaimable) registered} caches. A request that exceeds the limit as a
+     * whole waits until <em>nothing</em> else is acquired, so that it can never block forever.
+     */
+    static void
+    acquire(long n) throws InterruptedIOException {
+
+        long missing;
+        synchronized (MemoryBudget.LOCK) {
+            if (MemoryBudget.fits(n)) {
+                MemoryBudget.take(n);
+                return;
+            }
+            missing = (
+                n > MemoryBudget.limit
+                ? MemoryBudget.used
+                : MemoryBudget.used + n - MemoryBudget.limit
+            );
+            MemoryBudget.waiters++;
+        }
+
+        try {
+
+            // Notice: Reclaiming locks the caches, which in turn acquire the LOCK, so don't hold the LOCK here.
+            MemoryBudget.reclaim(missing);
+
+            synchronized (MemoryBudget.LOCK) {
+                if (!MemoryBudget.fits(n)) {
+                    ZipArchiveStatistics.get().memoryWaits.increment();
+                    do {
+                        try {
+                            MemoryBudget.LOCK.wait();
+                        } catch (InterruptedException ie) {
+                            throw new InterruptedIOException();
+                        }
+                    } while (!MemoryBudget.fits(n));
+                }
+                MemoryBudget.take(n);
+            }
+        } finally {
+            synchronized (MemoryBudget.LOCK) { MemoryBudget.waiters--; }
+        }
+    }
+
+    private static void
+    reclaim(long n) {
+        for (WeakReference<Reclaimable> wr : MemoryBudget.RECLAIMABLES) {
+            if (n <= 0) break;
+            Reclaimable r = wr.get();
+            if (r == null) {
+                MemoryBudget.RECLAIMABLES.remove(wr);
+            } else {
+                n -= r.reclaim(n);
+            }
+        }
+    }
+
+    /**
+     * Acquires <var>n</var> bytes iff they are available and no other thread is waiting for memory, without waiting.
+     *
+     * @return Whether the bytes were acquired
+     */
+    static boolean
+    tryAcquire(long n) {
+
+        synchronized (MemoryBudget.LOCK) {
+            if (MemoryBudget.waiters > 0 || MemoryBudget.used + n > MemoryBudget.limit) return false;
+            MemoryBudget.take(n);
+            return true;
+        }
+    }
+
+    /**
+     * Releases <var>n</var> previously acquired bytes, and wakes up the threads that are waiting for memory.
+     */
+    static void
+    release(long n) {
+
+        if (n == 0) return;
+
+        synchronized (MemoryBudget.LOCK) {
+            MemoryBudget.used -= n;
+            assert MemoryBudget.used >= 0;
+            MemoryBudget.LOCK.notifyAll();
+        }
+    }
+
+    private static boolean
+    fits(long n) {
+        return MemoryBudget.used == 0 || MemoryBudget.used + n <= MemoryBudget.limit;
+    }
+
+    private static void
+    take(long n) {
+        MemoryBudget.used += n;
+        if (MemoryBudget.used > MemoryBudget.peak) MemoryBudget.peak = MemoryBudget.used;
+    }
+
+    private static long
+    parse(@Nullable String s) {
+        if (s == null) return Long.MAX_VALUE;
+        long result = Long.parseLong(s.trim());
+        return result <= 0 ? Long.MAX_VALUE : result;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * Inflates a DEFLATED entry on several threads. This is possible iff the access points of the DEFLATE stream are
+ * known, i.e. the positions where the stream is byte-aligned, and inflation can start afresh (with a preset
+ * dictionary, unless the point is a full flush point). These come from the entry's "block index" extra field (see
+ * {@link ZipArchiveFormat#setOutputEntryIndexInterval(int)}) or from a {@link SeekIndex}. The segments between the
+ * points are inflated concurrently by the {@link WorkerPool#inflaters(int) inflater threads}, and are returned in
+ * order; thus the data are exactly those that sequential inflation would produce.
+ * <p>
+ *   The CRC and the size are <em>not</em> verified by this stream.
+ * </p>
+ *
+ * @see ZipArchiveFormat#setParallelInflateThreads(int)
+ */
+final
+class ParallelInflaterInputStream extends InputStream {
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final RandomAccessInput input;
+    private final long              dataOffset;
+    private final ZipEntryRecord    record;
+    private final int               parallelism;
+    private final Executor          executor;
+    private final long              reserved;
+
+    /**
+     * The starts of the segments, relative to the start of the entry data, plus the end of the last segment.
+     */
+    private final long[] compressedOffsets, uncompressedOffsets;
+
+    /**
+     * The preset dictionaries of the segments; {@code null} elements for segments that start at a full flush point.
+     */
+    private final byte[][] windows;
+
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private int                                         nextSegment;
+    private byte[]                                      current = ParallelInflaterInputStream.NO_BYTES;
+    private int                                         currentPosition;
+    private boolean                                     closed;
+
+    private
+    ParallelInflaterInputStream(
+        RandomAccessInput input,
+        long              dataOffset,
+        ZipEntryRecord    record,
+        long[]            compressedOffsets,
+        long[]            uncompressedOffsets,
+        byte[][]          windows,
+        int               parallelism,
+        long              reserved
+    ) {
+        this.input               = input;
+        this.dataOffset          = dataOffset;
+        this.record              = record;
+        this.compressedOffsets   = compressedOffsets;
+        this.uncompressedOffsets = uncompressedOffsets;
+        this.windows             = windows;
+        this.parallelism         = parallelism;
+        this.executor            = WorkerPool.inflaters(parallelism);
+        this.reserved            = reserved;
+    }
+
+    /**
+     * @param points The access points of the entry, in ascending order, starting with the start of the stream (see
+     *               {@link SeekIndex#blockIndex(ZipEntryRecord)} and {@link SeekIndex#points()})
+     * @return       A stream that inflates the <var>record</var>'s data with the given <var>parallelism</var>, or
+     *               {@code null} iff there is only one access point, or the points are invalid, or the {@link
+     *               MemoryBudget} does not permit the segment buffers
+     */
+    @Nullable static InputStream
+    open(
+        RandomAccessInput     input,
+        long                  dataOffset,
+        ZipEntryRecord        record,
+        List<SeekIndex.Point> points,
+        int                   parallelism
+    ) {
+
+        if (record.method != ZipFormat.METHOD_DEFLATED || record.isEncrypted()) return null;
+
+        int n = points.size();
+        if (n < 2) return null;
+
+        long[]   compressedOffsets   = new long[n + 1];
+        long[]   uncompressedOffsets = new long[n + 1];
+        byte[][] windows             = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            SeekIndex.Point p = points.get(i);
+            compressedOffsets[i]   = p.compressedOffset;
+            uncompressedOffsets[i] = p.uncompressedOffset;
+            windows[i]             = p.window;
+        }
+        compressedOffsets[n]   = record.compressedSize;
+        uncompressedOffsets[n] = record.size;
+        if (compressedOffsets[0] != 0 || uncompressedOffsets[0] != 0) return null;
+
+        // Validate the index.
+        long maxSegmentSize = 0;
+        for (int i = 0; i < n; i++) {
+            long cl = compressedOffsets[i + 1] - compressedOffsets[i];
+            long ul = uncompressedOffsets[i + 1] - uncompressedOffsets[i];
+            if (cl <= 0 || cl >= Integer.MAX_VALUE || ul < 0 || ul >= Integer.MAX_VALUE) return null;
+            maxSegmentSize = Math.max(maxSegmentSize, ul);
+        }
+
+        // Up to "parallelism" segments are being inflated, plus the segment that is being read.
+        long reserved = (parallelism + 1) * maxSegmentSize;
+        if (!MemoryBudget.tryAcquire(reserved)) return null;
+
+        return new ParallelInflaterInputStream(
+            input,
+            dataOffset,
+            record,
+            compressedOffsets,
+            uncompressedOffsets,
+            windows,
+            parallelism,
+            reserved
+        );
+    }
+
+    @Override public int
+    read() throws IOException {
+        byte[] ba = new byte[1];
+        return this.read(ba, 0, 1) == -1 ? -1 : ba[0] & 0xff;
+    }
+
+    @Override @NotNullByDefault(false) public int
+    read(byte[] b, int off, int len) throws IOException {
+
+        if (this.closed) throw new IOException("Stream closed");
+        if (len == 0) return 0;
+
+        while (this.currentPosition == this.current.length) {
+            if (!this.nextSegment()) return -1;
+        }
+
+        int n = Math.min(len, this.current.length - this.currentPosition);
+        System.arraycopy(this.current, this.currentPosition, b, off, n);
+        this.currentPosition += n;
+
+        return n;
+    }
+
+    @Override public int
+    available() { return this.current.length - this.currentPosition; }
+
+    /**
+     * Starts the inflation of the next segments, and waits for the first pending segment.
+     *
+     * @return {@code false} iff there are no more segments
+     */
+    private boolean
+    nextSegment() throws IOException {
+
+        this.current = ParallelInflaterInputStream.NO_BYTES;
+
+        while (this.pending.size() < this.parallelism && this.nextSegment < this.compressedOffsets.length - 1) {
+            int segment = this.nextSegment++;
+            this.pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return this.inflate(segment);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }, this.executor));
+        }
+
+        CompletableFuture<byte[]> f = this.pending.poll();
+        if (f == null) return false;
+
+        try {
+            this.current = f.join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException)     throw (RuntimeException) cause;
+            if (cause instanceof Error)                throw (Error) cause;
+            throw ce;
+        }
+        this.currentPosition = 0;
+
+        return true;
+    }
+
+    /**
+     * Inflates the given <var>segment</var> with a fresh inflater, and verifies that it has exactly the length that
+     * the access points promise.
+     */
+    private byte[]
+    inflate(int segment) throws IOException {
+
+        boolean last = segment == this.compressedOffsets.length - 2;
+
+        // The "nowrap" inflater may need an extra dummy byte at the end of its input, see "Inflater(boolean)".
+        int        compressedLength = (int) (this.compressedOffsets[segment + 1] - this.compressedOffsets[segment]);
+        ByteBuffer in               = ByteBuffer.allocate(compressedLength + (last ? 1 : 0));
+        in.limit(compressedLength);
+        for (long pos = this.dataOffset + this.compressedOffsets[segment]; in.hasRemaining();) {
+            int n = this.input.read(in, pos + in.position());
+            if (n == -1) throw new EOFException();
+        }
+
+        byte[]   out      = new byte[(int) (this.uncompressedOffsets[segment + 1] - this.uncompressedOffsets[segment])];
+        Inflater inflater = ZlibPool.getInflater();
+        try {
+            byte[] window = this.windows[segment];
+            if (window != null) inflater.setDictionary(window);
+            inflater.setInput(in.array());
+
+            for (int n = 0; n < out.length;) {
+                int k = inflater.inflate(out, n, out.length - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw this.corruptIndex(segment);
+                }
+                n += k;
+            }
+
+            // Verify that the segment ends where the index says.
+            if (inflater.inflate(new byte[1]) != 0) throw this.corruptIndex(segment);
+            if (last ? !inflater.finished() : inflater.getRemaining() != 0) throw this.corruptIndex(segment);
+        } catch (DataFormatException dfe) {
+            throw new ZipException("Entry \"" + this.record + "\": " + dfe.getMessage(), dfe);
+        } finally {
+            ZlibPool.release(inflater);
+        }
+
+        return out;
+    }
+
+    private ZipException
+    corruptIndex(int segment) {
+        return new ZipException("Entry \"" + this.record + "\": Access points do not match segment #" + segment);
+    }
+
+    @Override public void
+    close() {
+
+        if (this.closed) return;
+        this.closed = true;
+
+        // Let the pending segments complete, so that the memory can safely be released.
+        for (CompletableFuture<byte[]> f : this.pending) {
+            try {
+                f.join();
+            } catch (CompletionException ce) {
+                ;
+            }
+        }
+        this.pending.clear();
+        this.current = ParallelInflaterInputStream.NO_BYTES;
+
+        MemoryBudget.release(this.reserved);
+    }
+}
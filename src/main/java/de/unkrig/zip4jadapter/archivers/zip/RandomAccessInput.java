@@ -0,0 +1,170 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A sequence of bytes that can be read at arbitrary positions, e.g. a file, a range of a file, or a byte array.
+ * All implementations are thread-safe, because reading does not modify any state.
+ */
+abstract
+class RandomAccessInput {
+
+    abstract long
+    size() throws IOException;
+
+    /**
+     * Reads bytes into the <var>dst</var> buffer, starting at the given <var>position</var>.
+     *
+     * @return The number of bytes read, or -1 iff the <var>position</var> is at or after the end of the input
+     * @see    FileChannel#read(ByteBuffer, long)
+     */
+    abstract int
+    read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Writes the given range of this input to the <var>target</var>. This implementation copies the bytes through a
+     * buffer; file-based inputs let the kernel do the copy where possible.
+     *
+     * @throws EOFException The range extends beyond the end of this input
+     * @see                 FileChannel#transferTo(long, long, WritableByteChannel)
+     */
+    void
+    transferTo(long position, long count, WritableByteChannel target) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, 65536));
+        for (long end = position + count; position < end;) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) buffer.limit((int) (end - position));
+            int n = this.read(buffer, position);
+            if (n == -1) throw new EOFException();
+            buffer.flip();
+            while (buffer.hasRemaining()) target.write(buffer);
+            position += n;
+        }
+    }
+
+    /**
+     * @return A view of the given range of this input
+     */
+    RandomAccessInput
+    slice(long offset, long length) {
+
+        RandomAccessInput delegate = this;
+
+        return new RandomAccessInput() {
+
+            @Override long
+            size() { return length; }
+
+            @Override int
+            read(ByteBuffer dst, long position) throws IOException {
+
+                if (position >= length) return -1;
+
+                if (dst.remaining() <= length - position) return delegate.read(dst, offset + position);
+
+                ByteBuffer dst2 = dst.duplicate();
+                dst2.limit(dst2.position() + (int) (length - position));
+                int n = delegate.read(dst2, offset + position);
+                if (n > 0) dst.position(dst.position() + n);
+                return n;
+            }
+
+            @Override void
+            transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                if (position + count > length) throw new EOFException();
+                delegate.transferTo(offset + position, count, target);
+            }
+
+            @Override RandomAccessInput
+            slice(long offset2, long length2) { return delegate.slice(offset + offset2, length2); }
+
+            @Override public String
+            toString() { return delegate + "[" + offset + "+" + length + "]"; }
+        };
+    }
+
+    /**
+     * @return An input that reads the <var>channel</var> through positional reads; closing the channel is the
+     *         caller's responsibility
+     */
+    static RandomAccessInput
+    of(FileChannel channel) {
+
+        return new RandomAccessInput() {
+
+            @Override long
+            size() throws IOException { return channel.size(); }
+
+            @Override int
+            read(ByteBuffer dst, long position) throws IOException { return channel.read(dst, position); }
+
+            @Override void
+            transferTo(long position, long count, WritableByteChannel target) throws IOException {
+                for (long end = position + count; position < end;) {
+                    long n = channel.transferTo(position, end - position, target);
+                    if (n == 0 && position >= channel.size()) throw new EOFException();
+                    position += n;
+                }
+            }
+
+            @Override public String
+            toString() { return channel.toString(); }
+        };
+    }
+
+    /**
+     * @return An input that reads the given byte array range
+     */
+    static RandomAccessInput
+    of(byte[] ba, int off, int len) {
+
+        return new RandomAccessInput() {
+
+            @Override long
+            size() { return len; }
+
+            @Override int
+            read(ByteBuffer dst, long position) {
+
+                if (position >= len) return -1;
+
+                int n = (int) Math.min(dst.remaining(), len - position);
+                dst.put(ba, off + (int) position, n);
+                return n;
+            }
+
+            @Override public String
+            toString() { return "byte[" + len + "]"; }
+        };
+    }
+}
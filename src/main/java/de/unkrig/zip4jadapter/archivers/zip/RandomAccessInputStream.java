@@ -0,0 +1,81 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+
+/**
+ * Reads a range of a {@link RandomAccessInput}. Any number of these streams can read the same input concurrently.
+ */
+class RandomAccessInputStream extends InputStream {
+
+    private final RandomAccessInput input;
+    private long                    position;
+    private final long              limit;
+
+    RandomAccessInputStream(RandomAccessInput input, long position, long length) {
+        this.input    = input;
+        this.position = position;
+        this.limit    = length == Long.MAX_VALUE ? Long.MAX_VALUE : position + length;
+    }
+
+    @Override public int
+    read() throws IOException {
+        byte[] ba = new byte[1];
+        return this.read(ba, 0, 1) == -1 ? -1 : ba[0] & 0xff;
+    }
+
+    @Override @NotNullByDefault(false) public int
+    read(byte[] b, int off, int len) throws IOException {
+
+        if (len == 0) return 0;
+
+        long remaining = this.limit - this.position;
+        if (remaining <= 0) return -1;
+
+        int n = this.input.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), this.position);
+        if (n == -1) return -1;
+
+        this.position += n;
+        return n;
+    }
+
+    @Override public long
+    skip(long n) throws IOException {
+        long result = Math.max(0, Math.min(n, Math.min(this.limit, this.input.size()) - this.position));
+        this.position += result;
+        return result;
+    }
+
+    @Override public int
+    available() throws IOException {
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, Math.min(this.limit, this.input.size()) - this.position));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * An {@link ArchiveInputStream} that reads the entries and their data from a delegate {@link ArchiveInputStream} in
+ * a background thread, ahead of the consumer. Thus decryption and decompression run concurrently with the
+ * consumer's processing of the data.
+ * <p>
+ *   The data is passed through a fixed set of reusable buffers, which limits the memory consumption. The buffers
+ *   are accounted against the {@link MemoryBudget}; thus the construction blocks while the budget is exhausted.
+ * </p>
+ */
+class ReadAheadArchiveInputStream extends ArchiveInputStream {
+
+    /**
+     * An element of the queue from the background thread to the consumer: Either the start of an entry, or a chunk
+     * of entry data, or the end of the archive, or an exception.
+     */
+    private static final
+    class Chunk {
+
+        @Nullable ArchiveEntry entry;
+        @Nullable byte[]       buffer;
+        int                    length;
+        @Nullable Throwable    exception;
+
+        static Chunk
+        entry(ArchiveEntry entry) { Chunk result = new Chunk(); result.entry = entry; return result; }
+
+        static Chunk
+        exception(Throwable t) { Chunk result = new Chunk(); result.exception = t; return result; }
+    }
+
+    private static final Chunk END = new Chunk();
+
+    private final ArchiveInputStream   delegate;
+    private final BlockingQueue<Chunk> free, full;
+    private final Thread               thread;
+    private final long                 bufferBytes;
+    private boolean                    closed;
+
+    /**
+     * The data chunk that the consumer is currently reading, or {@code null}.
+     */
+    @Nullable private Chunk current;
+    private int             currentOffset;
+
+    /**
+     * A non-data chunk that the consumer has already taken from the queue, but not yet processed, or {@code null}.
+     */
+    @Nullable private Chunk pending;
+
+    /**
+     * @param bufferCount The number of data buffers; each has a size of <var>bufferSize</var> bytes
+     */
+    ReadAheadArchiveInputStream(ArchiveInputStream delegate, int bufferCount, int bufferSize)
+    throws InterruptedIOException {
+
+        MemoryBudget.acquire((long) bufferCount * bufferSize);
+
+        this.delegate    = delegate;
+        this.bufferBytes = (long) bufferCount * bufferSize;
+        this.free     = new ArrayBlockingQueue<>(bufferCount);
+        this.full     = new ArrayBlockingQueue<>(bufferCount + 16);
+
+        for (int i = 0; i < bufferCount; i++) {
+            Chunk c = new Chunk();
+            c.buffer = new byte[bufferSize];
+            this.free.add(c);
+        }
+
+        this.thread = new Thread(this::readAhead, "zip4j-read-ahead");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * The body of the background thread.
+     */
+    private void
+    readAhead() {
+        try {
+            try {
+                for (;;) {
+                    ArchiveEntry ae = this.delegate.getNextEntry();
+                    if (ae == null) break;
+                    this.full.put(Chunk.entry(ae));
+
+                    for (boolean eof = false; !eof;) {
+                        Chunk  c      = this.free.take();
+                        byte[] buffer = c.buffer;
+                        assert buffer != null;
+
+                        // Fill the buffer as far as possible, so that the consumer gets large chunks.
+                        int length = 0;
+                        while (length < buffer.length) {
+                            int n = this.delegate.read(buffer, length, buffer.length - length);
+                            if (n == -1) {
+                                eof = true;
+                                break;
+                            }
+                            length += n;
+                        }
+
+                        if (length == 0) {
+                            this.free.put(c);
+                        } else {
+                            c.length = length;
+                            this.full.put(c);
+                        }
+                    }
+                }
+            } catch (InterruptedException ie) {
+                return;
+            } catch (Throwable t) {
+                this.full.put(Chunk.exception(t));
+                return;
+            }
+            this.full.put(ReadAheadArchiveInputStream.END);
+        } catch (InterruptedException ie) {
+            ;
+        }
+    }
+
+    @Override @Nullable public ArchiveEntry
+    getNextEntry() throws IOException {
+
+        // Skip the rest of the current entry's data.
+        this.recycleCurrent();
+        for (;;) {
+            Chunk c = this.pending;
+            if (c != null) {
+                this.pending = null;
+            } else {
+                c = this.take();
+            }
+
+            if (c.buffer != null) {
+                this.free.add(c);
+                continue;
+            }
+
+            if (c.entry == null) {
+
+                // End of archive, or exception.
+                this.pending = c;
+                ReadAheadArchiveInputStream.rethrow(c);
+                return null;
+            }
+
+            return c.entry;
+        }
+    }
+
+    @Override @NotNullByDefault(false) public int
+    read(byte[] b, int off, int len) throws IOException {
+
+        if (len == 0) return 0;
+
+        Chunk c = this.current;
+        if (c == null) {
+            if (this.pending != null) return -1;
+
+            c = this.take();
+            if (c.buffer == null) {
+
+                // End of the current entry.
+                this.pending = c;
+                ReadAheadArchiveInputStream.rethrow(c);
+                return -1;
+            }
+            this.current       = c;
+            this.currentOffset = 0;
+        }
+
+        byte[] buffer = c.buffer;
+        assert buffer != null;
+
+        int n = Math.min(len, c.length - this.currentOffset);
+        System.arraycopy(buffer, this.currentOffset, b, off, n);
+        this.currentOffset += n;
+        if (this.currentOffset == c.length) this.recycleCurrent();
+
+        this.count(n);
+        return n;
+    }
+
+    @Override public void
+    close() throws IOException {
+
+        if (this.closed) return;
+        this.closed = true;
+
+        // Wait until the background thread no longer uses the delegate and the buffers. (Interrupt it repeatedly, in
+        // case the delegate swallows an interrupt.)
+        boolean interrupted = false;
+        while (this.thread.isAlive()) {
+            this.thread.interrupt();
+            try {
+                this.thread.join(100);
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        try {
+            this.delegate.close();
+        } finally {
+            MemoryBudget.release(this.bufferBytes);
+        }
+    }
+
+    private void
+    recycleCurrent() {
+        Chunk c = this.current;
+        if (c != null) {
+            this.current = null;
+            this.free.add(c);
+        }
+    }
+
+    private Chunk
+    take() throws IOException {
+        try {
+            return this.full.take();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static void
+    rethrow(Chunk c) throws IOException {
+
+        Throwable t = c.exception;
+        if (t == null) return;
+
+        if (t instanceof IOException)      throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error)            throw (Error) t;
+        throw new IOException(t);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A "zran"-style index of the DEFLATE stream of one entry: A list of "access points", where inflation can start
+ * afresh, with the 32 kB of uncompressed data that precede the point as the preset dictionary (the "window"). The
+ * index is built lazily by the {@link SeekableEntryChannel}s that read the entry, and is shared through a
+ * process-wide cache and (optionally) an index file. Its access points are also the segment boundaries of the {@link
+ * ParallelInflaterInputStream}.
+ * <p>
+ *   Because Java's {@link java.util.zip.Inflater} cannot start at an arbitrary bit position (there is no equivalent
+ *   of zlib's {@code inflatePrime()}), access points are only possible where the DEFLATE stream is byte-aligned, i.e.
+ *   after a "sync flush" or a "full flush". Such flushes are produced by the {@link ZipWriter} with {@link
+ *   ZipArchiveFormat#setParallelDeflateThreads(int) parallel deflation} or {@link
+ *   ZipArchiveFormat#setOutputEntryIndexInterval(int) full flush points}, and by many other tools (e.g. "pigz"). In
+ *   a DEFLATE stream without flushes, the only access point is the start of the stream.
+ * </p>
+ * <p>
+ *   The index file has the following layout (all numbers little-endian):
+ * </p>
+ * <pre>
+ *   magic              4 bytes  "ZSI1"
+ *   entry CRC          4 bytes
+ *   compressed size    8 bytes
+ *   size               8 bytes
+ *   point count        4 bytes
+ *   points             n bytes  Compressed offset (8 bytes), uncompressed offset (8 bytes), window length (4
+ *                               bytes; -1 means "full flush point"), window
+ *   CRC                4 bytes  The CRC-32 of all preceding bytes
+ * </pre>
+ */
+final
+class SeekIndex {
+
+    private static final int MAGIC = 'Z' | 'S' << 8 | 'I' << 16 | '1' << 24;
+
+    private static final Map<String, SoftReference<SeekIndex>> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * A position in the DEFLATE stream where inflation can start afresh.
+     */
+    static final
+    class Point {
+
+        /**
+         * Relative to the start of the entry data.
+         */
+        final long compressedOffset, uncompressedOffset;
+
+        /**
+         * The preset dictionary, or {@code null} iff the point is a full flush point (or the start of the stream).
+         */
+        @Nullable final byte[] window;
+
+        Point(long compressedOffset, long uncompressedOffset, @Nullable byte[] window) {
+            this.compressedOffset   = compressedOffset;
+            this.uncompressedOffset = uncompressedOffset;
+            this.window             = window;
+        }
+    }
+
+    private final ZipEntryRecord record;
+    private final long           interval;
+    private final List<Point>    points = new ArrayList<>();
+    private boolean              dirty;
+
+    private
+    SeekIndex(ZipEntryRecord record, long interval) {
+        this.record   = record;
+        this.interval = interval;
+        this.points.add(new Point(0, 0, null));
+    }
+
+    /**
+     * @return The index of the given entry of the <var>archiveFile</var>: From the process-wide cache, from the
+     *         <var>indexFile</var> (iff it is given and matches the entry), or a new index (which has only the full
+     *         flush points from the entry's "block index" extra field, if any)
+     * @param interval The minimum number of uncompressed bytes between two access points that are added to a new
+     *                 index
+     */
+    static SeekIndex
+    forEntry(File archiveFile, ZipEntryRecord record, long dataOffset, @Nullable File indexFile, long interval)
+    throws IOException {
+
+        String key = (
+            archiveFile.getAbsolutePath()
+            + '!'
+            + dataOffset
+            + '@'
+            + archiveFile.lastModified()
+            + '/'
+            + archiveFile.length()
+        );
+
+        SoftReference<SeekIndex> ref    = SeekIndex.CACHE.get(key);
+        SeekIndex                result = ref == null ? null : ref.get();
+        if (result != null) return result;
+
+        if (indexFile != null) result = SeekIndex.read(indexFile, record, interval);
+
+        if (result == null) {
+            result = new SeekIndex(record, interval);
+            result.points.clear();
+            result.points.addAll(SeekIndex.blockIndex(record));
+        }
+
+        SeekIndex.CACHE.put(key, new SoftReference<>(result));
+        return result;
+    }
+
+    /**
+     * @return The start of the stream, plus the full flush points from the entry's "block index" extra field (up to
+     *         the first invalid one), if any
+     */
+    static List<Point>
+    blockIndex(ZipEntryRecord record) {
+
+        List<Point> result = new ArrayList<>();
+        result.add(new Point(0, 0, null));
+
+        ByteBuffer bi = ZipFormat.getExtraField(record.extra, ZipFormat.EXTRA_ID_BLOCK_INDEX);
+        if (bi != null && bi.remaining() % 16 == 0) {
+            while (bi.hasRemaining()) {
+                long co = bi.getLong(), uo = bi.getLong();
+                Point last = result.get(result.size() - 1);
+                if (co <= last.compressedOffset || uo <= last.uncompressedOffset) break;
+                if (co >= record.compressedSize || uo >= record.size) break;
+                result.add(new Point(co, uo, null));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return A snapshot of the access points, in ascending order
+     */
+    synchronized List<Point>
+    points() { return new ArrayList<>(this.points); }
+
+    /**
+     * @return The last access point at or before the given <var>uncompressedOffset</var>
+     */
+    synchronized Point
+    floor(long uncompressedOffset) {
+
+        int lo = 0, hi = this.points.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (this.points.get(mid).uncompressedOffset <= uncompressedOffset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        return this.points.get(lo);
+    }
+
+    /**
+     * @return Whether an access point at the given <var>uncompressedOffset</var> would be added to the index
+     */
+    synchronized boolean
+    wants(long uncompressedOffset) {
+        return uncompressedOffset >= this.points.get(this.points.size() - 1).uncompressedOffset + this.interval;
+    }
+
+    /**
+     * Adds the given access point, iff it is {@link #wants(long) wanted}.
+     */
+    synchronized void
+    add(Point point) {
+        if (!this.wants(point.uncompressedOffset)) return;
+        this.points.add(point);
+        this.dirty = true;
+    }
+
+    /**
+     * Iff access points were added since the index was created resp. read, then replaces the <var>indexFile</var>.
+     */
+    synchronized void
+    writeIfDirty(File indexFile) throws IOException {
+
+        if (!this.dirty) return;
+
+        int length = 32;
+        for (Point p : this.points) length += 20 + (p.window == null ? 0 : p.window.length);
+
+        ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(SeekIndex.MAGIC);
+        bb.putInt((int) this.record.crc);
+        bb.putLong(this.record.compressedSize);
+        bb.putLong(this.record.size);
+        bb.putInt(this.points.size());
+        for (Point p : this.points) {
+            byte[] window = p.window;
+            bb.putLong(p.compressedOffset);
+            bb.putLong(p.uncompressedOffset);
+            if (window == null) {
+                bb.putInt(-1);
+            } else {
+                bb.putInt(window.length);
+                bb.put(window);
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.position());
+        bb.putInt((int) crc.getValue());
+        bb.flip();
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (FileChannel fc = FileChannel.open(
+            tmp.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        )) {
+            while (bb.hasRemaining()) fc.write(bb);
+        }
+
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        this.dirty = false;
+    }
+
+    /**
+     * @return The index read from the <var>indexFile</var>, or {@code null} iff the file does not exist, is corrupt,
+     *         or belongs to a different entry
+     */
+    @Nullable private static SeekIndex
+    read(File indexFile, ZipEntryRecord record, long interval) throws IOException {
+
+        if (!indexFile.isFile()) return null;
+
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.remaining() < 32 || bb.getInt(0) != SeekIndex.MAGIC) return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.limit() - 4);
+        if ((int) crc.getValue() != bb.getInt(bb.limit() - 4)) return null;
+        bb.limit(bb.limit() - 4);
+
+        bb.position(4);
+        if (
+            bb.getInt() != (int) record.crc
+            || bb.getLong() != record.compressedSize
+            || bb.getLong() != record.size
+        ) return null;
+
+        SeekIndex result = new SeekIndex(record, interval);
+        result.points.clear();
+        try {
+            for (int i = bb.getInt(); i > 0; i--) {
+                long   co     = bb.getLong(), uo = bb.getLong();
+                int    wl     = bb.getInt();
+                byte[] window = null;
+                if (wl != -1) {
+                    window = new byte[wl];
+                    bb.get(window);
+                }
+                result.points.add(new Point(co, uo, window));
+            }
+        } catch (RuntimeException re) {
+            return null;
+        }
+
+        if (result.points.isEmpty() || result.points.get(0).uncompressedOffset != 0) return null;
+        return result;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * Reads the data of an unencrypted STORED or DEFLATED entry at arbitrary positions. STORED data is read from the
+ * archive through positional reads; DEFLATED data is inflated from the closest preceding access point of the entry's
+ * {@link SeekIndex}. While the channel inflates, it adds access points to the index.
+ * <p>
+ *   In contrast with the {@link EntryChannel}, the CRC is <em>not</em> verified.
+ * </p>
+ */
+final
+class SeekableEntryChannel implements SeekableByteChannel {
+
+    private static final int WINDOW_SIZE = 1 << 15;
+
+    /**
+     * The number of bytes that are inflated from a candidate access point to verify it.
+     */
+    private static final int PROBE_SIZE = 4096;
+
+    private static final byte[] DUMMY_BYTE = new byte[1];
+
+    private final RandomAccessInput    input;
+    private final ZipEntryRecord       record;
+    private final long                 dataOffset;
+    @Nullable private final SeekIndex  index;
+    @Nullable private final File       indexFile;
+    private final Closeable            archive;
+    private long                       position;
+    private boolean                    open = true;
+
+    // The state of the inflation; all offsets are relative to the start of the entry data.
+    @Nullable private Inflater inflater;
+    private long               compressedPosition;   // Where the next input for the inflater comes from
+    private long               uncompressedPosition; // The offset of the next byte that "produce()" returns
+    private boolean            dummyByteFed;
+    private boolean            atCandidate;          // Whether the input was fed up to a candidate access point
+    private final byte[]       inputBuffer = new byte[8192];
+
+    // The last 32 kB of inflated data, as a ring buffer; valid from "historyStart".
+    private final byte[] history = new byte[SeekableEntryChannel.WINDOW_SIZE];
+    private long         historyStart;
+
+    // Data that was inflated (and added to the history) while an access point was being verified.
+    private byte[] pending = new byte[0];
+    private int    pendingPosition;
+
+    /**
+     * @param index     Required iff the entry is DEFLATED
+     * @param indexFile Where the <var>index</var> is persisted when the channel is closed, or {@code null}
+     * @param archive   Is closed when the channel is closed
+     */
+    SeekableEntryChannel(
+        RandomAccessInput   input,
+        ZipEntryRecord      record,
+        long                dataOffset,
+        @Nullable SeekIndex index,
+        @Nullable File      indexFile,
+        Closeable           archive
+    ) {
+        assert record.method == ZipFormat.METHOD_STORED || index != null;
+
+        this.input      = input;
+        this.record     = record;
+        this.dataOffset = dataOffset;
+        this.index      = index;
+        this.indexFile  = indexFile;
+        this.archive    = archive;
+    }
+
+    @Override public int
+    read(ByteBuffer dst) throws IOException {
+
+        if (!this.open) throw new ClosedChannelException();
+        if (this.position >= this.record.size) return -1;
+        if (!dst.hasRemaining()) return 0;
+
+        int len = (int) Math.min(dst.remaining(), this.record.size - this.position);
+
+        if (this.index == null) {
+            int limit = dst.limit();
+            dst.limit(dst.position() + len);
+            try {
+                int n = this.input.read(dst, this.dataOffset + this.position);
+                if (n == -1) throw new EOFException();
+                this.position += n;
+                return n;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        this.seekInflater();
+
+        int n;
+        if (dst.hasArray()) {
+            n = this.produce(dst.array(), dst.arrayOffset() + dst.position(), len);
+            dst.position(dst.position() + n);
+        } else {
+            byte[] ba = new byte[Math.min(len, 8192)];
+            n = this.produce(ba, 0, ba.length);
+            dst.put(ba, 0, n);
+        }
+        this.position += n;
+
+        return n;
+    }
+
+    @Override public int
+    write(ByteBuffer src) { throw new NonWritableChannelException(); }
+
+    @Override public long
+    position() throws IOException {
+        if (!this.open) throw new ClosedChannelException();
+        return this.position;
+    }
+
+    @Override public SeekableByteChannel
+    position(long newPosition) throws IOException {
+        if (!this.open) throw new ClosedChannelException();
+        if (newPosition < 0) throw new IllegalArgumentException(Long.toString(newPosition));
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override public long
+    size() throws IOException {
+        if (!this.open) throw new ClosedChannelException();
+        return this.record.size;
+    }
+
+    @Override public SeekableByteChannel
+    truncate(long size) { throw new NonWritableChannelException(); }
+
+    @Override public boolean
+    isOpen() { return this.open; }
+
+    @Override public void
+    close() throws IOException {
+
+        if (!this.open) return;
+        this.open = false;
+
+        Inflater inflater = this.inflater;
+        if (inflater != null) {
+            this.inflater = null;
+            ZlibPool.release(inflater);
+        }
+
+        try {
+            SeekIndex index     = this.index;
+            File      indexFile = this.indexFile;
+            if (index != null && indexFile != null) index.writeIfDirty(indexFile);
+        } finally {
+            this.archive.close();
+        }
+    }
+
+    /**
+     * Positions the inflation at {@link #position}: Continues the current inflation iff that is not farther away
+     * than the closest access point, otherwise restarts at that access point.
+     */
+    private void
+    seekInflater() throws IOException {
+
+        SeekIndex index = this.index;
+        assert index != null;
+
+        SeekIndex.Point p = index.floor(this.position);
+        if (
+            this.inflater == null
+            || this.uncompressedPosition > this.position
+            || p.uncompressedOffset > this.uncompressedPosition
+        ) this.restart(p);
+
+        byte[] skipBuffer = null;
+        while (this.uncompressedPosition < this.position) {
+            if (skipBuffer == null) skipBuffer = new byte[8192];
+            this.produce(skipBuffer, 0, (int) Math.min(skipBuffer.length, this.position - this.uncompressedPosition));
+        }
+    }
+
+    private void
+    restart(SeekIndex.Point p) {
+
+        Inflater inflater = this.inflater;
+        if (inflater == null) {
+            this.inflater = inflater = ZlibPool.getInflater();
+        } else {
+            inflater.reset();
+        }
+
+        byte[] window = p.window;
+        if (window != null) inflater.setDictionary(window);
+
+        this.compressedPosition   = p.compressedOffset;
+        this.uncompressedPosition = p.uncompressedOffset;
+        this.dummyByteFed         = false;
+        this.atCandidate          = false;
+        this.pending              = new byte[0];
+        this.pendingPosition      = 0;
+
+        // Seed the history with the window.
+        this.historyStart = p.uncompressedOffset;
+        if (window != null) {
+            this.historyStart -= window.length;
+            this.record(window, 0, window.length, this.historyStart);
+        }
+    }
+
+    /**
+     * Inflates up to <var>len</var> bytes at {@link #uncompressedPosition}.
+     *
+     * @return The number of bytes inflated (at least 1)
+     */
+    private int
+    produce(byte[] b, int off, int len) throws IOException {
+
+        if (this.pendingPosition < this.pending.length) {
+            int n = Math.min(len, this.pending.length - this.pendingPosition);
+            System.arraycopy(this.pending, this.pendingPosition, b, off, n);
+            this.pendingPosition      += n;
+            this.uncompressedPosition += n;
+            return n;
+        }
+
+        Inflater inflater = this.inflater;
+        assert inflater != null;
+
+        try {
+            for (;;) {
+                int n = inflater.inflate(b, off, len);
+                if (n > 0) {
+                    this.record(b, off, n, this.uncompressedPosition);
+                    this.uncompressedPosition += n;
+                    return n;
+                }
+
+                if (inflater.finished()) {
+                    throw new ZipException("Entry \"" + this.record + "\": Unexpected end of DEFLATE data");
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Entry \"" + this.record + "\": Preset dictionary not supported");
+                }
+
+                // All data up to the candidate access point are inflated.
+                if (this.atCandidate) {
+                    this.atCandidate = false;
+                    if (this.addAccessPoint()) return this.produce(b, off, len);
+                }
+
+                this.feed(true);
+            }
+        } catch (DataFormatException dfe) {
+            throw new ZipException("Entry \"" + this.record + "\": " + dfe.getMessage(), dfe);
+        }
+    }
+
+    /**
+     * Feeds the next chunk of compressed data into the inflater. Iff <var>findCandidates</var>, then the chunk ends
+     * after the first "sync flush marker" (an empty stored block: 00 00 ff ff) within it; the DEFLATE stream is
+     * byte-aligned at that position (unless the marker is a coincidence, which is why each candidate access point is
+     * verified before it is used).
+     */
+    private void
+    feed(boolean findCandidates) throws IOException {
+
+        Inflater inflater = this.inflater;
+        assert inflater != null;
+
+        long remaining = this.record.compressedSize - this.compressedPosition;
+        if (remaining == 0) {
+            if (this.dummyByteFed) throw new EOFException("Unexpected end of DEFLATE data");
+
+            // The "nowrap" inflater may need an extra dummy byte at the end of its input, see "Inflater(boolean)".
+            inflater.setInput(SeekableEntryChannel.DUMMY_BYTE);
+            this.dummyByteFed = true;
+            return;
+        }
+
+        byte[] b   = this.inputBuffer;
+        int    len = this.readFully(this.compressedPosition, b, (int) Math.min(b.length, remaining));
+
+        if (findCandidates) {
+            for (int i = 4; i <= len; i++) {
+                if (b[i - 4] == 0 && b[i - 3] == 0 && b[i - 2] == -1 && b[i - 1] == -1) {
+                    len              = i;
+                    this.atCandidate = true;
+                    break;
+                }
+            }
+        }
+
+        inflater.setInput(b, 0, len);
+        this.compressedPosition += len;
+    }
+
+    /**
+     * Iff the current position (where all input was inflated up to a sync flush marker) is {@link
+     * SeekIndex#wants(long) wanted} as an access point, then verifies that inflation can really start there, and adds
+     * the access point to the index. The data that is inflated for the verification is kept in {@link #pending}.
+     *
+     * @return Whether data were inflated into {@link #pending}
+     */
+    private boolean
+    addAccessPoint() throws IOException, DataFormatException {
+
+        SeekIndex index    = this.index;
+        Inflater  inflater = this.inflater;
+        assert index != null;
+        assert inflater != null;
+
+        if (!index.wants(this.uncompressedPosition)) return false;
+
+        long   co     = this.compressedPosition;
+        long   uo     = this.uncompressedPosition;
+        byte[] window = this.window();
+
+        // Inflate a little more with the current inflater...
+        byte[] expected = new byte[SeekableEntryChannel.PROBE_SIZE];
+        int    n        = 0;
+        while (n < expected.length && !inflater.finished()) {
+            int m = inflater.inflate(expected, n, expected.length - n);
+            if (m == 0) {
+                if (inflater.needsDictionary()) break;
+                if (inflater.needsInput()) this.feed(false);
+            }
+            n += m;
+        }
+        this.record(expected, 0, n, uo);
+        this.pending         = Arrays.copyOf(expected, n);
+        this.pendingPosition = 0;
+
+        // ... and verify that a fresh inflater produces the same data.
+        if (n > 0 && this.probe(co, window, expected, n)) index.add(new SeekIndex.Point(co, uo, window));
+
+        return n > 0;
+    }
+
+    /**
+     * @return Whether a fresh inflater, starting at <var>compressedOffset</var> with the <var>window</var> as the
+     *         preset dictionary, inflates the first <var>len</var> bytes of <var>expected</var>
+     */
+    private boolean
+    probe(long compressedOffset, byte[] window, byte[] expected, int len) throws IOException {
+
+        byte[]   actual   = new byte[len];
+        int      n        = 0;
+        Inflater inflater = ZlibPool.getInflater();
+        try {
+            inflater.setDictionary(window);
+            long position = compressedOffset;
+            while (n < len) {
+                int m = inflater.inflate(actual, n, len - n);
+                if (m == 0) {
+                    if (inflater.finished() || inflater.needsDictionary() || !inflater.needsInput()) return false;
+
+                    long remaining = this.record.compressedSize - position;
+                    if (remaining == 0) return false;
+
+                    byte[] b = new byte[(int) Math.min(8192, remaining)];
+                    this.readFully(position, b, b.length);
+                    inflater.setInput(b);
+                    position += b.length;
+                }
+                n += m;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            return false;
+        } finally {
+            ZlibPool.release(inflater);
+        }
+
+        return Arrays.equals(actual, Arrays.copyOf(expected, len));
+    }
+
+    /**
+     * @return The (up to) 32 kB of inflated data that precede {@link #uncompressedPosition}
+     */
+    private byte[]
+    window() {
+
+        int    length = (int) Math.min(this.history.length, this.uncompressedPosition - this.historyStart);
+        long   start  = this.uncompressedPosition - length;
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) result[i] = this.history[(int) ((start + i) % this.history.length)];
+
+        return result;
+    }
+
+    /**
+     * Adds the given data, which starts at the given <var>uncompressedOffset</var>, to the {@link #history}.
+     */
+    private void
+    record(byte[] b, int off, int len, long uncompressedOffset) {
+
+        if (len > SeekableEntryChannel.WINDOW_SIZE) {
+            off                += len - SeekableEntryChannel.WINDOW_SIZE;
+            uncompressedOffset += len - SeekableEntryChannel.WINDOW_SIZE;
+            len                =  SeekableEntryChannel.WINDOW_SIZE;
+        }
+
+        while (len > 0) {
+            int hp = (int) (uncompressedOffset % SeekableEntryChannel.WINDOW_SIZE);
+            int n  = Math.min(len, SeekableEntryChannel.WINDOW_SIZE - hp);
+            System.arraycopy(b, off, this.history, hp, n);
+            off                += n;
+            len                -= n;
+            uncompressedOffset += n;
+        }
+    }
+
+    private int
+    readFully(long compressedOffset, byte[] b, int len) throws IOException {
+
+        ByteBuffer bb = ByteBuffer.wrap(b, 0, len);
+        while (bb.hasRemaining()) {
+            int n = this.input.read(bb, this.dataOffset + compressedOffset + bb.position());
+            if (n == -1) throw new EOFException();
+        }
+
+        return len;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Collects the written bytes in a byte array that is accounted against the {@link MemoryBudget}. When the budget
+ * does not permit growing the array, then the data "spills" into a temporary file.
+ * <p>
+ *   Closing the stream releases the memory and deletes the temporary file.
+ * </p>
+ */
+class SpillingOutputStream extends OutputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private byte[] buffer = SpillingOutputStream.EMPTY;
+    private long   count;
+
+    @Nullable private File         spillFile;
+    @Nullable private OutputStream spillStream;
+
+    @Override public void
+    write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+    @Override @NotNullByDefault(false) public void
+    write(byte[] b, int off, int len) throws IOException {
+
+        OutputStream ss = this.spillStream;
+        if (ss == null) {
+            if (this.count + len <= this.buffer.length || this.grow(this.count + len)) {
+                System.arraycopy(b, off, this.buffer, (int) this.count, len);
+                this.count += len;
+                return;
+            }
+            ss = this.spill();
+        }
+
+        ss.write(b, off, len);
+        this.count += len;
+    }
+
+    /**
+     * @return Whether the data has spilled into a temporary file
+     */
+    boolean
+    isSpilled() { return this.spillStream != null; }
+
+    /**
+     * @return The number of bytes written so far
+     */
+    long
+    size() { return this.count; }
+
+    /**
+     * @return The array that holds the first {@link #size()} bytes of the data (not a copy!)
+     * @throws IllegalStateException The data has {@link #isSpilled() spilled}
+     */
+    byte[]
+    array() {
+        if (this.spillStream != null) throw new IllegalStateException();
+        return this.buffer;
+    }
+
+    /**
+     * @return The data that was written (in-memory or spilled)
+     */
+    InputStream
+    getInputStream() throws IOException {
+
+        File sf = this.spillFile;
+        if (sf == null) return new ByteArrayInputStream(this.buffer, 0, (int) this.count);
+
+        OutputStream ss = this.spillStream;
+        assert ss != null;
+        ss.flush();
+
+        return new BufferedInputStream(new FileInputStream(sf));
+    }
+
+    @Override public void
+    close() throws IOException {
+
+        MemoryBudget.release(this.buffer.length);
+        this.buffer = SpillingOutputStream.EMPTY;
+
+        OutputStream ss = this.spillStream;
+        if (ss != null) {
+            try {
+                ss.close();
+            } finally {
+                File sf = this.spillFile;
+                assert sf != null;
+                sf.delete();
+            }
+        }
+    }
+
+    private boolean
+    grow(long minCapacity) {
+
+        if (minCapacity > SpillingOutputStream.MAX_ARRAY_SIZE) return false;
+
+        int newCapacity = (int) Math.min(
+            Math.max(minCapacity, Math.max(8192, 2L * this.buffer.length)),
+            SpillingOutputStream.MAX_ARRAY_SIZE
+        );
+
+        // Acquire the new array before releasing the old one, because both exist while the data is copied. If the
+        // budget does not permit doubling, then try to grow only as much as necessary.
+        if (!MemoryBudget.tryAcquire(newCapacity)) {
+            newCapacity = (int) minCapacity;
+            if (!MemoryBudget.tryAcquire(newCapacity)) return false;
+        }
+
+        byte[] oldBuffer = this.buffer;
+        this.buffer = Arrays.copyOf(oldBuffer, newCapacity);
+        MemoryBudget.release(oldBuffer.length);
+        return true;
+    }
+
+    private OutputStream
+    spill() throws IOException {
+
+        File         sf = (this.spillFile = File.createTempFile("zip4j-spill-", ".tmp"));
+        OutputStream ss = (this.spillStream = new BufferedOutputStream(new FileOutputStream(sf)));
+
+        ss.write(this.buffer, 0, (int) this.count);
+
+        MemoryBudget.release(this.buffer.length);
+        this.buffer = SpillingOutputStream.EMPTY;
+
+        ZipArchiveStatistics.get().memorySpills.increment();
+        return ss;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.AesKeyStrength;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import net.lingala.zip4j.model.enums.EncryptionMethod;
+
+/**
+ * Implementation of {@link ZipArchiveFormat#transcode(File, char[], File, CompressionLevel, boolean,
+ * EncryptionMethod, char[], Executor)}.
+ */
+final
+class Transcoder {
+
+    /**
+     * Entries larger than this are not transcoded in memory by a worker, but streamed by the writing thread.
+     */
+    private static final long MAX_IN_MEMORY_ENTRY_SIZE = 32 << 20;
+
+    private final ZipReader                  reader;
+    @Nullable private final char[]           inputPassword;
+    private final CompressionLevel           compressionLevel;
+    private final boolean                    encrypt;
+    @Nullable private final EncryptionMethod encryptionMethod;
+    @Nullable private final char[]           outputPassword;
+
+    /**
+     * Set when the transcoding fails, so that the workers skip the entries that have not yet been started.
+     */
+    private volatile boolean aborted;
+
+    private
+    Transcoder(
+        ZipReader                  reader,
+        @Nullable char[]           inputPassword,
+        CompressionLevel           compressionLevel,
+        boolean                    encrypt,
+        @Nullable EncryptionMethod encryptionMethod,
+        @Nullable char[]           outputPassword
+    ) {
+        this.reader           = reader;
+        this.inputPassword    = inputPassword;
+        this.compressionLevel = compressionLevel;
+        this.encrypt          = encrypt;
+        this.encryptionMethod = encryptionMethod;
+        this.outputPassword   = outputPassword;
+    }
+
+    static void
+    transcode(
+        File                       inputFile,
+        @Nullable char[]           inputPassword,
+        File                       outputFile,
+        @Nullable CompressionLevel compressionLevel,
+        boolean                    encrypt,
+        @Nullable EncryptionMethod encryptionMethod,
+        @Nullable char[]           outputPassword,
+        Executor                   executor
+    ) throws IOException {
+
+        // Write to a temporary file first, so that the input file and the output file may be identical.
+        // (The prefix must have at least three characters.)
+        File tmpFile = File.createTempFile(
+            outputFile.getName() + ".transcode",
+            ".tmp",
+            outputFile.getAbsoluteFile().getParentFile()
+        );
+        try {
+
+            try (
+                FileChannel ic = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                ZipWriter   zw = ZipArchiveFormat.zipWriter(tmpFile);
+            ) {
+                new Transcoder(
+                    new ZipReader(RandomAccessInput.of(ic)),
+                    inputPassword,
+                    compressionLevel != null ? compressionLevel : CompressionLevel.NORMAL,
+                    encrypt,
+                    encryptionMethod,
+                    outputPassword
+                ).transcode(zw, executor);
+            }
+
+            Files.move(tmpFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Prepares the entries concurrently through the <var>executor</var>, but writes them in their original order.
+     * The number of entries "in flight" is limited, so that memory consumption is bounded. Furthermore, the memory
+     * of the prepared entries is accounted against the {@link MemoryBudget}; while that is exhausted, the entries are
+     * streamed by the writing thread instead.
+     */
+    private void
+    transcode(ZipWriter zw, Executor executor) throws IOException {
+
+        int                                 window   = 2 * Runtime.getRuntime().availableProcessors();
+        Queue<CompletableFuture<WriteStep>> inFlight = new ArrayDeque<>();
+
+        try {
+            for (ZipEntryRecord r : this.reader.records()) {
+
+                CompletableFuture<WriteStep> step;
+                if (this.canCopyRaw(r)) {
+                    step = CompletableFuture.completedFuture(w -> this.copyRaw(r, w));
+                } else
+                if (r.size > Transcoder.MAX_IN_MEMORY_ENTRY_SIZE || r.compressedSize > Transcoder.MAX_IN_MEMORY_ENTRY_SIZE) {
+                    step = CompletableFuture.completedFuture(w -> this.transcodeStreaming(r, w));
+                } else
+                {
+                    step = CompletableFuture.supplyAsync(() -> {
+                        if (this.aborted) return w -> {};
+
+                        // The uncompressed data exists twice while it is read, and the compressed data once.
+                        long reservation = 2 * r.size + r.compressedSize;
+                        if (!MemoryBudget.tryAcquire(reservation)) {
+                            ZipArchiveStatistics.get().memorySpills.increment();
+                            return w -> this.transcodeStreaming(r, w);
+                        }
+
+                        try {
+                            ZipWriter.PreparedEntry pe = this.transcodeInMemory(r);
+                            return new WriteStep() {
+
+                                @Override public void
+                                write(ZipWriter zw) throws IOException {
+                                    try {
+                                        zw.putPreparedEntry(pe);
+                                    } finally {
+                                        MemoryBudget.release(reservation);
+                                    }
+                                }
+
+                                @Override public void
+                                discard() { MemoryBudget.release(reservation); }
+                            };
+                        } catch (IOException ioe) {
+                            MemoryBudget.release(reservation);
+                            throw new UncheckedIOException(ioe);
+                        } catch (RuntimeException | Error e) {
+                            MemoryBudget.release(reservation);
+                            throw e;
+                        }
+                    }, executor);
+                }
+
+                inFlight.add(step);
+                if (inFlight.size() >= window) Transcoder.join(inFlight.remove()).write(zw);
+            }
+
+            while (!inFlight.isEmpty()) Transcoder.join(inFlight.remove()).write(zw);
+        } finally {
+
+            // Cancelling the futures would lose the steps that are currently being prepared; so discard the steps as
+            // they complete.
+            this.aborted = true;
+            for (CompletableFuture<WriteStep> f : inFlight) f.thenAccept(WriteStep::discard);
+        }
+    }
+
+    private static <T> T
+    join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException)     throw (RuntimeException) cause;
+            if (cause instanceof Error)                throw (Error) cause;
+            throw ce;
+        }
+    }
+
+    interface WriteStep {
+
+        void write(ZipWriter zw) throws IOException;
+
+        /**
+         * Invoked instead of {@link #write(ZipWriter)} iff the transcoding has failed.
+         */
+        default void discard() {}
+    }
+
+    /**
+     * @return Whether the entry's data can be copied as it is, because its compression and encryption already match
+     *         the target settings
+     */
+    private boolean
+    canCopyRaw(ZipEntryRecord r) {
+
+        if (r.isDirectory()) return true;
+
+        if (r.isEncrypted() != this.encrypt) return false;
+
+        int method = r.method;
+        if (r.isEncrypted()) {
+
+            // Encrypted entries can only be copied if the encryption method and the password are the same.
+            if (!Arrays.equals(this.inputPassword, this.outputPassword)) return false;
+
+            ByteBuffer aes = r.getAesExtraField();
+            if (this.encryptionMethod == EncryptionMethod.AES) {
+                if (aes == null || aes.remaining() < 7) return false;
+
+                // zip4j always uses AES-256.
+                if (aes.get(4) != AesKeyStrength.KEY_STRENGTH_256.getRawCode()) return false;
+                method = aes.getShort(5) & 0xffff;
+            } else
+            if (this.encryptionMethod == EncryptionMethod.ZIP_STANDARD) {
+                if (aes != null || r.method == ZipFormat.METHOD_AES) return false;
+            } else
+            {
+                return false;
+            }
+        }
+
+        return (
+            method == ZipFormat.METHOD_DEFLATED
+            && (r.flags & ZipFormat.FLAG_DEFLATE_OPTIONS) == ZipFormat.deflateOptionFlags(this.compressionLevel.getLevel())
+        );
+    }
+
+    private void
+    copyRaw(ZipEntryRecord r, ZipWriter zw) throws IOException {
+        zw.putRawEntry(r, this.reader.input(), this.reader.dataOffset(r));
+    }
+
+    private ZipWriter.PreparedEntry
+    transcodeInMemory(ZipEntryRecord r) throws IOException {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) r.size);
+        try (InputStream is = this.reader.getInputStream(r, this.inputPassword)) {
+            Transcoder.copy(is, baos);
+        }
+        byte[] data = baos.toByteArray();
+
+        int level = this.compressionLevel.getLevel();
+
+        if (this.encrypt) {
+            if (this.jcaAes()) return ZipWriter.aesEntry(this.unencryptedRecord(r, level), level, this.outputPassword(), data);
+            return ZipWriter.zip4jEntry(this.zipParameters(r), this.outputPassword, data);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        ZipEntryRecord result = this.unencryptedRecord(r, level);
+        result.crc            = crc.getValue();
+        result.size           = data.length;
+
+        byte[] compressedData = ZipWriter.deflate(data, 0, data.length, level);
+        result.compressedSize = compressedData.length;
+
+        return new ZipWriter.PreparedEntry(result, compressedData);
+    }
+
+    private void
+    transcodeStreaming(ZipEntryRecord r, ZipWriter zw) throws IOException {
+
+        try (InputStream is = this.reader.getInputStream(r, this.inputPassword)) {
+
+            int level = this.compressionLevel.getLevel();
+
+            Transcoder.copy(is, (
+                !this.encrypt ? zw.putDeflatedEntry(this.unencryptedRecord(r, level), level, r.size) :
+                this.jcaAes() ? zw.putAesEntry(this.unencryptedRecord(r, level), level, this.outputPassword(), r.size) :
+                zw.putZip4jEntry(this.zipParameters(r), this.outputPassword)
+            ));
+        }
+
+        zw.closeEntry();
+    }
+
+    /**
+     * @return A copy of the <var>r</var>, with the encryption removed, and the compression settings for the
+     *         <var>level</var>
+     */
+    private ZipEntryRecord
+    unencryptedRecord(ZipEntryRecord r, int level) {
+
+        ZipEntryRecord result = new ZipEntryRecord(r.getName(), r.dosTime);
+        result.nameBytes          = r.nameBytes;
+        result.flags              = (
+            (r.flags & ZipFormat.FLAG_UTF8)
+            | ZipFormat.deflateOptionFlags(level)
+        );
+        result.method             = ZipFormat.METHOD_DEFLATED;
+        result.extra              = ZipFormat.removeExtraField(
+            ZipFormat.removeExtraField(r.extra, ZipFormat.EXTRA_ID_AES),
+            ZipFormat.EXTRA_ID_BLOCK_INDEX // Refers to the old compressed data.
+        );
+        result.comment            = r.comment;
+        result.internalAttributes = r.internalAttributes;
+        result.externalAttributes = r.externalAttributes;
+        result.versionMadeBy      = r.versionMadeBy;
+        return result;
+    }
+
+    /**
+     * @return Whether the entries are to be encrypted with the {@link AesCipher}, rather than by zip4j
+     */
+    private boolean
+    jcaAes() { return this.encryptionMethod == EncryptionMethod.AES && ZipArchiveFormat.getJcaAes(); }
+
+    private char[]
+    outputPassword() throws ZipException {
+        char[] result = this.outputPassword;
+        if (result == null) throw new ZipException("Password required");
+        return result;
+    }
+
+    private ZipParameters
+    zipParameters(ZipEntryRecord r) {
+
+        ZipParameters result = new ZipParameters();
+        result.setFileNameInZip(r.getName());
+        result.setEntrySize(r.size);
+        result.setLastModifiedFileTime(ZipFormat.dosToJavaTime(r.dosTime));
+        result.setCompressionLevel(this.compressionLevel);
+        result.setEncryptFiles(true);
+        if (this.encryptionMethod != null) result.setEncryptionMethod(this.encryptionMethod);
+        return result;
+    }
+
+    private static void
+    copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = is.read(buffer)) != -1;) os.write(buffer, 0, n);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * The result of {@link ZipArchiveFormat#verify(File, char[], Executor)}.
+ */
+public final
+class VerificationReport {
+
+    /**
+     * The verification result of one archive entry.
+     */
+    public static final
+    class EntryResult {
+
+        private final String              name;
+        private final long                size, compressedSize;
+        @Nullable private final Exception failure;
+
+        EntryResult(String name, long size, long compressedSize, @Nullable Exception failure) {
+            this.name           = name;
+            this.size           = size;
+            this.compressedSize = compressedSize;
+            this.failure        = failure;
+        }
+
+        public String
+        getName() { return this.name; }
+
+        /**
+         * @return The uncompressed size, as recorded in the central directory
+         */
+        public long
+        getSize() { return this.size; }
+
+        public long
+        getCompressedSize() { return this.compressedSize; }
+
+        /**
+         * @return Whether the entry could be read, and its size, CRC and (for AES-encrypted entries) MAC are correct
+         */
+        public boolean
+        isOk() { return this.failure == null; }
+
+        /**
+         * @return Why the entry failed verification, or {@code null} iff the entry is ok
+         */
+        @Nullable public Exception
+        getFailure() { return this.failure; }
+
+        @Override public String
+        toString() { return this.name + (this.failure == null ? ": OK" : ": " + this.failure); }
+    }
+
+    private final File              archiveFile;
+    private final List<EntryResult> entryResults;
+    private final long              durationNanos;
+
+    private
+    VerificationReport(File archiveFile, List<EntryResult> entryResults, long durationNanos) {
+        this.archiveFile   = archiveFile;
+        this.entryResults  = Collections.unmodifiableList(entryResults);
+        this.durationNanos = durationNanos;
+    }
+
+    public File
+    getArchiveFile() { return this.archiveFile; }
+
+    /**
+     * @return The results of all entries, in central directory order
+     */
+    public List<EntryResult>
+    getEntryResults() { return this.entryResults; }
+
+    /**
+     * @return Whether all entries are ok
+     */
+    public boolean
+    isOk() { return this.getFailureCount() == 0; }
+
+    public int
+    getFailureCount() {
+        int result = 0;
+        for (EntryResult er : this.entryResults) {
+            if (!er.isOk()) result++;
+        }
+        return result;
+    }
+
+    /**
+     * @return The total uncompressed size of all entries
+     */
+    public long
+    getTotalSize() {
+        long result = 0;
+        for (EntryResult er : this.entryResults) result += er.size;
+        return result;
+    }
+
+    /**
+     * @return The total compressed size of all entries
+     */
+    public long
+    getTotalCompressedSize() {
+        long result = 0;
+        for (EntryResult er : this.entryResults) result += er.compressedSize;
+        return result;
+    }
+
+    /**
+     * @return The wall-clock time that the verification took
+     */
+    public long
+    getDurationNanos() { return this.durationNanos; }
+
+    /**
+     * @return The uncompressed bytes verified per second
+     */
+    public double
+    getBytesPerSecond() {
+        return this.durationNanos == 0 ? 0 : this.getTotalSize() * 1E9 / this.durationNanos;
+    }
+
+    @Override public String
+    toString() {
+        return (
+            this.archiveFile
+            + ": "
+            + this.entryResults.size()
+            + " entries, "
+            + this.getFailureCount()
+            + " failed, "
+            + this.getTotalSize()
+            + " bytes in "
+            + this.durationNanos / 1000000
+            + " ms ("
+            + Math.round(this.getBytesPerSecond() / 1E6)
+            + " MB/s)"
+        );
+    }
+
+    /**
+     * Implementation of {@link ZipArchiveFormat#verify(File, char[], Executor)}.
+     */
+    static VerificationReport
+    verify(File archiveFile, @Nullable char[] password, Executor executor) throws IOException {
+
+        long start = System.nanoTime();
+
+        try (FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ)) {
+
+            ZipReader reader = new ZipReader(RandomAccessInput.of(fc));
+
+            List<CompletableFuture<EntryResult>> futures = new ArrayList<>(reader.records().size());
+            for (ZipEntryRecord r : reader.records()) {
+                futures.add(CompletableFuture.supplyAsync(() -> VerificationReport.verify(reader, r, password), executor));
+            }
+
+            List<EntryResult> entryResults = new ArrayList<>(futures.size());
+            for (CompletableFuture<EntryResult> f : futures) entryResults.add(f.join());
+
+            return new VerificationReport(archiveFile, entryResults, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * One buffer per thread, to which the data of all entries is read and discarded.
+     */
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[65536]);
+
+    private static EntryResult
+    verify(ZipReader reader, ZipEntryRecord r, @Nullable char[] password) {
+
+        Exception failure = null;
+        try (InputStream is = reader.getInputStream(r, password)) {
+
+            // Reading up to the end of the stream verifies the entry's size, CRC and (for AES) MAC.
+            byte[] buffer = VerificationReport.BUFFER.get();
+            while (is.read(buffer) != -1) ;
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+
+        return new EntryResult(r.getName(), r.size, r.compressedSize, failure);
+    }
+}
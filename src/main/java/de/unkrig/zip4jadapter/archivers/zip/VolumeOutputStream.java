@@ -0,0 +1,140 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * An {@link OutputStream} that distributes the written bytes over the volumes of a split archive, each with a
+ * maximum size. The {@link ZipWriter} {@link #reserve(int) reserves} space for each header, so that no header spans
+ * two volumes.
+ * <p>
+ *   The first volume starts with the "spanning signature", as required by the ZIP specification.
+ * </p>
+ */
+class VolumeOutputStream extends OutputStream {
+
+    private final VolumeSink sink;
+    private final long       volumeSize;
+
+    @Nullable private OutputStream current;
+    private int                    volumeIndex = -1;
+    private long                   volumePosition;
+    private boolean                finished;
+
+    VolumeOutputStream(VolumeSink sink, long volumeSize) throws IOException {
+        this.sink       = sink;
+        this.volumeSize = volumeSize;
+
+        this.nextVolume();
+
+        byte[] signature = { 'P', 'K', 7, 8 };
+        this.write(signature, 0, signature.length);
+    }
+
+    /**
+     * @return The zero-based index of the volume that the next byte will be written to
+     */
+    int
+    volumeIndex() { return this.volumeIndex; }
+
+    /**
+     * @return The position within the current volume
+     */
+    long
+    volumePosition() { return this.volumePosition; }
+
+    /**
+     * Starts a new volume iff the next <var>n</var> bytes would not fit into the current volume.
+     */
+    void
+    reserve(int n) throws IOException {
+        if (this.volumePosition + n > this.volumeSize) this.nextVolume();
+    }
+
+    @Override public void
+    write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+    @Override @NotNullByDefault(false) public void
+    write(byte[] b, int off, int len) throws IOException {
+
+        while (len > 0) {
+            if (this.volumePosition == this.volumeSize) this.nextVolume();
+
+            OutputStream os = this.current;
+            assert os != null;
+
+            int n = (int) Math.min(len, this.volumeSize - this.volumePosition);
+            os.write(b, off, n);
+            this.volumePosition += n;
+            off                 += n;
+            len                 -= n;
+        }
+    }
+
+    @Override public void
+    flush() throws IOException {
+        OutputStream os = this.current;
+        if (os != null) os.flush();
+    }
+
+    /**
+     * Marks the archive as complete; {@link #close()} will then notify the sink which volume is the last one.
+     */
+    void
+    finish() { this.finished = true; }
+
+    @Override public void
+    close() throws IOException {
+
+        OutputStream os = this.current;
+        if (os == null) return;
+
+        this.current = null;
+        os.close();
+
+        if (this.finished) this.sink.lastVolume(this.volumeIndex + 1);
+    }
+
+    private void
+    nextVolume() throws IOException {
+
+        OutputStream os = this.current;
+        if (os != null) {
+            this.current = null;
+            os.close();
+        }
+
+        this.volumeIndex++;
+        this.current        = new BufferedOutputStream(this.sink.newVolume(this.volumeIndex + 1), 65536);
+        this.volumePosition = 0;
+    }
+}
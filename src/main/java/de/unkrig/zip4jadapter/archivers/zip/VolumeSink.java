@@ -0,0 +1,98 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Receives the volumes of a split archive while it is being written.
+ * <p>
+ *   By convention, the volumes of a split archive "{@code foo.zip}" are named "{@code foo.z01}", "{@code foo.z02}",
+ *   and so forth, except for the <em>last</em> volume, which is named "{@code foo.zip}". Because the writer only
+ *   knows which volume is the last one when the archive is complete, it announces that through {@link
+ *   #lastVolume(int)}, <em>after</em> it has closed all volumes.
+ * </p>
+ *
+ * @see ZipArchiveFormat#archiveOutputStream(VolumeSink, long, char[])
+ */
+public
+interface VolumeSink {
+
+    /**
+     * Is invoked when the writer starts a new volume. The writer closes the returned stream as soon as the volume is
+     * complete, i.e. before it starts the next volume.
+     *
+     * @param number 1 for the first volume, 2 for the second, and so forth
+     */
+    OutputStream
+    newVolume(int number) throws IOException;
+
+    /**
+     * Is invoked after the archive was completely written; the volume with the given <var>number</var> is the last
+     * one.
+     */
+    void
+    lastVolume(int number) throws IOException;
+
+    /**
+     * @return A sink that writes the volumes to files named like the <var>archiveFile</var>, but with extensions
+     *         "{@code .z01}", "{@code .z02}" and so forth, and finally renames the last volume to the
+     *         <var>archiveFile</var>
+     */
+    static VolumeSink
+    files(File archiveFile) {
+
+        return new VolumeSink() {
+
+            @Override public OutputStream
+            newVolume(int number) throws IOException { return new FileOutputStream(this.volumeFile(number)); }
+
+            @Override public void
+            lastVolume(int number) throws IOException {
+                Files.move(
+                    this.volumeFile(number).toPath(),
+                    archiveFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING
+                );
+            }
+
+            private File
+            volumeFile(int number) {
+
+                String name = archiveFile.getName();
+                int    idx  = name.lastIndexOf('.');
+                if (idx != -1) name = name.substring(0, idx);
+
+                return new File(archiveFile.getParentFile(), name + (number < 10 ? ".z0" : ".z") + number);
+            }
+        };
+    }
+}
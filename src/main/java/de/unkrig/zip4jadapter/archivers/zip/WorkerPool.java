@@ -0,0 +1,101 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The dedicated daemon threads that inflate the segments (see {@link ZipArchiveFormat#setParallelInflateThreads(int)})
+ * resp. deflate the chunks (see {@link ZipArchiveFormat#setParallelDeflateThreads(int)}) of entries in parallel.
+ * <p>
+ *   Unlike the common fork-join pool, these threads may block (e.g. in positional reads) without starving other
+ *   tasks, and their number is exactly the configured number. They are shared by all streams, and terminate when they
+ *   are idle for a minute.
+ * </p>
+ */
+final
+class WorkerPool {
+
+    private WorkerPool() {}
+
+    private static final ThreadPoolExecutor INFLATERS = WorkerPool.newPool("zip4j-inflater-");
+    private static final ThreadPoolExecutor DEFLATERS = WorkerPool.newPool("zip4j-deflater-");
+
+    /**
+     * @return The pool of inflater threads, resized to <var>threads</var> threads
+     */
+    static Executor
+    inflaters(int threads) { return WorkerPool.resize(WorkerPool.INFLATERS, threads); }
+
+    /**
+     * @return The pool of deflater threads, resized to <var>threads</var> threads
+     */
+    static Executor
+    deflaters(int threads) { return WorkerPool.resize(WorkerPool.DEFLATERS, threads); }
+
+    private static ThreadPoolExecutor
+    newPool(String namePrefix) {
+
+        AtomicInteger      count  = new AtomicInteger();
+        ThreadPoolExecutor result = new ThreadPoolExecutor(
+            1,
+            1,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, namePrefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        );
+        result.allowCoreThreadTimeOut(true);
+
+        return result;
+    }
+
+    private static synchronized ThreadPoolExecutor
+    resize(ThreadPoolExecutor pool, int threads) {
+
+        threads = Math.max(1, threads);
+
+        // The core pool size must never exceed the maximum pool size.
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else
+        if (threads < pool.getMaximumPoolSize()) {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+
+        return pool;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * An {@link OutputStream} that hands the written bytes to a background thread, which writes them to a delegate
+ * {@link OutputStream}. Thus compression and encryption run concurrently with the (possibly blocking) output.
+ * <p>
+ *   The data is passed through a fixed set of reusable buffers, which limits the memory consumption. The buffers
+ *   are accounted against the {@link MemoryBudget}; thus the construction blocks while the budget is exhausted.
+ * </p>
+ * <p>
+ *   An exception thrown by the delegate is rethrown by the next {@link #write(byte[], int, int) write}, {@link
+ *   #flush()} or {@link #close()} (and wrapped by any subsequent ones); any data written after the failure is
+ *   discarded. {@link #flush()} waits until
+ *   the background thread has written and flushed all data. Closing the stream closes the delegate.
+ * </p>
+ */
+class WriteBehindOutputStream extends OutputStream {
+
+    /**
+     * An element of the queues between the producer and the background thread: Either a data buffer, or one of the
+     * markers {@link #FLUSH} and {@link #END}.
+     */
+    private static final
+    class Chunk {
+
+        final byte[] buffer;
+        int          length;
+
+        Chunk(byte[] buffer) { this.buffer = buffer; }
+    }
+
+    private static final Chunk FLUSH = new Chunk(new byte[0]);
+    private static final Chunk END   = new Chunk(new byte[0]);
+
+    private final OutputStream         delegate;
+    private final BlockingQueue<Chunk> free, full;
+    private final Thread               thread;
+    private final long                 bufferBytes;
+    private boolean                    closed;
+
+    /**
+     * The buffer that is currently being filled by the producer.
+     */
+    private Chunk current;
+
+    private long flushesRequested;
+    private long flushesCompleted; // Guarded by "this".
+
+    @Nullable private volatile Throwable failure;
+    private boolean                      failureReported;
+
+    /**
+     * @param bufferCount The number of data buffers; each has a size of <var>bufferSize</var> bytes
+     */
+    WriteBehindOutputStream(OutputStream delegate, int bufferCount, int bufferSize) throws InterruptedIOException {
+
+        MemoryBudget.acquire((long) bufferCount * bufferSize);
+
+        this.delegate    = delegate;
+        this.bufferBytes = (long) bufferCount * bufferSize;
+        this.free        = new ArrayBlockingQueue<>(bufferCount);
+        this.full        = new ArrayBlockingQueue<>(bufferCount + 2);
+
+        this.current = new Chunk(new byte[bufferSize]);
+        for (int i = 1; i < bufferCount; i++) this.free.add(new Chunk(new byte[bufferSize]));
+
+        this.thread = new Thread(this::writeBehind, "zip4j-write-behind");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * The body of the background thread.
+     */
+    private void
+    writeBehind() {
+        try {
+            for (;;) {
+                Chunk c = this.full.take();
+                if (c == WriteBehindOutputStream.END) return;
+
+                try {
+                    if (this.failure != null) {
+
+                        // Discard the data after a failure.
+                        ;
+                    } else
+                    if (c == WriteBehindOutputStream.FLUSH) {
+                        this.delegate.flush();
+                    } else
+                    {
+                        this.delegate.write(c.buffer, 0, c.length);
+                    }
+                } catch (Throwable t) {
+                    this.failure = t;
+                }
+
+                if (c == WriteBehindOutputStream.FLUSH) {
+                    synchronized (this) {
+                        this.flushesCompleted++;
+                        this.notifyAll();
+                    }
+                } else {
+                    this.free.put(c);
+                }
+            }
+        } catch (InterruptedException ie) {
+            ;
+        }
+    }
+
+    @Override public void
+    write(int b) throws IOException {
+        if (this.current.length == this.current.buffer.length) this.handOver();
+        this.current.buffer[this.current.length++] = (byte) b;
+    }
+
+    @Override @NotNullByDefault(false) public void
+    write(byte[] b, int off, int len) throws IOException {
+
+        this.checkFailure();
+
+        while (len > 0) {
+            Chunk c = this.current;
+            if (c.length == c.buffer.length) {
+                this.handOver();
+                continue;
+            }
+
+            int n = Math.min(len, c.buffer.length - c.length);
+            System.arraycopy(b, off, c.buffer, c.length, n);
+            c.length += n;
+            off      += n;
+            len      -= n;
+        }
+    }
+
+    @Override public void
+    flush() throws IOException {
+
+        this.handOver();
+
+        long n = ++this.flushesRequested;
+        try {
+            this.full.put(WriteBehindOutputStream.FLUSH);
+            synchronized (this) {
+                while (this.flushesCompleted < n) this.wait();
+            }
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+
+        this.checkFailure();
+    }
+
+    @Override public void
+    close() throws IOException {
+
+        if (this.closed) return;
+        this.closed = true;
+
+        try {
+            try {
+                this.handOver();
+            } finally {
+                this.stop();
+            }
+            this.checkFailure();
+        } finally {
+            try {
+                this.delegate.close();
+            } finally {
+                MemoryBudget.release(this.bufferBytes);
+            }
+        }
+    }
+
+    /**
+     * Lets the background thread write the pending buffers, and waits until it has terminated, so that the delegate
+     * and the buffers are no longer in use. Iff the current thread is interrupted, then the background thread is
+     * interrupted, too (repeatedly, in case the delegate swallows an interrupt), and the pending data is lost.
+     */
+    private void
+    stop() throws InterruptedIOException {
+
+        boolean interrupted = false;
+        try {
+            this.full.put(WriteBehindOutputStream.END);
+        } catch (InterruptedException ie) {
+            interrupted = true;
+        }
+
+        while (this.thread.isAlive()) {
+            if (interrupted) this.thread.interrupt();
+            try {
+                this.thread.join(100);
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) throw new InterruptedIOException();
+    }
+
+    /**
+     * Passes the current buffer (unless empty) to the background thread, and continues with a free buffer.
+     */
+    private void
+    handOver() throws IOException {
+
+        this.checkFailure();
+
+        if (this.current.length == 0) return;
+
+        try {
+            this.full.put(this.current);
+            this.current = this.free.take();
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException();
+        }
+        this.current.length = 0;
+    }
+
+    private void
+    checkFailure() throws IOException {
+
+        Throwable t = this.failure;
+        if (t == null) return;
+
+        // Rethrow the original exception only once, because "try-with-resources" would otherwise attempt to add it
+        // to itself as a "suppressed" exception.
+        if (this.failureReported) throw new IOException("Previous write failed", t);
+        this.failureReported = true;
+
+        if (t instanceof IOException)      throw (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error)            throw (Error) t;
+        throw new IOException(t);
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Caches the central directories of ZIP archive files, and of ZIP archives nested in other ZIP archives, so that
+ * "{@code zip:}" URLs like "{@code zip:zip:file:/a.zip!/inner.zip!/dir/file}" can be resolved without scanning any
+ * archive.
+ * <p>
+ *   A nested archive that is STORED (and not encrypted) is read directly from the enclosing archive file, as a range
+ *   of bytes. Other nested archives are decompressed (and decrypted) once, and kept in memory. The total size of
+ *   these in-memory archives is bounded; nested archives that exceed the bound are not cached at all.
+ * </p>
+ * <p>
+ *   Optionally, the decompressed contents of small entries are cached as well (in a separate, byte-bounded LRU
+ *   cache), so that entries that are read repeatedly are not decompressed again.
+ * </p>
+ * <p>
+ *   Archive files that were modified since they were cached are read again.
+ * </p>
+ * <p>
+ *   The in-memory archives and the cached contents are charged to the {@link MemoryBudget}, and are evicted when a
+ *   stream needs the memory.
+ * </p>
+ */
+final
+class ZipArchiveCache implements MemoryBudget.Reclaimable {
+
+    /**
+     * The maximum number of archive files that are kept open.
+     */
+    private static final int MAX_OPEN_FILES = 16;
+
+    private final long maxInMemorySize;
+
+    /**
+     * The cached archives, by container URL (e.g. "{@code file:/a.zip}" or "{@code zip:file:/a.zip!/inner.zip}"),
+     * in access order.
+     */
+    private final LinkedHashMap<String, Archive> archives = new LinkedHashMap<>(16, .75f, true);
+
+    /**
+     * The open archive files, in access order.
+     */
+    private final LinkedHashMap<File, RootFile> rootFiles = new LinkedHashMap<>(16, .75f, true);
+
+    /**
+     * The total size of the archives that are held in memory.
+     */
+    private long inMemorySize;
+
+    /**
+     * The cached entry contents, by URL (e.g. "{@code file:/a.zip!dir/file}"), in access order.
+     */
+    private final LinkedHashMap<String, Content> contents = new LinkedHashMap<>(16, .75f, true);
+
+    private long maxContentsSize, maxContentSize;
+
+    /**
+     * The total size of the cached entry contents.
+     */
+    private long contentsSize;
+
+    ZipArchiveCache(long maxInMemorySize) {
+        this.maxInMemorySize = maxInMemorySize;
+        MemoryBudget.register(this);
+    }
+
+    /**
+     * Configures the cache of decompressed entry contents.
+     *
+     * @param maxContentsSize The maximum total size of the cached contents; 0 disables the cache
+     * @param maxContentSize  Entries larger than this are not cached
+     */
+    synchronized void
+    setContentCacheLimits(long maxContentsSize, long maxContentSize) {
+        this.maxContentsSize = maxContentsSize;
+        this.maxContentSize  = maxContentSize;
+        this.trimContents(maxContentsSize);
+    }
+
+    /**
+     * @return The contents of the named entry of the archive designated by the <var>containerUrl</var>, or {@code
+     *         null} iff the container cannot be accessed randomly (e.g. because it is not a file, or because it is a
+     *         nested archive that is too large to be held in memory)
+     * @throws FileNotFoundException The entry, or one of the nested archives, does not exist
+     */
+    @Nullable InputStream
+    getInputStream(String containerUrl, String entryName, @Nullable char[] password) throws IOException {
+
+        String key = containerUrl + "!" + entryName;
+
+        Archive archive;
+        synchronized (this) {
+            if (this.maxContentsSize > 0) {
+                Content c = this.contents.get(key);
+                if (c != null) {
+                    if (c.rootFile.isUpToDate()) {
+                        ZipArchiveStatistics.get().resourceCacheHits.increment();
+                        return new ByteArrayInputStream(c.data);
+                    }
+                    this.removeContent(key);
+                }
+                ZipArchiveStatistics.get().resourceCacheMisses.increment();
+            }
+
+            archive = this.getArchive(containerUrl, password);
+            if (archive == null) return null;
+            archive.rootFile.openStreams++;
+        }
+
+        byte[] data;
+        try {
+            ZipEntryRecord record = archive.reader.getRecord(entryName);
+            if (record == null || record.isDirectory()) {
+                throw new FileNotFoundException(containerUrl + "!" + entryName);
+            }
+
+            if (record.isEncrypted() || !this.isCacheableContent(record.size)) {
+                return new FilterInputStream(archive.reader.getInputStream(record, password)) {
+
+                    boolean closed;
+
+                    @Override public void
+                    close() throws IOException {
+                        if (this.closed) return;
+                        this.closed = true;
+                        try {
+                            super.close();
+                        } finally {
+                            ZipArchiveCache.this.release(archive.rootFile);
+                        }
+                    }
+                };
+            }
+
+            // Decompress the entry completely, so that its contents can be cached.
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) record.size);
+            try (InputStream is = archive.reader.getInputStream(record, password)) {
+                byte[] buffer = new byte[8192];
+                for (int n; (n = is.read(buffer)) != -1;) baos.write(buffer, 0, n);
+            }
+            data = baos.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            this.release(archive.rootFile);
+            throw e;
+        }
+        this.release(archive.rootFile);
+
+        this.putContent(key, new Content(archive.rootFile, data));
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Removes all archives and entry contents from this cache.
+     */
+    synchronized void
+    clear() throws IOException {
+        while (!this.rootFiles.isEmpty()) this.evict(this.rootFiles.values().iterator().next());
+        this.trimContents(0);
+    }
+
+    /**
+     * Evicts the least recently used entry contents, and then the least recently used in-memory archives, until at
+     * least <var>n</var> bytes are released to the {@link MemoryBudget}.
+     */
+    @Override public synchronized long
+    reclaim(long n) {
+
+        long before = this.contentsSize + this.inMemorySize;
+
+        this.trimContents(Math.max(0, this.contentsSize - n));
+
+        for (Iterator<Archive> it = this.archives.values().iterator(); it.hasNext();) {
+            if (before - this.contentsSize - this.inMemorySize >= n) break;
+            Archive a = it.next();
+            if (a.inMemorySize > 0) {
+                it.remove();
+                this.inMemorySize -= a.inMemorySize;
+                MemoryBudget.release(a.inMemorySize);
+            }
+        }
+
+        return before - this.contentsSize - this.inMemorySize;
+    }
+
+    /**
+     * @return The total size of the cached entry contents
+     */
+    synchronized long
+    getContentsSize() { return this.contentsSize; }
+
+    private synchronized boolean
+    isCacheableContent(long size) {
+        return this.maxContentsSize > 0 && size <= this.maxContentSize && size <= this.maxContentsSize;
+    }
+
+    /**
+     * Adds the <var>content</var> to the cache, evicting the least recently used contents as necessary. Does nothing
+     * if the {@link MemoryBudget} is exhausted.
+     */
+    private synchronized void
+    putContent(String key, Content content) {
+
+        this.removeContent(key);
+
+        long size = content.data.length;
+        if (size > this.maxContentsSize) return;
+        this.trimContents(this.maxContentsSize - size);
+
+        if (!MemoryBudget.tryAcquire(size)) return;
+
+        this.contents.put(key, content);
+        this.contentsSize += size;
+        ZipArchiveStatistics.get().resourceCacheSize.add(size);
+    }
+
+    private void
+    removeContent(String key) {
+
+        Content c = this.contents.remove(key);
+        if (c == null) return;
+
+        this.contentsSize -= c.data.length;
+        ZipArchiveStatistics.get().resourceCacheSize.add(-c.data.length);
+        MemoryBudget.release(c.data.length);
+    }
+
+    /**
+     * Evicts the least recently used contents until their total size is not greater than <var>maxSize</var>.
+     */
+    private void
+    trimContents(long maxSize) {
+        for (Iterator<Content> it = this.contents.values().iterator(); this.contentsSize > maxSize && it.hasNext();) {
+            Content c = it.next();
+            it.remove();
+            this.contentsSize -= c.data.length;
+            ZipArchiveStatistics.get().resourceCacheSize.add(-c.data.length);
+            MemoryBudget.release(c.data.length);
+        }
+    }
+
+    private synchronized void
+    release(RootFile rootFile) throws IOException {
+        if (--rootFile.openStreams == 0 && rootFile.evicted) rootFile.channel.close();
+    }
+
+    @Nullable private Archive
+    getArchive(String containerUrl, @Nullable char[] password) throws IOException {
+
+        Archive result = this.archives.get(containerUrl);
+        if (result != null) {
+            if (!result.rootFile.evicted && result.rootFile.isUpToDate()) return result;
+            this.evict(result.rootFile);
+        }
+
+        if (containerUrl.startsWith("file:")) {
+
+            File file;
+            try {
+                file = new File(new URL(containerUrl).toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                return null;
+            }
+
+            RootFile rootFile = this.getRootFile(file);
+
+            result = new Archive(rootFile, new ZipReader(RandomAccessInput.of(rootFile.channel)), 0);
+        } else
+        if (containerUrl.startsWith("zip:")) {
+
+            String path = containerUrl.substring(4);
+            int    idx  = path.lastIndexOf('!');
+            if (idx == -1) return null;
+
+            Archive outer = this.getArchive(path.substring(0, idx), password);
+            if (outer == null) return null;
+
+            String         entryName = ZipArchiveCache.stripLeadingSlashes(path.substring(idx + 1));
+            ZipEntryRecord record    = outer.reader.getRecord(entryName);
+            if (record == null || record.isDirectory()) throw new FileNotFoundException(containerUrl);
+
+            if (!record.isEncrypted() && record.method == ZipFormat.METHOD_STORED) {
+
+                // A STORED nested archive is simply a range of the outer archive.
+                RandomAccessInput input = outer.reader.input().slice(
+                    outer.reader.dataOffset(record),
+                    record.compressedSize
+                );
+                result = new Archive(outer.rootFile, new ZipReader(input), 0);
+            } else
+            if (record.size <= this.maxInMemorySize && MemoryBudget.tryAcquire(record.size)) {
+
+                // Any other nested archive is decompressed into memory.
+                // The archive is accounted with the size that was acquired from the memory budget.
+                try {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream((int) record.size);
+                    try (InputStream is = outer.reader.getInputStream(record, password)) {
+                        byte[] buffer = new byte[8192];
+                        for (int n; (n = is.read(buffer)) != -1;) baos.write(buffer, 0, n);
+                    }
+                    byte[] ba = baos.toByteArray();
+
+                    result = new Archive(
+                        outer.rootFile,
+                        new ZipReader(RandomAccessInput.of(ba, 0, ba.length)),
+                        record.size
+                    );
+                } catch (IOException | RuntimeException e) {
+                    MemoryBudget.release(record.size);
+                    throw e;
+                }
+            } else
+            {
+                return null;
+            }
+        } else
+        {
+            return null;
+        }
+
+        this.archives.put(containerUrl, result);
+
+        // Enforce the limit on the in-memory archives.
+        this.inMemorySize += result.inMemorySize;
+        for (Iterator<Archive> it = this.archives.values().iterator(); it.hasNext();) {
+            if (this.inMemorySize <= this.maxInMemorySize) break;
+            Archive a = it.next();
+            if (a.inMemorySize > 0 && a != result) {
+                it.remove();
+                this.inMemorySize -= a.inMemorySize;
+                MemoryBudget.release(a.inMemorySize);
+            }
+        }
+
+        return result;
+    }
+
+    private RootFile
+    getRootFile(File file) throws IOException {
+
+        RootFile result = this.rootFiles.get(file);
+        if (result != null) {
+            if (result.isUpToDate()) return result;
+            this.evict(result);
+        }
+
+        if (!file.isFile()) throw new FileNotFoundException(file.toString());
+
+        result = new RootFile(file);
+        this.rootFiles.put(file, result);
+
+        if (this.rootFiles.size() > ZipArchiveCache.MAX_OPEN_FILES) {
+            this.evict(this.rootFiles.values().iterator().next());
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes the <var>rootFile</var>, and all archives that are (directly or indirectly) contained in it, from this
+     * cache.
+     */
+    private void
+    evict(RootFile rootFile) throws IOException {
+
+        if (rootFile.evicted) return;
+        rootFile.evicted = true;
+
+        this.rootFiles.remove(rootFile.file);
+
+        for (Iterator<Archive> it = this.archives.values().iterator(); it.hasNext();) {
+            Archive a = it.next();
+            if (a.rootFile == rootFile) {
+                it.remove();
+                this.inMemorySize -= a.inMemorySize;
+                MemoryBudget.release(a.inMemorySize);
+            }
+        }
+
+        // Streams that are still reading the file keep it open.
+        if (rootFile.openStreams == 0) rootFile.channel.close();
+    }
+
+    private static String
+    stripLeadingSlashes(String s) {
+        while (s.startsWith("/")) s = s.substring(1);
+        return s;
+    }
+
+    private static final
+    class RootFile {
+
+        final File        file;
+        final long        lastModified, length;
+        final FileChannel channel;
+
+        int     openStreams;
+        boolean evicted;
+
+        RootFile(File file) throws IOException {
+            this.file         = file;
+            this.lastModified = file.lastModified();
+            this.length       = file.length();
+            this.channel      = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        boolean
+        isUpToDate() { return this.file.lastModified() == this.lastModified && this.file.length() == this.length; }
+    }
+
+    private static final
+    class Content {
+
+        /**
+         * The archive file that the entry is (directly or indirectly) contained in.
+         */
+        final RootFile rootFile;
+        final byte[]   data;
+
+        Content(RootFile rootFile, byte[] data) {
+            this.rootFile = rootFile;
+            this.data     = data;
+        }
+    }
+
+    private static final
+    class Archive {
+
+        /**
+         * The archive file that this archive is (directly or indirectly) contained in.
+         */
+        final RootFile  rootFile;
+        final ZipReader reader;
+
+        /**
+         * The number of bytes of memory that this archive occupies, or 0 iff this archive is not held in memory.
+         */
+        final long inMemorySize;
+
+        Archive(RootFile rootFile, ZipReader reader, long inMemorySize) {
+            this.rootFile     = rootFile;
+            this.reader       = reader;
+            this.inMemorySize = inMemorySize;
+        }
+    }
+}
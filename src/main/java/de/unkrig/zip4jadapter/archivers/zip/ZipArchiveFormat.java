@@ -26,16 +26,34 @@
 
 package de.unkrig.zip4jadapter.archivers.zip;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
@@ -47,7 +65,6 @@ import org.apache.commons.compress.compressors.FileNameUtil;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.AbstractArchiveFormat;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormat;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveOutputStream2;
-import de.unkrig.commons.io.OutputStreams;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormatFactory;
 import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
@@ -56,7 +73,6 @@ import de.unkrig.commons.nullanalysis.Nullable;
 import net.lingala.zip4j.ZipFile;
 import net.lingala.zip4j.exception.ZipException;
 import net.lingala.zip4j.io.inputstream.ZipInputStream;
-import net.lingala.zip4j.io.outputstream.ZipOutputStream;
 import net.lingala.zip4j.model.AbstractFileHeader;
 import net.lingala.zip4j.model.FileHeader;
 import net.lingala.zip4j.model.ZipParameters;
@@ -72,6 +88,20 @@ import net.lingala.zip4j.model.enums.EncryptionMethod;
  * @see #SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT
  * @see #SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD
  * @see #SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD
+ * @see #SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY
+ * @see #SYSTEM_PROPERTY_INPUT_READ_AHEAD_BUFFERS
+ * @see #SYSTEM_PROPERTY_OUTPUT_WRITE_BEHIND_BUFFERS
+ * @see #SYSTEM_PROPERTY_OUTPUT_ENTRY_TARGET_THROUGHPUT
+ * @see #SYSTEM_PROPERTY_MONITORING
+ * @see #SYSTEM_PROPERTY_JCA_AES
+ * @see #SYSTEM_PROPERTY_ZLIB_POOL_SIZE
+ * @see #SYSTEM_PROPERTY_MEMORY_BUDGET
+ * @see #SYSTEM_PROPERTY_CHECKPOINT_INTERVAL
+ * @see #SYSTEM_PROPERTY_OUTPUT_ENTRY_INDEX_INTERVAL
+ * @see #SYSTEM_PROPERTY_PARALLEL_INFLATE_THREADS
+ * @see #SYSTEM_PROPERTY_PARALLEL_DEFLATE_THREADS
+ * @see #SYSTEM_PROPERTY_SEEK_INDEX_INTERVAL
+ * @see #SYSTEM_PROPERTY_SORTED_CENTRAL_DIRECTORY
  */
 public final
 class ZipArchiveFormat extends AbstractArchiveFormat {
@@ -108,13 +138,139 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
      */
     public static final String SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD = "zip4j.outputEntryEncryptionMethod";
 
+    /**
+     * Iff a system property with this name is set, then its value designates the directory of a {@link
+     * CompressionCache} that all zip output entries created afterwards use. That cache can be overridden with {@link
+     * #setCompressionCache(CompressionCache)}.
+     *
+     * @see #SYSTEM_PROPERTY_COMPRESSION_CACHE_MAX_SIZE
+     */
+    public static final String SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY    = "zip4j.compressionCacheDirectory";
+
+    /**
+     * The maximum size, in bytes, of the {@link #SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY compression cache}; the
+     * default is 1 GB.
+     */
+    public static final String SYSTEM_PROPERTY_COMPRESSION_CACHE_MAX_SIZE     = "zip4j.compressionCacheMaxSize";
+
+    /**
+     * The number of 64 kB buffers that the {@link #archiveInputStream(InputStream) streaming reader} uses to decrypt and
+     * decompress ahead of the consumer, in a background thread; the default is 0, which disables read-ahead.
+     */
+    public static final String SYSTEM_PROPERTY_INPUT_READ_AHEAD_BUFFERS       = "zip4j.inputReadAheadBuffers";
+
+    /**
+     * The number of 64 kB buffers through which the {@link #archiveOutputStream(OutputStream) streaming writer} hands
+     * the compressed data to a background thread, which writes it to the underlying stream; the default is 0, which
+     * disables write-behind.
+     */
+    public static final String SYSTEM_PROPERTY_OUTPUT_WRITE_BEHIND_BUFFERS    = "zip4j.outputWriteBehindBuffers";
+
+    /**
+     * Iff set, then the compression level of the zip output entries is chosen {@link AdaptiveCompressionLevel
+     * adaptively}, such that each writer processes the given number of (uncompressed) megabytes per second. Overrides
+     * {@link #SYSTEM_PROPERTY_OUTPUT_ENTRY_COMPRESSION_LEVEL}.
+     */
+    public static final String SYSTEM_PROPERTY_OUTPUT_ENTRY_TARGET_THROUGHPUT = "zip4j.outputEntryTargetThroughput";
+
+    /**
+     * Iff {@code "true"}, then all readers and writers feed the {@link ZipArchiveStatistics} MBean and emit JFR events.
+     */
+    public static final String SYSTEM_PROPERTY_MONITORING                     = "zip4j.monitoring";
+
+    /**
+     * Iff {@code "false"}, then AES-encrypted entries are encrypted and decrypted by zip4j's AES engine, instead of
+     * the (much faster) JCA, which uses the CPU's AES instructions where available.
+     */
+    public static final String SYSTEM_PROPERTY_JCA_AES                        = "zip4j.jcaAes";
+
+    /**
+     * The maximum number of idle inflaters, and of idle deflaters per compression level, that are kept for re-use;
+     * the default is twice the number of processors. Evaluated once, when the first entry is compressed or
+     * decompressed.
+     *
+     * @see ZipArchiveStatistics#getInflaterPoolHitRate()
+     * @see ZipArchiveStatistics#getDeflaterPoolHitRate()
+     */
+    public static final String SYSTEM_PROPERTY_ZLIB_POOL_SIZE                 = "zip4j.zlibPoolSize";
+
+    /**
+     * The maximum number of bytes that all readers and writers together use for their buffers; the default is
+     * unlimited. That budget can be overridden with {@link #setMemoryBudget(long)}.
+     *
+     * @see ZipArchiveStatistics#getMemoryUsed()
+     */
+    public static final String SYSTEM_PROPERTY_MEMORY_BUDGET                  = "zip4j.memoryBudget";
+
+    /**
+     * The minimum number of milliseconds between two checkpoints of a {@link #createResumable(File, Collection)
+     * resumable} archive; the default is 10000. That interval can be overridden with {@link
+     * #setCheckpointInterval(long)}.
+     */
+    public static final String SYSTEM_PROPERTY_CHECKPOINT_INTERVAL            = "zip4j.checkpointInterval";
+
+    /**
+     * The number of uncompressed bytes after which the DEFLATE stream of an output entry gets a "full flush point",
+     * so that large entries can be inflated in parallel; the default is 0 (no full flush points). That interval can
+     * be overridden with {@link #setOutputEntryIndexInterval(int)}.
+     */
+    public static final String SYSTEM_PROPERTY_OUTPUT_ENTRY_INDEX_INTERVAL    = "zip4j.outputEntryIndexInterval";
+
+    /**
+     * The number of threads that inflate entries with known access points in parallel; the default is 0 (sequential
+     * inflation). That number can be overridden with {@link #setParallelInflateThreads(int)}.
+     */
+    public static final String SYSTEM_PROPERTY_PARALLEL_INFLATE_THREADS       = "zip4j.parallelInflateThreads";
+
+    /**
+     * The number of threads that deflate output entries in parallel; the default is 0 (sequential deflation). That
+     * number can be overridden with {@link #setParallelDeflateThreads(int)}.
+     */
+    public static final String SYSTEM_PROPERTY_PARALLEL_DEFLATE_THREADS       = "zip4j.parallelDeflateThreads";
+
+    /**
+     * The minimum number of uncompressed bytes between two access points of the index that {@link
+     * #openSeekableChannel(File, String, File) seekable channels} build for DEFLATED entries; the default is 4 MB.
+     * That interval can be overridden with {@link #setSeekIndexInterval(int)}.
+     */
+    public static final String SYSTEM_PROPERTY_SEEK_INDEX_INTERVAL            = "zip4j.seekIndexInterval";
+
+    /**
+     * Iff {@code "true"}, then the central directory of output archives is sorted by entry name, so that readers can
+     * look up entries by binary search. That setting can be overridden with {@link
+     * #setOutputSortedCentralDirectory(boolean)}.
+     */
+    public static final String SYSTEM_PROPERTY_SORTED_CENTRAL_DIRECTORY       = "zip4j.outputSortedCentralDirectory";
+
+    static final int FILE_WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The minimum size of the volumes of a split archive, as mandated by APPNOTE.TXT.
+     */
+    private static final long MIN_VOLUME_SIZE = 65536;
+
     private static final FileNameUtil FILE_NAME_UTIL = new FileNameUtil(Collections.singletonMap(".zip", ""), ".zip");
 
-    @Nullable private static CompressionLevel outputEntryCompressionLevel;
-    @Nullable private static char[]           inputPasswordChars;
-    @Nullable private static char[]           outputPasswordChars;
-    private static           boolean          outputEntryEncrypt;
-    @Nullable private static EncryptionMethod outputEntryEncryptionMethod;
+    @Nullable private static CompressionLevel         outputEntryCompressionLevel;
+    @Nullable private static char[]                   inputPasswordChars;
+    @Nullable private static char[]                   outputPasswordChars;
+    private static           boolean                  outputEntryEncrypt;
+    @Nullable private static EncryptionMethod         outputEntryEncryptionMethod;
+    private static boolean                            compressionCacheSet;
+    @Nullable private static CompressionCache         compressionCache;
+    @Nullable private static CompressionCache         systemPropertyCompressionCache;
+    private static int                                inputReadAheadBuffers    = -1;
+    private static int                                outputWriteBehindBuffers = -1;
+    private static long                               checkpointInterval       = -1;
+    private static int                                outputEntryIndexInterval = -1;
+    private static int                                parallelInflateThreads   = -1;
+    private static int                                parallelDeflateThreads   = -1;
+    private static int                                seekIndexInterval        = -1;
+    private static boolean                            adaptiveCompressionLevelSet;
+    @Nullable private static AdaptiveCompressionLevel adaptiveCompressionLevel;
+    @Nullable private static AdaptiveCompressionLevel systemPropertyAdaptiveCompressionLevel;
+    @Nullable private static Boolean                  jcaAes;
+    @Nullable private static Boolean                  outputSortedCentralDirectory;
 
     private ZipArchiveFormat() {}
 
@@ -147,26 +303,203 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
 
     /**
      * Uses the given <var>password</var> to decrypt any encrypted archive entries of the <var>inputStream</var>.
+     * <p>
+     *   Iff the <var>inputStream</var> is a {@link FileInputStream}, then the archive (from the stream's current
+     *   position to the end of the file) is read through its central directory, like with {@link #open(File,
+     *   char[])}; thus skipping entries does not read their data. Otherwise, or if the central directory cannot be
+     *   read, the entries are read sequentially, through their local headers, by zip4j; then neither the {@link
+     *   ZipArchiveStatistics#getInflaterPoolHits() pooled inflaters} nor {@link #setParallelInflateThreads(int)
+     *   parallel inflation} apply.
+     * </p>
+     * <p>
+     *   Iff {@link #setInputReadAheadBuffers(int) read-ahead} is configured, then the entries are decrypted and
+     *   decompressed by a background thread, concurrently with the consumer.
+     * </p>
      */
     public ArchiveInputStream
     archiveInputStream(InputStream is, @Nullable char[] password) {
 
+        ArchiveInputStream result = ZipArchiveFormat.centralDirectoryArchiveInputStream(is, password);
+        if (result == null) result = ZipArchiveFormat.zip4jArchiveInputStream(is, password);
+
+        int readAheadBuffers = ZipArchiveFormat.getInputReadAheadBuffers();
+        if (readAheadBuffers > 0) {
+            try {
+                result = new ReadAheadArchiveInputStream(result, readAheadBuffers, 65536);
+            } catch (InterruptedIOException iioe) {
+
+                // Interrupted while waiting for the memory budget; continue without read-ahead.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return {@code null} iff the <var>is</var> is not a {@link FileInputStream} of a regular file, or the archive
+     *         has no valid central directory (e.g. because it is split, or followed by other data)
+     */
+    @Nullable private static ArchiveInputStream
+    centralDirectoryArchiveInputStream(InputStream is, @Nullable char[] password) {
+
+        if (!(is instanceof FileInputStream)) return null;
+
+        long             openStart = System.nanoTime();
+        @Nullable Object openEvent = ArchiveMonitor.beforeOpen();
+
+        try {
+            FileChannel fc       = ((FileInputStream) is).getChannel();
+            long        position = fc.position();
+            ZipReader   zr       = new ZipReader(RandomAccessInput.of(fc).slice(position, fc.size() - position));
+
+            return ZipArchiveFormat.zipReaderArchiveInputStream(
+                zr,
+                is,
+                password,
+                "(stream)",
+                false,
+                openStart,
+                openEvent
+            );
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * @return            The entries of the <var>zr</var>, in central directory order
+     * @param closeable   Is closed when the returned stream is closed
+     * @param eager       Whether each entry's data stream is opened by {@link ArchiveInputStream#getNextEntry()}
+     *                    (so that, e.g., a wrong password is reported there), rather than when the consumer reads
+     *                    the entry data (so that skipping the entry costs nothing)
+     */
+    private static ArchiveInputStream
+    zipReaderArchiveInputStream(
+        ZipReader        zr,
+        Closeable        closeable,
+        @Nullable char[] password,
+        String           archiveName,
+        boolean          eager,
+        long             openStart,
+        @Nullable Object openEvent
+    ) throws IOException {
+
+        List<ZipEntryRecord> records = zr.records();
+
+        return new ZipArchiveInputStream() {
+
+            final Iterator<ZipEntryRecord>   iterator = records.iterator();
+            @Nullable private ZipEntryRecord current;
+            @Nullable private InputStream    stream;
+            @Nullable final ArchiveMonitor   monitor  = ArchiveMonitor.opened(
+                openEvent,
+                archiveName,
+                openStart,
+                records.size()
+            );
+
+            @Override @Nullable public ArchiveEntry
+            getNextEntry() throws IOException {
+
+                ArchiveMonitor m = this.monitor;
+                if (m == null) return this.getNextEntry2();
+
+                long         start  = System.nanoTime();
+                ArchiveEntry result = this.getNextEntry2();
+                m.nextEntry(start, result == null ? null : result.getName());
+                return result;
+            }
+
+            @Nullable private ArchiveEntry
+            getNextEntry2() throws IOException {
+
+                this.closeStream();
+
+                if (!this.iterator.hasNext()) {
+                    this.current = null;
+                    return null;
+                }
+
+                ZipEntryRecord r = (this.current = this.iterator.next());
+                if (eager) this.stream = zr.getInputStream(r, password);
+
+                return ZipArchiveFormat.zipArchiveEntry(r);
+            }
+
+            @Override public int
+            read(@Nullable byte[] b, int off, int len) throws IOException {
+
+                InputStream is2 = this.stream;
+                if (is2 == null) {
+                    ZipEntryRecord r = this.current;
+                    if (r == null) throw new IllegalStateException();
+                    is2 = (this.stream = zr.getInputStream(r, password));
+                }
+
+                int result = is2.read(b, off, len);
+                if (result > 0) {
+                    this.count(result);
+
+                    ArchiveMonitor m = this.monitor;
+                    if (m != null) m.bytesRead(result);
+                }
+
+                return result;
+            }
+
+            @Override public void
+            close() throws IOException {
+                try {
+                    this.closeStream();
+                } finally {
+                    closeable.close();
+                    ArchiveMonitor m = this.monitor;
+                    if (m != null) m.close();
+                }
+            }
+
+            private void
+            closeStream() throws IOException {
+
+                InputStream is2 = this.stream;
+                if (is2 == null) return;
+
+                this.stream = null;
+                is2.close();
+            }
+        };
+    }
+
+    private static ArchiveInputStream
+    zip4jArchiveInputStream(InputStream is, @Nullable char[] password) {
+
         final ZipInputStream zis = new ZipInputStream(is, password);
 
         return new ArchiveInputStream() {
 
+            @Nullable final ArchiveMonitor monitor = ArchiveMonitor.reader("(stream)");
+
             @Override @NotNullByDefault(false) public ArchiveEntry
             getNextEntry() throws IOException {
 
+                ArchiveMonitor m = this.monitor;
+                if (m == null) return this.getNextEntry2();
+
+                long         start  = System.nanoTime();
+                ArchiveEntry result = this.getNextEntry2();
+                m.nextEntry(start, result == null ? null : result.getName());
+                return result;
+            }
+
+            @Nullable private ArchiveEntry
+            getNextEntry2() throws IOException {
+
                 AbstractFileHeader afh;
                 try {
                     afh = zis.getNextEntry();
                 } catch (ZipException ze) {
-
-                    // Fix up zip4j's misleading exception message for "missing password".
-                    if (ze.getMessage().toLowerCase().contains("wrong password") && password == null) {
-                        throw new ZipException("Password required", ze);
-                    }
+                    ZipArchiveFormat.checkPasswordFailure(ze, password);
                     throw ze;
                 }
                 if (afh == null) return null;
@@ -175,11 +508,21 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
             }
 
             @Override @NotNullByDefault(false) public int
-            read(byte[] b, int off, int len) throws IOException { return zis.read(b, off, len); }
+            read(byte[] b, int off, int len) throws IOException {
+
+                int result = zis.read(b, off, len);
+
+                ArchiveMonitor m = this.monitor;
+                if (m != null && result > 0) m.bytesRead(result);
+
+                return result;
+            }
 
             @Override
             public void close() throws IOException {
                 zis.close();
+                ArchiveMonitor m = this.monitor;
+                if (m != null) m.close();
                 super.close();
             }
         };
@@ -202,19 +545,67 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
 
     /**
      * Uses the given <var>password</var> to decrypt any encrypted archive entries of the <var>archiveFile</var>.
+     * <p>
+     *   The entries are listed from one pass over the central directory, and read through positional reads with
+     *   pooled inflaters (see {@link ZipReader}); only the entries of split archives are read by zip4j.
+     * </p>
      */
     public ArchiveInputStream
     open(File archiveFile, @Nullable char[] password) throws IOException {
 
+        long             openStart = System.nanoTime();
+        @Nullable Object openEvent = ArchiveMonitor.beforeOpen();
+
+        FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+        try {
+            RandomAccessInput input = RandomAccessInput.of(fc);
+            if (!ZipReader.isSplitArchive(input)) {
+                return ZipArchiveFormat.zipReaderArchiveInputStream(
+                    new ZipReader(input, archiveFile),
+                    fc,
+                    password,
+                    archiveFile.getPath(),
+                    true,
+                    openStart,
+                    openEvent
+                );
+            }
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+        fc.close();
+
+        return ZipArchiveFormat.splitArchiveInputStream(archiveFile, password, openStart, openEvent);
+    }
+
+    /**
+     * Reads the entries of a split archive with zip4j, because their data may span several volumes.
+     */
+    private static ArchiveInputStream
+    splitArchiveInputStream(
+        File             archiveFile,
+        @Nullable char[] password,
+        long             openStart,
+        @Nullable Object openEvent
+    ) throws IOException {
+
+        ZipFile          zipFile     = new ZipFile(archiveFile, password);
+        List<FileHeader> fileHeaders = zipFile.getFileHeaders();
+
         return new ZipArchiveInputStream() {
 
-            final ZipFile                 zipFile             = new ZipFile(archiveFile, password);
-            final List<FileHeader>        fileHeaders         = this.zipFile.getFileHeaders();
-            Iterator<FileHeader>          fileHeadersIterator = this.fileHeaders.iterator();
-            @Nullable private InputStream stream;
+            final Iterator<FileHeader>     fileHeadersIterator = fileHeaders.iterator();
+            @Nullable private InputStream  stream;
+            @Nullable final ArchiveMonitor monitor             = ArchiveMonitor.opened(
+                openEvent,
+                archiveFile.getPath(),
+                openStart,
+                fileHeaders.size()
+            );
 
             @Override public int
-            getCount() { return this.fileHeaders.size(); }
+            getCount() { return fileHeaders.size(); }
 
             @Override public long
             getBytesRead() { throw new UnsupportedOperationException("getBytesRead"); }
@@ -223,35 +614,67 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
             read(@Nullable byte[] b, int off, int len) throws IOException {
                 InputStream is = this.stream;
                 if (is == null) throw new IllegalStateException();
-                return is.read(b, off, len);
+
+                int result = is.read(b, off, len);
+
+                ArchiveMonitor m = this.monitor;
+                if (m != null && result > 0) m.bytesRead(result);
+
+                return result;
             }
 
             @Override public void
-            close() throws IOException { this.zipFile.close(); }
+            close() throws IOException {
+                this.closeStream();
+                zipFile.close();
+                ArchiveMonitor m = this.monitor;
+                if (m != null) m.close();
+            }
 
             @Override @Nullable public ArchiveEntry
             getNextEntry() throws IOException {
 
-                if (!this.fileHeadersIterator.hasNext()) {
-                    this.stream = null;
-                    return null;
-                }
+                ArchiveMonitor m = this.monitor;
+                if (m == null) return this.getNextEntry2();
+
+                long         start  = System.nanoTime();
+                ArchiveEntry result = this.getNextEntry2();
+                m.nextEntry(start, result == null ? null : result.getName());
+                return result;
+            }
+
+            @Nullable private ArchiveEntry
+            getNextEntry2() throws IOException {
+
+                this.closeStream();
+
+                if (!this.fileHeadersIterator.hasNext()) return null;
 
                 FileHeader fh = this.fileHeadersIterator.next();
+
                 try {
-                    this.stream = this.zipFile.getInputStream(fh);
+                    this.stream = zipFile.getInputStream(fh);
                 } catch (ZipException ze) {
-
-                    // Fix up zip4j's misleading exception message for "missing password".
-                    if (ze.getMessage().toLowerCase().contains("wrong password") && password == null) {
-                        throw new ZipException("Password required", ze);
-                    }
+                    ZipArchiveFormat.checkPasswordFailure(ze, password);
                     throw ze;
                 }
 
                 return ZipArchiveFormat.zipArchiveEntry(fh);
             }
 
+            /**
+             * Closes the current entry's stream, if any, so that its resources are released early.
+             */
+            private void
+            closeStream() throws IOException {
+
+                InputStream is = this.stream;
+                if (is == null) return;
+
+                this.stream = null;
+                is.close();
+            }
+
             @Override public String
             toString() { return archiveFile.toString(); }
         };
@@ -273,6 +696,11 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
     /**
      * Uses the given <var>password</var> to encrypt all archive entries that will be created throught the returned
      * {@link ArchiveOutputStream}.
+     * <p>
+     *   Iff {@link #setOutputWriteBehindBuffers(int) write-behind} is configured, then the compressed data is written
+     *   to the <var>os</var> by a background thread, concurrently with the compression; an exception that the
+     *   <var>os</var> throws is rethrown by a later write to, or the closing of the returned stream.
+     * </p>
      */
     public ArchiveOutputStream
     archiveOutputStream(OutputStream os, @Nullable char[] password) throws ArchiveException {
@@ -284,102 +712,150 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
         }
     }
 
-    private static ZipArchiveOutputStream
-    zipArchiveOutputStream(OutputStream os, @Nullable char[] password) throws IOException {
-
-        // Because the lingala ZipOutputStream has no "finish()" method (only "close()"), we must make the underlying
-        // output stream unclosable.
-        final ZipOutputStream zos = new ZipOutputStream(OutputStreams.unclosable(os), password);
-
-        return new ZipArchiveOutputStream() {
+    /**
+     * Equivalent with {@link #archiveOutputStream(VolumeSink, long, char[])}, with the password specified through
+     * {@link #setOutputFilePasswordChars(char[])} resp. the system property {@value
+     * ZipArchiveFormat#SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD}.
+     */
+    public ArchiveOutputStream
+    archiveOutputStream(VolumeSink sink, long volumeSize) throws ArchiveException {
 
-            @Override @NotNullByDefault(false) public void
-            putArchiveEntry(ArchiveEntry entry) throws IOException {
+        char[] opcs = ZipArchiveFormat.outputPasswordChars;
+        if (opcs == null) opcs = ZipArchiveFormat.toCharArray(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD));
 
-                CompressionLevel compressionLevel = ZipArchiveFormat.outputEntryCompressionLevel;
-                if (compressionLevel == null) {
-                    compressionLevel = ZipArchiveFormat.enumValueOf(
-                        CompressionLevel.class,
-                        System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_COMPRESSION_LEVEL)
-                    );
-                }
+        return this.archiveOutputStream(sink, volumeSize, opcs);
+    }
 
-                boolean encrypt = (
-                    ZipArchiveFormat.outputEntryEncrypt
-                    || Boolean.getBoolean(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT)
-                );
+    /**
+     * Writes a <em>split archive</em>, i.e. a sequence of volumes of (at most) <var>volumeSize</var> bytes each. The
+     * volumes are handed to the <var>sink</var> as they are written, so neither the archive nor a volume is ever held
+     * in memory or in a temporary file.
+     * <p>
+     *   No header is split between two volumes; instead, a volume is cut short if the next header would not fit.
+     * </p>
+     *
+     * @param volumeSize                The maximum size of each volume; at least 65536
+     * @throws IllegalArgumentException <var>volumeSize</var> is less than 65536
+     * @see VolumeSink#files(File)
+     */
+    public ArchiveOutputStream
+    archiveOutputStream(VolumeSink sink, long volumeSize, @Nullable char[] password) throws ArchiveException {
 
-                EncryptionMethod encryptionMethod = ZipArchiveFormat.outputEntryEncryptionMethod;
-                if (encryptionMethod == null) {
-                    encryptionMethod = ZipArchiveFormat.enumValueOf(
-                        EncryptionMethod.class,
-                        System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD)
-                    );
-                }
+        if (volumeSize < ZipArchiveFormat.MIN_VOLUME_SIZE) {
+            throw new IllegalArgumentException("Volume size " + volumeSize + " is less than 65536");
+        }
 
-                this.putArchiveEntry(entry, compressionLevel, encrypt, encryptionMethod);
-            }
+        try {
+            return new ZipArchiveOutputStream(
+                new ZipWriter(new VolumeOutputStream(sink, volumeSize)),
+                "(split)",
+                password
+            );
+        } catch (IOException ioe) {
+            throw new ArchiveException(null, ioe);
+        }
+    }
 
-            public void
-            putArchiveEntry(
-                ArchiveEntry               entry,
-                @Nullable CompressionLevel compressionLevel,
-                boolean                    encrypt,
-                @Nullable EncryptionMethod encryptionMethod
-            ) throws IOException {
+    /**
+     * Writes the archive to the <var>channel</var> in large chunks, through a direct buffer; see also {@link
+     * #writeEntry(ArchiveOutputStream, String, Date, ReadableByteChannel)}. Closing the returned stream closes the
+     * <var>channel</var>.
+     * <p>
+     *   Uses the given <var>password</var> to encrypt all archive entries that will be created throught the returned
+     *   {@link ArchiveOutputStream}.
+     * </p>
+     */
+    public ArchiveOutputStream
+    archiveOutputStream(WritableByteChannel channel, @Nullable char[] password) throws IOException {
 
-                ZipParameters zipParameters = new ZipParameters();
+        GatheringByteChannel gbc = channel instanceof GatheringByteChannel ? (GatheringByteChannel) channel : (
+            new GatheringByteChannel() {
 
-                // Entry name, size and time stamp.
-                zipParameters.setFileNameInZip(entry.getName());
-                zipParameters.setEntrySize(entry.getSize());
-                zipParameters.setLastModifiedFileTime(entry.getLastModifiedDate().getTime());
+                @Override public int
+                write(ByteBuffer src) throws IOException { return channel.write(src); }
 
-                // Entry compression level.
-                if (compressionLevel != null) zipParameters.setCompressionLevel(compressionLevel); // Default is NORMAL.
+                @Override public long
+                write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+                    long result = 0;
+                    for (int i = offset; i < offset + length; i++) {
+                        while (srcs[i].hasRemaining()) result += channel.write(srcs[i]);
+                    }
+                    return result;
+                }
 
-                // Entry encryption.
-                zipParameters.setEncryptFiles(encrypt); // Default is false.
+                @Override public long
+                write(ByteBuffer[] srcs) throws IOException { return this.write(srcs, 0, srcs.length); }
 
-                // Entry encryption method.
-                if (encryptionMethod != null) zipParameters.setEncryptionMethod(encryptionMethod);    // Default is NONE.
+                @Override public boolean
+                isOpen() { return channel.isOpen(); }
 
-                zos.putNextEntry(zipParameters);
+                @Override public void
+                close() throws IOException { channel.close(); }
             }
+        );
 
-            @Override public void
-            closeArchiveEntry() throws IOException {
-                zos.closeEntry();
-            }
+        return new ZipArchiveOutputStream(
+            new ZipWriter(new ChannelOutputStream(gbc, ZipArchiveFormat.FILE_WRITE_BUFFER_SIZE)),
+            "(channel)",
+            password
+        );
+    }
 
-            @Override public void
-            finish() throws IOException {
-                zos.close();
-            }
+    private static ZipArchiveOutputStream
+    zipArchiveOutputStream(OutputStream os, @Nullable char[] password) throws IOException {
 
-            @Override @NotNullByDefault(false) public ArchiveEntry
-            createArchiveEntry(File inputFile, String entryName) throws IOException {
-                return ZipArchiveFormat.zipArchiveEntry(entryName, inputFile.length(), inputFile.isDirectory(), new Date(inputFile.lastModified()));
-            }
+        OutputStream out = null;
 
-            @Override @NotNullByDefault(false) public void
-            write(byte[] b, int off, int len) throws IOException { zos.write(b, off, len); }
+        int writeBehindBuffers = ZipArchiveFormat.getOutputWriteBehindBuffers();
+        if (writeBehindBuffers > 0) {
+            try {
+                out = new WriteBehindOutputStream(os, writeBehindBuffers, 65536);
+            } catch (InterruptedIOException iioe) {
 
-            @Override public void
-            close() throws IOException {
-                zos.close();
-                os.close();
-                super.close();
+                // Interrupted while waiting for the memory budget; continue without write-behind.
+                Thread.currentThread().interrupt();
             }
+        }
+        if (out == null) out = new BufferedOutputStream(os);
 
-            @Override public ArchiveFormat
-            getArchiveFormat() { return ZipArchiveFormat.get(); }
-        };
+        return new ZipArchiveOutputStream(new ZipWriter(out), "(stream)", password);
     }
 
     @Override public ArchiveOutputStream
     create(File archiveFile) throws IOException { return this.zipArchiveOutputStream(archiveFile); }
 
+    /**
+     * Like {@link #create(File)}, but survives a crash of the writing process: While the archive is being written,
+     * the completed entries are periodically recorded in a checkpoint file ("<var>archiveFile</var>{@code
+     * .checkpoint}"). Iff the <var>archiveFile</var> already exists (typically because a previous job was killed),
+     * then its complete entries are retained (as recorded in the checkpoint file, plus the entries that were
+     * completed after the last checkpoint), anything after the last complete entry is truncated, and the returned
+     * stream appends to the retained entries.
+     * <p>
+     *   The caller is expected to skip the entries whose names are added to <var>completedEntries</var>. The
+     *   checkpoint file is deleted when the archive is complete.
+     * </p>
+     * <p>
+     *   Uses the password specified through {@link #setOutputFilePasswordChars(char[])} resp. the system property
+     *   {@value ZipArchiveFormat#SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD}.
+     * </p>
+     *
+     * @param completedEntries Receives the names of the retained entries
+     * @see #setCheckpointInterval(long)
+     */
+    public ArchiveOutputStream
+    createResumable(File archiveFile, Collection<? super String> completedEntries) throws IOException {
+
+        char[] opcs = ZipArchiveFormat.outputPasswordChars;
+        if (opcs == null) opcs = ZipArchiveFormat.toCharArray(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD));
+
+        return new ZipArchiveOutputStream(
+            Checkpoint.open(archiveFile, ZipArchiveFormat.getCheckpointInterval(), completedEntries),
+            archiveFile.getPath(),
+            opcs
+        );
+    }
+
     @Override public void
     writeEntry(
         ArchiveOutputStream                                              archiveOutputStream,
@@ -522,7 +998,7 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
      * to encrypt all archive entries that will be created throught the returned {@link ArchiveOutputStream}.
      */
     private ArchiveOutputStream
-    zipArchiveOutputStream(File archiveFile) {
+    zipArchiveOutputStream(File archiveFile) throws IOException {
 
         char[] opcs = ZipArchiveFormat.outputPasswordChars;
         if (opcs == null) opcs = ZipArchiveFormat.toCharArray(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD));
@@ -533,115 +1009,576 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
     /**
      * Uses the given <var>password</var> to encrypt all archive entries that will be created throught the returned
      * {@link ArchiveOutputStream}.
+     * <p>
+     *   The archive file is kept open until the returned stream is closed, and is written in large chunks.
+     * </p>
+     * <p>
+     *   Iff the archive file exists, then the new entries are appended to its entries (like zip4j's {@link
+     *   ZipFile#addStream(InputStream, ZipParameters)}); see {@link #appendingZipWriter(File)}.
+     * </p>
      */
     private ArchiveOutputStream
-    zipArchiveOutputStream(File archiveFile, @Nullable char[] password) {
-
-        final ZipFile zipFile = new ZipFile(archiveFile, password);
-
-        return new ZipArchiveOutputStream() {
+    zipArchiveOutputStream(File archiveFile, @Nullable char[] password) throws IOException {
+        return new ZipArchiveOutputStream(
+            ZipArchiveFormat.appendingZipWriter(archiveFile),
+            archiveFile.getPath(),
+            password
+        );
+    }
 
-            @Nullable ZipParameters         zipParameters;
-            @Nullable ByteArrayOutputStream baos;
+    /**
+     * @return A {@link ZipWriter} that appends to the entries of the given archive file, where each new entry
+     *         replaces an existing entry with the same name (the data of the replaced entry remains in the file, as
+     *         unused space); iff the file does not exist or is empty, then it is created
+     */
+    private static ZipWriter
+    appendingZipWriter(File archiveFile) throws IOException {
 
-            @Override @NotNullByDefault(false) public void
-            putArchiveEntry(ArchiveEntry entry) throws IOException {
+        if (archiveFile.length() == 0) return ZipArchiveFormat.zipWriter(archiveFile);
 
-                CompressionLevel compressionLevel = ZipArchiveFormat.outputEntryCompressionLevel;
-                if (compressionLevel == null) {
-                    compressionLevel = ZipArchiveFormat.enumValueOf(
-                        CompressionLevel.class,
-                        System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_COMPRESSION_LEVEL)
-                    );
-                }
+        FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ZipReader zr = new ZipReader(RandomAccessInput.of(fc));
+
+            List<ZipEntryRecord> records = zr.records();
+            long                 end     = zr.centralDirectoryStart();
+
+            // The new entries and the new central directory overwrite the old central directory.
+            fc.truncate(end);
+            fc.position(end);
+
+            ZipWriter result = new ZipWriter(
+                new ChannelOutputStream(fc, ZipArchiveFormat.FILE_WRITE_BUFFER_SIZE),
+                end,
+                records
+            );
+            result.replaceRetainedEntries();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
 
-                boolean encrypt = (
-                    ZipArchiveFormat.outputEntryEncrypt
-                    || Boolean.getBoolean(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT)
-                );
+    /**
+     * @return A {@link ZipWriter} that writes to the given file, replacing any existing file
+     */
+    static ZipWriter
+    zipWriter(File archiveFile) throws IOException {
+
+        FileChannel fc = FileChannel.open(
+            archiveFile.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        );
 
-                EncryptionMethod encryptionMethod = ZipArchiveFormat.outputEntryEncryptionMethod;
-                if (encryptionMethod == null) {
-                    encryptionMethod = ZipArchiveFormat.enumValueOf(
-                        EncryptionMethod.class,
-                        System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD)
-                    );
-                }
+        try {
+            return new ZipWriter(new ChannelOutputStream(fc, ZipArchiveFormat.FILE_WRITE_BUFFER_SIZE));
+        } catch (IOException ioe) {
 
-                this.putArchiveEntry(entry, compressionLevel, encrypt, encryptionMethod);
-            }
+            // Interrupted while waiting for the memory budget.
+            fc.close();
+            throw ioe;
+        }
+    }
 
-            public void
-            putArchiveEntry(
-                ArchiveEntry               entry,
-                @Nullable CompressionLevel compressionLevel,
-                boolean                    encrypt,
-                @Nullable EncryptionMethod encryptionMethod
-            ) throws IOException {
+    /**
+     * Equivalent with {@link #transcode(File, char[], File, CompressionLevel, boolean, EncryptionMethod, char[],
+     * Executor)}, with the input and output passwords, the compression level, the encryption flag and the encryption
+     * method configured through the setters resp. system properties.
+     */
+    public static void
+    transcode(File inputFile, File outputFile, Executor executor) throws IOException {
+        ZipArchiveFormat.transcode(
+            inputFile,
+            ZipArchiveFormat.getInputPassword(),
+            outputFile,
+            ZipArchiveFormat.getOutputEntryCompressionLevel(),
+            ZipArchiveFormat.getOutputEntryEncrypt(),
+            ZipArchiveFormat.getOutputEntryEncryptionMethod(),
+            ZipArchiveFormat.getOutputPassword(),
+            executor
+        );
+    }
 
-                ZipParameters zps = this.zipParameters = new ZipParameters();
+    /**
+     * Copies all entries of the <var>inputFile</var> to the <var>outputFile</var>, with the given compression level
+     * and encryption. The entries are decrypted, decompressed, recompressed and re-encrypted concurrently by the
+     * <var>executor</var>, but appear in the output file in their original order.
+     * <p>
+     *   The data of entries that already have the requested compression level and encryption is copied "raw", i.e.
+     *   without decompressing and recompressing it.
+     * </p>
+     * <p>
+     *   The <var>inputFile</var> and the <var>outputFile</var> may be identical.
+     * </p>
+     *
+     * @param compressionLevel {@code null} means {@link CompressionLevel#NORMAL}
+     */
+    public static void
+    transcode(
+        File                       inputFile,
+        @Nullable char[]           inputPassword,
+        File                       outputFile,
+        @Nullable CompressionLevel compressionLevel,
+        boolean                    encrypt,
+        @Nullable EncryptionMethod encryptionMethod,
+        @Nullable char[]           outputPassword,
+        Executor                   executor
+    ) throws IOException {
+        Transcoder.transcode(
+            inputFile,
+            inputPassword,
+            outputFile,
+            compressionLevel,
+            encrypt,
+            encryptionMethod,
+            outputPassword,
+            executor
+        );
+    }
 
-                // Entry name and time stamp.
-                zps.setFileNameInZip(entry.getName());
-                zps.setLastModifiedFileTime(entry.getLastModifiedDate().getTime());
+    /**
+     * Equivalent with {@link #verify(File, char[], Executor)}, with the password configured through {@link
+     * #setInputFilePasswordChars(char[])} resp. the system property {@value #SYSTEM_PROPERTY_INPUT_FILE_PASSWORD}.
+     */
+    public static VerificationReport
+    verify(File archiveFile, Executor executor) throws IOException {
+        return ZipArchiveFormat.verify(archiveFile, ZipArchiveFormat.getInputPassword(), executor);
+    }
 
-                // Entry compression level.
-                if (compressionLevel != null) zps.setCompressionLevel(compressionLevel); // Default is NORMAL.
+    /**
+     * Reads all entries of the <var>archiveFile</var> concurrently, and verifies their sizes, CRCs and (for
+     * AES-encrypted entries) MACs.
+     *
+     * @return            The result for each entry, and the throughput of the verification
+     * @throws IOException The central directory of the <var>archiveFile</var> could not be read
+     */
+    public static VerificationReport
+    verify(File archiveFile, @Nullable char[] password, Executor executor) throws IOException {
+        return VerificationReport.verify(archiveFile, password, executor);
+    }
 
-                // Entry encryption.
-                zps.setEncryptFiles(encrypt); // Default is false.
+    /**
+     * Adds the <var>file</var> as an entry to the <var>archiveOutputStream</var>, which is typically one that {@link
+     * #create(File)} or {@link #archiveOutputStream(OutputStream)} created. For such streams, the file's content is
+     * not copied through the heap: Iff the compression level is {@link CompressionLevel#NO_COMPRESSION} (and the
+     * entry is neither encrypted nor subject to the compression cache), then the entry is STORED, its CRC is
+     * computed over the memory-mapped file, and the kernel copies the file into the archive file. Otherwise, the
+     * memory-mapped file is fed directly into the deflater (as of Java 11).
+     * <p>
+     *   For any other {@link ArchiveOutputStream}, the <var>file</var> is simply copied into a new entry.
+     * </p>
+     */
+    public static void
+    addFile(ArchiveOutputStream archiveOutputStream, Path file, String entryName) throws IOException {
 
-                // Entry encryption method.
-                if (encryptionMethod != null) zps.setEncryptionMethod(encryptionMethod);    // Default is NONE.
+        if (archiveOutputStream instanceof ZipArchiveOutputStream) {
+            ((ZipArchiveOutputStream) archiveOutputStream).addFile(file, entryName);
+            return;
+        }
 
-                this.baos = new ByteArrayOutputStream();
-            }
+        archiveOutputStream.putArchiveEntry(archiveOutputStream.createArchiveEntry(file.toFile(), entryName));
+        if (!Files.isDirectory(file)) Files.copy(file, archiveOutputStream);
+        archiveOutputStream.closeArchiveEntry();
+    }
 
-            @Override public void
-            closeArchiveEntry() throws IOException {
+    /**
+     * Adds an entry with the contents of the <var>source</var> channel (which is read until end-of-stream, but not
+     * closed) to an {@link ArchiveOutputStream} that {@link #create(File)}, {@link
+     * #archiveOutputStream(OutputStream)} or {@link #archiveOutputStream(WritableByteChannel, char[])} created. For
+     * such streams, the data is read into a direct buffer and fed directly into the deflater, and (unless encrypted)
+     * the deflater's output goes directly into the archive's direct write buffer (as of Java 11). Thus, data can be
+     * moved e.g. from a socket into an archive without passing through the heap.
+     * <p>
+     *   The <var>source</var> must be in blocking mode.
+     * </p>
+     */
+    public static void
+    writeEntry(
+        ArchiveOutputStream archiveOutputStream,
+        String              entryName,
+        @Nullable Date      lastModifiedDate,
+        ReadableByteChannel source
+    ) throws IOException {
 
-                ZipParameters zps = this.zipParameters;
-                if (zps == null) return;
+        // ZIP format does not support "no last modified time", so we map that to 0 since the epoch.
+        if (lastModifiedDate == null) lastModifiedDate = new Date(0);
 
-                assert this.baos != null;
-                zipFile.addStream(new ByteArrayInputStream(this.baos.toByteArray()), zps);
+        if (archiveOutputStream instanceof ZipArchiveOutputStream) {
+            ((ZipArchiveOutputStream) archiveOutputStream).addEntry(entryName, lastModifiedDate, source);
+            return;
+        }
 
-                this.zipParameters = null;
-                this.baos          = null;
-            }
+        archiveOutputStream.putArchiveEntry(ZipArchiveFormat.zipArchiveEntry(entryName, -1, false, lastModifiedDate));
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (source.read(buffer) != -1) {
+            archiveOutputStream.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+        archiveOutputStream.closeArchiveEntry();
+    }
 
-            @Override public void
-            finish() throws IOException {
-                ;
-            }
+    /**
+     * Equivalent with {@link #sync(Path, File, boolean)} without CRC verification.
+     */
+    public static void
+    sync(Path sourceDirectory, File archiveFile) throws IOException {
+        ZipArchiveFormat.sync(sourceDirectory, archiveFile, false);
+    }
 
-            @Override @NotNullByDefault(false) public ArchiveEntry
-            createArchiveEntry(File inputFile, String entryName) throws IOException {
-                return new ZipArchiveEntry() {
-                    @Override public String  getName()             { return entryName;                          }
-                    @Override public long    getSize()             { return inputFile.length();                 }
-                    @Override public boolean isDirectory()         { return inputFile.isDirectory();            }
-                    @Override public Date    getLastModifiedDate() { return new Date(inputFile.lastModified()); }
-                    @Override public String  toString()            { return entryName;                          }
+    /**
+     * Updates (or creates) the <var>archiveFile</var> such that it contains exactly the files and subdirectories of
+     * the <var>sourceDirectory</var>.
+     * <p>
+     *   Files that have the same size and modification time as their existing entry (and, iff <var>verifyCrc</var>,
+     *   the same CRC) are regarded as unchanged; their entries' compressed (and possibly encrypted) data is copied
+     *   "raw" from the old archive, without decompressing and recompressing it. Only new and changed files are
+     *   {@link #addFile(ArchiveOutputStream, Path, String) added}, with the compression level and encryption
+     *   configured through the setters resp. system properties. Entries whose encryption (method, AES key strength and
+     *   password) differs from the configured encryption are regarded as changed.
+     * </p>
+     * <p>
+     *   The new archive is written to a temporary file, which then replaces the <var>archiveFile</var>.
+     * </p>
+     */
+    public static void
+    sync(Path sourceDirectory, File archiveFile, boolean verifyCrc) throws IOException {
+
+        // (The archive file itself may be located in the source directory.)
+        Path       archivePath = archiveFile.toPath().toAbsolutePath().normalize();
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(sourceDirectory)) {
+            files = (
+                s
+                .filter(p -> !p.equals(sourceDirectory) && !p.toAbsolutePath().normalize().equals(archivePath))
+                .sorted()
+                .collect(Collectors.toList())
+            );
+        }
+
+        // (The prefix must have at least three characters.)
+        File tmpFile = File.createTempFile(
+            archiveFile.getName() + ".sync",
+            ".tmp",
+            archiveFile.getAbsoluteFile().getParentFile()
+        );
+        try {
+
+            try (
+                FileChannel ic = (
+                    archiveFile.exists()
+                    ? FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ)
+                    : null
+                );
+                ZipArchiveOutputStream zaos = new ZipArchiveOutputStream(
+                    ZipArchiveFormat.zipWriter(tmpFile),
+                    archiveFile.getPath(),
+                    ZipArchiveFormat.getOutputPassword()
+                );
+            ) {
+                @Nullable ZipReader reader = ic == null ? null : new ZipReader(RandomAccessInput.of(ic));
 
-                };
+                for (Path file : files) {
+
+                    String  entryName   = sourceDirectory.relativize(file).toString().replace(File.separatorChar, '/');
+                    boolean isDirectory = Files.isDirectory(file);
+                    if (isDirectory) entryName += '/';
+
+                    ZipEntryRecord r = reader == null ? null : reader.getRecord(entryName);
+                    if (r != null && ZipArchiveFormat.isUnchanged(reader, r, file, isDirectory, verifyCrc)) {
+                        zaos.copyRawEntry(reader, r);
+                    } else {
+                        zaos.addFile(file, entryName);
+                    }
+                }
             }
 
-            @Override @NotNullByDefault(false) public void
-            write(byte[] b, int off, int len) throws IOException {
-                assert this.baos != null;
-                this.baos.write(b, off, len);
+            Files.move(tmpFile.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * @return Whether the existing <var>record</var> represents the <var>file</var>, and thus may be copied as it is
+     */
+    private static boolean
+    isUnchanged(ZipReader reader, ZipEntryRecord record, Path file, boolean isDirectory, boolean verifyCrc)
+    throws IOException {
+
+        if (record.isDirectory() != isDirectory) return false;
+        if (isDirectory) return true;
+
+        if (record.isEncrypted() != ZipArchiveFormat.getOutputEntryEncrypt()) return false;
+        if (record.isEncrypted() && !ZipArchiveFormat.isEncryptedAsConfigured(reader, record)) return false;
+
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long size = fc.size();
+            if (record.size != size) return false;
+
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+            if (record.dosTime != ZipFormat.javaToDosTime(lastModified)) return false;
+
+            if (!verifyCrc) return true;
+
+            // AE-2 entries have no CRC, so they cannot be verified.
+            if (record.crc == 0 && record.getAesExtraField() != null && size > 0) return false;
+
+            return record.crc == ZipWriter.crc(fc, size);
+        }
+    }
+
+    /**
+     * @return Whether the encryption method, the AES key strength and the password of the encrypted <var>record</var>
+     *         match the configured output encryption
+     */
+    private static boolean
+    isEncryptedAsConfigured(ZipReader reader, ZipEntryRecord record) throws IOException {
+
+        char[] password = ZipArchiveFormat.getOutputPassword();
+        if (password == null) return false;
+
+        ByteBuffer       aes              = record.getAesExtraField();
+        EncryptionMethod encryptionMethod = ZipArchiveFormat.getOutputEntryEncryptionMethod();
+        if (encryptionMethod == EncryptionMethod.AES) {
+            if (aes == null || aes.remaining() < 7 || aes.get(4) != AesCipher.DEFAULT_STRENGTH) return false;
+        } else
+        if (encryptionMethod == EncryptionMethod.ZIP_STANDARD) {
+            if (aes != null || record.method == ZipFormat.METHOD_AES) return false;
+        } else
+        {
+            return false;
+        }
+
+        return reader.isEncryptedWith(record, password);
+    }
+
+    /**
+     * Equivalent with {@link #extractTo(File, char[], Path, boolean)}, with the password configured through {@link
+     * #setInputFilePasswordChars(char[])} resp. the system property {@value #SYSTEM_PROPERTY_INPUT_FILE_PASSWORD},
+     * and with CRC verification.
+     */
+    public static void
+    extractTo(File archiveFile, Path directory) throws IOException {
+        ZipArchiveFormat.extractTo(archiveFile, ZipArchiveFormat.getInputPassword(), directory, true);
+    }
+
+    /**
+     * Extracts all entries of the <var>archiveFile</var> into the <var>directory</var>, creating subdirectories as
+     * necessary.
+     * <p>
+     *   The data of STORED, unencrypted entries is not copied through the heap, but transferred from the archive file
+     *   to the target file by the kernel where possible. Their CRCs are verified in a separate pass iff
+     *   <var>verifyCrc</var>; the data of all other entries is always verified.
+     * </p>
+     *
+     * @throws ZipException An entry's name refers to a location outside the <var>directory</var>
+     */
+    public static void
+    extractTo(File archiveFile, @Nullable char[] password, Path directory, boolean verifyCrc) throws IOException {
+
+        try (FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ)) {
+            ZipReader zr = new ZipReader(RandomAccessInput.of(fc), archiveFile);
+            for (ZipEntryRecord r : zr.records()) {
+                zr.extractTo(r, ZipArchiveFormat.resolve(directory, r.getName()), password, verifyCrc);
             }
+        }
+    }
 
-            @Override public void
-            close() throws IOException {
-                zipFile.close();
-                super.close();
+    /**
+     * Extracts one entry of the <var>archiveFile</var> to the <var>file</var>, like {@link #extractTo(File, char[],
+     * Path, boolean)}.
+     *
+     * @throws FileNotFoundException The <var>archiveFile</var> has no entry with the given name
+     */
+    public static void
+    extractTo(File archiveFile, @Nullable char[] password, String entryName, Path file, boolean verifyCrc)
+    throws IOException {
+
+        try (FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ)) {
+            ZipReader      zr = new ZipReader(RandomAccessInput.of(fc), archiveFile);
+            ZipEntryRecord r  = zr.getRecord(entryName);
+            if (r == null) throw new FileNotFoundException(archiveFile + "!" + entryName);
+
+            zr.extractTo(r, file, password, verifyCrc);
+        }
+    }
+
+    /**
+     * Reads the central directory of the <var>archiveFile</var> (once), and distributes its entries over <var>n</var>
+     * partitions with balanced compressed sizes, e.g. for processing one giant archive with a fleet of worker
+     * processes. The partitions are {@link java.io.Serializable}; each worker reads its partition with {@link
+     * #openPartition(File, ArchivePartition, char[])}.
+     *
+     * @return Exactly <var>n</var> partitions (some of which may be empty iff the archive has less than <var>n</var>
+     *         entries)
+     */
+    public static List<ArchivePartition>
+    partition(File archiveFile, int n) throws IOException {
+
+        try (FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ)) {
+            return ArchivePartition.of(fc.size(), new ZipReader(RandomAccessInput.of(fc)).records(), n);
+        }
+    }
+
+    /**
+     * Reads the entries of one <var>partition</var> of the <var>archiveFile</var> (see {@link #partition(File, int)}),
+     * in the order of their positions in the archive. Only the local file headers and the data of these entries are
+     * read (through positional reads); the central directory is not read at all.
+     * <p>
+     *   The returned entries lack the information that only the central directory has (comments, file attributes).
+     * </p>
+     *
+     * @throws ZipException The <var>partition</var> was not computed for this <var>archiveFile</var>
+     */
+    public static ArchiveInputStream
+    openPartition(File archiveFile, ArchivePartition partition, @Nullable char[] password) throws IOException {
+
+        long             openStart = System.nanoTime();
+        @Nullable Object openEvent = ArchiveMonitor.beforeOpen();
+
+        FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+        try {
+            RandomAccessInput input = RandomAccessInput.of(fc);
+            ZipReader         zr    = new ZipReader(input, partition.records(input));
+
+            return ZipArchiveFormat.zipReaderArchiveInputStream(
+                zr,
+                fc,
+                password,
+                archiveFile.getPath(),
+                false,
+                openStart,
+                openEvent
+            );
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens one entry of the <var>archiveFile</var> for reading. The data of unencrypted STORED entries is read
+     * directly into the caller's buffers, and that of unencrypted DEFLATED entries is inflated directly into them (as
+     * of Java 11); thus, iff the caller uses direct buffers, the data does not pass through the heap. When the end of
+     * the channel is reached, then the entry's size and CRC have been verified.
+     * <p>
+     *   Closing the returned channel closes the archive file.
+     * </p>
+     *
+     * @throws FileNotFoundException The <var>archiveFile</var> has no entry with the given name
+     */
+    public static ReadableByteChannel
+    openChannel(File archiveFile, @Nullable char[] password, String entryName) throws IOException {
+
+        FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+        try {
+            ZipReader      zr = new ZipReader(RandomAccessInput.of(fc));
+            ZipEntryRecord r  = zr.getRecord(entryName);
+            if (r == null) throw new FileNotFoundException(archiveFile + "!" + entryName);
+
+            ReadableByteChannel delegate = zr.getChannel(r, password);
+            return new ReadableByteChannel() {
+
+                @Override public int
+                read(ByteBuffer dst) throws IOException { return delegate.read(dst); }
+
+                @Override public boolean
+                isOpen() { return delegate.isOpen(); }
+
+                @Override public void
+                close() throws IOException {
+                    try {
+                        delegate.close();
+                    } finally {
+                        fc.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens one unencrypted STORED or DEFLATED entry of the <var>archiveFile</var> for reading at arbitrary positions,
+     * e.g. to serve HTTP range requests. For STORED entries, reading at a position is a positional read of the archive
+     * file. For DEFLATED entries, the channel inflates from the closest preceding "access point" of a "zran"-style
+     * index of the DEFLATE stream, which is built lazily while the entry is being read, and is shared with all other
+     * seekable channels of the same entry in the same JVM (and, iff an <var>indexFile</var> is given, across JVMs).
+     * Thus a random read costs the inflation of at most one {@link #setSeekIndexInterval(int) index interval}.
+     * <p>
+     *   Inflation can only start afresh where the DEFLATE stream is byte-aligned, i.e. after a "sync flush" or a "full
+     *   flush" (as produced by {@link #setParallelDeflateThreads(int) parallel deflation}, by {@link
+     *   #setOutputEntryIndexInterval(int) full flush points}, and by tools like "pigz"). For DEFLATE streams without
+     *   flushes, a random read costs the inflation from the start of the entry (but reading forward continues the
+     *   inflation).
+     * </p>
+     * <p>
+     *   The CRC of the entry is <em>not</em> verified. Closing the returned channel closes the archive file.
+     * </p>
+     *
+     * @param indexFile                 Where the index is read from (iff it exists and matches the entry) and
+     *                                  persisted to (when the channel is closed), or {@code null}
+     * @throws FileNotFoundException    The <var>archiveFile</var> has no entry with the given name
+     * @throws ZipException             The entry is encrypted, or neither STORED nor DEFLATED
+     */
+    public static SeekableByteChannel
+    openSeekableChannel(File archiveFile, String entryName, @Nullable File indexFile) throws IOException {
+
+        FileChannel fc = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+        try {
+            ZipReader      zr = new ZipReader(RandomAccessInput.of(fc));
+            ZipEntryRecord r  = zr.getRecord(entryName);
+            if (r == null) throw new FileNotFoundException(archiveFile + "!" + entryName);
+
+            if (r.isEncrypted()) throw new ZipException("Entry \"" + r + "\": Encrypted entries are not seekable");
+
+            long                dataOffset = zr.dataOffset(r);
+            @Nullable SeekIndex index;
+            if (r.method == ZipFormat.METHOD_STORED) {
+                if (r.compressedSize != r.size) {
+                    throw new ZipException("Entry \"" + r + "\": Compressed size differs from size");
+                }
+                index = null;
+            } else
+            if (r.method == ZipFormat.METHOD_DEFLATED) {
+                index = SeekIndex.forEntry(
+                    archiveFile,
+                    r,
+                    dataOffset,
+                    indexFile,
+                    ZipArchiveFormat.getSeekIndexInterval()
+                );
+            } else
+            {
+                throw new ZipException("Entry \"" + r + "\": Compression method " + r.method + " is not seekable");
             }
 
-            @Override public ArchiveFormat
-            getArchiveFormat() { return ZipArchiveFormat.get(); }
-        };
+            return new SeekableEntryChannel(RandomAccessInput.of(fc), r, dataOffset, index, indexFile, fc);
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Guards against entry names like "../foo" ("zip slip").
+     */
+    private static Path
+    resolve(Path directory, String entryName) throws ZipException {
+
+        Path base   = directory.toAbsolutePath().normalize();
+        Path result = base.resolve(entryName).normalize();
+        if (!result.startsWith(base)) {
+            throw new ZipException("Entry \"" + entryName + "\" is outside the target directory");
+        }
+
+        return result;
     }
 
     private static ZipArchiveEntry
@@ -665,6 +1602,32 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
         return result;
     }
 
+    private static ZipArchiveEntry
+    zipArchiveEntry(ZipEntryRecord r) {
+
+        // For consistency with the entries that zip4j reads.
+        long size = r.size == 0 ? ArchiveEntry.SIZE_UNKNOWN : r.size;
+
+        ZipArchiveEntry result = ZipArchiveFormat.zipArchiveEntry(
+            r.getName(),                                   // entryName
+            size,                                          // size
+            r.isDirectory(),                               // isDirectory
+            new Date(ZipFormat.dosToJavaTime(r.dosTime))   // lastModifiedTime
+        );
+
+        int method = r.method;
+        if (method == ZipFormat.METHOD_AES) {
+            ByteBuffer aes = r.getAesExtraField();
+            if (aes != null && aes.remaining() >= 7) method = aes.getShort(5) & 0xffff;
+        }
+        result.method = (
+            method == ZipFormat.METHOD_STORED   ? "STORED" :
+            method == ZipFormat.METHOD_DEFLATED ? "DEFLATED" :
+            null
+        );
+        return result;
+    }
+
     private static ZipArchiveEntry
     zipArchiveEntry(String entryName, long size, boolean isDirectory, Date lastModifiedDate) {
         assert entryName        != null;
@@ -679,8 +1642,465 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
         };
     }
 
-    private static abstract
-    class ZipArchiveOutputStream extends ArchiveOutputStream2 {}
+    /**
+     * The {@link ArchiveOutputStream} that both {@link #archiveOutputStream(OutputStream, char[])} and {@link
+     * #create(File)} return.
+     */
+    private static
+    class ZipArchiveOutputStream extends ArchiveOutputStream2 {
+
+        private final ZipWriter          zipWriter;
+        @Nullable private final char[]   password;
+
+        /**
+         * Where the data of the current entry goes, or {@code null} if there is no current entry, or the current entry
+         * is a directory.
+         */
+        @Nullable private OutputStream entryOutputStream;
+
+        /**
+         * Non-{@code null} iff the current entry's data is being buffered for the compression cache.
+         */
+        @Nullable private SpillingOutputStream buffer;
+        @Nullable private ZipEntryRecord       bufferedRecord;
+        private int                            bufferedLevel;
+
+        /**
+         * Non-{@code null} iff the current entry's level was chosen adaptively; then its processing time is measured.
+         */
+        @Nullable private AdaptiveCompressionLevel adaptiveCompressionLevel;
+        @Nullable private CompressionLevel         adaptiveLevel;
+        private long                               adaptiveSize, adaptiveNanos;
+
+        /**
+         * Non-{@code null} iff monitoring is enabled.
+         */
+        @Nullable private final ArchiveMonitor monitor;
+        private long                           entryPosition;
+
+        ZipArchiveOutputStream(ZipWriter zipWriter, String archiveName, @Nullable char[] password) {
+            this.zipWriter = zipWriter;
+            this.password  = password;
+            this.monitor   = ArchiveMonitor.writer(archiveName);
+        }
+
+        @Override @NotNullByDefault(false) public void
+        putArchiveEntry(ArchiveEntry entry) throws IOException {
+
+            AdaptiveCompressionLevel acl = ZipArchiveFormat.getAdaptiveCompressionLevel();
+            if (acl == null) {
+                this.putArchiveEntry(
+                    entry,
+                    ZipArchiveFormat.getOutputEntryCompressionLevel(),
+                    ZipArchiveFormat.getOutputEntryEncrypt(),
+                    ZipArchiveFormat.getOutputEntryEncryptionMethod()
+                );
+                return;
+            }
+
+            CompressionLevel level = acl.nextLevel();
+            this.putArchiveEntry(
+                entry,
+                level,
+                ZipArchiveFormat.getOutputEntryEncrypt(),
+                ZipArchiveFormat.getOutputEntryEncryptionMethod()
+            );
+
+            this.adaptiveCompressionLevel = acl;
+            this.adaptiveLevel            = level;
+            this.adaptiveSize             = 0;
+            this.adaptiveNanos            = 0;
+        }
+
+        public void
+        putArchiveEntry(
+            ArchiveEntry               entry,
+            @Nullable CompressionLevel compressionLevel,
+            boolean                    encrypt,
+            @Nullable EncryptionMethod encryptionMethod
+        ) throws IOException {
+
+            this.closeArchiveEntry();
+
+            String name         = entry.getName();
+            long   lastModified = entry.getLastModifiedDate().getTime();
+
+            ArchiveMonitor m = this.monitor;
+            if (m != null) {
+                m.putEntry(name);
+                this.entryPosition = this.zipWriter.position();
+            }
+
+            // Directory entries have no data, thus are never compressed nor encrypted.
+            if (name.endsWith("/")) {
+                ZipEntryRecord zer = new ZipEntryRecord(name, ZipFormat.javaToDosTime(lastModified));
+                zer.method             = ZipFormat.METHOD_STORED;
+                zer.externalAttributes = ZipFormat.EXTERNAL_ATTRIBUTES_DIRECTORY;
+                this.zipWriter.putRawEntry(zer, new byte[0], 0, 0);
+                return;
+            }
+
+            // AES-encrypted entries are written with the JCA.
+            if (encrypt && encryptionMethod == EncryptionMethod.AES && ZipArchiveFormat.getJcaAes()) {
+                char[] password = this.password;
+                if (password == null) throw new ZipException("Password required");
+
+                ZipEntryRecord zer   = new ZipEntryRecord(name, ZipFormat.javaToDosTime(lastModified));
+                int            level = (compressionLevel != null ? compressionLevel : CompressionLevel.NORMAL).getLevel();
+
+                this.entryOutputStream = this.zipWriter.putAesEntry(zer, level, password, entry.getSize());
+                return;
+            }
+
+            // Other encrypted entries are written by zip4j.
+            if (encrypt) {
+                ZipParameters zipParameters = new ZipParameters();
+
+                // Entry name, size and time stamp.
+                zipParameters.setFileNameInZip(name);
+                zipParameters.setEntrySize(entry.getSize());
+                zipParameters.setLastModifiedFileTime(lastModified);
+
+                // Entry compression level.
+                if (compressionLevel != null) zipParameters.setCompressionLevel(compressionLevel); // Default is NORMAL.
+
+                // Entry encryption.
+                zipParameters.setEncryptFiles(true);
+
+                // Entry encryption method.
+                if (encryptionMethod != null) zipParameters.setEncryptionMethod(encryptionMethod); // Default is NONE.
+
+                this.entryOutputStream = this.zipWriter.putZip4jEntry(zipParameters, this.password);
+                return;
+            }
+
+            ZipEntryRecord zer   = new ZipEntryRecord(name, ZipFormat.javaToDosTime(lastModified));
+            int            level = (compressionLevel != null ? compressionLevel : CompressionLevel.NORMAL).getLevel();
+
+            // With a compression cache, the entry data must be complete before we can check whether it is cached.
+            // Entries that are too large for the cache are not buffered (as far as their size is known), or only
+            // until they exceed that size.
+            CompressionCache cc = ZipArchiveFormat.getCompressionCache();
+            if (cc != null) {
+                long sizeHint = entry.getSize();
+                long maxSize  = Math.min(cc.getMaxSize(), CompressionCache.MAX_CACHEABLE_SIZE);
+                if (sizeHint <= maxSize) {
+                    SpillingOutputStream sos = (this.buffer = new SpillingOutputStream());
+                    this.bufferedRecord = zer;
+                    this.bufferedLevel  = level;
+
+                    this.entryOutputStream = new OutputStream() {
+
+                        @Nullable private OutputStream unbuffered;
+
+                        @Override public void
+                        write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+                        @Override @NotNullByDefault(false) public void
+                        write(byte[] b, int off, int len) throws IOException {
+
+                            OutputStream os = this.unbuffered;
+                            if (os == null) {
+                                if (sos.size() + len <= maxSize) {
+                                    sos.write(b, off, len);
+                                    return;
+                                }
+                                os = (this.unbuffered = ZipArchiveOutputStream.this.unbuffer(sizeHint));
+                            }
+
+                            os.write(b, off, len);
+                        }
+                    };
+                    return;
+                }
+            }
+
+            this.entryOutputStream = this.zipWriter.putDeflatedEntry(zer, level, entry.getSize());
+        }
+
+        /**
+         * Stops buffering the current entry for the compression cache: Starts a DEFLATED entry, and writes the data
+         * that was buffered so far to it.
+         *
+         * @return Where the rest of the entry data must be written to
+         */
+        private OutputStream
+        unbuffer(long sizeHint) throws IOException {
+
+            SpillingOutputStream sos = this.buffer;
+            ZipEntryRecord       zer = this.bufferedRecord;
+            assert sos != null;
+            assert zer != null;
+
+            this.buffer         = null;
+            this.bufferedRecord = null;
+
+            try {
+                OutputStream os = this.zipWriter.putDeflatedEntry(zer, this.bufferedLevel, sizeHint);
+                try (InputStream is = sos.getInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    for (int n; (n = is.read(buffer)) != -1;) os.write(buffer, 0, n);
+                }
+                return os;
+            } finally {
+                sos.close();
+            }
+        }
+
+        @Override public void
+        closeArchiveEntry() throws IOException {
+
+            ArchiveMonitor m = this.monitor;
+            if (m == null) {
+                this.closeAdaptiveArchiveEntry();
+                return;
+            }
+
+            long start = System.nanoTime();
+            this.closeAdaptiveArchiveEntry();
+            m.closeEntry(start, this.zipWriter.position() - this.entryPosition);
+        }
+
+        private void
+        closeAdaptiveArchiveEntry() throws IOException {
+
+            AdaptiveCompressionLevel acl = this.adaptiveCompressionLevel;
+            if (acl != null) {
+                this.adaptiveCompressionLevel = null;
+
+                long start = System.nanoTime();
+                this.closeArchiveEntry2();
+                this.adaptiveNanos += System.nanoTime() - start;
+
+                CompressionLevel level = this.adaptiveLevel;
+                assert level != null;
+                acl.update(level, this.adaptiveSize, this.adaptiveNanos);
+                return;
+            }
+
+            this.closeArchiveEntry2();
+        }
+
+        private void
+        closeArchiveEntry2() throws IOException {
+
+            this.entryOutputStream = null;
+
+            SpillingOutputStream sos = this.buffer;
+            if (sos != null && !sos.isSpilled()) {
+                ZipEntryRecord zer = this.bufferedRecord;
+                assert zer != null;
+
+                this.buffer         = null;
+                this.bufferedRecord = null;
+
+                try {
+                    this.putCachedEntry(zer, sos.array(), (int) sos.size(), this.bufferedLevel);
+                } finally {
+                    sos.close();
+                }
+                return;
+            }
+
+            // The entry is too large for the memory budget; compress it without the compression cache.
+            if (sos != null) this.unbuffer(sos.size());
+
+            this.zipWriter.closeEntry();
+        }
+
+        /**
+         * Writes an entry with the given data, re-using its compressed data from the compression cache iff possible.
+         *
+         * @param length The number of valid bytes in <var>data</var>
+         */
+        private void
+        putCachedEntry(ZipEntryRecord zer, byte[] data, int length, int level) throws IOException {
+
+            CompressionCache cc = ZipArchiveFormat.getCompressionCache();
+            if (cc == null || length < CompressionCache.MIN_CACHEABLE_SIZE) {
+                OutputStream os = this.zipWriter.putDeflatedEntry(zer, level, length);
+                os.write(data, 0, length);
+                this.zipWriter.closeEntry();
+                return;
+            }
+
+            byte[]                contentHash = CompressionCache.contentHash(data, 0, length);
+            CompressionCache.Item item        = cc.get(contentHash, length, ZipFormat.METHOD_DEFLATED, level);
+            if (item == null) {
+                CRC32 crc = new CRC32();
+                crc.update(data, 0, length);
+
+                item = new CompressionCache.Item(crc.getValue(), length, ZipWriter.deflate(data, 0, length, level));
+                cc.put(contentHash, ZipFormat.METHOD_DEFLATED, level, item.crc, item.size, item.compressedData);
+            }
+
+            zer.method         = ZipFormat.METHOD_DEFLATED;
+            zer.flags         |= ZipFormat.deflateOptionFlags(level);
+            zer.crc            = item.crc;
+            zer.size           = item.size;
+            zer.compressedSize = item.compressedData.length;
+            this.zipWriter.putRawEntry(zer, item.compressedData, 0, item.compressedData.length);
+        }
+
+        /**
+         * Writes an entry that was read by the <var>reader</var>, with its (compressed and possibly encrypted) data
+         * as it is.
+         *
+         * @see ZipArchiveFormat#sync(Path, File, boolean)
+         */
+        void
+        copyRawEntry(ZipReader reader, ZipEntryRecord record) throws IOException {
+
+            this.closeArchiveEntry();
+
+            ArchiveMonitor m = this.monitor;
+            if (m != null) {
+                m.putEntry(record.getName());
+                this.entryPosition = this.zipWriter.position();
+            }
+
+            this.zipWriter.putRawEntry(record, reader.input(), reader.dataOffset(record));
+            this.count(record.size);
+            if (m != null) m.bytesWritten(record.size);
+        }
+
+        /**
+         * @see ZipArchiveFormat#addFile(ArchiveOutputStream, Path, String)
+         */
+        void
+        addFile(Path file, String entryName) throws IOException {
+
+            if (Files.isDirectory(file)) {
+                this.putArchiveEntry(this.createArchiveEntry(file.toFile(), entryName));
+                this.closeArchiveEntry();
+                return;
+            }
+
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+
+                long size         = fc.size();
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+                if (
+                    ZipArchiveFormat.getOutputEntryCompressionLevel() == CompressionLevel.NO_COMPRESSION
+                    && ZipArchiveFormat.getAdaptiveCompressionLevel() == null
+                    && !ZipArchiveFormat.getOutputEntryEncrypt()
+                    && ZipArchiveFormat.getCompressionCache() == null
+                ) {
+                    this.closeArchiveEntry();
+
+                    ArchiveMonitor m = this.monitor;
+                    if (m != null) {
+                        m.putEntry(entryName);
+                        this.entryPosition = this.zipWriter.position();
+                    }
+
+                    this.zipWriter.putStoredEntry(
+                        new ZipEntryRecord(entryName, ZipFormat.javaToDosTime(lastModified)),
+                        fc
+                    );
+                    this.count(size);
+                    if (m != null) m.bytesWritten(size);
+                } else {
+                    this.putArchiveEntry(ZipArchiveFormat.zipArchiveEntry(entryName, size, false, new Date(lastModified)));
+
+                    OutputStream os = this.entryOutputStream;
+                    assert os != null;
+
+                    long start = System.nanoTime();
+                    ZipWriter.write(os, fc, size);
+                    if (this.adaptiveCompressionLevel != null) {
+                        this.adaptiveNanos += System.nanoTime() - start;
+                        this.adaptiveSize  += size;
+                    }
+                    this.count(size);
+
+                    ArchiveMonitor m = this.monitor;
+                    if (m != null) m.bytesWritten(size);
+                }
+            }
+
+            this.closeArchiveEntry();
+        }
+
+        /**
+         * @see ZipArchiveFormat#writeEntry(ArchiveOutputStream, String, Date, ReadableByteChannel)
+         */
+        void
+        addEntry(String entryName, Date lastModifiedDate, ReadableByteChannel source) throws IOException {
+
+            this.putArchiveEntry(ZipArchiveFormat.zipArchiveEntry(entryName, -1, false, lastModifiedDate));
+
+            OutputStream os = this.entryOutputStream;
+            assert os != null;
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+            long       size   = 0;
+            long       start  = System.nanoTime();
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                size += buffer.remaining();
+                ZipWriter.write(os, buffer);
+                buffer.clear();
+            }
+            if (this.adaptiveCompressionLevel != null) {
+                this.adaptiveNanos += System.nanoTime() - start;
+                this.adaptiveSize  += size;
+            }
+            this.count(size);
+
+            ArchiveMonitor m = this.monitor;
+            if (m != null) m.bytesWritten(size);
+
+            this.closeArchiveEntry();
+        }
+
+        @Override public void
+        finish() throws IOException {
+            this.closeArchiveEntry();
+            this.zipWriter.finish();
+        }
+
+        @Override @NotNullByDefault(false) public ArchiveEntry
+        createArchiveEntry(File inputFile, String entryName) throws IOException {
+            return ZipArchiveFormat.zipArchiveEntry(entryName, inputFile.length(), inputFile.isDirectory(), new Date(inputFile.lastModified()));
+        }
+
+        @Override @NotNullByDefault(false) public void
+        write(byte[] b, int off, int len) throws IOException {
+
+            OutputStream os = this.entryOutputStream;
+            if (os == null) throw new IllegalStateException("No current entry, or entry is a directory");
+
+            if (this.adaptiveCompressionLevel != null) {
+                long start = System.nanoTime();
+                os.write(b, off, len);
+                this.adaptiveNanos += System.nanoTime() - start;
+                this.adaptiveSize  += len;
+            } else {
+                os.write(b, off, len);
+            }
+            this.count(len);
+
+            ArchiveMonitor m = this.monitor;
+            if (m != null) m.bytesWritten(len);
+        }
+
+        @Override public void
+        close() throws IOException {
+            try {
+                this.closeArchiveEntry();
+            } finally {
+                this.zipWriter.close();
+                ArchiveMonitor m = this.monitor;
+                if (m != null) m.close();
+            }
+            super.close();
+        }
+
+        @Override public ArchiveFormat
+        getArchiveFormat() { return ZipArchiveFormat.get(); }
+    }
 
     private static abstract
     class ZipArchiveInputStream extends ArchiveInputStream {}
@@ -722,6 +2142,396 @@ class ZipArchiveFormat extends AbstractArchiveFormat {
     public static void
     setOutputEntryEncryptionMethod(EncryptionMethod value) { ZipArchiveFormat.outputEntryEncryptionMethod = value; }
 
+    /**
+     * Configures the compression cache for all zip output entries that will be created afterwards, or, iff
+     * <var>value</var> is {@code null}, disables compression caching. Overrides the system property {@value
+     * #SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY}.
+     * <p>
+     *   Entries that are larger than the cache's {@link CompressionCache#getMaxSize() maximum size} (or larger than
+     *   64 MB) are not cached, and are buffered only until they exceed that size.
+     * </p>
+     */
+    public static void
+    setCompressionCache(@Nullable CompressionCache value) {
+        ZipArchiveFormat.compressionCache    = value;
+        ZipArchiveFormat.compressionCacheSet = true;
+    }
+
+    /**
+     * @return The compression cache configured through {@link #setCompressionCache(CompressionCache)} or through the
+     *         system property {@value #SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY}, or {@code null}
+     */
+    @Nullable public static synchronized CompressionCache
+    getCompressionCache() {
+
+        if (ZipArchiveFormat.compressionCacheSet) return ZipArchiveFormat.compressionCache;
+
+        String directory = System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_COMPRESSION_CACHE_DIRECTORY);
+        if (directory == null) return null;
+
+        CompressionCache result = ZipArchiveFormat.systemPropertyCompressionCache;
+        if (result == null || !result.getDirectory().equals(new File(directory))) {
+            String maxSize = System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_COMPRESSION_CACHE_MAX_SIZE);
+            try {
+                result = new CompressionCache(new File(directory), maxSize == null ? 1L << 30 : Long.parseLong(maxSize));
+            } catch (IOException ioe) {
+                throw new IllegalArgumentException(directory, ioe);
+            }
+            ZipArchiveFormat.systemPropertyCompressionCache = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Configures the adaptive compression level for all zip output entries that will be created afterwards, or, iff
+     * <var>value</var> is {@code null}, disables it. Overrides the system property {@value
+     * #SYSTEM_PROPERTY_OUTPUT_ENTRY_TARGET_THROUGHPUT}.
+     */
+    public static void
+    setAdaptiveCompressionLevel(@Nullable AdaptiveCompressionLevel value) {
+        ZipArchiveFormat.adaptiveCompressionLevel    = value;
+        ZipArchiveFormat.adaptiveCompressionLevelSet = true;
+    }
+
+    /**
+     * @return The adaptive compression level configured through {@link
+     *         #setAdaptiveCompressionLevel(AdaptiveCompressionLevel)} or through the system property {@value
+     *         #SYSTEM_PROPERTY_OUTPUT_ENTRY_TARGET_THROUGHPUT}, or {@code null}
+     */
+    @Nullable public static synchronized AdaptiveCompressionLevel
+    getAdaptiveCompressionLevel() {
+
+        if (ZipArchiveFormat.adaptiveCompressionLevelSet) return ZipArchiveFormat.adaptiveCompressionLevel;
+
+        String targetThroughput = System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_TARGET_THROUGHPUT);
+        if (targetThroughput == null) return null;
+
+        double targetBytesPerSecond = 1E6 * Double.parseDouble(targetThroughput);
+
+        AdaptiveCompressionLevel result = ZipArchiveFormat.systemPropertyAdaptiveCompressionLevel;
+        if (result == null || result.getTargetBytesPerSecond() != targetBytesPerSecond) {
+            result = (
+                ZipArchiveFormat.systemPropertyAdaptiveCompressionLevel
+                = new AdaptiveCompressionLevel(targetBytesPerSecond)
+            );
+        }
+
+        return result;
+    }
+
+    /**
+     * Configures read-ahead for all {@link #archiveInputStream(InputStream) streaming readers} that will be created
+     * afterwards. Overrides the system property {@value #SYSTEM_PROPERTY_INPUT_READ_AHEAD_BUFFERS}.
+     *
+     * @param value The number of 64 kB buffers, or 0 to disable read-ahead
+     */
+    public static void
+    setInputReadAheadBuffers(int value) { ZipArchiveFormat.inputReadAheadBuffers = value; }
+
+    /**
+     * Configures write-behind for all {@link #archiveOutputStream(OutputStream) streaming writers} that will be created
+     * afterwards. Overrides the system property {@value #SYSTEM_PROPERTY_OUTPUT_WRITE_BEHIND_BUFFERS}.
+     *
+     * @param value The number of 64 kB buffers, or 0 to disable write-behind
+     */
+    public static void
+    setOutputWriteBehindBuffers(int value) { ZipArchiveFormat.outputWriteBehindBuffers = value; }
+
+    /**
+     * Enables or disables the collection of {@link ZipArchiveStatistics} and the emission of JFR events for all
+     * readers and writers that will be created afterwards. Overrides the system property {@value
+     * #SYSTEM_PROPERTY_MONITORING}.
+     * <p>
+     *   Enabling registers the statistics MBean under the name {@value ZipArchiveStatistics#OBJECT_NAME}.
+     * </p>
+     */
+    public static void
+    setMonitoringEnabled(boolean value) { ArchiveMonitor.setEnabled(value); }
+
+    public static boolean
+    isMonitoringEnabled() { return ArchiveMonitor.enabled; }
+
+    /**
+     * Counts zip4j's "wrong password" exceptions, and fixes up their misleading message for "missing password".
+     *
+     * @throws ZipException The <var>ze</var> indicates a missing <var>password</var>
+     */
+    static void
+    checkPasswordFailure(ZipException ze, @Nullable char[] password) throws ZipException {
+
+        if (!ze.getMessage().toLowerCase().contains("wrong password")) return;
+
+        ArchiveMonitor.passwordFailure();
+        if (password == null) throw new ZipException("Password required", ze);
+    }
+
+    /**
+     * Configures whether AES-encrypted entries are encrypted and decrypted by the JCA (the default) or by zip4j's AES
+     * engine. Overrides the system property {@value #SYSTEM_PROPERTY_JCA_AES}.
+     */
+    public static void
+    setJcaAes(boolean value) { ZipArchiveFormat.jcaAes = value; }
+
+    /**
+     * Configures whether the central directory of all archives that will be created afterwards is sorted by entry
+     * name (byte by byte, in UTF-8), and marked as sorted by an extra field on its first record. Overrides the system
+     * property {@value #SYSTEM_PROPERTY_SORTED_CENTRAL_DIRECTORY}.
+     * <p>
+     *   For such archives, {@link #openChannel(File, char[], String)}, {@link #openSeekableChannel(File, String,
+     *   File)}, {@link #extractTo(File, char[], String, Path, boolean)}, the {@link Handler "zip:" URL handler} and
+     *   the like look up entries by binary search in the central directory, reading only a few kilobytes of it. (The
+     *   full central directory is still read when the entries are iterated, e.g. by {@link #open(File)}.) This is
+     *   useful for write-once, read-many archives with many entries. Other tools ignore the order and the extra
+     *   field.
+     * </p>
+     * <p>
+     *   Iff any entry name is neither ASCII nor UTF-8 (e.g. when copied raw from an old archive), then the central
+     *   directory is written in entry order.
+     * </p>
+     */
+    public static void
+    setOutputSortedCentralDirectory(boolean value) { ZipArchiveFormat.outputSortedCentralDirectory = value; }
+
+    static boolean
+    getOutputSortedCentralDirectory() {
+
+        Boolean result = ZipArchiveFormat.outputSortedCentralDirectory;
+        if (result != null) return result;
+
+        return Boolean.getBoolean(ZipArchiveFormat.SYSTEM_PROPERTY_SORTED_CENTRAL_DIRECTORY);
+    }
+
+    /**
+     * Limits the memory that all readers and writers together use for their buffers. Overrides the system property
+     * {@value #SYSTEM_PROPERTY_MEMORY_BUDGET}.
+     * <p>
+     *   While the budget is exhausted, the creation of archive files, and of {@link #setInputReadAheadBuffers(int)
+     *   read-ahead} and {@link #setOutputWriteBehindBuffers(int) write-behind} streams, first evicts the in-memory
+     *   nested archives and the cached entry contents of {@code zip:} URLs, and then blocks until other streams are
+     *   closed. Entry data that would be buffered in memory (for
+     *   the {@link #setCompressionCache(CompressionCache) compression cache}, the {@link #transcode(File, File,
+     *   Executor) transcoder} and the nested archives of {@code zip:} URLs) is instead spilled into temporary files,
+     *   or processed without buffering.
+     * </p>
+     * <p>
+     *   Notice that the budget does not cover zip4j's internal buffers, nor the (small) fixed-size buffers of the
+     *   individual entry streams.
+     * </p>
+     *
+     * @param value The number of bytes, or 0 for "unlimited"
+     */
+    public static void
+    setMemoryBudget(long value) { MemoryBudget.setLimit(value); }
+
+    /**
+     * Configures the minimum time between two checkpoints of all {@link #createResumable(File, Collection) resumable}
+     * archives that will be created afterwards. Overrides the system property {@value
+     * #SYSTEM_PROPERTY_CHECKPOINT_INTERVAL}.
+     * <p>
+     *   Each checkpoint forces the archive data to the storage device, and rewrites the checkpoint file, whose size is
+     *   roughly that of the central directory.
+     * </p>
+     *
+     * @param millis 0 means "after each entry"
+     */
+    public static void
+    setCheckpointInterval(long millis) { ZipArchiveFormat.checkpointInterval = millis; }
+
+    /**
+     * Configures "full flush points" for all DEFLATED, unencrypted output entries that will be created afterwards.
+     * Overrides the system property {@value #SYSTEM_PROPERTY_OUTPUT_ENTRY_INDEX_INTERVAL}.
+     * <p>
+     *   At each full flush point, the deflater completes the current block and resets its dictionary, which costs a
+     *   little compression, but allows inflation to start at that point. The points are listed in a "block index"
+     *   extra field (ID 0x6962) of the entry's central directory record, which the reader uses to inflate the
+     *   segments between the points in parallel (see {@link #setParallelInflateThreads(int)}). Other tools ignore
+     *   both the points and the extra field.
+     * </p>
+     *
+     * @param bytes The number of uncompressed bytes between two points (e.g. 16 MB), or 0 to disable full flush
+     *              points
+     */
+    public static void
+    setOutputEntryIndexInterval(int bytes) {
+        if (bytes < 0) throw new IllegalArgumentException(Integer.toString(bytes));
+        ZipArchiveFormat.outputEntryIndexInterval = bytes;
+    }
+
+    /**
+     * Configures parallel inflation for all entries that are read afterwards through {@link #open(File)}, {@link
+     * #extractTo(File, Path)} and the like. An entry is cut into segments at its "access points", which are
+     * inflated by a dedicated pool of <var>threads</var> daemon threads; the data and the CRC check are exactly the
+     * same as with sequential inflation. Overrides the system property {@value
+     * #SYSTEM_PROPERTY_PARALLEL_INFLATE_THREADS}.
+     * <p>
+     *   The access points are the full flush points of the entry's "block index" (see {@link
+     *   #setOutputEntryIndexInterval(int)}), or the points of the index that {@link #openSeekableChannel(File, String,
+     *   File)} uses (which is shared within the JVM). An entry without a block index is, when it is read for the first
+     *   time, inflated sequentially, and its access points are added to that index; thus the next read of the entry
+     *   is parallel (iff the DEFLATE stream has flushes, see {@link #setSeekIndexInterval(int)}).
+     * </p>
+     * <p>
+     *   Up to <var>threads</var> + 1 inflated segments are held in memory per entry; they are accounted against the
+     *   {@link #setMemoryBudget(long) memory budget}, and iff that is exhausted, the entry is inflated sequentially.
+     * </p>
+     *
+     * @param threads The number of inflater threads, which are shared by all entries; 0 or 1 disables parallel
+     *                inflation
+     */
+    public static void
+    setParallelInflateThreads(int threads) { ZipArchiveFormat.parallelInflateThreads = threads; }
+
+    /**
+     * Configures parallel deflation for all DEFLATED output entries that will be created afterwards through {@link
+     * #archiveOutputStream(OutputStream)}, {@link #create(File)} and the like. The entry data is cut into chunks of
+     * 128 kB, which are deflated by a dedicated pool of <var>threads</var> daemon threads, each with the end of the
+     * preceding chunk as the preset dictionary. The result is one ordinary DEFLATE stream that any tool can inflate;
+     * it is only slightly larger than with sequential deflation. Overrides the system property {@value
+     * #SYSTEM_PROPERTY_PARALLEL_DEFLATE_THREADS}.
+     * <p>
+     *   Each entry recycles <var>threads</var> + 1 input chunks and output buffers, which are charged to the {@link
+     *   #setMemoryBudget(long) memory budget} until the entry is closed or fails.
+     * </p>
+     * <p>
+     *   Iff {@link #setOutputEntryIndexInterval(int) full flush points} are configured, too, then they are placed at
+     *   the next chunk boundary.
+     * </p>
+     *
+     * @param threads The number of deflater threads, which are shared by all output entries; 0 or 1 disables
+     *                parallel deflation
+     */
+    public static void
+    setParallelDeflateThreads(int threads) { ZipArchiveFormat.parallelDeflateThreads = threads; }
+
+    /**
+     * Configures the index that {@link #openSeekableChannel(File, String, File) seekable channels} build for DEFLATED
+     * entries. Overrides the system property {@value #SYSTEM_PROPERTY_SEEK_INDEX_INTERVAL}.
+     *
+     * @param bytes The minimum number of uncompressed bytes between two access points; each access point costs 32 kB
+     *              of memory, and a random read costs the inflation of up to that many bytes
+     */
+    public static void
+    setSeekIndexInterval(int bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException(Integer.toString(bytes));
+        ZipArchiveFormat.seekIndexInterval = bytes;
+    }
+
+    static boolean
+    getJcaAes() {
+
+        Boolean result = ZipArchiveFormat.jcaAes;
+        if (result != null) return result;
+
+        return !"false".equalsIgnoreCase(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_JCA_AES));
+    }
+
+    private static int
+    getInputReadAheadBuffers() {
+
+        if (ZipArchiveFormat.inputReadAheadBuffers >= 0) return ZipArchiveFormat.inputReadAheadBuffers;
+
+        return Integer.getInteger(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_READ_AHEAD_BUFFERS, 0);
+    }
+
+    private static int
+    getOutputWriteBehindBuffers() {
+
+        if (ZipArchiveFormat.outputWriteBehindBuffers >= 0) return ZipArchiveFormat.outputWriteBehindBuffers;
+
+        return Integer.getInteger(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_WRITE_BEHIND_BUFFERS, 0);
+    }
+
+    static int
+    getOutputEntryIndexInterval() {
+
+        if (ZipArchiveFormat.outputEntryIndexInterval >= 0) return ZipArchiveFormat.outputEntryIndexInterval;
+
+        return Math.max(0, Integer.getInteger(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_INDEX_INTERVAL, 0));
+    }
+
+    static int
+    getParallelInflateThreads() {
+
+        if (ZipArchiveFormat.parallelInflateThreads >= 0) return ZipArchiveFormat.parallelInflateThreads;
+
+        return Integer.getInteger(ZipArchiveFormat.SYSTEM_PROPERTY_PARALLEL_INFLATE_THREADS, 0);
+    }
+
+    static int
+    getSeekIndexInterval() {
+
+        if (ZipArchiveFormat.seekIndexInterval > 0) return ZipArchiveFormat.seekIndexInterval;
+
+        return Math.max(1, Integer.getInteger(ZipArchiveFormat.SYSTEM_PROPERTY_SEEK_INDEX_INTERVAL, 1 << 22));
+    }
+
+    static int
+    getParallelDeflateThreads() {
+
+        if (ZipArchiveFormat.parallelDeflateThreads >= 0) return ZipArchiveFormat.parallelDeflateThreads;
+
+        return Integer.getInteger(ZipArchiveFormat.SYSTEM_PROPERTY_PARALLEL_DEFLATE_THREADS, 0);
+    }
+
+    private static long
+    getCheckpointInterval() {
+
+        if (ZipArchiveFormat.checkpointInterval >= 0) return ZipArchiveFormat.checkpointInterval;
+
+        return Long.getLong(ZipArchiveFormat.SYSTEM_PROPERTY_CHECKPOINT_INTERVAL, 10000);
+    }
+
+    @Nullable private static CompressionLevel
+    getOutputEntryCompressionLevel() {
+
+        CompressionLevel result = ZipArchiveFormat.outputEntryCompressionLevel;
+        if (result != null) return result;
+
+        return ZipArchiveFormat.enumValueOf(
+            CompressionLevel.class,
+            System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_COMPRESSION_LEVEL)
+        );
+    }
+
+    private static boolean
+    getOutputEntryEncrypt() {
+        return (
+            ZipArchiveFormat.outputEntryEncrypt
+            || Boolean.getBoolean(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT)
+        );
+    }
+
+    @Nullable private static EncryptionMethod
+    getOutputEntryEncryptionMethod() {
+
+        EncryptionMethod result = ZipArchiveFormat.outputEntryEncryptionMethod;
+        if (result != null) return result;
+
+        return ZipArchiveFormat.enumValueOf(
+            EncryptionMethod.class,
+            System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD)
+        );
+    }
+
+    @Nullable static char[]
+    getInputPassword() {
+
+        char[] result = ZipArchiveFormat.inputPasswordChars;
+        if (result != null) return result;
+
+        return ZipArchiveFormat.toCharArray(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD));
+    }
+
+    @Nullable private static char[]
+    getOutputPassword() {
+
+        char[] result = ZipArchiveFormat.outputPasswordChars;
+        if (result != null) return result;
+
+        return ZipArchiveFormat.toCharArray(System.getProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD));
+    }
+
     @Nullable private static char[]
     toCharArray(@Nullable String string) { return string == null ? null : string.toCharArray(); }
 }
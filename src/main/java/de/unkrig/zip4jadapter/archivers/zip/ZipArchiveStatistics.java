@@ -0,0 +1,252 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The process-wide statistics of the "zip" archive format.
+ *
+ * @see ZipArchiveFormat#setMonitoringEnabled(boolean)
+ */
+public final
+class ZipArchiveStatistics implements ZipArchiveStatisticsMBean {
+
+    /**
+     * The name under which the statistics are registered with the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "de.unkrig.zip4jadapter:type=ZipArchiveStatistics";
+
+    /**
+     * 1 us, 2 us, 4 us, ... 2^24 us (about 16.8 s).
+     */
+    private static final int HISTOGRAM_BUCKETS = 25;
+
+    private static final ZipArchiveStatistics INSTANCE = new ZipArchiveStatistics();
+
+    final LongAdder openReaders         = new LongAdder();
+    final LongAdder openWriters         = new LongAdder();
+    final LongAdder entriesRead         = new LongAdder();
+    final LongAdder entriesWritten      = new LongAdder();
+    final LongAdder bytesRead           = new LongAdder();
+    final LongAdder bytesWritten        = new LongAdder();
+    final LongAdder archiveBytesWritten = new LongAdder();
+    final LongAdder passwordFailures    = new LongAdder();
+
+    // Updated by the ZlibPool regardless of monitoring.
+    final LongAdder inflaterPoolHits   = new LongAdder();
+    final LongAdder inflaterPoolMisses = new LongAdder();
+    final LongAdder deflaterPoolHits   = new LongAdder();
+    final LongAdder deflaterPoolMisses = new LongAdder();
+
+    // Updated by the MemoryBudget regardless of monitoring.
+    final LongAdder memoryWaits  = new LongAdder();
+    final LongAdder memorySpills = new LongAdder();
+
+    // Updated by the "zip:" URL handler's resource cache regardless of monitoring.
+    final LongAdder resourceCacheHits   = new LongAdder();
+    final LongAdder resourceCacheMisses = new LongAdder();
+    final LongAdder resourceCacheSize   = new LongAdder();
+
+    final AtomicLongArray openLatency              = new AtomicLongArray(ZipArchiveStatistics.HISTOGRAM_BUCKETS + 1);
+    final AtomicLongArray nextEntryLatency         = new AtomicLongArray(ZipArchiveStatistics.HISTOGRAM_BUCKETS + 1);
+    final AtomicLongArray closeArchiveEntryLatency = new AtomicLongArray(ZipArchiveStatistics.HISTOGRAM_BUCKETS + 1);
+
+    private boolean registered;
+
+    private ZipArchiveStatistics() {}
+
+    /**
+     * @return The process-wide statistics; except for the inflater and deflater pool counters, the memory budget
+     *         figures and the resource cache counters, they are only updated while {@link
+     *         ZipArchiveFormat#setMonitoringEnabled(boolean) monitoring is enabled}
+     */
+    public static ZipArchiveStatistics
+    get() { return ZipArchiveStatistics.INSTANCE; }
+
+    /**
+     * Registers the statistics with the platform MBean server, unless already registered.
+     */
+    synchronized void
+    register() {
+
+        if (this.registered) return;
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName on = new ObjectName(ZipArchiveStatistics.OBJECT_NAME);
+            if (!mbs.isRegistered(on)) mbs.registerMBean(this, on);
+        } catch (JMException jme) {
+            throw new IllegalStateException(jme);
+        }
+
+        this.registered = true;
+    }
+
+    @Override public long
+    getOpenReaders() { return this.openReaders.sum(); }
+
+    @Override public long
+    getOpenWriters() { return this.openWriters.sum(); }
+
+    @Override public long
+    getEntriesRead() { return this.entriesRead.sum(); }
+
+    @Override public long
+    getEntriesWritten() { return this.entriesWritten.sum(); }
+
+    @Override public long
+    getBytesRead() { return this.bytesRead.sum(); }
+
+    @Override public long
+    getBytesWritten() { return this.bytesWritten.sum(); }
+
+    @Override public long
+    getArchiveBytesWritten() { return this.archiveBytesWritten.sum(); }
+
+    @Override public double
+    getCompressionRatio() {
+        long bw = this.bytesWritten.sum();
+        return bw == 0 ? 0 : (double) this.archiveBytesWritten.sum() / bw;
+    }
+
+    @Override public long
+    getPasswordFailures() { return this.passwordFailures.sum(); }
+
+    @Override public long
+    getInflaterPoolHits() { return this.inflaterPoolHits.sum(); }
+
+    @Override public long
+    getInflaterPoolMisses() { return this.inflaterPoolMisses.sum(); }
+
+    @Override public double
+    getInflaterPoolHitRate() { return ZipArchiveStatistics.rate(this.inflaterPoolHits, this.inflaterPoolMisses); }
+
+    @Override public long
+    getDeflaterPoolHits() { return this.deflaterPoolHits.sum(); }
+
+    @Override public long
+    getDeflaterPoolMisses() { return this.deflaterPoolMisses.sum(); }
+
+    @Override public double
+    getDeflaterPoolHitRate() { return ZipArchiveStatistics.rate(this.deflaterPoolHits, this.deflaterPoolMisses); }
+
+    @Override public long
+    getMemoryBudget() { return MemoryBudget.getLimit(); }
+
+    @Override public long
+    getMemoryUsed() { return MemoryBudget.getUsed(); }
+
+    @Override public long
+    getMemoryPeak() { return MemoryBudget.getPeak(); }
+
+    @Override public long
+    getMemoryWaits() { return this.memoryWaits.sum(); }
+
+    @Override public long
+    getMemorySpills() { return this.memorySpills.sum(); }
+
+    @Override public long
+    getResourceCacheHits() { return this.resourceCacheHits.sum(); }
+
+    @Override public long
+    getResourceCacheMisses() { return this.resourceCacheMisses.sum(); }
+
+    @Override public double
+    getResourceCacheHitRate() { return ZipArchiveStatistics.rate(this.resourceCacheHits, this.resourceCacheMisses); }
+
+    @Override public long
+    getResourceCacheSize() { return this.resourceCacheSize.sum(); }
+
+    @Override public long[]
+    getLatencyHistogramBoundsMicros() {
+        long[] result = new long[ZipArchiveStatistics.HISTOGRAM_BUCKETS];
+        for (int i = 0; i < result.length; i++) result[i] = 1L << i;
+        return result;
+    }
+
+    @Override public long[]
+    getOpenLatencyHistogram() { return ZipArchiveStatistics.toArray(this.openLatency); }
+
+    @Override public long[]
+    getNextEntryLatencyHistogram() { return ZipArchiveStatistics.toArray(this.nextEntryLatency); }
+
+    @Override public long[]
+    getCloseArchiveEntryLatencyHistogram() { return ZipArchiveStatistics.toArray(this.closeArchiveEntryLatency); }
+
+    @Override public void
+    reset() {
+        this.entriesRead.reset();
+        this.entriesWritten.reset();
+        this.bytesRead.reset();
+        this.bytesWritten.reset();
+        this.archiveBytesWritten.reset();
+        this.passwordFailures.reset();
+        this.inflaterPoolHits.reset();
+        this.inflaterPoolMisses.reset();
+        this.deflaterPoolHits.reset();
+        this.deflaterPoolMisses.reset();
+        this.memoryWaits.reset();
+        this.memorySpills.reset();
+        this.resourceCacheHits.reset();
+        this.resourceCacheMisses.reset();
+        MemoryBudget.resetPeak();
+        for (int i = 0; i <= ZipArchiveStatistics.HISTOGRAM_BUCKETS; i++) {
+            this.openLatency.set(i, 0);
+            this.nextEntryLatency.set(i, 0);
+            this.closeArchiveEntryLatency.set(i, 0);
+        }
+    }
+
+    /**
+     * Counts an operation of the given duration in the <var>histogram</var>.
+     */
+    static void
+    record(AtomicLongArray histogram, long nanos) {
+        long micros = nanos / 1000;
+        int  bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        histogram.incrementAndGet(Math.min(bucket, ZipArchiveStatistics.HISTOGRAM_BUCKETS));
+    }
+
+    private static double
+    rate(LongAdder hits, LongAdder misses) {
+        long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    private static long[]
+    toArray(AtomicLongArray ala) {
+        long[] result = new long[ala.length()];
+        for (int i = 0; i < result.length; i++) result[i] = ala.get(i);
+        return result;
+    }
+}
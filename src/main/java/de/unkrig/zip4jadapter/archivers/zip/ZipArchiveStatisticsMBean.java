@@ -0,0 +1,186 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+/**
+ * The management interface of the process-wide statistics of the "zip" archive format, which are registered with
+ * the platform MBean server under the name "{@value ZipArchiveStatistics#OBJECT_NAME}" when {@link
+ * ZipArchiveFormat#setMonitoringEnabled(boolean) monitoring is enabled}.
+ * <p>
+ *   The latency histograms count the operations by duration: Element <var>i</var> counts the operations that took
+ *   less than {@link #getLatencyHistogramBoundsMicros() bound <var>i</var>}, but not less than bound <var>i</var> -
+ *   1; the last element counts all operations that took longer than the last bound.
+ * </p>
+ */
+public
+interface ZipArchiveStatisticsMBean {
+
+    /**
+     * @return The number of archive readers that are currently open
+     */
+    long getOpenReaders();
+
+    /**
+     * @return The number of archive writers that are currently open
+     */
+    long getOpenWriters();
+
+    long getEntriesRead();
+
+    long getEntriesWritten();
+
+    /**
+     * @return The number of (uncompressed) entry bytes that were read
+     */
+    long getBytesRead();
+
+    /**
+     * @return The number of (uncompressed) entry bytes that were written
+     */
+    long getBytesWritten();
+
+    /**
+     * @return The number of archive bytes (headers and compressed and encrypted data) that the written entries
+     *         occupy
+     */
+    long getArchiveBytesWritten();
+
+    /**
+     * @return The ratio of {@link #getArchiveBytesWritten()} and {@link #getBytesWritten()}, or 0 iff no bytes were
+     *         written
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return The number of times that an entry could not be decrypted, because the password was missing or wrong
+     */
+    long getPasswordFailures();
+
+    /**
+     * @return How often a pooled inflater could be re-used; counted even while monitoring is disabled
+     */
+    long getInflaterPoolHits();
+
+    /**
+     * @return How often a new inflater had to be created; counted even while monitoring is disabled
+     */
+    long getInflaterPoolMisses();
+
+    /**
+     * @return The inflater pool hits divided by the total number of inflaters requested, or 0
+     */
+    double getInflaterPoolHitRate();
+
+    /**
+     * @return How often a pooled deflater could be re-used; counted even while monitoring is disabled
+     */
+    long getDeflaterPoolHits();
+
+    /**
+     * @return How often a new deflater had to be created; counted even while monitoring is disabled
+     */
+    long getDeflaterPoolMisses();
+
+    /**
+     * @return The deflater pool hits divided by the total number of deflaters requested, or 0
+     */
+    double getDeflaterPoolHitRate();
+
+    /**
+     * @return The {@link ZipArchiveFormat#setMemoryBudget(long) memory budget} in bytes, or {@link Long#MAX_VALUE}
+     *         iff unlimited
+     */
+    long getMemoryBudget();
+
+    /**
+     * @return The number of buffer bytes that are currently accounted against the memory budget
+     */
+    long getMemoryUsed();
+
+    /**
+     * @return The maximum of {@link #getMemoryUsed()} since the last {@link #reset()}
+     */
+    long getMemoryPeak();
+
+    /**
+     * @return How often a stream had to wait for memory, because the budget was exhausted
+     */
+    long getMemoryWaits();
+
+    /**
+     * @return How often entry data was spilled into a temporary file, or was processed without buffering, because
+     *         the budget was exhausted
+     */
+    long getMemorySpills();
+
+    /**
+     * @return How often the contents of a "{@code zip:}" URL were served from the {@link
+     *         Handler#setResourceCacheMaxSize(long, long) resource cache}
+     */
+    long getResourceCacheHits();
+
+    /**
+     * @return How often the contents of a "{@code zip:}" URL were not in the resource cache (while the cache was
+     *         enabled)
+     */
+    long getResourceCacheMisses();
+
+    /**
+     * @return The resource cache hits divided by the total number of lookups, or 0
+     */
+    double getResourceCacheHitRate();
+
+    /**
+     * @return The total size of the contents in the resource cache, in bytes
+     */
+    long getResourceCacheSize();
+
+    /**
+     * @return The upper bounds of the latency histogram buckets, in microseconds
+     */
+    long[] getLatencyHistogramBoundsMicros();
+
+    /**
+     * @return The latency histogram of opening archive files
+     */
+    long[] getOpenLatencyHistogram();
+
+    /**
+     * @return The latency histogram of {@code getNextEntry()}
+     */
+    long[] getNextEntryLatencyHistogram();
+
+    /**
+     * @return The latency histogram of {@code closeArchiveEntry()}
+     */
+    long[] getCloseArchiveEntryLatencyHistogram();
+
+    /**
+     * Resets all counters and histograms, except the numbers of open readers and writers, the memory usage and the
+     * resource cache size.
+     */
+    void reset();
+}
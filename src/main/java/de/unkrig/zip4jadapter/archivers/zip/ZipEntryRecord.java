@@ -0,0 +1,335 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.exception.ZipException;
+
+/**
+ * The information that a ZIP central directory holds about one entry. Sizes and offsets are always the "real" values;
+ * the ZIP64 extended information extra field is never part of {@link #extra}, but is (re-)generated as necessary when
+ * the record is written.
+ */
+final
+class ZipEntryRecord {
+
+    byte[] nameBytes;
+    int    versionMadeBy = ZipFormat.VERSION_DEFAULT;
+    int    versionNeeded = ZipFormat.VERSION_DEFAULT;
+    int    flags         = ZipFormat.FLAG_UTF8;
+    int    method        = ZipFormat.METHOD_DEFLATED;
+    long   dosTime;
+    long   crc;
+    long   compressedSize;
+    long   size;
+    byte[] extra         = new byte[0];
+    byte[] comment       = new byte[0];
+    int    internalAttributes;
+    long   externalAttributes;
+    int    diskNumberStart;
+    long   localHeaderOffset;
+
+    ZipEntryRecord(String name, long dosTime) {
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.dosTime   = dosTime;
+    }
+
+    private
+    ZipEntryRecord(byte[] nameBytes) { this.nameBytes = nameBytes; }
+
+    String
+    getName() { return new String(this.nameBytes, StandardCharsets.UTF_8); }
+
+    boolean
+    isDirectory() { return this.nameBytes.length > 0 && this.nameBytes[this.nameBytes.length - 1] == '/'; }
+
+    boolean
+    isEncrypted() { return (this.flags & ZipFormat.FLAG_ENCRYPTED) != 0; }
+
+    boolean
+    hasDataDescriptor() { return (this.flags & ZipFormat.FLAG_DATA_DESCRIPTOR) != 0; }
+
+    /**
+     * @return Whether any of the sizes or the offset require the ZIP64 format
+     */
+    boolean
+    isZip64() {
+        return (
+            this.size                 >= ZipFormat.ZIP64_MAGIC
+            || this.compressedSize    >= ZipFormat.ZIP64_MAGIC
+            || this.localHeaderOffset >= ZipFormat.ZIP64_MAGIC
+        );
+    }
+
+    @Override public String
+    toString() { return this.getName(); }
+
+    /**
+     * Reads one central file header from the <var>bb</var>, which must be positioned at its signature, and advances
+     * the <var>bb</var>'s position past the record.
+     */
+    static ZipEntryRecord
+    readCentral(ByteBuffer bb) throws ZipException {
+
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.remaining() < ZipFormat.CENTRAL_FILE_HEADER_LENGTH) throw new ZipException("Truncated central directory");
+        if (bb.getInt() != ZipFormat.CENTRAL_FILE_HEADER_SIGNATURE) {
+            throw new ZipException("Central file header signature expected");
+        }
+
+        int  versionMadeBy      = bb.getShort() & 0xffff;
+        int  versionNeeded      = bb.getShort() & 0xffff;
+        int  flags              = bb.getShort() & 0xffff;
+        int  method             = bb.getShort() & 0xffff;
+        long dosTime            = bb.getInt() & 0xffffffffL;
+        long crc                = bb.getInt() & 0xffffffffL;
+        long compressedSize     = bb.getInt() & 0xffffffffL;
+        long size               = bb.getInt() & 0xffffffffL;
+        int  nameLength         = bb.getShort() & 0xffff;
+        int  extraLength        = bb.getShort() & 0xffff;
+        int  commentLength      = bb.getShort() & 0xffff;
+        int  diskNumberStart    = bb.getShort() & 0xffff;
+        int  internalAttributes = bb.getShort() & 0xffff;
+        long externalAttributes = bb.getInt() & 0xffffffffL;
+        long localHeaderOffset  = bb.getInt() & 0xffffffffL;
+
+        if (bb.remaining() < nameLength + extraLength + commentLength) {
+            throw new ZipException("Truncated central directory");
+        }
+
+        byte[] nameBytes = new byte[nameLength];
+        bb.get(nameBytes);
+        byte[] extra = new byte[extraLength];
+        bb.get(extra);
+        byte[] comment = new byte[commentLength];
+        bb.get(comment);
+
+        // Apply and strip the ZIP64 extended information extra field.
+        ByteBuffer zip64 = ZipFormat.getExtraField(extra, ZipFormat.EXTRA_ID_ZIP64);
+        if (zip64 != null) {
+            if (size == ZipFormat.ZIP64_MAGIC && zip64.remaining() >= 8)              size              = zip64.getLong();
+            if (compressedSize == ZipFormat.ZIP64_MAGIC && zip64.remaining() >= 8)    compressedSize    = zip64.getLong();
+            if (localHeaderOffset == ZipFormat.ZIP64_MAGIC && zip64.remaining() >= 8) localHeaderOffset = zip64.getLong();
+            if (diskNumberStart == ZipFormat.ZIP64_MAGIC_SHORT && zip64.remaining() >= 4) {
+                diskNumberStart = zip64.getInt();
+            }
+            extra = ZipFormat.removeExtraField(extra, ZipFormat.EXTRA_ID_ZIP64);
+        }
+
+        ZipEntryRecord result = new ZipEntryRecord(nameBytes);
+        result.versionMadeBy      = versionMadeBy;
+        result.versionNeeded      = versionNeeded;
+        result.flags              = flags;
+        result.method             = method;
+        result.dosTime            = dosTime;
+        result.crc                = crc;
+        result.compressedSize     = compressedSize;
+        result.size               = size;
+        result.extra              = extra;
+        result.comment            = comment;
+        result.diskNumberStart    = diskNumberStart;
+        result.internalAttributes = internalAttributes;
+        result.externalAttributes = externalAttributes;
+        result.localHeaderOffset  = localHeaderOffset;
+        return result;
+    }
+
+    /**
+     * Reads one local file header from the <var>bb</var>, which must be positioned at its signature, and advances the
+     * <var>bb</var>'s position past the header. Iff the record {@link #hasDataDescriptor() has a data descriptor},
+     * then its CRC and sizes are typically zero.
+     */
+    static ZipEntryRecord
+    readLocal(ByteBuffer bb) throws ZipException {
+
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.remaining() < ZipFormat.LOCAL_FILE_HEADER_LENGTH) throw new ZipException("Truncated local file header");
+        if (bb.getInt() != ZipFormat.LOCAL_FILE_HEADER_SIGNATURE) {
+            throw new ZipException("Local file header signature expected");
+        }
+
+        int  versionNeeded  = bb.getShort() & 0xffff;
+        int  flags          = bb.getShort() & 0xffff;
+        int  method         = bb.getShort() & 0xffff;
+        long dosTime        = bb.getInt() & 0xffffffffL;
+        long crc            = bb.getInt() & 0xffffffffL;
+        long compressedSize = bb.getInt() & 0xffffffffL;
+        long size           = bb.getInt() & 0xffffffffL;
+        int  nameLength     = bb.getShort() & 0xffff;
+        int  extraLength    = bb.getShort() & 0xffff;
+
+        if (bb.remaining() < nameLength + extraLength) throw new ZipException("Truncated local file header");
+
+        byte[] nameBytes = new byte[nameLength];
+        bb.get(nameBytes);
+        byte[] extra = new byte[extraLength];
+        bb.get(extra);
+
+        // Apply and strip the ZIP64 extended information extra field.
+        ByteBuffer zip64 = ZipFormat.getExtraField(extra, ZipFormat.EXTRA_ID_ZIP64);
+        if (zip64 != null) {
+            if (size == ZipFormat.ZIP64_MAGIC && zip64.remaining() >= 8)           size           = zip64.getLong();
+            if (compressedSize == ZipFormat.ZIP64_MAGIC && zip64.remaining() >= 8) compressedSize = zip64.getLong();
+            extra = ZipFormat.removeExtraField(extra, ZipFormat.EXTRA_ID_ZIP64);
+        }
+
+        ZipEntryRecord result = new ZipEntryRecord(nameBytes);
+        result.versionNeeded  = versionNeeded;
+        result.flags          = flags;
+        result.method         = method;
+        result.dosTime        = dosTime;
+        result.crc            = crc;
+        result.compressedSize = compressedSize;
+        result.size           = size;
+        result.extra          = extra;
+        return result;
+    }
+
+    /**
+     * @return The length of the central file header that {@link #writeCentral(ByteBuffer)} would write
+     */
+    int
+    centralLength() {
+        return (
+            ZipFormat.CENTRAL_FILE_HEADER_LENGTH
+            + this.nameBytes.length
+            + this.extra.length
+            + (this.isZip64() ? 28 : 0)
+            + this.comment.length
+        );
+    }
+
+    /**
+     * Writes this record as a central file header, including a ZIP64 extended information extra field iff
+     * necessary.
+     */
+    void
+    writeCentral(ByteBuffer bb) {
+
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        boolean zip64 = this.isZip64();
+
+        bb.putInt(ZipFormat.CENTRAL_FILE_HEADER_SIGNATURE);
+        bb.putShort((short) this.versionMadeBy);
+        bb.putShort((short) (zip64 ? Math.max(this.versionNeeded, ZipFormat.VERSION_ZIP64) : this.versionNeeded));
+        bb.putShort((short) this.flags);
+        bb.putShort((short) this.method);
+        bb.putInt((int) this.dosTime);
+        bb.putInt((int) this.crc);
+        bb.putInt((int) (zip64 ? ZipFormat.ZIP64_MAGIC : this.compressedSize));
+        bb.putInt((int) (zip64 ? ZipFormat.ZIP64_MAGIC : this.size));
+        bb.putShort((short) this.nameBytes.length);
+        bb.putShort((short) (this.extra.length + (zip64 ? 28 : 0)));
+        bb.putShort((short) this.comment.length);
+        bb.putShort((short) this.diskNumberStart);
+        bb.putShort((short) this.internalAttributes);
+        bb.putInt((int) this.externalAttributes);
+        bb.putInt((int) (zip64 ? ZipFormat.ZIP64_MAGIC : this.localHeaderOffset));
+        bb.put(this.nameBytes);
+        if (zip64) {
+            bb.putShort((short) ZipFormat.EXTRA_ID_ZIP64);
+            bb.putShort((short) 24);
+            bb.putLong(this.size);
+            bb.putLong(this.compressedSize);
+            bb.putLong(this.localHeaderOffset);
+        }
+        bb.put(this.extra);
+        bb.put(this.comment);
+    }
+
+    /**
+     * @return The length of the local file header that {@link #writeLocal(ByteBuffer, boolean)} would write
+     */
+    int
+    localLength(boolean zip64) {
+        return ZipFormat.LOCAL_FILE_HEADER_LENGTH + this.nameBytes.length + this.extra.length + (zip64 ? 20 : 0);
+    }
+
+    /**
+     * Writes this record as a local file header. Iff this record {@link #hasDataDescriptor() has a data descriptor},
+     * then the CRC and the sizes are written as zeros. Iff <var>zip64</var> is {@code true}, then a ZIP64 extended
+     * information extra field is included.
+     */
+    void
+    writeLocal(ByteBuffer bb, boolean zip64) {
+
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        boolean dd = this.hasDataDescriptor();
+
+        bb.putInt(ZipFormat.LOCAL_FILE_HEADER_SIGNATURE);
+        bb.putShort((short) (zip64 ? Math.max(this.versionNeeded, ZipFormat.VERSION_ZIP64) : this.versionNeeded));
+        bb.putShort((short) this.flags);
+        bb.putShort((short) this.method);
+        bb.putInt((int) this.dosTime);
+        bb.putInt(dd ? 0 : (int) this.crc);
+        bb.putInt(zip64 ? (int) ZipFormat.ZIP64_MAGIC : dd ? 0 : (int) this.compressedSize);
+        bb.putInt(zip64 ? (int) ZipFormat.ZIP64_MAGIC : dd ? 0 : (int) this.size);
+        bb.putShort((short) this.nameBytes.length);
+        bb.putShort((short) (this.extra.length + (zip64 ? 20 : 0)));
+        bb.put(this.nameBytes);
+        if (zip64) {
+            bb.putShort((short) ZipFormat.EXTRA_ID_ZIP64);
+            bb.putShort((short) 16);
+            bb.putLong(dd ? 0 : this.size);
+            bb.putLong(dd ? 0 : this.compressedSize);
+        }
+        bb.put(this.extra);
+    }
+
+    /**
+     * Writes the data descriptor that follows the entry data iff this record {@link #hasDataDescriptor() has a data
+     * descriptor}.
+     *
+     * @param zip64 Whether to write the sizes as 8 byte values
+     */
+    void
+    writeDataDescriptor(ByteBuffer bb, boolean zip64) {
+
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+
+        bb.putInt(ZipFormat.DATA_DESCRIPTOR_SIGNATURE);
+        bb.putInt((int) this.crc);
+        if (zip64) {
+            bb.putLong(this.compressedSize);
+            bb.putLong(this.size);
+        } else {
+            bb.putInt((int) this.compressedSize);
+            bb.putInt((int) this.size);
+        }
+    }
+
+    /**
+     * @return The data of the WinZip AES extra field, or {@code null} iff this record has no such field
+     */
+    @Nullable ByteBuffer
+    getAesExtraField() { return ZipFormat.getExtraField(this.extra, ZipFormat.EXTRA_ID_AES); }
+}
@@ -0,0 +1,262 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Constants and low-level helpers for the ZIP file format, as specified in PKWARE's "APPNOTE.TXT".
+ */
+final
+class ZipFormat {
+
+    private ZipFormat() {}
+
+    static final int LOCAL_FILE_HEADER_SIGNATURE       = 0x04034b50;
+    static final int DATA_DESCRIPTOR_SIGNATURE         = 0x08074b50;
+    static final int CENTRAL_FILE_HEADER_SIGNATURE     = 0x02014b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY    = 0x06064b50;
+    static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR  = 0x07064b50;
+    static final int END_OF_CENTRAL_DIRECTORY          = 0x06054b50;
+
+    static final int LOCAL_FILE_HEADER_LENGTH          = 30;
+    static final int CENTRAL_FILE_HEADER_LENGTH        = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_LENGTH   = 22;
+    static final int ZIP64_END_OF_CENTRAL_DIR_LENGTH   = 56;
+    static final int ZIP64_LOCATOR_LENGTH              = 20;
+
+    static final int METHOD_STORED   = 0;
+    static final int METHOD_DEFLATED = 8;
+    static final int METHOD_AES      = 99;
+
+    static final int FLAG_ENCRYPTED       = 0x0001;
+    static final int FLAG_DEFLATE_OPTIONS = 0x0006;
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8            = 0x0800;
+
+    static final int VERSION_DEFAULT = 20;
+    static final int VERSION_ZIP64   = 45;
+    static final int VERSION_AES     = 51;
+
+    static final int EXTRA_ID_ZIP64       = 0x0001;
+    static final int EXTRA_ID_AES         = 0x9901;
+    static final int EXTRA_ID_BLOCK_INDEX = 0x6962;
+    static final int EXTRA_ID_SORTED_CD   = 0x6f73;
+
+    /**
+     * The value of a 32 bit size or offset field that indicates that the actual value is stored in the ZIP64 extra
+     * field.
+     */
+    static final long ZIP64_MAGIC = 0xffffffffL;
+
+    /**
+     * The value of a 16 bit "number of entries" field that indicates that the actual value is stored in the ZIP64
+     * end of central directory record.
+     */
+    static final int ZIP64_MAGIC_SHORT = 0xffff;
+
+    /**
+     * The external file attributes of a directory entry (MS-DOS "directory" attribute).
+     */
+    static final long EXTERNAL_ATTRIBUTES_DIRECTORY = 0x10;
+
+    /**
+     * Converts a Java time (milliseconds since the epoch) to an MS-DOS date and time, in the local time zone, exactly
+     * like {@code java.util.zip} and zip4j do.
+     */
+    static long
+    javaToDosTime(long time) {
+
+        LocalDateTime ldt = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+
+        int year = ldt.getYear();
+        if (year < 1980) return (1 << 21) | (1 << 16);
+
+        return (
+            (year - 1980)          << 25
+            | ldt.getMonthValue()  << 21
+            | ldt.getDayOfMonth()  << 16
+            | ldt.getHour()        << 11
+            | ldt.getMinute()      << 5
+            | ldt.getSecond()      >> 1
+        ) & 0xffffffffL;
+    }
+
+    /**
+     * Converts an MS-DOS date and time, in the local time zone, to a Java time (milliseconds since the epoch).
+     */
+    static long
+    dosToJavaTime(long dosTime) {
+
+        LocalDateTime ldt = LocalDateTime.of(
+            (int) ((dosTime >> 25) & 0x7f) + 1980,
+            Math.max(1, Math.min(12, (int) ((dosTime >> 21) & 0x0f))),
+            Math.max(1, Math.min(31, (int) ((dosTime >> 16) & 0x1f))),
+            Math.min(23, (int) ((dosTime >> 11) & 0x1f)),
+            Math.min(59, (int) ((dosTime >> 5) & 0x3f)),
+            Math.min(59, (int) ((dosTime << 1) & 0x3e))
+        );
+        return ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return The "compression option" flags (general purpose bits 1 and 2) for a DEFLATED entry with the given
+     *         compression level, as defined in "APPNOTE.TXT" and used by Info-ZIP
+     */
+    static int
+    deflateOptionFlags(int level) {
+        return (
+            level == 1 ? 0x6 :  // "Super Fast" compression
+            level == 2 ? 0x4 :  // "Fast" compression
+            level >= 8 ? 0x2 :  // "Maximum" compression
+            0                   // "Normal" compression
+        );
+    }
+
+    /**
+     * @return A little-endian view of the given <var>extra</var> field data, positioned at the data of the first
+     *         extra field with the given <var>headerId</var> and limited to its length, or {@code null} iff there is
+     *         no such extra field
+     */
+    @Nullable static ByteBuffer
+    getExtraField(byte[] extra, int headerId) {
+
+        for (int i = 0; i + 4 <= extra.length;) {
+            int id     = (extra[i] & 0xff) | (extra[i + 1] & 0xff) << 8;
+            int length = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+            if (i + 4 + length > extra.length) break;
+            if (id == headerId) return ByteBuffer.wrap(extra, i + 4, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+            i += 4 + length;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param vendorVersion 1 ("AE-1") or 2 ("AE-2")
+     * @param strength      1, 2 or 3 (for 128, 192 or 256 bit keys)
+     * @param method        The actual compression method of the entry
+     * @return              A WinZip AES extra field, including its header
+     */
+    static byte[]
+    aesExtraField(int vendorVersion, int strength, int method) {
+        return ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN)
+            .putShort((short) ZipFormat.EXTRA_ID_AES)
+            .putShort((short) 7)
+            .putShort((short) vendorVersion)
+            .put((byte) 'A')
+            .put((byte) 'E')
+            .put((byte) strength)
+            .putShort((short) method)
+            .array();
+    }
+
+    /**
+     * @return The given <var>extra</var> field data, less all extra fields with the given <var>headerId</var>
+     */
+    static byte[]
+    removeExtraField(byte[] extra, int headerId) {
+
+        ByteBuffer result = ByteBuffer.allocate(extra.length);
+        for (int i = 0; i + 4 <= extra.length;) {
+            int id     = (extra[i] & 0xff) | (extra[i + 1] & 0xff) << 8;
+            int length = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+            if (i + 4 + length > extra.length) break;
+            if (id != headerId) result.put(extra, i, 4 + length);
+            i += 4 + length;
+        }
+
+        return result.position() == extra.length ? extra : Arrays.copyOf(result.array(), result.position());
+    }
+
+    /**
+     * Compares an entry name in the <var>bb</var> with the <var>key</var> (both encoded in UTF-8), byte by byte and
+     * unsigned; this is the order of a {@link ZipWriter#sortedCentralDirectory(java.util.List) sorted central
+     * directory}.
+     */
+    static int
+    compareNames(ByteBuffer bb, int offset, int length, byte[] key) {
+
+        for (int i = 0, n = Math.min(length, key.length); i < n; i++) {
+            int c = (bb.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) return c;
+        }
+
+        return length - key.length;
+    }
+
+    /**
+     * @return The CRC-32 of the concatenation of two byte sequences, given the CRC-32 of both and the length of the
+     *         second (like zlib's {@code crc32_combine()})
+     */
+    static long
+    crc32Combine(long crc1, long crc2, long length2) {
+
+        if (length2 <= 0) return crc1;
+
+        // "odd" is the operator for one zero bit, "even" for two zero bits.
+        long[] even = new long[32], odd = new long[32];
+        odd[0] = 0xedb88320L;
+        for (int n = 1; n < 32; n++) odd[n] = 1L << (n - 1);
+        ZipFormat.gf2MatrixSquare(even, odd);
+        ZipFormat.gf2MatrixSquare(odd, even);
+
+        // Apply "length2" zero bytes to "crc1".
+        do {
+            ZipFormat.gf2MatrixSquare(even, odd);
+            if ((length2 & 1) != 0) crc1 = ZipFormat.gf2MatrixTimes(even, crc1);
+            length2 >>= 1;
+            if (length2 == 0) break;
+
+            ZipFormat.gf2MatrixSquare(odd, even);
+            if ((length2 & 1) != 0) crc1 = ZipFormat.gf2MatrixTimes(odd, crc1);
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long
+    gf2MatrixTimes(long[] matrix, long vector) {
+        long result = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) result ^= matrix[i];
+        }
+        return result;
+    }
+
+    private static void
+    gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) square[n] = ZipFormat.gf2MatrixTimes(matrix, matrix[n]);
+    }
+}
@@ -0,0 +1,880 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.crypto.StandardDecrypter;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.inputstream.ZipInputStream;
+import net.lingala.zip4j.model.FileHeader;
+
+/**
+ * Reads the central directory of a ZIP archive file, and the entries' data through positional reads. AES-encrypted
+ * entries are decrypted by the {@link AesCipher} (unless {@link ZipArchiveFormat#setJcaAes(boolean) disabled}); other
+ * encrypted entries are decrypted by zip4j.
+ * <p>
+ *   All methods are thread-safe, so the entries can be read concurrently.
+ * </p>
+ */
+final
+class ZipReader {
+
+    /**
+     * The length of the encryption header of entries with "ZIP standard encryption".
+     */
+    private static final int STANDARD_ENCRYPTION_HEADER_LENGTH = 12;
+
+    private final RandomAccessInput input;
+
+    /**
+     * The file that the {@link #input} reads, or {@code null}; identifies the entries' {@link SeekIndex}es.
+     */
+    @Nullable private final File archiveFile;
+
+    // The location of the central directory; "delta" is the amount of data prepended to the archive.
+    private final long cdStart, cdSize, entryCount, delta;
+
+    /**
+     * The offsets of every {@link #stride}th record of a {@link ZipWriter#sortedCentralDirectory(List) sorted central
+     * directory}, relative to {@link #cdStart}, or {@code null} iff the central directory is not sorted.
+     */
+    @Nullable private final long[] samples;
+    private final int               stride;
+
+    @Nullable private List<ZipEntryRecord>        records;
+    @Nullable private Map<String, ZipEntryRecord> recordsByName;
+
+    /**
+     * Reads the central directory of the ZIP archive in the <var>input</var>; iff it is sorted, then only its first
+     * record is read, and the rest only when necessary.
+     */
+    ZipReader(RandomAccessInput input) throws IOException { this(input, (File) null); }
+
+    /**
+     * Like {@link #ZipReader(RandomAccessInput)}, but the <var>archiveFile</var> (which the <var>input</var> reads)
+     * allows for {@link ZipArchiveFormat#setParallelInflateThreads(int) parallel inflation} at the access points of
+     * the entries' {@link SeekIndex}es.
+     */
+    ZipReader(RandomAccessInput input, @Nullable File archiveFile) throws IOException {
+
+        this.input       = input;
+        this.archiveFile = archiveFile;
+
+        long       size       = input.size();
+        ByteBuffer tail       = ZipReader.readEndOfCentralDirectory(input);
+        int        eocd       = tail.position();
+        long       eocdOffset = size - tail.limit() + eocd;
+
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize     = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset   = tail.getInt(eocd + 16) & 0xffffffffL;
+        long cdEnd      = eocdOffset;
+
+        // Check for a "ZIP64 end of central directory locator".
+        if (eocdOffset >= ZipFormat.ZIP64_LOCATOR_LENGTH) {
+            ByteBuffer locator = ZipReader.readFully(
+                input,
+                eocdOffset - ZipFormat.ZIP64_LOCATOR_LENGTH,
+                ZipFormat.ZIP64_LOCATOR_LENGTH
+            );
+            if (locator.getInt(0) == ZipFormat.ZIP64_END_OF_CENTRAL_DIR_LOCATOR) {
+                long       zip64EocdOffset = locator.getLong(8);
+                ByteBuffer zip64Eocd       = ZipReader.readFully(
+                    input,
+                    zip64EocdOffset,
+                    ZipFormat.ZIP64_END_OF_CENTRAL_DIR_LENGTH
+                );
+                if (zip64Eocd.getInt(0) != ZipFormat.ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                    throw new ZipException("ZIP64 end of central directory record expected");
+                }
+                entryCount = zip64Eocd.getLong(32);
+                cdSize     = zip64Eocd.getLong(40);
+                cdOffset   = zip64Eocd.getLong(48);
+                cdEnd      = zip64EocdOffset;
+            }
+        }
+
+        if (cdSize > Integer.MAX_VALUE) throw new ZipException("Central directory too large");
+
+        // Archives with data prepended (e.g. self-extracting archives) have all offsets shifted.
+        long delta = cdEnd - cdSize - cdOffset;
+        if (delta < 0) throw new ZipException("Invalid central directory offset");
+
+        this.cdStart    = cdOffset + delta;
+        this.cdSize     = cdSize;
+        this.entryCount = entryCount;
+        this.delta      = delta;
+
+        // Check whether the central directory is sorted; if not, then read it completely.
+        long[] samples = null;
+        int    stride  = 0;
+        if (entryCount > 0) {
+            ByteBuffer sorted = ZipFormat.getExtraField(this.recordAt(0).extra, ZipFormat.EXTRA_ID_SORTED_CD);
+            if (sorted != null && sorted.remaining() >= 4 && (sorted.remaining() - 4) % 8 == 0) {
+                stride  = sorted.getInt();
+                samples = new long[sorted.remaining() / 8];
+                for (int i = 0; i < samples.length; i++) samples[i] = sorted.getLong();
+                if (!ZipReader.isValidSortedIndex(samples, stride, entryCount, cdSize)) samples = null;
+            }
+        }
+        this.samples = samples;
+        this.stride  = stride;
+
+        if (samples == null) this.records = this.readCentralDirectory();
+    }
+
+    /**
+     * @return Whether the <var>input</var> is (the last volume of) a split archive, the entries of which the {@link
+     *         ZipReader} cannot read
+     */
+    static boolean
+    isSplitArchive(RandomAccessInput input) throws IOException {
+
+        ByteBuffer tail = ZipReader.readEndOfCentralDirectory(input);
+
+        // The "number of this disk".
+        return tail.getShort(tail.position() + 4) != 0;
+    }
+
+    /**
+     * @return The tail of the <var>input</var>, positioned at the "end of central directory record" (which is
+     *         followed by a comment of up to 65535 bytes)
+     */
+    private static ByteBuffer
+    readEndOfCentralDirectory(RandomAccessInput input) throws IOException {
+
+        long       size       = input.size();
+        int        tailLength = (int) Math.min(size, ZipFormat.END_OF_CENTRAL_DIRECTORY_LENGTH + 0xffff);
+        ByteBuffer tail       = ZipReader.readFully(input, size - tailLength, tailLength);
+        int        eocd       = tailLength - ZipFormat.END_OF_CENTRAL_DIRECTORY_LENGTH;
+        for (;; eocd--) {
+            if (eocd < 0) throw new ZipException("End of central directory record not found - not a ZIP archive?");
+            if (tail.getInt(eocd) == ZipFormat.END_OF_CENTRAL_DIRECTORY) break;
+        }
+        tail.position(eocd);
+
+        return tail;
+    }
+
+    /**
+     * Does not read the central directory, but uses the given <var>records</var> instead (e.g. those of an {@link
+     * ArchivePartition}).
+     */
+    ZipReader(RandomAccessInput input, List<ZipEntryRecord> records) {
+        this.input       = input;
+        this.archiveFile = null;
+        this.cdStart    = 0;
+        this.cdSize     = 0;
+        this.entryCount = records.size();
+        this.delta      = 0;
+        this.samples    = null;
+        this.stride     = 0;
+        this.records    = Collections.unmodifiableList(records);
+    }
+
+    RandomAccessInput
+    input() { return this.input; }
+
+    /**
+     * @return The entries, in central directory order
+     */
+    synchronized List<ZipEntryRecord>
+    records() throws IOException {
+
+        List<ZipEntryRecord> result = this.records;
+        if (result == null) result = (this.records = this.readCentralDirectory());
+
+        return result;
+    }
+
+    /**
+     * @return The entry with the given <var>name</var>, or {@code null}; iff the central directory is sorted, then the
+     *         entry is looked up by binary search, otherwise through a hash map of all entries
+     */
+    @Nullable synchronized ZipEntryRecord
+    getRecord(String name) throws IOException {
+
+        Map<String, ZipEntryRecord> m = this.recordsByName;
+        if (m == null) {
+            if (this.samples != null && this.records == null) return this.lookUp(name);
+
+            m = new HashMap<>();
+            for (ZipEntryRecord r : this.records()) m.putIfAbsent(r.getName(), r);
+            this.recordsByName = m;
+        }
+
+        return m.get(name);
+    }
+
+    /**
+     * Looks up the first entry with the given <var>name</var> in the sorted central directory: First by binary search
+     * in the {@link #samples}, then by a linear search between two samples.
+     */
+    @Nullable private ZipEntryRecord
+    lookUp(String name) throws IOException {
+
+        long[] samples = this.samples;
+        assert samples != null;
+
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+
+        // Find the last sample with a name less than the key (or the first sample).
+        int lo = 0, hi = samples.length - 1;
+        while (lo < hi) {
+            int        mid = (lo + hi + 1) >>> 1;
+            ByteBuffer cfh = this.recordHeaderAt(samples[mid]);
+            if (ZipFormat.compareNames(cfh, ZipFormat.CENTRAL_FILE_HEADER_LENGTH, cfh.getShort(28) & 0xffff, key) < 0) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        // Search the records up to the next sample...
+        long       start = samples[lo];
+        long       end   = lo + 1 < samples.length ? samples[lo + 1] : this.cdSize;
+        ByteBuffer bb    = ZipReader.readFully(this.input, this.cdStart + start, (int) (end - start));
+        while (bb.hasRemaining()) {
+            int p = bb.position();
+            if (
+                bb.remaining() < ZipFormat.CENTRAL_FILE_HEADER_LENGTH
+                || bb.getInt(p) != ZipFormat.CENTRAL_FILE_HEADER_SIGNATURE
+            ) throw new ZipException("Central file header signature expected");
+
+            int nameLength = bb.getShort(p + 28) & 0xffff;
+            int c          = ZipFormat.compareNames(bb, p + ZipFormat.CENTRAL_FILE_HEADER_LENGTH, nameLength, key);
+            if (c > 0) return null;
+            if (c == 0) {
+                ZipEntryRecord result = ZipEntryRecord.readCentral(bb);
+                result.localHeaderOffset += this.delta;
+                return result;
+            }
+
+            bb.position(
+                p
+                + ZipFormat.CENTRAL_FILE_HEADER_LENGTH
+                + nameLength
+                + (bb.getShort(p + 30) & 0xffff)
+                + (bb.getShort(p + 32) & 0xffff)
+            );
+        }
+
+        // ... and the next sample itself (which is the first record with a name that is not less than the key).
+        if (lo + 1 < samples.length) {
+            ByteBuffer cfh = this.recordHeaderAt(samples[lo + 1]);
+            int        c   = ZipFormat.compareNames(
+                cfh,
+                ZipFormat.CENTRAL_FILE_HEADER_LENGTH,
+                cfh.getShort(28) & 0xffff,
+                key
+            );
+            if (c == 0) return this.recordAt(samples[lo + 1]);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The central file header at the given <var>offset</var> (relative to the start of the central
+     *         directory), including the name, but excluding the extra field and the comment
+     */
+    private ByteBuffer
+    recordHeaderAt(long offset) throws IOException {
+
+        int        fixed  = ZipFormat.CENTRAL_FILE_HEADER_LENGTH;
+        ByteBuffer result = ZipReader.readFully(this.input, this.cdStart + offset, fixed);
+        if (result.getInt(0) != ZipFormat.CENTRAL_FILE_HEADER_SIGNATURE) {
+            throw new ZipException("Central file header signature expected");
+        }
+
+        return ZipReader.readFully(this.input, this.cdStart + offset, fixed + (result.getShort(28) & 0xffff));
+    }
+
+    /**
+     * @return The complete central directory record at the given <var>offset</var> (relative to the start of the
+     *         central directory)
+     */
+    private ZipEntryRecord
+    recordAt(long offset) throws IOException {
+
+        ByteBuffer header = this.recordHeaderAt(offset);
+        int        length = (
+            header.limit()
+            + (header.getShort(30) & 0xffff)
+            + (header.getShort(32) & 0xffff)
+        );
+
+        ByteBuffer     bb     = ZipReader.readFully(this.input, this.cdStart + offset, length);
+        ZipEntryRecord result = ZipEntryRecord.readCentral(bb);
+        result.localHeaderOffset += this.delta;
+        return result;
+    }
+
+    /**
+     * Checks the index of a sorted central directory for plausibility, e.g. in case that a tool that does not know
+     * it added entries to the archive.
+     */
+    private static boolean
+    isValidSortedIndex(long[] samples, int stride, long entryCount, long cdSize) {
+
+        if (stride <= 0 || samples.length != (entryCount + stride - 1) / stride || samples[0] != 0) return false;
+
+        for (int i = 1; i < samples.length; i++) {
+            if (samples[i] <= samples[i - 1] || samples[i] >= cdSize) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The offset of the entry's data, i.e. the position right after its local file header
+     */
+    long
+    dataOffset(ZipEntryRecord record) throws IOException {
+
+        ByteBuffer lfh = ZipReader.readFully(this.input, record.localHeaderOffset, ZipFormat.LOCAL_FILE_HEADER_LENGTH);
+        if (lfh.getInt(0) != ZipFormat.LOCAL_FILE_HEADER_SIGNATURE) {
+            throw new ZipException("Local file header signature expected for entry \"" + record + "\"");
+        }
+
+        return (
+            record.localHeaderOffset
+            + ZipFormat.LOCAL_FILE_HEADER_LENGTH
+            + (lfh.getShort(26) & 0xffff)
+            + (lfh.getShort(28) & 0xffff)
+        );
+    }
+
+    /**
+     * @return Whether the (encrypted) entry was encrypted with the given <var>password</var>, as far as its password
+     *         verifier (AES) resp. the check byte of its encryption header ("ZIP standard encryption") tells
+     */
+    boolean
+    isEncryptedWith(ZipEntryRecord record, char[] password) throws IOException {
+
+        long dataOffset = this.dataOffset(record);
+
+        ByteBuffer aes = record.getAesExtraField();
+        try {
+            if (aes != null) {
+                if (aes.remaining() < 7) return false;
+
+                int    strength   = aes.get(4);
+                int    saltLength = AesCipher.keyLength(strength) / 2;
+                byte[] ba         = ZipReader.readFully(
+                    this.input,
+                    dataOffset,
+                    saltLength + AesCipher.VERIFIER_LENGTH
+                ).array();
+
+                new AesCipher(password, Arrays.copyOf(ba, saltLength), strength).checkVerifier(
+                    Arrays.copyOfRange(ba, saltLength, ba.length)
+                );
+            } else {
+                new StandardDecrypter(
+                    password,
+                    record.crc,
+                    record.dosTime,
+                    ZipReader.readFully(this.input, dataOffset, ZipReader.STANDARD_ENCRYPTION_HEADER_LENGTH).array()
+                );
+            }
+        } catch (ZipException ze) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The position of the central directory, i.e. the end of the entries' data
+     */
+    long
+    centralDirectoryStart() { return this.cdStart; }
+
+    /**
+     * @return The entry's data, as it is stored in the archive, i.e. possibly compressed and/or encrypted
+     */
+    InputStream
+    getRawInputStream(ZipEntryRecord record) throws IOException {
+        return new RandomAccessInputStream(this.input, this.dataOffset(record), record.compressedSize);
+    }
+
+    /**
+     * @return The entry's decrypted and decompressed data; when the end of the stream is reached, then its CRC (and,
+     *         for AES-encrypted entries, its MAC) has been verified
+     */
+    InputStream
+    getInputStream(ZipEntryRecord record, @Nullable char[] password) throws IOException {
+
+        if (record.method == ZipFormat.METHOD_AES && ZipArchiveFormat.getJcaAes()) {
+            return this.getAesInputStream(record, password);
+        }
+
+        if (record.isEncrypted()) return this.getZip4jInputStream(record, password);
+
+        int parallelism = ZipArchiveFormat.getParallelInflateThreads();
+        if (parallelism > 1 && record.method == ZipFormat.METHOD_DEFLATED) {
+            InputStream is = this.getParallelInputStream(record, parallelism);
+            if (is != null) return ZipReader.checking(is, record, true);
+        }
+
+        return ZipReader.checking(ZipReader.decompressing(this.getRawInputStream(record), record.method, record), record, true);
+    }
+
+    /**
+     * @return A stream that inflates the (unencrypted, DEFLATED) entry on several threads, or a stream that inflates
+     *         it sequentially and adds its access points to its {@link SeekIndex} (so that the next read of the entry
+     *         is parallel), or {@code null}
+     */
+    @Nullable private InputStream
+    getParallelInputStream(ZipEntryRecord record, int parallelism) throws IOException {
+
+        long dataOffset  = this.dataOffset(record);
+        File archiveFile = this.archiveFile;
+        if (archiveFile == null) {
+            return ParallelInflaterInputStream.open(
+                this.input,
+                dataOffset,
+                record,
+                SeekIndex.blockIndex(record),
+                parallelism
+            );
+        }
+
+        SeekIndex index = SeekIndex.forEntry(
+            archiveFile,
+            record,
+            dataOffset,
+            null,
+            ZipArchiveFormat.getSeekIndexInterval()
+        );
+
+        List<SeekIndex.Point> points = index.points();
+        if (points.size() > 1) {
+            return ParallelInflaterInputStream.open(this.input, dataOffset, record, points, parallelism);
+        }
+
+        // The access points are not (yet) known.
+        if (!index.wants(record.size)) return null;
+        return Channels.newInputStream(new SeekableEntryChannel(this.input, record, dataOffset, index, null, () -> {}));
+    }
+
+    /**
+     * Like {@link #getInputStream(ZipEntryRecord, char[])}, but unencrypted STORED and DEFLATED entries are read
+     * (and inflated) directly into the caller's buffers (see {@link EntryChannel}).
+     */
+    ReadableByteChannel
+    getChannel(ZipEntryRecord record, @Nullable char[] password) throws IOException {
+
+        if (!record.isEncrypted() && EntryChannel.isSupported(record.method)) {
+            return new EntryChannel(this.input, record, this.dataOffset(record));
+        }
+
+        return Channels.newChannel(this.getInputStream(record, password));
+    }
+
+    /**
+     * Extracts the entry to the <var>file</var>, or, iff the entry is a directory, creates the <var>file</var> as a
+     * directory. The data of STORED, unencrypted entries is copied by the kernel where possible (see {@link
+     * FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}); their CRC is verified (before the
+     * copy, in a separate pass) iff <var>verifyCrc</var>. The data of all other entries is always verified.
+     */
+    void
+    extractTo(ZipEntryRecord record, Path file, @Nullable char[] password, boolean verifyCrc) throws IOException {
+
+        if (record.isDirectory()) {
+            Files.createDirectories(file);
+        } else {
+            Path parent = file.getParent();
+            if (parent != null) Files.createDirectories(parent);
+
+            if (record.method == ZipFormat.METHOD_STORED && !record.isEncrypted()) {
+                if (record.compressedSize != record.size) {
+                    throw new ZipException("Entry \"" + record + "\": Compressed size differs from size");
+                }
+
+                long dataOffset = this.dataOffset(record);
+                if (verifyCrc) this.verifyCrc(record, dataOffset);
+
+                try (FileChannel out = FileChannel.open(
+                    file,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE
+                )) {
+                    this.input.transferTo(dataOffset, record.size, out);
+                }
+            } else {
+                try (InputStream is = this.getInputStream(record, password)) {
+                    Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(ZipFormat.dosToJavaTime(record.dosTime)));
+    }
+
+    private void
+    verifyCrc(ZipEntryRecord record, long dataOffset) throws IOException {
+
+        CRC32      crc    = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        for (long pos = dataOffset, end = dataOffset + record.size; pos < end;) {
+            buffer.clear();
+            if (end - pos < buffer.capacity()) buffer.limit((int) (end - pos));
+            int n = this.input.read(buffer, pos);
+            if (n == -1) throw new EOFException();
+            buffer.flip();
+            crc.update(buffer);
+            pos += n;
+        }
+
+        if (crc.getValue() != record.crc) throw new ZipException("Entry \"" + record + "\": CRC mismatch");
+    }
+
+    private static InputStream
+    decompressing(InputStream is, int method, ZipEntryRecord record) throws ZipException {
+
+        switch (method) {
+
+        case ZipFormat.METHOD_STORED:
+            break;
+
+        case ZipFormat.METHOD_DEFLATED:
+
+            // The "nowrap" inflater may need an extra dummy byte at the end of its input, see "Inflater(boolean)".
+            is = new InflaterInputStream(
+                new SequenceInputStream(is, new ByteArrayInputStream(new byte[1])),
+                ZlibPool.getInflater(),
+                8192
+            ) {
+
+                boolean released;
+
+                @Override public void
+                close() throws IOException {
+                    super.close();
+
+                    // Return the inflater to the pool exactly once.
+                    if (!this.released) {
+                        this.released = true;
+                        ZlibPool.release(this.inf);
+                    }
+                }
+            };
+            break;
+
+        default:
+            throw new ZipException(
+                "Entry \""
+                + record
+                + "\": Unsupported compression method "
+                + method
+            );
+        }
+
+        return is;
+    }
+
+    private InputStream
+    getAesInputStream(ZipEntryRecord record, @Nullable char[] password) throws IOException {
+
+        ByteBuffer aes = record.getAesExtraField();
+        if (aes == null || aes.remaining() < 7) throw new ZipException("Entry \"" + record + "\": AES extra field missing");
+
+        if (password == null) {
+            ArchiveMonitor.passwordFailure();
+            throw new ZipException("Password required");
+        }
+
+        int vendorVersion = aes.getShort(0) & 0xffff;
+        int strength      = aes.get(4);
+        int method        = aes.getShort(5) & 0xffff;
+
+        InputStream is;
+        try {
+            is = new AesCipher.DecryptingInputStream(
+                this.getRawInputStream(record),
+                record.compressedSize,
+                password,
+                strength,
+                record.toString()
+            );
+        } catch (ZipException ze) {
+            ZipArchiveFormat.checkPasswordFailure(ze, password);
+            throw ze;
+        }
+
+        InputStream result = ZipReader.draining(ZipReader.decompressing(is, method, record), is);
+
+        // With "AE-2", the CRC is not stored; the authentication code protects the data instead.
+        return ZipReader.checking(result, record, vendorVersion != 2);
+    }
+
+    /**
+     * @return A stream that, when the end of the <var>delegate</var> is reached, reads the <var>tail</var> to its
+     *         end; the {@link AesCipher.DecryptingInputStream} verifies the MAC only then, but the inflater stops
+     *         reading as soon as the DEFLATE stream is complete
+     */
+    private static InputStream
+    draining(InputStream delegate, InputStream tail) {
+
+        return new FilterInputStream(delegate) {
+
+            boolean drained;
+
+            @Override public int
+            read() throws IOException {
+                byte[] ba = new byte[1];
+                return this.read(ba, 0, 1) == -1 ? -1 : ba[0] & 0xff;
+            }
+
+            @Override @NotNullByDefault(false) public int
+            read(byte[] b, int off, int len) throws IOException {
+
+                int n = this.in.read(b, off, len);
+                if (n == -1 && !this.drained) {
+                    byte[] buffer = new byte[512];
+                    while (tail.read(buffer) != -1) ;
+                    this.drained = true;
+                }
+
+                return n;
+            }
+
+            @Override public boolean
+            markSupported() { return false; }
+        };
+    }
+
+    private InputStream
+    getZip4jInputStream(ZipEntryRecord record, @Nullable char[] password) throws IOException {
+
+        FileHeader fh = new FileHeader();
+        fh.setFileName(record.getName());
+        fh.setCrc(record.crc);
+        fh.setCompressedSize(record.compressedSize);
+        fh.setUncompressedSize(record.size);
+        fh.setDirectory(record.isDirectory());
+
+        ZipInputStream zis = new ZipInputStream(
+            new RandomAccessInputStream(this.input, record.localHeaderOffset, Long.MAX_VALUE),
+            password
+        );
+        try {
+            zis.getNextEntry(fh, false);
+        } catch (ZipException ze) {
+            zis.close();
+            ZipArchiveFormat.checkPasswordFailure(ze, password);
+            throw ze;
+        }
+
+        // zip4j does not verify the MAC of DEFLATED AES entries that have a data descriptor, so we do that ourselves.
+        if (record.method != ZipFormat.METHOD_AES) return zis;
+
+        return new FilterInputStream(zis) {
+
+            boolean verified;
+
+            @Override public int
+            read() throws IOException {
+                byte[] ba = new byte[1];
+                return this.read(ba, 0, 1) == -1 ? -1 : ba[0] & 0xff;
+            }
+
+            @Override @NotNullByDefault(false) public int
+            read(byte[] b, int off, int len) throws IOException {
+
+                int n = this.in.read(b, off, len);
+                if (n == -1 && !this.verified) {
+                    ZipReader.this.verifyAesMac(record, password);
+                    this.verified = true;
+                }
+
+                return n;
+            }
+
+            @Override public boolean
+            markSupported() { return false; }
+        };
+    }
+
+    /**
+     * Verifies the "authentication code" (a truncated HMAC-SHA1 of the encrypted data) of an AES-encrypted entry.
+     *
+     * @see <a href="https://www.winzip.com/en/support/aes-encryption/">AES Encryption Information</a>
+     */
+    private void
+    verifyAesMac(ZipEntryRecord record, @Nullable char[] password) throws IOException {
+
+        ByteBuffer aes = record.getAesExtraField();
+        if (aes == null || aes.remaining() < 7) throw new ZipException("Entry \"" + record + "\": AES extra field missing");
+        if (password == null) throw new ZipException("Password required");
+
+        int strength   = aes.get(4);
+        int saltLength = AesCipher.keyLength(strength) / 2;
+
+        long dataOffset = this.dataOffset(record);
+        long macOffset  = dataOffset + record.compressedSize - AesCipher.MAC_LENGTH;
+
+        AesCipher cipher = new AesCipher(
+            password,
+            ZipReader.readFully(this.input, dataOffset, saltLength).array(),
+            strength
+        );
+
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        for (long pos = dataOffset + saltLength + 2; pos < macOffset;) {
+            buffer.clear();
+            if (macOffset - pos < buffer.capacity()) buffer.limit((int) (macOffset - pos));
+            int n = this.input.read(buffer, pos);
+            if (n == -1) throw new EOFException();
+            cipher.authenticate(buffer.array(), 0, n);
+            pos += n;
+        }
+
+        byte[] expected = ZipReader.readFully(this.input, macOffset, AesCipher.MAC_LENGTH).array();
+        byte[] actual   = cipher.mac();
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new ZipException("Entry \"" + record + "\": AES authentication code mismatch");
+        }
+    }
+
+    /**
+     * Verifies the size and (iff <var>checkCrc</var>) the CRC of the data when the end of the <var>delegate</var> is
+     * reached.
+     */
+    private static InputStream
+    checking(InputStream delegate, ZipEntryRecord record, boolean checkCrc) {
+
+        return new FilterInputStream(delegate) {
+
+            final CRC32 crc = new CRC32();
+            long        count;
+
+            @Override public int
+            read() throws IOException {
+                byte[] ba = new byte[1];
+                return this.read(ba, 0, 1) == -1 ? -1 : ba[0] & 0xff;
+            }
+
+            @Override @NotNullByDefault(false) public int
+            read(byte[] b, int off, int len) throws IOException {
+
+                int n = this.in.read(b, off, len);
+                if (n == -1) {
+                    if (this.count != record.size) {
+                        throw new ZipException(
+                            "Entry \""
+                            + record
+                            + "\": Size is "
+                            + this.count
+                            + " instead of "
+                            + record.size
+                        );
+                    }
+                    if (checkCrc && this.crc.getValue() != record.crc) throw new ZipException("Entry \"" + record + "\": CRC mismatch");
+                    return -1;
+                }
+
+                this.crc.update(b, off, n);
+                this.count += n;
+                return n;
+            }
+
+            @Override public long
+            skip(long n) throws IOException {
+                byte[] buffer = new byte[(int) Math.min(n, 8192)];
+                long   result = 0;
+                while (result < n) {
+                    int x = this.read(buffer, 0, (int) Math.min(n - result, buffer.length));
+                    if (x == -1) break;
+                    result += x;
+                }
+                return result;
+            }
+
+            @Override public boolean
+            markSupported() { return false; }
+        };
+    }
+
+    private List<ZipEntryRecord>
+    readCentralDirectory() throws IOException {
+
+        ByteBuffer cd = ZipReader.readFully(this.input, this.cdStart, (int) this.cdSize);
+
+        List<ZipEntryRecord> result = new ArrayList<>((int) Math.min(this.entryCount, 100000));
+        while (cd.hasRemaining()) {
+            ZipEntryRecord record = ZipEntryRecord.readCentral(cd);
+            record.localHeaderOffset += this.delta;
+            result.add(record);
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+    static ByteBuffer
+    readFully(RandomAccessInput input, long position, int length) throws IOException {
+
+        ByteBuffer result = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (result.hasRemaining()) {
+            if (input.read(result, position + result.position()) == -1) throw new EOFException();
+        }
+        result.flip();
+
+        return result;
+    }
+}
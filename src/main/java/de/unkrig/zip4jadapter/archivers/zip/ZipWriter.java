@@ -0,0 +1,1547 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import de.unkrig.commons.nullanalysis.NotNullByDefault;
+import de.unkrig.commons.nullanalysis.Nullable;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
+import net.lingala.zip4j.model.ZipParameters;
+
+/**
+ * Writes ZIP archives record by record. In contrast with zip4j's {@link ZipOutputStream}, this writer can not only
+ * compress entry data, but also store entries whose data is already compressed (see {@link
+ * #putRawEntry(ZipEntryRecord, byte[], int, int)}).
+ * <p>
+ *   AES-encrypted entries are encrypted with the {@link AesCipher} (see {@link #putAesEntry(ZipEntryRecord, int,
+ *   char[], long)}); other encrypted entries are delegated to zip4j (see {@link #putZip4jEntry(ZipParameters, char[])}).
+ * </p>
+ */
+final
+class ZipWriter implements Closeable {
+
+    /**
+     * The size of the regions in which files are memory-mapped.
+     */
+    private static final long MAP_REGION_SIZE = 1 << 26;
+
+    /**
+     * The number of uncompressed bytes that a {@link ParallelDeflatingEntryOutputStream} deflates per task.
+     */
+    private static final int PARALLEL_DEFLATE_CHUNK_SIZE = 1 << 17;
+
+    /**
+     * The size of the DEFLATE window, which is also the maximum useful size of a preset dictionary.
+     */
+    private static final int DEFLATE_WINDOW_SIZE = 1 << 15;
+
+    /**
+     * {@code Deflater.setInput(ByteBuffer)}, which is only available as of Java 11, or {@code null}.
+     */
+    @Nullable private static final MethodHandle DEFLATER_SET_INPUT_BYTE_BUFFER;
+    static {
+        MethodHandle mh;
+        try {
+            mh = MethodHandles.publicLookup().findVirtual(
+                Deflater.class,
+                "setInput",
+                MethodType.methodType(void.class, ByteBuffer.class)
+            );
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            mh = null;
+        }
+        DEFLATER_SET_INPUT_BYTE_BUFFER = mh;
+    }
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /**
+     * {@code Deflater.deflate(ByteBuffer)}, which is only available as of Java 11, or {@code null}.
+     */
+    @Nullable private static final MethodHandle DEFLATER_DEFLATE_BYTE_BUFFER;
+    static {
+        MethodHandle mh;
+        try {
+            mh = MethodHandles.publicLookup().findVirtual(
+                Deflater.class,
+                "deflate",
+                MethodType.methodType(int.class, ByteBuffer.class)
+            );
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            mh = null;
+        }
+        DEFLATER_DEFLATE_BYTE_BUFFER = mh;
+    }
+
+    private final OutputStream         out;
+    private long                       position;
+
+    /**
+     * Non-{@code null} iff this writer produces a split archive.
+     */
+    @Nullable private final VolumeOutputStream volumes;
+
+    private final List<ZipEntryRecord> records = new ArrayList<>();
+    @Nullable private EntryOutputStream currentEntry;
+
+    /**
+     * The names of the retained entries that are to be replaced by new entries with the same name; see {@link
+     * #replaceRetainedEntries()}.
+     */
+    private final Set<String>          replaceableNames = new HashSet<>();
+    private final List<ZipEntryRecord> replacedRecords  = new ArrayList<>();
+    private boolean                    finished;
+
+    /**
+     * See {@link ZipArchiveFormat#setOutputSortedCentralDirectory(boolean)}.
+     */
+    private final boolean sortCentralDirectory = ZipArchiveFormat.getOutputSortedCentralDirectory();
+
+    /**
+     * Non-{@code null} iff the completed entries are periodically persisted.
+     */
+    @Nullable private Checkpoint checkpoint;
+
+    ZipWriter(OutputStream out) {
+        this.out     = out;
+        this.volumes = out instanceof VolumeOutputStream ? (VolumeOutputStream) out : null;
+    }
+
+    /**
+     * Continues writing an archive whose first <var>position</var> bytes hold the given entries.
+     */
+    ZipWriter(OutputStream out, long position, List<ZipEntryRecord> records) {
+        this(out);
+        this.position = position;
+        this.records.addAll(records);
+    }
+
+    /**
+     * Lets each new entry replace the retained entry (see {@link #ZipWriter(OutputStream, long, List)}) with the same
+     * name, if any. When the archive is {@link #finish() finished}, the data of the replaced entries is removed from
+     * the archive file; thus the writer must write to a {@link FileChannel} through a {@link ChannelOutputStream}.
+     */
+    void
+    replaceRetainedEntries() {
+        for (ZipEntryRecord r : this.records) this.replaceableNames.add(r.getName());
+    }
+
+    /**
+     * Persists the completed entries in the given <var>checkpoint</var> whenever it {@link Checkpoint#isDue() is
+     * due}, and deletes it when the archive is finished.
+     */
+    void
+    setCheckpoint(Checkpoint checkpoint) { this.checkpoint = checkpoint; }
+
+    /**
+     * @return The number of bytes written so far
+     */
+    long
+    position() { return this.position; }
+
+    /**
+     * Writes an entry whose CRC, size, compressed size and compression method are already set in the
+     * <var>record</var>, and whose (compressed) data is the given byte array range.
+     * <p>
+     *   Iff the <var>record</var> {@link ZipEntryRecord#hasDataDescriptor() has a data descriptor}, then a data
+     *   descriptor is written after the data. (This is relevant for entries encrypted with "ZIP standard
+     *   encryption", because their encryption header depends on that flag.)
+     * </p>
+     */
+    void
+    putRawEntry(ZipEntryRecord record, byte[] data, int off, int len) throws IOException {
+
+        assert len == record.compressedSize;
+
+        boolean zip64 = this.putLocalFileHeader(record);
+        this.write(data, off, len);
+        this.putDataDescriptor(record, zip64);
+    }
+
+    /**
+     * Like {@link #putRawEntry(ZipEntryRecord, byte[], int, int)}, but copies the (compressed) data from the given
+     * <var>input</var>.
+     */
+    void
+    putRawEntry(ZipEntryRecord record, RandomAccessInput input, long dataOffset) throws IOException {
+
+        boolean zip64 = this.putLocalFileHeader(record);
+
+        // Iff we write to a channel, then let the kernel copy the data.
+        if (this.out instanceof ChannelOutputStream) {
+            ((ChannelOutputStream) this.out).transferFrom(input, dataOffset, record.compressedSize);
+            this.position += record.compressedSize;
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            for (long pos = dataOffset, end = dataOffset + record.compressedSize; pos < end;) {
+                buffer.clear();
+                if (end - pos < buffer.capacity()) buffer.limit((int) (end - pos));
+                int n = input.read(buffer, pos);
+                if (n == -1) throw new EOFException();
+                this.write(buffer.array(), 0, n);
+                pos += n;
+            }
+        }
+
+        this.putDataDescriptor(record, zip64);
+    }
+
+    /**
+     * Writes a STORED entry with the contents of the <var>source</var> file. The CRC is computed over memory-mapped
+     * regions of the file, and the data is then copied like {@link #putRawEntry(ZipEntryRecord, RandomAccessInput,
+     * long)} does, i.e. without passing it through the heap iff this writer writes to a channel.
+     */
+    void
+    putStoredEntry(ZipEntryRecord record, FileChannel source) throws IOException {
+
+        long size = source.size();
+
+        record.method         = ZipFormat.METHOD_STORED;
+        record.crc            = ZipWriter.crc(source, size);
+        record.size           = size;
+        record.compressedSize = size;
+
+        this.putRawEntry(record, RandomAccessInput.of(source), 0);
+    }
+
+    /**
+     * @return The CRC32 of the first <var>size</var> bytes of the <var>source</var> file, computed over the
+     *         memory-mapped file
+     */
+    static long
+    crc(FileChannel source, long size) throws IOException {
+
+        CRC32 crc = new CRC32();
+        for (long pos = 0; pos < size; pos += ZipWriter.MAP_REGION_SIZE) {
+            crc.update(source.map(MapMode.READ_ONLY, pos, Math.min(size - pos, ZipWriter.MAP_REGION_SIZE)));
+        }
+
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the first <var>size</var> bytes of the <var>source</var> file to the <var>entryOutputStream</var>. Iff
+     * that stream was returned by {@link #putDeflatedEntry(ZipEntryRecord, int, long)} or {@link
+     * #putAesEntry(ZipEntryRecord, int, char[], long)}, and the JRE supports {@code Deflater.setInput(ByteBuffer)},
+     * then memory-mapped regions of the file are fed directly into the deflater, without copying them to the heap.
+     */
+    static void
+    write(OutputStream entryOutputStream, FileChannel source, long size) throws IOException {
+
+        for (long pos = 0; pos < size; pos += ZipWriter.MAP_REGION_SIZE) {
+            ZipWriter.write(
+                entryOutputStream,
+                source.map(MapMode.READ_ONLY, pos, Math.min(size - pos, ZipWriter.MAP_REGION_SIZE))
+            );
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the <var>data</var> to the <var>entryOutputStream</var>. Iff that stream was
+     * returned by {@link #putDeflatedEntry(ZipEntryRecord, int, long)} or {@link #putAesEntry(ZipEntryRecord, int,
+     * char[], long)}, and the JRE supports {@code Deflater.setInput(ByteBuffer)}, then the <var>data</var> is fed
+     * directly into the deflater; otherwise it is copied through a heap buffer.
+     */
+    static void
+    write(OutputStream entryOutputStream, ByteBuffer data) throws IOException {
+
+        if (entryOutputStream instanceof DeflatingEntryOutputStream && ZipWriter.DEFLATER_SET_INPUT_BYTE_BUFFER != null) {
+            ((DeflatingEntryOutputStream) entryOutputStream).write(data);
+            return;
+        }
+
+        byte[] buffer = new byte[Math.min(data.remaining(), 65536)];
+        while (data.hasRemaining()) {
+            int n = Math.min(data.remaining(), buffer.length);
+            data.get(buffer, 0, n);
+            entryOutputStream.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Writes an entry that was previously prepared with {@link #zip4jEntry(ZipParameters, char[], byte[])}.
+     */
+    void
+    putPreparedEntry(PreparedEntry pe) throws IOException {
+        this.putRawEntry(pe.record, pe.data, 0, pe.data.length);
+    }
+
+    private boolean
+    putLocalFileHeader(ZipEntryRecord record) throws IOException {
+        this.closeEntry();
+
+        boolean zip64 = record.size >= ZipFormat.ZIP64_MAGIC || record.compressedSize >= ZipFormat.ZIP64_MAGIC;
+        this.putLocalFileHeader(record, zip64);
+
+        return zip64;
+    }
+
+    /**
+     * Writes the <var>record</var>'s local file header, and sets its {@link ZipEntryRecord#localHeaderOffset} and
+     * {@link ZipEntryRecord#diskNumberStart}.
+     */
+    private void
+    putLocalFileHeader(ZipEntryRecord record, boolean zip64) throws IOException {
+
+        ByteBuffer bb = ByteBuffer.allocate(record.localLength(zip64));
+        record.writeLocal(bb, zip64);
+
+        VolumeOutputStream vos = this.volumes;
+        if (vos == null) {
+            record.localHeaderOffset = this.position;
+            record.diskNumberStart   = 0;
+        } else {
+            vos.reserve(bb.position());
+            record.localHeaderOffset = vos.volumePosition();
+            record.diskNumberStart   = vos.volumeIndex();
+        }
+
+        this.write(bb);
+    }
+
+    private void
+    putDataDescriptor(ZipEntryRecord record, boolean zip64) throws IOException {
+
+        if (record.hasDataDescriptor()) {
+            ByteBuffer bb = ByteBuffer.allocate(zip64 ? 24 : 16);
+            record.writeDataDescriptor(bb, zip64);
+            this.writeHeader(bb);
+        }
+
+        this.addRecord(record);
+    }
+
+    /**
+     * Writes the local file header for a DEFLATED entry, and returns an {@link OutputStream} to which the uncompressed
+     * entry data must be written; the entry is completed by {@link #closeEntry()}.
+     *
+     * @param sizeHint The expected uncompressed size, or -1
+     */
+    OutputStream
+    putDeflatedEntry(ZipEntryRecord record, int level, long sizeHint) throws IOException {
+        this.closeEntry();
+
+        record.method  = ZipFormat.METHOD_DEFLATED;
+        record.flags  |= ZipFormat.FLAG_DATA_DESCRIPTOR | ZipFormat.deflateOptionFlags(level);
+
+        boolean zip64 = sizeHint >= ZipFormat.ZIP64_MAGIC;
+        this.putLocalFileHeader(record, zip64);
+
+        return this.currentEntry = this.deflatingEntryOutputStream(record, level, zip64, null, sizeHint);
+    }
+
+    /**
+     * Like {@link #putDeflatedEntry(ZipEntryRecord, int, long)}, but encrypts the entry data with 256 bit WinZip AES
+     * ("AE-2").
+     */
+    OutputStream
+    putAesEntry(ZipEntryRecord record, int level, char[] password, long sizeHint) throws IOException {
+        this.closeEntry();
+
+        AesCipher cipher = AesCipher.forEncryption(password, AesCipher.DEFAULT_STRENGTH);
+
+        ZipWriter.setAes(record, level);
+        record.flags |= ZipFormat.FLAG_DATA_DESCRIPTOR;
+
+        boolean zip64 = sizeHint >= ZipFormat.ZIP64_MAGIC;
+        this.putLocalFileHeader(record, zip64);
+
+        byte[] header = cipher.header();
+        this.write(header, 0, header.length);
+
+        return this.currentEntry = this.deflatingEntryOutputStream(record, level, zip64, cipher, sizeHint);
+    }
+
+    /**
+     * @return A {@link ParallelDeflatingEntryOutputStream} iff {@link ZipArchiveFormat#setParallelDeflateThreads(int)
+     *         parallel deflation} is configured and the entry is not known to fit into one chunk, otherwise a {@link
+     *         DeflatingEntryOutputStream}
+     */
+    private EntryOutputStream
+    deflatingEntryOutputStream(
+        ZipEntryRecord      record,
+        int                 level,
+        boolean             zip64,
+        @Nullable AesCipher cipher,
+        long                sizeHint
+    ) throws IOException {
+        int threads = ZipArchiveFormat.getParallelDeflateThreads();
+        if (threads > 1 && (sizeHint < 0 || sizeHint > ZipWriter.PARALLEL_DEFLATE_CHUNK_SIZE)) {
+            return new ParallelDeflatingEntryOutputStream(record, level, zip64, cipher, threads);
+        }
+        return new DeflatingEntryOutputStream(record, level, zip64, cipher);
+    }
+
+    /**
+     * Compresses and encrypts the given entry <var>data</var> with 256 bit WinZip AES ("AE-2") in memory. This allows
+     * for preparing entries concurrently, and writing them later, in order.
+     */
+    static PreparedEntry
+    aesEntry(ZipEntryRecord record, int level, char[] password, byte[] data) throws IOException {
+
+        AesCipher cipher = AesCipher.forEncryption(password, AesCipher.DEFAULT_STRENGTH);
+
+        byte[] header         = cipher.header();
+        byte[] compressedData = ZipWriter.deflate(data, 0, data.length, level);
+        cipher.encrypt(compressedData, 0, compressedData.length);
+        byte[] mac            = cipher.mac();
+
+        byte[] result = Arrays.copyOf(header, header.length + compressedData.length + mac.length);
+        System.arraycopy(compressedData, 0, result, header.length, compressedData.length);
+        System.arraycopy(mac, 0, result, header.length + compressedData.length, mac.length);
+
+        ZipWriter.setAes(record, level);
+        record.size           = data.length;
+        record.compressedSize = result.length;
+
+        return new PreparedEntry(record, result);
+    }
+
+    /**
+     * Configures the <var>record</var> for a DEFLATED, 256 bit WinZip AES ("AE-2") encrypted entry. As with zip4j,
+     * the CRC is zero, because "AE-2" does not store it.
+     */
+    private static void
+    setAes(ZipEntryRecord record, int level) {
+        record.method        = ZipFormat.METHOD_AES;
+        record.flags        |= ZipFormat.FLAG_ENCRYPTED | ZipFormat.deflateOptionFlags(level);
+        record.versionNeeded = ZipFormat.VERSION_AES;
+        record.crc           = 0;
+        record.extra         = ZipFormat.aesExtraField(2, AesCipher.DEFAULT_STRENGTH, ZipFormat.METHOD_DEFLATED);
+    }
+
+    /**
+     * Lets zip4j write one entry, typically because the entry is to be encrypted. Returns an {@link OutputStream} to
+     * which the uncompressed entry data must be written; the entry is completed by {@link #closeEntry()}.
+     */
+    OutputStream
+    putZip4jEntry(ZipParameters zipParameters, @Nullable char[] password) throws IOException {
+        this.closeEntry();
+
+        // zip4j writes the local file header while the entry is being put.
+        LocalHeaderReservingOutputStream sink   = new LocalHeaderReservingOutputStream();
+        Zip4jEntryOutputStream           result = new Zip4jEntryOutputStream(sink, 0, 0, zipParameters, password);
+        if (!sink.headerWritten) throw new IllegalStateException("zip4j did not write a local file header");
+
+        result.offset = sink.offset;
+        result.disk   = sink.disk;
+
+        return this.currentEntry = result;
+    }
+
+    /**
+     * Buffers the local file header that zip4j writes until it is complete, and only then writes it (and all following
+     * bytes) to this {@link ZipWriter}. Thus, for a split archive, the space for the <em>actual</em> header (including
+     * its extra fields) can be {@link VolumeOutputStream#reserve(int) reserved}, so that it does not span volumes.
+     */
+    private
+    class LocalHeaderReservingOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        boolean                             headerWritten;
+        long                                offset;
+        int                                 disk;
+
+        @Override public void
+        write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+        @Override @NotNullByDefault(false) public void
+        write(byte[] b, int off, int len) throws IOException {
+
+            if (this.headerWritten) {
+                ZipWriter.this.write(b, off, len);
+                return;
+            }
+
+            this.header.write(b, off, len);
+            if (this.header.size() < ZipFormat.LOCAL_FILE_HEADER_LENGTH) return;
+
+            byte[]     ba           = this.header.toByteArray();
+            ByteBuffer bb           = ByteBuffer.wrap(ba).order(ByteOrder.LITTLE_ENDIAN);
+            int        headerLength = (
+                ZipFormat.LOCAL_FILE_HEADER_LENGTH
+                + (bb.getShort(26) & 0xffff)
+                + (bb.getShort(28) & 0xffff)
+            );
+            if (ba.length < headerLength) return;
+
+            VolumeOutputStream vos = ZipWriter.this.volumes;
+            if (vos == null) {
+                this.offset = ZipWriter.this.position;
+            } else {
+                vos.reserve(headerLength);
+                this.offset = vos.volumePosition();
+                this.disk   = vos.volumeIndex();
+            }
+
+            this.headerWritten = true;
+            ZipWriter.this.write(ba, 0, ba.length);
+        }
+    }
+
+    /**
+     * An entry's central directory record plus its (compressed and/or encrypted) data, ready to be written with
+     * {@link #putPreparedEntry(PreparedEntry)}.
+     */
+    static final
+    class PreparedEntry {
+
+        final ZipEntryRecord record;
+        final byte[]         data;
+
+        PreparedEntry(ZipEntryRecord record, byte[] data) {
+            this.record = record;
+            this.data   = data;
+        }
+    }
+
+    /**
+     * Lets zip4j compress and encrypt the given entry <var>data</var> in memory. This allows for preparing entries
+     * concurrently, and writing them later, in order.
+     */
+    static PreparedEntry
+    zip4jEntry(ZipParameters zipParameters, @Nullable char[] password, byte[] data) throws IOException {
+
+        ByteArrayOutputStream  baos = new ByteArrayOutputStream(data.length + 256);
+        Zip4jEntryOutputStream zeos = new Zip4jEntryOutputStream(baos, 0, 0, zipParameters, password);
+        zeos.write(data);
+        ZipEntryRecord record = zeos.finishEntry();
+
+        // Strip zip4j's local file header and data descriptor.
+        ByteBuffer bb         = ByteBuffer.wrap(baos.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        int        dataOffset = (
+            ZipFormat.LOCAL_FILE_HEADER_LENGTH
+            + (bb.getShort(26) & 0xffff)
+            + (bb.getShort(28) & 0xffff)
+        );
+
+        return new PreparedEntry(
+            record,
+            Arrays.copyOfRange(bb.array(), dataOffset, dataOffset + (int) record.compressedSize)
+        );
+    }
+
+    /**
+     * Completes the current entry, if any.
+     */
+    void
+    closeEntry() throws IOException {
+
+        EntryOutputStream eos = this.currentEntry;
+        if (eos == null) return;
+
+        this.currentEntry = null;
+        this.addRecord(eos.finishEntry());
+    }
+
+    private void
+    addRecord(ZipEntryRecord record) throws IOException {
+
+        String name = record.getName();
+        if (this.replaceableNames.remove(name)) {
+            for (Iterator<ZipEntryRecord> it = this.records.iterator(); it.hasNext();) {
+                ZipEntryRecord r = it.next();
+                if (r.getName().equals(name)) {
+                    it.remove();
+                    this.replacedRecords.add(r);
+                }
+            }
+        }
+
+        this.records.add(record);
+
+        Checkpoint cp = this.checkpoint;
+        if (cp != null && cp.isDue()) {
+
+            // The checkpoint must not describe data that is not yet durable.
+            if (this.out instanceof ChannelOutputStream) {
+                ((ChannelOutputStream) this.out).force();
+            } else {
+                this.out.flush();
+            }
+            cp.write(this.position, this.records);
+        }
+    }
+
+    /**
+     * Removes the data of the replaced entries (see {@link #replaceRetainedEntries()}) from the archive file, by
+     * moving the data of the following entries towards the start of the file; thus sequential readers, which scan
+     * the local headers, don't see the replaced entries.
+     */
+    private void
+    removeReplacedEntries() throws IOException {
+
+        this.out.flush();
+
+        FileChannel fc = ((ChannelOutputStream) this.out).fileChannel();
+        assert fc != null;
+
+        Set<ZipEntryRecord> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+        replaced.addAll(this.replacedRecords);
+        this.replacedRecords.clear();
+
+        List<ZipEntryRecord> all = new ArrayList<>(this.records);
+        all.addAll(replaced);
+        all.sort(Comparator.comparingLong(r -> r.localHeaderOffset));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+        long       to     = all.get(0).localHeaderOffset;
+        for (int i = 0; i < all.size(); i++) {
+            ZipEntryRecord r    = all.get(i);
+            long           from = r.localHeaderOffset;
+            long           end  = i + 1 < all.size() ? all.get(i + 1).localHeaderOffset : this.position;
+
+            if (replaced.contains(r)) continue;
+
+            r.localHeaderOffset = to;
+            if (from == to) {
+                to = end;
+                continue;
+            }
+
+            // Move the local header, the data and the data descriptor (if any) of the entry.
+            while (from < end) {
+                buffer.clear();
+                if (end - from < buffer.capacity()) buffer.limit((int) (end - from));
+                int n = fc.read(buffer, from);
+                if (n == -1) throw new EOFException();
+                buffer.flip();
+                while (buffer.hasRemaining()) to += fc.write(buffer, to);
+                from += n;
+            }
+        }
+
+        fc.truncate(to);
+        fc.position(to);
+        this.position = to;
+    }
+
+    /**
+     * Completes the current entry, if any, and writes the central directory. Has no effect if this writer is already
+     * finished.
+     */
+    void
+    finish() throws IOException {
+
+        if (this.finished) return;
+
+        this.closeEntry();
+
+        if (!this.replacedRecords.isEmpty()) this.removeReplacedEntries();
+
+        List<ZipEntryRecord> records = this.records;
+        if (this.sortCentralDirectory) records = ZipWriter.sortedCentralDirectory(records);
+
+        // Compose the central directory in memory, and write it in one go.
+        long cdSize = 0;
+        for (ZipEntryRecord r : records) cdSize += r.centralLength();
+        if (cdSize > Integer.MAX_VALUE) throw new ZipException("Central directory too large");
+
+        VolumeOutputStream vos = this.volumes;
+        if (vos == null) {
+            long       cdOffset = this.position;
+            ByteBuffer bb       = ByteBuffer.allocate((int) cdSize);
+            for (ZipEntryRecord r : records) r.writeCentral(bb);
+            this.write(bb);
+
+            this.writeEndOfCentralDirectory(records.size(), 0, cdOffset, cdSize, 0, records.size());
+        } else {
+
+            // A split archive's central directory may span volumes, but none of its records.
+            int  cdDisk = -1, lastDisk = -1, entriesOnLastDisk = 0;
+            long cdOffset = 0;
+            for (ZipEntryRecord r : records) {
+                ByteBuffer bb = ByteBuffer.allocate(r.centralLength());
+                r.writeCentral(bb);
+                vos.reserve(bb.position());
+                if (cdDisk == -1) {
+                    cdDisk   = vos.volumeIndex();
+                    cdOffset = vos.volumePosition();
+                }
+                if (vos.volumeIndex() != lastDisk) {
+                    lastDisk          = vos.volumeIndex();
+                    entriesOnLastDisk = 0;
+                }
+                entriesOnLastDisk++;
+                this.write(bb);
+            }
+            if (cdDisk == -1) {
+                cdDisk   = vos.volumeIndex();
+                cdOffset = vos.volumePosition();
+            }
+
+            this.writeEndOfCentralDirectory(
+                records.size(),
+                cdDisk,
+                cdOffset,
+                cdSize,
+                lastDisk,
+                entriesOnLastDisk
+            );
+            vos.finish();
+        }
+
+        this.out.flush();
+        this.finished = true;
+
+        Checkpoint cp = this.checkpoint;
+        if (cp != null) cp.delete();
+    }
+
+    /**
+     * Sorts the <var>records</var> by name (byte by byte, unsigned), and marks the central directory as sorted, so
+     * that the {@link ZipReader} can look up entries by binary search: The first record gets a "sorted central
+     * directory" extra field (ID 0x6f73), which holds the "stride" <var>k</var> (four bytes) and the offsets of the
+     * records 0, <var>k</var>, 2<var>k</var>, ... relative to the start of the central directory (eight bytes each).
+     * <p>
+     *   Iff not all names are ASCII or UTF-8, then the <var>records</var> are returned as they are.
+     * </p>
+     */
+    static List<ZipEntryRecord>
+    sortedCentralDirectory(List<ZipEntryRecord> records) throws ZipException {
+
+        if (records.isEmpty()) return records;
+
+        for (ZipEntryRecord r : records) {
+            if ((r.flags & ZipFormat.FLAG_UTF8) != 0) continue;
+            for (byte b : r.nameBytes) {
+                if (b < 0) return records;
+            }
+        }
+
+        List<ZipEntryRecord> result = new ArrayList<>(records);
+        result.sort((r1, r2) -> ZipFormat.compareNames(
+            ByteBuffer.wrap(r1.nameBytes),
+            0,
+            r1.nameBytes.length,
+            r2.nameBytes
+        ));
+
+        // At most 4096 samples, and at least 16 records per sample.
+        int stride  = Math.max(16, (result.size() + 4095) / 4096);
+        int samples = (result.size() + stride - 1) / stride;
+
+        // Work on a copy of the first record, because the writer's record must not change.
+        ZipEntryRecord first = result.get(0);
+        ByteBuffer     bb    = ByteBuffer.allocate(first.centralLength());
+        first.writeCentral(bb);
+        bb.flip();
+        first = ZipEntryRecord.readCentral(bb);
+
+        int extraLength = first.extra.length + 8 + 8 * samples;
+        if (extraLength > 0xffff - 32) return result;
+
+        ByteBuffer extra = ByteBuffer.allocate(extraLength).order(ByteOrder.LITTLE_ENDIAN);
+        extra.put(first.extra);
+        extra.putShort((short) ZipFormat.EXTRA_ID_SORTED_CD);
+        extra.putShort((short) (4 + 8 * samples));
+        extra.putInt(stride);
+        first.extra = extra.array();
+        result.set(0, first);
+
+        long offset = 0;
+        for (int i = 0; i < result.size(); i++) {
+            if (i % stride == 0) extra.putLong(offset);
+            offset += result.get(i).centralLength();
+        }
+
+        return result;
+    }
+
+    @Override public void
+    close() throws IOException {
+        try {
+            this.finish();
+        } finally {
+            this.out.close();
+        }
+    }
+
+    /**
+     * @param cdDisk          The index of the volume where the central directory starts (0 iff not split)
+     * @param thisDisk        The index of the last volume (0 iff not split)
+     * @param entriesThisDisk The number of central directory records on the last volume
+     */
+    private void
+    writeEndOfCentralDirectory(
+        int  entryCount,
+        int  cdDisk,
+        long cdOffset,
+        long cdSize,
+        int  thisDisk,
+        int  entriesThisDisk
+    ) throws IOException {
+
+        boolean zip64 = (
+            entryCount  >= ZipFormat.ZIP64_MAGIC_SHORT
+            || cdOffset >= ZipFormat.ZIP64_MAGIC
+            || cdSize   >= ZipFormat.ZIP64_MAGIC
+        );
+
+        ByteBuffer bb = ByteBuffer.allocate(
+            ZipFormat.END_OF_CENTRAL_DIRECTORY_LENGTH
+            + (zip64 ? ZipFormat.ZIP64_END_OF_CENTRAL_DIR_LENGTH + ZipFormat.ZIP64_LOCATOR_LENGTH : 0)
+        ).order(ByteOrder.LITTLE_ENDIAN);
+
+        // The end of central directory records must not span volumes.
+        long zip64EocdOffset = this.position;
+        VolumeOutputStream vos = this.volumes;
+        if (vos != null) {
+            vos.reserve(bb.capacity());
+            if (vos.volumeIndex() != thisDisk) {
+                thisDisk        = vos.volumeIndex();
+                entriesThisDisk = 0;
+            }
+            zip64EocdOffset = vos.volumePosition();
+        }
+
+        if (zip64) {
+            bb.putInt(ZipFormat.ZIP64_END_OF_CENTRAL_DIRECTORY);
+            bb.putLong(ZipFormat.ZIP64_END_OF_CENTRAL_DIR_LENGTH - 12);
+            bb.putShort((short) ZipFormat.VERSION_ZIP64);
+            bb.putShort((short) ZipFormat.VERSION_ZIP64);
+            bb.putInt(thisDisk);           // Number of this disk
+            bb.putInt(cdDisk);             // Disk where central directory starts
+            bb.putLong(entriesThisDisk);   // Number of central directory records on this disk
+            bb.putLong(entryCount);        // Total number of central directory records
+            bb.putLong(cdSize);
+            bb.putLong(cdOffset);
+
+            bb.putInt(ZipFormat.ZIP64_END_OF_CENTRAL_DIR_LOCATOR);
+            bb.putInt(thisDisk);           // Disk where ZIP64 end of central directory record starts
+            bb.putLong(zip64EocdOffset);
+            bb.putInt(thisDisk + 1);       // Total number of disks
+        }
+
+        bb.putInt(ZipFormat.END_OF_CENTRAL_DIRECTORY);
+        bb.putShort((short) Math.min(thisDisk, ZipFormat.ZIP64_MAGIC_SHORT)); // Number of this disk
+        bb.putShort((short) Math.min(cdDisk, ZipFormat.ZIP64_MAGIC_SHORT));   // Disk where central directory starts
+        bb.putShort((short) Math.min(entriesThisDisk, ZipFormat.ZIP64_MAGIC_SHORT));
+        bb.putShort((short) Math.min(entryCount, ZipFormat.ZIP64_MAGIC_SHORT));
+        bb.putInt((int) Math.min(cdSize, ZipFormat.ZIP64_MAGIC));
+        bb.putInt((int) Math.min(cdOffset, ZipFormat.ZIP64_MAGIC));
+        bb.putShort((short) 0);            // Comment length
+
+        this.write(bb);
+    }
+
+    /**
+     * Compresses the given byte array range into a raw DEFLATE stream.
+     */
+    static byte[]
+    deflate(byte[] data, int off, int len, int level) {
+
+        Deflater deflater = ZlibPool.getDeflater(level);
+        try {
+            deflater.setInput(data, off, len);
+            deflater.finish();
+
+            ByteArrayOutputStream baos   = new ByteArrayOutputStream(len / 2 + 64);
+            byte[]                buffer = new byte[8192];
+            while (!deflater.finished()) baos.write(buffer, 0, deflater.deflate(buffer));
+
+            return baos.toByteArray();
+        } finally {
+            ZlibPool.release(deflater, level);
+        }
+    }
+
+    private void
+    write(ByteBuffer bb) throws IOException { this.write(bb.array(), bb.arrayOffset(), bb.position()); }
+
+    /**
+     * Writes the header in the <var>bb</var> such that it does not span two volumes.
+     */
+    private void
+    writeHeader(ByteBuffer bb) throws IOException {
+        VolumeOutputStream vos = this.volumes;
+        if (vos != null) vos.reserve(bb.position());
+        this.write(bb);
+    }
+
+    void
+    write(byte[] b, int off, int len) throws IOException {
+        this.out.write(b, off, len);
+        this.position += len;
+    }
+
+    private abstract static
+    class EntryOutputStream extends OutputStream {
+
+        @Override public void
+        write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+        /**
+         * Completes the entry, and returns its central directory record.
+         */
+        abstract ZipEntryRecord
+        finishEntry() throws IOException;
+    }
+
+    /**
+     * Deflates, and, iff a {@link AesCipher} is given, encrypts the entry data.
+     */
+    private
+    class DeflatingEntryOutputStream extends EntryOutputStream {
+
+        private final ZipEntryRecord      record;
+        private final boolean             zip64;
+        private final int                 level;
+        private final Deflater            deflater;
+        @Nullable private final AesCipher cipher;
+        private final CRC32               crc    = new CRC32();
+        private final byte[]              buffer = new byte[8192];
+
+        /**
+         * Non-{@code null} iff the compressed data goes from the deflater to the {@link ChannelOutputStream} without
+         * passing through the heap.
+         */
+        @Nullable private final ByteBuffer directBuffer;
+
+        /**
+         * The number of uncompressed bytes between two "full flush points", or 0; see {@link
+         * ZipArchiveFormat#setOutputEntryIndexInterval(int)}.
+         */
+        private final int        indexInterval;
+        private long             nextFullFlush;
+        private final List<Long> index = new ArrayList<>();
+
+        DeflatingEntryOutputStream(ZipEntryRecord record, int level, boolean zip64, @Nullable AesCipher cipher) {
+            this.record   = record;
+            this.zip64    = zip64;
+            this.level    = level;
+            this.deflater = ZlibPool.getDeflater(level);
+            this.cipher   = cipher;
+
+            this.indexInterval = cipher == null ? ZipArchiveFormat.getOutputEntryIndexInterval() : 0;
+            this.nextFullFlush = this.indexInterval;
+
+            this.directBuffer = (
+                cipher == null
+                && ZipWriter.DEFLATER_DEFLATE_BYTE_BUFFER != null
+                && ZipWriter.this.out instanceof ChannelOutputStream
+            ) ? ByteBuffer.allocateDirect(8192) : null;
+        }
+
+        @Override @NotNullByDefault(false) public void
+        write(byte[] b, int off, int len) throws IOException {
+
+            if (len == 0) return;
+
+            this.crc.update(b, off, len);
+            while (len > 0) {
+                int n = this.chunkLength(len);
+                this.deflater.setInput(b, off, n);
+                while (!this.deflater.needsInput()) this.drain();
+                off += n;
+                len -= n;
+                this.fullFlushIfDue();
+            }
+        }
+
+        /**
+         * Feeds the <var>data</var> directly into the deflater; requires {@code Deflater.setInput(ByteBuffer)}.
+         */
+        void
+        write(ByteBuffer data) throws IOException {
+
+            MethodHandle setInput = ZipWriter.DEFLATER_SET_INPUT_BYTE_BUFFER;
+            assert setInput != null;
+
+            if (!data.hasRemaining()) return;
+
+            this.crc.update(data.duplicate());
+            while (data.hasRemaining()) {
+                ByteBuffer chunk = data.duplicate();
+                chunk.limit(chunk.position() + this.chunkLength(chunk.remaining()));
+                try {
+                    setInput.invokeExact(this.deflater, chunk);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new AssertionError(t);
+                }
+                while (!this.deflater.needsInput()) this.drain();
+                data.position(chunk.position());
+                this.fullFlushIfDue();
+            }
+
+            // The deflater keeps a reference to the (consumed) buffer, which the caller may re-use.
+            this.deflater.setInput(ZipWriter.NO_BYTES);
+        }
+
+        /**
+         * @return How many of the next <var>length</var> bytes can be fed into the deflater before the next full
+         *         flush point
+         */
+        private int
+        chunkLength(int length) {
+            if (this.indexInterval == 0) return length;
+            return (int) Math.min(length, this.nextFullFlush - this.deflater.getBytesRead());
+        }
+
+        /**
+         * Iff the next full flush point is reached, then completes the current DEFLATE block, byte-aligns the output
+         * and resets the dictionary, so that inflation can start at this point, and records the point in the index.
+         */
+        private void
+        fullFlushIfDue() throws IOException {
+
+            if (this.indexInterval == 0 || this.deflater.getBytesRead() != this.nextFullFlush) return;
+
+            for (;;) {
+                int n = this.deflater.deflate(this.buffer, 0, this.buffer.length, Deflater.FULL_FLUSH);
+                ZipWriter.this.write(this.buffer, 0, n);
+                if (n < this.buffer.length) break;
+            }
+
+            this.index.add(this.deflater.getBytesWritten());
+            this.index.add(this.deflater.getBytesRead());
+            this.nextFullFlush += this.indexInterval;
+        }
+
+        @Override ZipEntryRecord
+        finishEntry() throws IOException {
+
+            ZipEntryRecord r = this.record;
+            try {
+                this.deflater.finish();
+                while (!this.deflater.finished()) this.drain();
+
+                r.crc            = this.crc.getValue();
+                r.size           = this.deflater.getBytesRead();
+                r.compressedSize = this.deflater.getBytesWritten();
+            } finally {
+                ZlibPool.release(this.deflater, this.level);
+            }
+
+            ZipWriter.this.finishDeflatedEntry(r, this.zip64, this.cipher, this.index);
+
+            return r;
+        }
+
+        private void
+        drain() throws IOException {
+
+            ByteBuffer db = this.directBuffer;
+            if (db != null) {
+                MethodHandle deflate = ZipWriter.DEFLATER_DEFLATE_BYTE_BUFFER;
+                assert deflate != null;
+
+                db.clear();
+                int n;
+                try {
+                    n = (int) deflate.invokeExact(this.deflater, db);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new AssertionError(t);
+                }
+                if (n == 0) return;
+
+                db.flip();
+                ZipWriter.this.position += n;
+                ((ChannelOutputStream) ZipWriter.this.out).write(db);
+                return;
+            }
+
+            int n = this.deflater.deflate(this.buffer);
+            if (n == 0) return;
+
+            AesCipher cipher = this.cipher;
+            if (cipher != null) cipher.encrypt(this.buffer, 0, n);
+
+            ZipWriter.this.write(this.buffer, 0, n);
+        }
+    }
+
+    /**
+     * Deflates, and, iff a {@link AesCipher} is given, encrypts the entry data, like the {@link
+     * DeflatingEntryOutputStream}, but cuts the data into chunks and deflates these concurrently (in the style of
+     * "pigz"). Each chunk is deflated with the last 32 kB of the preceding chunk as the preset dictionary and ends
+     * with a "sync flush", so that the concatenation of the compressed chunks is one ordinary DEFLATE stream. The CRCs
+     * of the chunks are combined.
+     */
+    private
+    class ParallelDeflatingEntryOutputStream extends EntryOutputStream {
+
+        private final ZipEntryRecord      record;
+        private final boolean             zip64;
+        private final int                 level;
+        @Nullable private final AesCipher cipher;
+        private final int                 parallelism;
+        private final Executor            executor;
+
+        private final Deque<CompletableFuture<DeflatedChunk>> pending = new ArrayDeque<>();
+
+        /**
+         * The input and output buffers for re-use. At most {@link #parallelism} + 1 of each exist; they are accounted
+         * against the {@link MemoryBudget}.
+         */
+        private final Deque<byte[]> freeChunks = new ArrayDeque<>(), freeOutputs = new ArrayDeque<>();
+        private final long          reserved;
+        private boolean             released;
+
+        /**
+         * The chunk that is currently being filled, or {@code null} after the last chunk was submitted, or after a
+         * failure.
+         */
+        @Nullable private byte[] chunk;
+        private int              chunkLength;
+
+        /**
+         * The input of the chunk that was submitted last (which is the preset dictionary of the next chunk), resp. of
+         * the chunk that was written last (which can be re-used as soon as the next chunk is written).
+         */
+        @Nullable private byte[] previousChunk, writtenChunk;
+
+        // The totals of the chunks that were written so far.
+        private long size, compressedSize, crc;
+
+        /**
+         * The number of uncompressed bytes between two "full flush points", or 0; see {@link
+         * ZipArchiveFormat#setOutputEntryIndexInterval(int)}. The full flush points are rounded up to the next chunk
+         * boundary.
+         */
+        private final int        indexInterval;
+        private long             nextFullFlush;
+        private long             submitted;
+        private final List<Long> index = new ArrayList<>();
+
+        ParallelDeflatingEntryOutputStream(
+            ZipEntryRecord      record,
+            int                 level,
+            boolean             zip64,
+            @Nullable AesCipher cipher,
+            int                 parallelism
+        ) throws IOException {
+            this.record      = record;
+            this.zip64       = zip64;
+            this.level       = level;
+            this.cipher      = cipher;
+            this.parallelism = parallelism;
+            this.executor    = WorkerPool.deflaters(parallelism);
+
+            this.indexInterval = cipher == null ? ZipArchiveFormat.getOutputEntryIndexInterval() : 0;
+            this.nextFullFlush = this.indexInterval;
+
+            this.reserved = (parallelism + 1L) * (
+                ZipWriter.PARALLEL_DEFLATE_CHUNK_SIZE
+                + ZipWriter.deflatedChunkCapacity(ZipWriter.PARALLEL_DEFLATE_CHUNK_SIZE)
+            );
+            MemoryBudget.acquire(this.reserved);
+
+            this.chunk = new byte[ZipWriter.PARALLEL_DEFLATE_CHUNK_SIZE];
+        }
+
+        @Override @NotNullByDefault(false) public void
+        write(byte[] b, int off, int len) throws IOException {
+
+            while (len > 0) {
+                byte[] chunk = this.chunk;
+                if (chunk == null) throw new IOException("Entry is incomplete, because a previous write failed");
+
+                int n = Math.min(len, chunk.length - this.chunkLength);
+                System.arraycopy(b, off, chunk, this.chunkLength, n);
+                this.chunkLength += n;
+                off              += n;
+                len              -= n;
+
+                if (this.chunkLength == chunk.length) this.submit(false);
+            }
+        }
+
+        @Override ZipEntryRecord
+        finishEntry() throws IOException {
+
+            try {
+                if (this.chunk == null) throw new IOException("Entry is incomplete, because a previous write failed");
+
+                this.submit(true);
+                while (!this.pending.isEmpty()) this.writeNext();
+            } finally {
+                this.release();
+            }
+
+            ZipEntryRecord r = this.record;
+            r.crc            = this.crc;
+            r.size           = this.size;
+            r.compressedSize = this.compressedSize;
+
+            ZipWriter.this.finishDeflatedEntry(r, this.zip64, this.cipher, this.index);
+
+            return r;
+        }
+
+        /**
+         * Hands the current chunk over to the {@link WorkerPool#deflaters(int) deflater threads}, and then writes
+         * completed chunks until less than {@link #parallelism} chunks are pending. On failure, waits for the pending
+         * chunks and releases the buffers.
+         */
+        private void
+        submit(boolean last) throws IOException {
+
+            final byte[] data   = this.chunk;
+            final int    length = this.chunkLength;
+            assert data != null;
+
+            // At a full flush point, the chunk is deflated without a dictionary.
+            final boolean fullFlush = this.indexInterval > 0 && this.submitted >= this.nextFullFlush;
+            if (fullFlush) {
+                while (this.nextFullFlush <= this.submitted) this.nextFullFlush += this.indexInterval;
+            }
+            final byte[] dictionary = fullFlush ? null : this.previousChunk;
+
+            final byte[] free   = this.freeOutputs.poll();
+            final byte[] output = (
+                free != null
+                ? free
+                : new byte[ZipWriter.deflatedChunkCapacity(ZipWriter.PARALLEL_DEFLATE_CHUNK_SIZE)]
+            );
+
+            this.pending.add(CompletableFuture.supplyAsync(
+                () -> ZipWriter.deflateChunk(data, length, dictionary, this.level, last, fullFlush, output),
+                this.executor
+            ));
+
+            this.submitted     += length;
+            this.previousChunk =  data;
+            this.chunk         =  null;
+            this.chunkLength   =  0;
+
+            try {
+                while (this.pending.size() >= this.parallelism) this.writeNext();
+            } catch (IOException | RuntimeException | Error e) {
+                this.release();
+                throw e;
+            }
+
+            if (!last) {
+                byte[] chunk = this.freeChunks.poll();
+                this.chunk = chunk != null ? chunk : new byte[ZipWriter.PARALLEL_DEFLATE_CHUNK_SIZE];
+            }
+        }
+
+        /**
+         * Waits for the oldest pending chunk, writes its compressed data, and recycles the buffers that are no longer
+         * needed.
+         */
+        private void
+        writeNext() throws IOException {
+
+            CompletableFuture<DeflatedChunk> f = this.pending.poll();
+            assert f != null;
+
+            DeflatedChunk dc;
+            try {
+                dc = f.join();
+            } catch (CompletionException ce) {
+                Throwable cause = ce.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error)            throw (Error) cause;
+                throw ce;
+            }
+
+            if (dc.fullFlush) {
+                this.index.add(this.compressedSize);
+                this.index.add(this.size);
+            }
+
+            AesCipher cipher = this.cipher;
+            if (cipher != null) cipher.encrypt(dc.data, 0, dc.length);
+
+            ZipWriter.this.write(dc.data, 0, dc.length);
+
+            this.crc            =  ZipFormat.crc32Combine(this.crc, dc.crc, dc.uncompressedLength);
+            this.size           += dc.uncompressedLength;
+            this.compressedSize += dc.length;
+
+            // The input of the chunk that was written before was the preset dictionary of this chunk, and is now
+            // no longer needed.
+            this.freeOutputs.add(dc.data);
+            byte[] wc = this.writtenChunk;
+            if (wc != null) this.freeChunks.add(wc);
+            this.writtenChunk = dc.input;
+        }
+
+        /**
+         * Waits for the pending chunks (so that their buffers are no longer in use), and releases the buffers and
+         * their memory. Has no effect if the buffers were already released.
+         */
+        private void
+        release() {
+
+            if (this.released) return;
+            this.released = true;
+
+            for (CompletableFuture<DeflatedChunk> f; (f = this.pending.poll()) != null;) {
+                try {
+                    f.join();
+                } catch (CompletionException ce) {
+                    ;
+                }
+            }
+
+            this.chunk         = null;
+            this.previousChunk = null;
+            this.writtenChunk  = null;
+            this.freeChunks.clear();
+            this.freeOutputs.clear();
+            MemoryBudget.release(this.reserved);
+        }
+    }
+
+    /**
+     * The result of {@link ZipWriter#deflateChunk(byte[], int, byte[], int, boolean, boolean, byte[])}.
+     */
+    private static final
+    class DeflatedChunk {
+
+        final byte[]  input;
+        final byte[]  data;
+        final int     length;
+        final int     uncompressedLength;
+        final long    crc;
+        final boolean fullFlush;
+
+        DeflatedChunk(byte[] input, byte[] data, int length, int uncompressedLength, long crc, boolean fullFlush) {
+            this.input              = input;
+            this.data               = data;
+            this.length             = length;
+            this.uncompressedLength = uncompressedLength;
+            this.crc                = crc;
+            this.fullFlush          = fullFlush;
+        }
+    }
+
+    /**
+     * @return The size of an output buffer that is (practically) always large enough for the deflated data of a chunk
+     *         of the given <var>length</var>
+     */
+    private static int
+    deflatedChunkCapacity(int length) { return length + (length >> 3) + 64; }
+
+    /**
+     * Deflates one chunk of a {@link ParallelDeflatingEntryOutputStream} with a pooled deflater.
+     *
+     * @param dictionary The preceding chunk (the last 32 kB of which are used as the preset dictionary), or {@code
+     *                   null}
+     * @param last       Whether to finish the DEFLATE stream, rather than "sync-flush" it
+     * @param output     Receives the deflated data; replaced with a larger array iff it is too small
+     */
+    static DeflatedChunk
+    deflateChunk(
+        byte[]           data,
+        int              length,
+        @Nullable byte[] dictionary,
+        int              level,
+        boolean          last,
+        boolean          fullFlush,
+        byte[]           output
+    ) {
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        byte[]   result   = output;
+        int      n        = 0;
+        Deflater deflater = ZlibPool.getDeflater(level);
+        try {
+            if (dictionary != null) {
+                int dl = Math.min(dictionary.length, ZipWriter.DEFLATE_WINDOW_SIZE);
+                deflater.setDictionary(dictionary, dictionary.length - dl, dl);
+            }
+            deflater.setInput(data, 0, length);
+            if (last) deflater.finish();
+
+            for (;;) {
+                n += deflater.deflate(result, n, result.length - n, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+
+                // The deflater is done iff it did not fill the output buffer (SYNC_FLUSH), resp. iff it is finished.
+                if (last ? deflater.finished() : n < result.length) break;
+                if (n == result.length) result = Arrays.copyOf(result, 2 * result.length);
+            }
+        } finally {
+            ZlibPool.release(deflater, level);
+        }
+
+        return new DeflatedChunk(data, result, n, length, crc.getValue(), fullFlush);
+    }
+
+    /**
+     * Completes a DEFLATED entry after its data was written: Adds the block index (if any), writes the AES
+     * authentication code (iff a <var>cipher</var> is given), and writes the data descriptor.
+     *
+     * @param index The full flush points (pairs of compressed and uncompressed offsets), or empty
+     */
+    private void
+    finishDeflatedEntry(ZipEntryRecord r, boolean zip64, @Nullable AesCipher cipher, List<Long> index)
+    throws IOException {
+
+        if (!index.isEmpty()) r.extra = ZipWriter.withBlockIndex(r.extra, r.size, index);
+
+        if (cipher != null) {
+            byte[] mac = cipher.mac();
+            this.write(mac, 0, mac.length);
+            r.crc            = 0;
+            r.compressedSize += AesCipher.overhead(AesCipher.DEFAULT_STRENGTH);
+        }
+
+        zip64 |= r.size >= ZipFormat.ZIP64_MAGIC || r.compressedSize >= ZipFormat.ZIP64_MAGIC;
+
+        ByteBuffer bb = ByteBuffer.allocate(zip64 ? 24 : 16);
+        r.writeDataDescriptor(bb, zip64);
+        this.writeHeader(bb);
+    }
+
+    /**
+     * @return The <var>extra</var> field data, plus a "block index" extra field that lists the full flush points
+     *         (compressed offset and uncompressed offset, relative to the start of the entry data, eight bytes
+     *         each); every other point is dropped until the extra field data fit into 64 kB
+     */
+    private static byte[]
+    withBlockIndex(byte[] extra, long size, List<Long> points) {
+
+        // A flush point at the very end of the data is useless.
+        if (points.get(points.size() - 1) == size) points = points.subList(0, points.size() - 2);
+
+        // Leave room for the ZIP64 extended information extra field.
+        int maxPoints = (0xffff - extra.length - 4 - 32) / 16;
+        while (points.size() / 2 > maxPoints) {
+            List<Long> tmp = new ArrayList<>();
+            for (int i = 0; i < points.size(); i += 4) {
+                tmp.add(points.get(i));
+                tmp.add(points.get(i + 1));
+            }
+            points = tmp;
+        }
+        if (points.isEmpty()) return extra;
+
+        ByteBuffer bb = ByteBuffer.allocate(extra.length + 4 + 8 * points.size()).order(ByteOrder.LITTLE_ENDIAN);
+        bb.put(extra);
+        bb.putShort((short) ZipFormat.EXTRA_ID_BLOCK_INDEX);
+        bb.putShort((short) (8 * points.size()));
+        for (long p : points) bb.putLong(p);
+
+        return bb.array();
+    }
+
+    /**
+     * Runs a throw-away zip4j {@link ZipOutputStream} for exactly one entry: The local file header, the entry data
+     * and the data descriptor that zip4j produces are passed through, while the central directory that zip4j writes
+     * on {@link ZipOutputStream#close()} is captured and parsed.
+     */
+    private static
+    class Zip4jEntryOutputStream extends EntryOutputStream {
+
+        private long                        offset;
+        private int                         disk;
+        private final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        private boolean                     entryClosed;
+        private final ZipOutputStream       zos;
+
+        /**
+         * @param sink   Receives the local file header, the entry data and the data descriptor
+         * @param offset The position of the local file header in the archive (resp. in the volume)
+         * @param disk   The index of the volume that the local file header is written to
+         */
+        Zip4jEntryOutputStream(
+            OutputStream         sink,
+            long                 offset,
+            int                  disk,
+            ZipParameters        zipParameters,
+            @Nullable char[]     password
+        ) throws IOException {
+
+            this.offset = offset;
+            this.disk   = disk;
+            this.zos    = new ZipOutputStream(new OutputStream() {
+
+                @Override public void
+                write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+                @Override @NotNullByDefault(false) public void
+                write(byte[] b, int off, int len) throws IOException {
+                    if (Zip4jEntryOutputStream.this.entryClosed) {
+                        Zip4jEntryOutputStream.this.trailer.write(b, off, len);
+                    } else {
+                        sink.write(b, off, len);
+                    }
+                }
+
+                @Override public void
+                close() {}
+            }, password);
+
+            this.zos.putNextEntry(zipParameters);
+        }
+
+        @Override @NotNullByDefault(false) public void
+        write(byte[] b, int off, int len) throws IOException { this.zos.write(b, off, len); }
+
+        @Override ZipEntryRecord
+        finishEntry() throws IOException {
+
+            this.zos.closeEntry();
+            this.entryClosed = true;
+            this.zos.close();
+
+            ZipEntryRecord result = ZipEntryRecord.readCentral(ByteBuffer.wrap(this.trailer.toByteArray()));
+            result.localHeaderOffset = this.offset;
+            result.diskNumberStart   = this.disk;
+            return result;
+        }
+    }
+}
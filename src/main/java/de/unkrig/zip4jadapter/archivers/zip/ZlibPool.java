@@ -0,0 +1,135 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.zip4jadapter.archivers.zip;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pools of "nowrap" {@link Inflater}s and {@link Deflater}s (the latter keyed by compression level), so that
+ * their native zlib state is re-used across entries and streams, instead of being allocated for each entry, and
+ * freed only by {@link Inflater#end()} resp. {@link Deflater#end()} or by garbage collection.
+ * <p>
+ *   Each instance that was obtained from the pool must be released exactly once, and must not be used afterwards.
+ *   The hits and misses are counted in the {@link ZipArchiveStatistics}.
+ * </p>
+ *
+ * @see ZipArchiveFormat#SYSTEM_PROPERTY_ZLIB_POOL_SIZE
+ */
+final
+class ZlibPool {
+
+    private ZlibPool() {}
+
+    /**
+     * The maximum number of idle instances per pool.
+     */
+    private static final int POOL_SIZE = Integer.getInteger(
+        ZipArchiveFormat.SYSTEM_PROPERTY_ZLIB_POOL_SIZE,
+        2 * Runtime.getRuntime().availableProcessors()
+    );
+
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(Math.max(1, ZlibPool.POOL_SIZE));
+
+    /**
+     * Indexed by compression level + 1, i.e. -1 ({@link Deflater#DEFAULT_COMPRESSION}) through 9.
+     */
+    private static final ArrayBlockingQueue<Deflater>[] DEFLATERS;
+    static {
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArrayBlockingQueue<Deflater>[] deflaters = new ArrayBlockingQueue[11];
+        for (int i = 0; i < deflaters.length; i++) deflaters[i] = new ArrayBlockingQueue<>(Math.max(1, ZlibPool.POOL_SIZE));
+        DEFLATERS = deflaters;
+    }
+
+    /**
+     * @return A pooled or a new "nowrap" inflater
+     */
+    static Inflater
+    getInflater() {
+
+        ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+
+        Inflater result = ZlibPool.INFLATERS.poll();
+        if (result != null) {
+            statistics.inflaterPoolHits.increment();
+            return result;
+        }
+
+        statistics.inflaterPoolMisses.increment();
+        return new Inflater(true);
+    }
+
+    /**
+     * Resets the <var>inflater</var> and returns it to the pool, or ends it iff the pool is full.
+     */
+    static void
+    release(Inflater inflater) {
+
+        if (ZlibPool.POOL_SIZE > 0) {
+            inflater.reset();
+            if (ZlibPool.INFLATERS.offer(inflater)) return;
+        }
+
+        inflater.end();
+    }
+
+    /**
+     * @param level -1 ({@link Deflater#DEFAULT_COMPRESSION}) through 9
+     * @return      A pooled or a new "nowrap" deflater with the given compression <var>level</var>
+     */
+    static Deflater
+    getDeflater(int level) {
+
+        ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+
+        Deflater result = ZlibPool.DEFLATERS[level + 1].poll();
+        if (result != null) {
+            statistics.deflaterPoolHits.increment();
+            return result;
+        }
+
+        statistics.deflaterPoolMisses.increment();
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Resets the <var>deflater</var> and returns it to the pool, or ends it iff the pool is full.
+     *
+     * @param level The level that the <var>deflater</var> was {@link #getDeflater(int) obtained} with
+     */
+    static void
+    release(Deflater deflater, int level) {
+
+        if (ZlibPool.POOL_SIZE > 0) {
+            deflater.reset();
+            if (ZlibPool.DEFLATERS[level + 1].offer(deflater)) return;
+        }
+
+        deflater.end();
+    }
+}
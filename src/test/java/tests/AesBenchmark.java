@@ -0,0 +1,107 @@
+/*
+ * de.unkrig.zip4jadapter - zip4j adapter to de.unkrig.commons.compress
+ *
+ * Copyright (c) 2021, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+
+import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormat;
+import de.unkrig.zip4jadapter.archivers.zip.ZipArchiveFormat;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import net.lingala.zip4j.model.enums.EncryptionMethod;
+
+/**
+ * Compares the throughput of AES encryption and decryption with the JCA and with zip4j's AES engine. Not a unit test;
+ * run it with
+ * <pre>
+ *   java tests.AesBenchmark [ <em>megabytes</em> ]
+ * </pre>
+ */
+public final
+class AesBenchmark {
+
+    private AesBenchmark() {}
+
+    public static void
+    main(String[] args) throws IOException, ArchiveException {
+
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+
+        // Incompressible data, and the fastest compression level, so that the encryption dominates.
+        byte[] data = new byte[1 << 20];
+        new Random(0).nextBytes(data);
+
+        char[] password = "password".toCharArray();
+        ZipArchiveFormat.setOutputEntryEncrypt(true);
+        ZipArchiveFormat.setOutputEntryEncryptionMethod(EncryptionMethod.AES);
+        ZipArchiveFormat.setOutputEntryCompressionLevel(CompressionLevel.FASTEST);
+        ZipArchiveFormat.setOutputFilePasswordChars(password);
+        ZipArchiveFormat.setInputFilePasswordChars(password);
+
+        ArchiveFormat af          = ZipArchiveFormat.get();
+        File          archiveFile = File.createTempFile("aes-benchmark", ".zip");
+        try {
+
+            // The first round warms up the JIT.
+            for (int round = 0; round < 3; round++) {
+                for (boolean jcaAes : new boolean[] { true, false }) {
+                    ZipArchiveFormat.setJcaAes(jcaAes);
+
+                    long start = System.nanoTime();
+                    try (ArchiveOutputStream aos = af.create(archiveFile)) {
+                        af.writeEntry(aos, "data", null, os -> {
+                            for (int i = 0; i < megabytes; i++) os.write(data);
+                        });
+                    }
+                    long written = System.nanoTime();
+
+                    byte[] buffer = new byte[65536];
+                    try (ArchiveInputStream ais = af.open(archiveFile)) {
+                        ais.getNextEntry();
+                        while (ais.read(buffer) != -1);
+                    }
+                    long read = System.nanoTime();
+
+                    if (round > 0) {
+                        System.out.printf(
+                            "%-5s  write: %7.1f MB/s  read: %7.1f MB/s%n",
+                            jcaAes ? "JCA" : "zip4j",
+                            megabytes * 1E9 / (written - start),
+                            megabytes * 1E9 / (read - written)
+                        );
+                    }
+                }
+            }
+        } finally {
+            archiveFile.delete();
+        }
+    }
+}
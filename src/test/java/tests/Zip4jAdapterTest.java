@@ -29,13 +29,49 @@ package tests;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.management.ObjectName;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
@@ -47,11 +83,21 @@ import org.junit.Test;
 
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormat;
 import de.unkrig.commons.file.org.apache.commons.compress.archivers.ArchiveFormatFactory;
+import de.unkrig.commons.io.IoUtil;
 import de.unkrig.commons.io.Readers;
 import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.zip4jadapter.archivers.zip.AdaptiveCompressionLevel;
+import de.unkrig.zip4jadapter.archivers.zip.ArchivePartition;
+import de.unkrig.zip4jadapter.archivers.zip.CompressionCache;
+import de.unkrig.zip4jadapter.archivers.zip.Handler;
+import de.unkrig.zip4jadapter.archivers.zip.VerificationReport;
+import de.unkrig.zip4jadapter.archivers.zip.VolumeSink;
 import de.unkrig.zip4jadapter.archivers.zip.ZipArchiveFormat;
+import de.unkrig.zip4jadapter.archivers.zip.ZipArchiveStatistics;
 import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import net.lingala.zip4j.model.enums.EncryptionMethod;
 
 public class Zip4jAdapterTest {
 
@@ -219,6 +265,1643 @@ public class Zip4jAdapterTest {
         }
     }
 
+    /**
+     * Tests that the ZIP writers re-use compressed entry data from the {@link CompressionCache}.
+     */
+    @Test public void
+    testCompressionCache() throws Exception {
+
+        File   archiveFile      = new File("file.zip");
+        String entryName        = "file";
+        Date   lastModifiedDate = new Date(1_000_000_000_000L); // 2001-09-09
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append("Line #").append(i).append('\n');
+        String text = sb.toString();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        CompressionCache cc = new CompressionCache(new File("compression_cache"), 1_000_000);
+        cc.clear();
+        CompressionCache other = new CompressionCache(new File("compression_cache"), 1_000_000);
+        ZipArchiveFormat.setCompressionCache(cc);
+        try {
+            Zip4jAdapterTest.storeArchiveFile(archiveFile, entryName, text, lastModifiedDate);
+            Zip4jAdapterTest.verifyArchiveFile(archiveFile, entryName, text, lastModifiedDate);
+            Assert.assertEquals(0, cc.getHitCount());
+            Assert.assertEquals(1, cc.getMissCount());
+
+            Zip4jAdapterTest.storeArchiveFile(archiveFile, entryName, text, lastModifiedDate);
+            Zip4jAdapterTest.verifyArchiveFile(archiveFile, entryName, text, lastModifiedDate);
+            Assert.assertEquals(1, cc.getHitCount());
+
+            byte[] data = Zip4jAdapterTest.storeArchiveStream(entryName, lastModifiedDate, text);
+            Assert.assertEquals(2, cc.getHitCount());
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(new ByteArrayInputStream(data))) {
+                Assert.assertEquals(entryName, ais.getNextEntry().getName());
+                Assert.assertEquals(text, Zip4jAdapterTest.read(ais));
+            }
+
+            // Another instance (e.g. in another process), created before the item was added, finds the item, too.
+            ZipArchiveFormat.setCompressionCache(other);
+            Zip4jAdapterTest.storeArchiveFile(archiveFile, entryName, text, lastModifiedDate);
+            Zip4jAdapterTest.verifyArchiveFile(archiveFile, entryName, text, lastModifiedDate);
+            Assert.assertEquals(1, other.getHitCount());
+            Assert.assertEquals(1, other.getItemCount());
+
+            // An entry that is larger than the cache is buffered only up to the cache's size, and not cached.
+            StringBuilder sb2 = new StringBuilder();
+            for (int i = 0; i < 40; i++) sb2.append(text);
+            String               largeText  = sb2.toString();
+            ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+            statistics.reset();
+            ZipArchiveFormat.setCompressionCache(new CompressionCache(new File("compression_cache"), 20_000));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(baos)) {
+                Zip4jAdapterTest.af.writeEntry(aos, entryName, null, os -> Zip4jAdapterTest.write(largeText, os));
+            }
+            Assert.assertTrue(largeText.length() > 300_000);
+            Assert.assertTrue(statistics.getMemoryPeak() <= 2 * 20_000);
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+                Assert.assertEquals(entryName, ais.getNextEntry().getName());
+                Assert.assertEquals(largeText, Zip4jAdapterTest.read(ais));
+            }
+        } finally {
+            ZipArchiveFormat.setCompressionCache(null);
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#transcode(File, char[], File, CompressionLevel, boolean, EncryptionMethod, char[],
+     * java.util.concurrent.Executor)}.
+     */
+    @Test public void
+    testTranscode() throws Exception {
+
+        File   archiveFile1     = new File("file1.zip");
+        File   archiveFile2     = new File("file2.zip");
+        File   archiveFile3     = new File("file3.zip");
+        String entryName        = "file";
+        String text             = "foobar";
+        Date   lastModifiedDate = new Date(1_000_000_000_000L); // 2001-09-09
+        char[] password         = "password".toCharArray();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+        Zip4jAdapterTest.storeArchiveFile(archiveFile1, entryName, text, lastModifiedDate);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+
+            // Unencrypted => encrypted.
+            ZipArchiveFormat.transcode(
+                archiveFile1,
+                null,
+                archiveFile2,
+                CompressionLevel.ULTRA,
+                true,
+                EncryptionMethod.AES,
+                password,
+                executor
+            );
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD, new String(password));
+            Zip4jAdapterTest.verifyArchiveFile(archiveFile2, entryName, text, lastModifiedDate);
+
+            // Encrypted => unencrypted.
+            ZipArchiveFormat.transcode(archiveFile2, password, archiveFile3, null, false, null, null, executor);
+            System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+            Zip4jAdapterTest.verifyArchiveFile(archiveFile3, entryName, text, lastModifiedDate);
+
+            // Same settings => the entry is copied "raw".
+            ZipArchiveFormat.transcode(archiveFile3, null, archiveFile2, null, false, null, null, executor);
+            Assert.assertArrayEquals(
+                Files.readAllBytes(archiveFile3.toPath()),
+                Files.readAllBytes(archiveFile2.toPath())
+            );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that the "{@code zip:}" URL handler resolves entries of STORED and DEFLATED nested archives.
+     */
+    @Test public void
+    testNestedArchiveUrl() throws Exception {
+
+        File   archiveFile = new File("outer.zip");
+        String text        = "foobar";
+
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        byte[] inner;
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+                zos.putNextEntry(new ZipEntry("dir/file"));
+                Zip4jAdapterTest.write(text, zos);
+            }
+            inner = baos.toByteArray();
+        }
+
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archiveFile))) {
+
+            CRC32 crc = new CRC32();
+            crc.update(inner);
+            ZipEntry ze = new ZipEntry("stored.zip");
+            ze.setMethod(ZipEntry.STORED);
+            ze.setSize(inner.length);
+            ze.setCrc(crc.getValue());
+            zos.putNextEntry(ze);
+            zos.write(inner);
+
+            zos.putNextEntry(new ZipEntry("deflated.zip"));
+            zos.write(inner);
+        }
+
+        for (String innerName : new String[] { "stored.zip", "deflated.zip" }) {
+            URL url = new URL(
+                null,
+                "zip:zip:" + archiveFile.toURI() + "!/" + innerName + "!/dir/file",
+                new Handler()
+            );
+
+            // Twice, so that the second lookup is served from the cache.
+            for (int i = 0; i < 2; i++) {
+                try (InputStream is = url.openStream()) {
+                    Assert.assertEquals(text, Zip4jAdapterTest.read(is));
+                }
+            }
+
+            try {
+                new URL(null, "zip:zip:" + archiveFile.toURI() + "!/" + innerName + "!/nosuchfile", new Handler()).openStream();
+                Assert.fail();
+            } catch (FileNotFoundException fnfe) {
+                Assert.assertTrue(fnfe.getMessage().endsWith("nosuchfile"));
+            }
+        }
+    }
+
+    /**
+     * Tests {@link Handler#setResourceCacheMaxSize(long, long)}.
+     */
+    @Test public void
+    testResourceCache() throws Exception {
+
+        File archiveFile = File.createTempFile("resources", ".zip");
+
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+        statistics.reset();
+
+        Handler.setResourceCacheMaxSize(10, 8);
+        try {
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archiveFile))) {
+                zos.putNextEntry(new ZipEntry("a"));
+                Zip4jAdapterTest.write("aaaaaa", zos);
+                zos.putNextEntry(new ZipEntry("b"));
+                Zip4jAdapterTest.write("bbbbbb", zos);
+                zos.putNextEntry(new ZipEntry("large"));
+                Zip4jAdapterTest.write("too large to be cached", zos);
+            }
+
+            Assert.assertEquals("aaaaaa", Zip4jAdapterTest.readUrl(archiveFile, "a"));
+            Assert.assertEquals("aaaaaa", Zip4jAdapterTest.readUrl(archiveFile, "a"));
+            Assert.assertEquals(1, statistics.getResourceCacheHits());
+            Assert.assertEquals(1, statistics.getResourceCacheMisses());
+            Assert.assertEquals(6, statistics.getResourceCacheSize());
+
+            // Caching "b" evicts "a".
+            Assert.assertEquals("bbbbbb", Zip4jAdapterTest.readUrl(archiveFile, "b"));
+            Assert.assertEquals("aaaaaa", Zip4jAdapterTest.readUrl(archiveFile, "a"));
+            Assert.assertEquals(1, statistics.getResourceCacheHits());
+            Assert.assertEquals(6, statistics.getResourceCacheSize());
+
+            Assert.assertEquals("too large to be cached", Zip4jAdapterTest.readUrl(archiveFile, "large"));
+            Assert.assertEquals("too large to be cached", Zip4jAdapterTest.readUrl(archiveFile, "large"));
+            Assert.assertEquals(1, statistics.getResourceCacheHits());
+
+            // Modifying the archive file invalidates the cached contents.
+            long lastModified = archiveFile.lastModified();
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archiveFile))) {
+                zos.putNextEntry(new ZipEntry("a"));
+                Zip4jAdapterTest.write("AAAAAA", zos);
+            }
+            Assert.assertTrue(archiveFile.setLastModified(lastModified + 2000));
+            Assert.assertEquals("AAAAAA", Zip4jAdapterTest.readUrl(archiveFile, "a"));
+            Assert.assertEquals("AAAAAA", Zip4jAdapterTest.readUrl(archiveFile, "a"));
+            Assert.assertEquals(2, statistics.getResourceCacheHits());
+        } finally {
+            Handler.setResourceCacheMaxSize(0, 0);
+            archiveFile.delete();
+        }
+        Assert.assertEquals(0, statistics.getResourceCacheSize());
+    }
+
+    private static String
+    readUrl(File archiveFile, String entryName) throws IOException {
+        try (InputStream is = new URL(null, "zip:" + archiveFile.toURI() + "!/" + entryName, new Handler()).openStream()) {
+            return Zip4jAdapterTest.read(is);
+        }
+    }
+
+    /**
+     * Tests that {@link ZipArchiveFormat#create(File)} appends to an existing archive, and replaces entries with the
+     * same name (like zip4j's {@code ZipFile.addStream()}).
+     */
+    @Test public void
+    testCreateAppends() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        File archiveFile = File.createTempFile("append", ".zip");
+        try {
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                for (String name : new String[] { "a", "b", "c" }) {
+                    Zip4jAdapterTest.af.writeEntry(aos, name, null, os -> Zip4jAdapterTest.write("old " + name, os));
+                }
+            }
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                for (String name : new String[] { "b", "d" }) {
+                    Zip4jAdapterTest.af.writeEntry(aos, name, null, os -> Zip4jAdapterTest.write("new " + name, os));
+                }
+            }
+
+            String[][] expected = { { "a", "old a" }, { "c", "old c" }, { "b", "new b" }, { "d", "new d" } };
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                Zip4jAdapterTest.assertEntries(expected, ais);
+            }
+
+            // The data of the replaced entry is removed, so sequential readers don't see it either.
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(Files.newInputStream(archiveFile.toPath()))) {
+                Zip4jAdapterTest.assertEntries(expected, ais);
+            }
+            try (ZipFile zf = new ZipFile(archiveFile)) {
+                Assert.assertEquals(4, zf.size());
+            }
+        } finally {
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#verify(File, char[], java.util.concurrent.Executor)}.
+     */
+    @Test public void
+    testVerify() throws Exception {
+
+        File   archiveFile      = new File("file.zip");
+        String entryName        = "file";
+        Date   lastModifiedDate = new Date(1_000_000_000_000L); // 2001-09-09
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        archiveFile.delete();
+        Zip4jAdapterTest.storeArchiveFile(archiveFile, entryName, "foobar foobar foobar", lastModifiedDate);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            VerificationReport report = ZipArchiveFormat.verify(archiveFile, null, executor);
+            Assert.assertTrue(report.toString(), report.isOk());
+            Assert.assertEquals(1, report.getEntryResults().size());
+            Assert.assertEquals(20, report.getTotalSize());
+
+            // Corrupt the entry data, which follows the 30 bytes local file header and the entry name.
+            byte[] data = Files.readAllBytes(archiveFile.toPath());
+            data[30 + entryName.length() + 2] ^= 1;
+            Files.write(archiveFile.toPath(), data);
+
+            report = ZipArchiveFormat.verify(archiveFile, null, executor);
+            Assert.assertFalse(report.isOk());
+            Assert.assertEquals(1, report.getFailureCount());
+            Assert.assertNotNull(report.getEntryResults().get(0).getFailure());
+
+            // Corrupt the CRC in the central directory.
+            archiveFile.delete();
+            Zip4jAdapterTest.storeArchiveFile(archiveFile, entryName, "foobar foobar foobar", lastModifiedDate);
+            data = Files.readAllBytes(archiveFile.toPath());
+            data[ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(data.length - 22 + 16) + 16] ^= 1;
+            Files.write(archiveFile.toPath(), data);
+
+            report = ZipArchiveFormat.verify(archiveFile, null, executor);
+            Assert.assertEquals(1, report.getFailureCount());
+            Assert.assertTrue(String.valueOf(report.getEntryResults().get(0).getFailure()).contains("CRC mismatch"));
+
+            // Corrupt the authentication code of an AES-encrypted entry.
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "true");
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD, "aes");
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD, "secret");
+            archiveFile.delete();
+            Zip4jAdapterTest.storeArchiveFile(archiveFile, entryName, "foobar foobar foobar", lastModifiedDate);
+
+            report = ZipArchiveFormat.verify(archiveFile, "secret".toCharArray(), executor);
+            Assert.assertTrue(report.toString(), report.isOk());
+
+            data = Files.readAllBytes(archiveFile.toPath());
+            data[Zip4jAdapterTest.dataEnd(data) - 1] ^= 1;
+            Files.write(archiveFile.toPath(), data);
+
+            report = ZipArchiveFormat.verify(archiveFile, "secret".toCharArray(), executor);
+            Assert.assertEquals(1, report.getFailureCount());
+            Assert.assertTrue(String.valueOf(report.getEntryResults().get(0).getFailure()).contains("authentication code mismatch"));
+        } finally {
+            executor.shutdown();
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+            System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD);
+        }
+    }
+
+    /**
+     * Tests the streaming reader with {@link ZipArchiveFormat#setInputReadAheadBuffers(int) read-ahead}.
+     */
+    @Test public void
+    testReadAhead() throws Exception {
+
+        Date lastModifiedDate = new Date(1_000_000_000_000L); // 2001-09-09
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append("Line #").append(i).append('\n');
+        String text = sb.toString();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(baos)) {
+            Zip4jAdapterTest.af.writeEntry(aos, "file1", lastModifiedDate, os -> Zip4jAdapterTest.write(text, os));
+            Zip4jAdapterTest.af.writeEntry(aos, "file2", lastModifiedDate, os -> Zip4jAdapterTest.write(text, os));
+            Zip4jAdapterTest.af.writeEntry(aos, "empty", lastModifiedDate, os -> {});
+            Zip4jAdapterTest.af.writeEntry(aos, "file3", lastModifiedDate, os -> Zip4jAdapterTest.write(text, os));
+        }
+
+        ZipArchiveFormat.setInputReadAheadBuffers(2);
+        try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+
+            Assert.assertEquals("file1", ais.getNextEntry().getName());
+            Assert.assertEquals(text, Zip4jAdapterTest.read(ais));
+
+            // Skip part of an entry.
+            Assert.assertEquals("file2", ais.getNextEntry().getName());
+            Assert.assertEquals('L', ais.read());
+
+            Assert.assertEquals("empty", ais.getNextEntry().getName());
+            Assert.assertEquals(-1, ais.read());
+
+            Assert.assertEquals("file3", ais.getNextEntry().getName());
+            Assert.assertEquals(text, Zip4jAdapterTest.read(ais));
+
+            Assert.assertNull(ais.getNextEntry());
+        } finally {
+            ZipArchiveFormat.setInputReadAheadBuffers(0);
+        }
+
+        // Closing must wait until the background thread has stopped reading, even if the underlying stream ignores
+        // interrupts.
+        AtomicBoolean reading            = new AtomicBoolean();
+        AtomicBoolean closedWhileReading = new AtomicBoolean();
+        InputStream   slow               = new FilterInputStream(new ByteArrayInputStream(baos.toByteArray())) {
+
+            @Override public int
+            read(byte[] b, int off, int len) throws IOException {
+                reading.set(true);
+                try {
+                    for (long end = System.currentTimeMillis() + 20; System.currentTimeMillis() < end;) {
+                        try { Thread.sleep(1); } catch (InterruptedException ie) {}
+                    }
+                    return super.read(b, off, Math.min(len, 512));
+                } finally {
+                    reading.set(false);
+                }
+            }
+
+            @Override public void
+            close() throws IOException {
+                if (reading.get()) closedWhileReading.set(true);
+                super.close();
+            }
+        };
+
+        ZipArchiveFormat.setInputReadAheadBuffers(2);
+        try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(slow)) {
+            Assert.assertEquals("file1", ais.getNextEntry().getName());
+        } finally {
+            ZipArchiveFormat.setInputReadAheadBuffers(0);
+        }
+        Assert.assertFalse(closedWhileReading.get());
+    }
+
+    /**
+     * Tests the ZIP writers with {@link ZipArchiveFormat#setOutputWriteBehindBuffers(int) write-behind}.
+     */
+    @Test public void
+    testWriteBehind() throws Exception {
+
+        byte[] data = new byte[500_000];
+        new Random(7).nextBytes(data);
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        ZipArchiveFormat.setOutputWriteBehindBuffers(2);
+        try {
+            Thread        producer = Thread.currentThread();
+            HashSet<Long> writers  = new HashSet<>();
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+
+                @Override public synchronized void
+                write(byte[] b, int off, int len) {
+                    writers.add(Thread.currentThread().getId());
+                    super.write(b, off, len);
+                }
+            };
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(baos)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "file1", null, os -> os.write(data));
+                Zip4jAdapterTest.af.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write("text", os));
+                Zip4jAdapterTest.af.writeEntry(aos, "file3", null, os -> os.write(data));
+            }
+            Assert.assertFalse(writers.contains(producer.getId()));
+
+            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+                Assert.assertEquals("file1", zis.getNextEntry().getName());
+                ByteArrayOutputStream baos2 = new ByteArrayOutputStream();
+                IoUtil.copy(zis, baos2);
+                Assert.assertArrayEquals(data, baos2.toByteArray());
+                Assert.assertEquals("file2", zis.getNextEntry().getName());
+                Assert.assertEquals("text", Zip4jAdapterTest.read(zis));
+                Assert.assertEquals("file3", zis.getNextEntry().getName());
+                baos2.reset();
+                IoUtil.copy(zis, baos2);
+                Assert.assertArrayEquals(data, baos2.toByteArray());
+                Assert.assertNull(zis.getNextEntry());
+            }
+
+            // An exception of the underlying stream is reported by a later write or the close.
+            OutputStream failing = new OutputStream() {
+
+                int count;
+
+                @Override public void
+                write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+                @Override public void
+                write(byte[] b, int off, int len) throws IOException {
+                    if ((this.count += len) > 100_000) throw new IOException("Disk full");
+                }
+            };
+            try {
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(failing)) {
+                    for (int i = 0; i < 10; i++) {
+                        Zip4jAdapterTest.af.writeEntry(aos, "file" + i, null, os -> os.write(data));
+                    }
+                }
+                Assert.fail();
+            } catch (IOException ioe) {
+                Assert.assertEquals("Disk full", ioe.getMessage());
+            }
+        } finally {
+            ZipArchiveFormat.setOutputWriteBehindBuffers(0);
+        }
+    }
+
+    /**
+     * Tests that the {@link AdaptiveCompressionLevel} moves the level towards its throughput target.
+     */
+    @Test public void
+    testAdaptiveCompressionLevel() throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) sb.append("Line #").append(i).append('\n');
+        String text = sb.toString();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        // An unreachable target => FASTEST; a trivial target => ULTRA.
+        for (Object[] targetAndLevel : new Object[][] {
+            { 1E15, CompressionLevel.FASTEST },
+            { 1.0,  CompressionLevel.ULTRA   },
+        }) {
+            AdaptiveCompressionLevel acl = new AdaptiveCompressionLevel((Double) targetAndLevel[0]);
+            ZipArchiveFormat.setAdaptiveCompressionLevel(acl);
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(new ByteArrayOutputStream())) {
+                for (int i = 0; i < 12; i++) {
+                    Zip4jAdapterTest.af.writeEntry(aos, "file" + i, null, os -> Zip4jAdapterTest.write(text, os));
+                }
+            } finally {
+                ZipArchiveFormat.setAdaptiveCompressionLevel(null);
+            }
+
+            Assert.assertEquals(acl.toString(), targetAndLevel[1], acl.getCurrentLevel());
+            Assert.assertEquals(12, acl.getEntryCounts().values().stream().mapToLong(Long::longValue).sum());
+        }
+    }
+
+    /**
+     * Tests that readers and writers feed the {@link ZipArchiveStatistics} while monitoring is enabled.
+     */
+    @Test public void
+    testMonitoring() throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) sb.append("Line #").append(i).append('\n');
+        String text = sb.toString();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+
+        File archiveFile = File.createTempFile("monitoring", ".zip");
+        ZipArchiveFormat.setMonitoringEnabled(true);
+        try {
+            Assert.assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(ZipArchiveStatistics.OBJECT_NAME)
+            ));
+            statistics.reset();
+
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Assert.assertEquals(1, statistics.getOpenWriters());
+                Zip4jAdapterTest.af.writeEntry(aos, "dir/",  null, os -> {});
+                Zip4jAdapterTest.af.writeEntry(aos, "file1", null, os -> Zip4jAdapterTest.write(text, os));
+                Zip4jAdapterTest.af.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write(text, os));
+            }
+            Assert.assertEquals(0, statistics.getOpenWriters());
+            Assert.assertEquals(3, statistics.getEntriesWritten());
+            Assert.assertEquals(2 * text.length(), statistics.getBytesWritten());
+            Assert.assertTrue(statistics.getArchiveBytesWritten() < archiveFile.length());
+            Assert.assertTrue(statistics.getCompressionRatio() < .5);
+            Assert.assertEquals(3, Zip4jAdapterTest.sum(statistics.getCloseArchiveEntryLatencyHistogram()));
+
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                Assert.assertEquals(1, statistics.getOpenReaders());
+                while (ais.getNextEntry() != null) Zip4jAdapterTest.read(ais);
+            }
+            Assert.assertEquals(0, statistics.getOpenReaders());
+            Assert.assertEquals(3, statistics.getEntriesRead());
+            Assert.assertEquals(2 * text.length(), statistics.getBytesRead());
+            Assert.assertEquals(1, Zip4jAdapterTest.sum(statistics.getOpenLatencyHistogram()));
+            Assert.assertEquals(4, Zip4jAdapterTest.sum(statistics.getNextEntryLatencyHistogram()));
+        } finally {
+            ZipArchiveFormat.setMonitoringEnabled(false);
+            archiveFile.delete();
+        }
+
+        // Monitoring is disabled => no more updates.
+        try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(new ByteArrayOutputStream())) {
+            Zip4jAdapterTest.af.writeEntry(aos, "file1", null, os -> Zip4jAdapterTest.write(text, os));
+        }
+        Assert.assertEquals(3, statistics.getEntriesWritten());
+    }
+
+    /**
+     * Tests that AES-encrypted entries written with the JCA can be read with zip4j's AES engine, and vice versa.
+     */
+    @Test public void
+    testJcaAes() throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) sb.append("Line #").append(i).append('\n');
+        String[][] entries = {
+            { "empty", ""            },
+            { "small", "foo"         },
+            { "large", sb.toString() },
+        };
+        String password = "p\u00e4ssw\u00f6rd";
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "true");
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD, "aes");
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD, password);
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD, password);
+
+        File archiveFile = File.createTempFile("aes", ".zip");
+        try {
+            for (boolean jcaWrite : new boolean[] { true, false }) {
+
+                ZipArchiveFormat.setJcaAes(jcaWrite);
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                    for (String[] e : entries) {
+                        Zip4jAdapterTest.af.writeEntry(aos, e[0], null, os -> Zip4jAdapterTest.write(e[1], os));
+                    }
+                }
+
+                ZipArchiveFormat.setJcaAes(!jcaWrite);
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                    Zip4jAdapterTest.assertEntries(entries, ais);
+                }
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(Files.newInputStream(archiveFile.toPath()))) {
+                    Zip4jAdapterTest.assertEntries(entries, ais);
+                }
+
+                VerificationReport report = ZipArchiveFormat.verify(archiveFile, password.toCharArray(), Runnable::run);
+                Assert.assertTrue(report.toString(), report.isOk());
+            }
+
+            // Tampered authentication code of a DEFLATED entry.
+            archiveFile.delete();
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "large", null, os -> Zip4jAdapterTest.write(sb.toString(), os));
+            }
+            byte[] data = Files.readAllBytes(archiveFile.toPath());
+            data[Zip4jAdapterTest.dataEnd(data) - 1] ^= 1;
+            Files.write(archiveFile.toPath(), data);
+            for (boolean jcaRead : new boolean[] { true, false }) {
+                ZipArchiveFormat.setJcaAes(jcaRead);
+
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                    Assert.assertEquals("large", ais.getNextEntry().getName());
+                    Zip4jAdapterTest.read(ais);
+                    Assert.fail();
+                } catch (ZipException ze) {
+                    Assert.assertTrue(ze.getMessage(), ze.getMessage().contains("authentication code mismatch"));
+                }
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(new FileInputStream(archiveFile))) {
+                    Assert.assertEquals("large", ais.getNextEntry().getName());
+                    Zip4jAdapterTest.read(ais);
+                    Assert.fail();
+                } catch (ZipException ze) {
+                    Assert.assertTrue(ze.getMessage(), ze.getMessage().contains("authentication code mismatch"));
+                }
+
+                VerificationReport report = ZipArchiveFormat.verify(archiveFile, password.toCharArray(), Runnable::run);
+                Assert.assertEquals(report.toString(), 1, report.getFailureCount());
+            }
+
+            // Wrong password.
+            ZipArchiveFormat.setJcaAes(true);
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD, password + "x");
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                ais.getNextEntry();
+                Assert.fail();
+            } catch (ZipException ze) {
+                Assert.assertTrue(ze.getMessage(), ze.getMessage().toLowerCase().contains("wrong password"));
+            }
+        } finally {
+            ZipArchiveFormat.setJcaAes(true);
+            System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD);
+            System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests that inflaters and deflaters are re-used across entries and streams.
+     */
+    @Test public void
+    testZlibPool() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+        statistics.reset();
+
+        File archiveFile = File.createTempFile("pool", ".zip");
+        try {
+            for (int i = 0; i < 2; i++) {
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                    for (int j = 0; j < 100; j++) {
+                        Zip4jAdapterTest.af.writeEntry(aos, "file" + j, null, os -> Zip4jAdapterTest.write("foo", os));
+                    }
+                }
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                    for (ArchiveEntry ae; (ae = ais.getNextEntry()) != null;) {
+                        if (ae.getName().endsWith("0")) Zip4jAdapterTest.read(ais); // Read some entries only partially.
+                    }
+                }
+            }
+        } finally {
+            archiveFile.delete();
+        }
+
+        Assert.assertEquals(200, statistics.getDeflaterPoolHits() + statistics.getDeflaterPoolMisses());
+        Assert.assertEquals(200, statistics.getInflaterPoolHits() + statistics.getInflaterPoolMisses());
+        Assert.assertTrue(statistics.getDeflaterPoolHitRate() > .9);
+        Assert.assertTrue(statistics.getInflaterPoolHitRate() > .9);
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#extractTo(File, char[], Path, boolean)}.
+     */
+    @Test public void
+    testExtractTo() throws Exception {
+
+        byte[] stored   = "stored data".getBytes(Charsets.UTF_8);
+        byte[] deflated = "deflated data".getBytes(Charsets.UTF_8);
+
+        File archiveFile = File.createTempFile("extract", ".zip");
+        Path directory   = Files.createTempDirectory("extract");
+        try {
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archiveFile))) {
+                zos.putNextEntry(new ZipEntry("dir/"));
+
+                CRC32 crc = new CRC32();
+                crc.update(stored);
+                ZipEntry ze = new ZipEntry("dir/stored");
+                ze.setMethod(ZipEntry.STORED);
+                ze.setSize(stored.length);
+                ze.setCrc(crc.getValue());
+                ze.setTime(1_000_000_000_000L);
+                zos.putNextEntry(ze);
+                zos.write(stored);
+
+                zos.putNextEntry(new ZipEntry("deflated"));
+                zos.write(deflated);
+            }
+
+            ZipArchiveFormat.extractTo(archiveFile, null, directory, true);
+            Assert.assertArrayEquals(stored, Files.readAllBytes(directory.resolve("dir/stored")));
+            Assert.assertArrayEquals(deflated, Files.readAllBytes(directory.resolve("deflated")));
+            Assert.assertEquals(1_000_000_000_000L, Files.getLastModifiedTime(directory.resolve("dir/stored")).toMillis());
+
+            // Corrupt the STORED data; the CRC check is optional.
+            byte[] ba = Files.readAllBytes(archiveFile.toPath());
+            for (int i = 0;; i++) {
+                if (ba[i] == 's' && new String(ba, i, stored.length, Charsets.UTF_8).equals("stored data")) {
+                    ba[i] = 'S';
+                    break;
+                }
+            }
+            Files.write(archiveFile.toPath(), ba);
+
+            Path file = directory.resolve("x");
+            try {
+                ZipArchiveFormat.extractTo(archiveFile, null, "dir/stored", file, true);
+                Assert.fail();
+            } catch (ZipException ze) {
+                Assert.assertTrue(ze.getMessage(), ze.getMessage().contains("CRC mismatch"));
+            }
+            ZipArchiveFormat.extractTo(archiveFile, null, "dir/stored", file, false);
+            Assert.assertEquals("Stored data", new String(Files.readAllBytes(file), Charsets.UTF_8));
+
+            // "Zip slip".
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archiveFile))) {
+                zos.putNextEntry(new ZipEntry("../evil"));
+            }
+            try {
+                ZipArchiveFormat.extractTo(archiveFile, null, directory, true);
+                Assert.fail();
+            } catch (ZipException ze) {
+                Assert.assertTrue(ze.getMessage(), ze.getMessage().contains("outside"));
+            }
+        } finally {
+            archiveFile.delete();
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#addFile(ArchiveOutputStream, Path, String)} with STORED and DEFLATED entries.
+     */
+    @Test public void
+    testAddFile() throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) sb.append("Line #").append(i).append('\n');
+        String text = sb.toString();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        File archiveFile = File.createTempFile("addfile", ".zip");
+        Path file        = Files.createTempFile("addfile", ".txt");
+        try {
+            Files.write(file, text.getBytes(Charsets.UTF_8));
+
+            for (CompressionLevel level : new CompressionLevel[] { CompressionLevel.NO_COMPRESSION, CompressionLevel.NORMAL }) {
+                ZipArchiveFormat.setOutputEntryCompressionLevel(level);
+
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                    ZipArchiveFormat.addFile(aos, file, "file1");
+                    Zip4jAdapterTest.af.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write("foo", os));
+                    ZipArchiveFormat.addFile(aos, file, "file3");
+                }
+
+                try (ZipFile zf = new ZipFile(archiveFile)) {
+                    ZipEntry ze = zf.getEntry("file1");
+                    Assert.assertEquals(level == CompressionLevel.NO_COMPRESSION ? ZipEntry.STORED : ZipEntry.DEFLATED, ze.getMethod());
+                    Assert.assertEquals(text, Zip4jAdapterTest.read(zf.getInputStream(ze)));
+                    Assert.assertEquals("foo", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("file2"))));
+                    Assert.assertEquals(text, Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("file3"))));
+                }
+
+                // A streaming writer.
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(baos)) {
+                    ZipArchiveFormat.addFile(aos, file, "file1");
+                }
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+                    Zip4jAdapterTest.assertEntries(new String[][] { { "file1", text } }, ais);
+                }
+            }
+        } finally {
+            ZipArchiveFormat.setOutputEntryCompressionLevel(null);
+            archiveFile.delete();
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#setMemoryBudget(long)}.
+     */
+    @Test public void
+    testMemoryBudget() throws Exception {
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) sb.append("Line #").append(i).append('\n');
+        String text = sb.toString();
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        ZipArchiveStatistics statistics = ZipArchiveStatistics.get();
+        statistics.reset();
+
+        File             archiveFile  = File.createTempFile("budget", ".zip");
+        File             archiveFile2 = File.createTempFile("budget", ".zip");
+        CompressionCache cc           = new CompressionCache(new File("compression_cache"), 1_000_000);
+        ZipArchiveFormat.setMemoryBudget(1_500_000);
+        try {
+
+            // The entry is too large for the budget, and spills into a temporary file.
+            ZipArchiveFormat.setCompressionCache(cc);
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "file1", null, os -> Zip4jAdapterTest.write(text, os));
+                Zip4jAdapterTest.af.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write("foo", os));
+            } finally {
+                ZipArchiveFormat.setCompressionCache(null);
+            }
+            Assert.assertEquals(1, statistics.getMemorySpills());
+            Assert.assertEquals(0, statistics.getMemoryUsed());
+            Assert.assertTrue(statistics.getMemoryPeak() <= 1_500_000);
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                Zip4jAdapterTest.assertEntries(new String[][] { { "file1", text }, { "file2", "foo" } }, ais);
+            }
+
+            // A second archive file writer waits until the first is closed.
+            ArchiveOutputStream aos1 = Zip4jAdapterTest.af.create(archiveFile);
+            Thread              t    = new Thread(() -> {
+                try (ArchiveOutputStream aos2 = Zip4jAdapterTest.af.create(archiveFile2)) {
+                    Zip4jAdapterTest.af.writeEntry(aos2, "file", null, os -> Zip4jAdapterTest.write("bar", os));
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            t.start();
+            for (long deadline = System.currentTimeMillis() + 30000; statistics.getMemoryWaits() == 0;) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(t.isAlive());
+            Assert.assertEquals(1, statistics.getMemoryWaits());
+            aos1.close();
+            t.join();
+            Assert.assertEquals(0, statistics.getMemoryUsed());
+
+            // The transcoder releases the memory that it acquired.
+            ZipArchiveFormat.transcode(archiveFile2, null, archiveFile, CompressionLevel.MAXIMUM, false, null, null, Runnable::run);
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                Zip4jAdapterTest.assertEntries(new String[][] { { "file", "bar" } }, ais);
+            }
+            Assert.assertEquals(0, statistics.getMemoryUsed());
+
+            // A writer reclaims the memory of the "zip:" URL caches, instead of waiting for it forever.
+            String bigText = text.substring(0, 900_000);
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archiveFile2))) {
+                zos.putNextEntry(new ZipEntry("big"));
+                Zip4jAdapterTest.write(bigText, zos);
+            }
+            Handler.setResourceCacheMaxSize(2_000_000, 1_000_000);
+            Assert.assertEquals(bigText, Zip4jAdapterTest.readUrl(archiveFile2, "big"));
+            Assert.assertEquals(900_000, statistics.getResourceCacheSize());
+            Assert.assertEquals(900_000, statistics.getMemoryUsed());
+
+            Thread t2 = new Thread(() -> {
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                    Zip4jAdapterTest.af.writeEntry(aos, "file", null, os -> Zip4jAdapterTest.write("baz", os));
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            t2.start();
+            t2.join(30000);
+            Assert.assertFalse(t2.isAlive());
+            Assert.assertEquals(0, statistics.getResourceCacheSize());
+            Assert.assertEquals(0, statistics.getMemoryUsed());
+            Assert.assertEquals(bigText, Zip4jAdapterTest.readUrl(archiveFile2, "big"));
+        } finally {
+            Handler.setResourceCacheMaxSize(0, 0);
+            ZipArchiveFormat.setMemoryBudget(0);
+            archiveFile.delete();
+            archiveFile2.delete();
+        }
+    }
+
+    /**
+     * Tests that {@link ZipArchiveFormat#archiveInputStream(InputStream, char[])} reads {@link FileInputStream}s
+     * through the central directory.
+     */
+    @Test public void
+    testFileInputStream() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        File archiveFile = File.createTempFile("seekable", ".zip");
+        try {
+
+            // An archive that is preceded by other data.
+            try (FileOutputStream fos = new FileOutputStream(archiveFile)) {
+                fos.write("PREFIX".getBytes(Charsets.UTF_8));
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(fos)) {
+                    Zip4jAdapterTest.af.writeEntry(aos, "file1", null, os -> Zip4jAdapterTest.write("foo", os));
+                    Zip4jAdapterTest.af.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write("bar", os));
+                }
+            }
+
+            try (FileInputStream fis = new FileInputStream(archiveFile)) {
+                Assert.assertEquals(6, fis.skip(6));
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(fis)) {
+                    Assert.assertEquals("file1", ais.getNextEntry().getName()); // Skip the entry's data.
+                    Assert.assertEquals("file2", ais.getNextEntry().getName());
+                    Assert.assertEquals("bar", Zip4jAdapterTest.read(ais));
+                    Assert.assertNull(ais.getNextEntry());
+                }
+            }
+
+            // An archive that is followed by other data, and thus has no valid central directory.
+            try (FileOutputStream fos = new FileOutputStream(archiveFile, true)) {
+                fos.write(new byte[100]);
+            }
+            try (FileInputStream fis = new FileInputStream(archiveFile)) {
+                Assert.assertEquals(6, fis.skip(6));
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.archiveInputStream(fis)) {
+                    Zip4jAdapterTest.assertEntries(new String[][] { { "file1", "foo" }, { "file2", "bar" } }, ais);
+                }
+            }
+        } finally {
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#sync(Path, File, boolean)}.
+     */
+    @Test public void
+    testSync() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_INPUT_FILE_PASSWORD);
+
+        File archiveFile = File.createTempFile("sync", ".zip");
+        Path directory   = Files.createTempDirectory("sync");
+        try {
+            Files.createDirectory(directory.resolve("sub"));
+            Files.write(directory.resolve("a.txt"), "aaa".getBytes(Charsets.UTF_8));
+            Files.write(directory.resolve("sub/b.txt"), "bbb".getBytes(Charsets.UTF_8));
+            Files.write(directory.resolve("d.txt"), "ddd".getBytes(Charsets.UTF_8));
+
+            Assert.assertTrue(archiveFile.delete());
+            ZipArchiveFormat.setOutputEntryCompressionLevel(CompressionLevel.MAXIMUM);
+            ZipArchiveFormat.sync(directory, archiveFile);
+
+            // Unchanged files are copied raw, i.e. they remain DEFLATED.
+            ZipArchiveFormat.setOutputEntryCompressionLevel(CompressionLevel.NO_COMPRESSION);
+            Files.delete(directory.resolve("a.txt"));
+            Files.write(directory.resolve("sub/b.txt"), "bbbb".getBytes(Charsets.UTF_8));
+            Files.write(directory.resolve("c.txt"), "ccc".getBytes(Charsets.UTF_8));
+            ZipArchiveFormat.sync(directory, archiveFile);
+
+            try (ZipFile zf = new ZipFile(archiveFile)) {
+                Assert.assertEquals(4, zf.size());
+                Assert.assertTrue(zf.getEntry("sub/").isDirectory());
+                Assert.assertEquals(ZipEntry.STORED, zf.getEntry("sub/b.txt").getMethod());
+                Assert.assertEquals("bbbb", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("sub/b.txt"))));
+                Assert.assertEquals(ZipEntry.STORED, zf.getEntry("c.txt").getMethod());
+                Assert.assertEquals(ZipEntry.DEFLATED, zf.getEntry("d.txt").getMethod());
+                Assert.assertEquals("ddd", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("d.txt"))));
+            }
+
+            // A change that keeps the size and the modification time is only detected through the CRC.
+            Path d            = directory.resolve("d.txt");
+            long lastModified = Files.getLastModifiedTime(d).toMillis();
+            Files.write(d, "DDD".getBytes(Charsets.UTF_8));
+            Files.setLastModifiedTime(d, FileTime.fromMillis(lastModified));
+
+            ZipArchiveFormat.sync(directory, archiveFile, false);
+            try (ZipFile zf = new ZipFile(archiveFile)) {
+                Assert.assertEquals("ddd", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("d.txt"))));
+            }
+
+            ZipArchiveFormat.sync(directory, archiveFile, true);
+            try (ZipFile zf = new ZipFile(archiveFile)) {
+                Assert.assertEquals("DDD", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("d.txt"))));
+            }
+
+            // Entries with another encryption method or password are re-encrypted. (Also test an archive file name
+            // shorter than three characters.)
+            File shortArchiveFile = directory.resolve("a.z").toFile();
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "true");
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD, "zip_standard");
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD, "p1");
+            ZipArchiveFormat.sync(directory, shortArchiveFile);
+            try (net.lingala.zip4j.ZipFile zf = new net.lingala.zip4j.ZipFile(shortArchiveFile)) {
+                Assert.assertEquals(EncryptionMethod.ZIP_STANDARD, zf.getFileHeader("c.txt").getEncryptionMethod());
+            }
+
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD, "aes");
+            ZipArchiveFormat.sync(directory, shortArchiveFile);
+            try (net.lingala.zip4j.ZipFile zf = new net.lingala.zip4j.ZipFile(shortArchiveFile)) {
+                Assert.assertEquals(EncryptionMethod.AES, zf.getFileHeader("c.txt").getEncryptionMethod());
+            }
+
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD, "p2");
+            ZipArchiveFormat.sync(directory, shortArchiveFile);
+            try (ReadableByteChannel rbc = ZipArchiveFormat.openChannel(shortArchiveFile, "p2".toCharArray(), "c.txt")) {
+                Assert.assertEquals("ccc", Zip4jAdapterTest.read(Channels.newInputStream(rbc)));
+            }
+        } finally {
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+            System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD);
+            ZipArchiveFormat.setOutputEntryCompressionLevel(null);
+            archiveFile.delete();
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#archiveOutputStream(VolumeSink, long)}.
+     */
+    @Test public void
+    testSplitArchive() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        byte[] data = new byte[100000];
+        new Random(42).nextBytes(data);
+
+        File archiveFile = File.createTempFile("split", ".zip");
+        Path directory   = archiveFile.getParentFile().toPath();
+        String baseName  = archiveFile.getName().substring(0, archiveFile.getName().length() - 4);
+        try {
+            try (ArchiveOutputStream aos = ((ZipArchiveFormat) Zip4jAdapterTest.af).archiveOutputStream(
+                VolumeSink.files(archiveFile),
+                65536
+            )) {
+                for (int i = 0; i < 3; i++) {
+                    Zip4jAdapterTest.af.writeEntry(aos, "file" + i, null, os -> os.write(data));
+                }
+            }
+
+            // 300,000 bytes of incompressible data require five volumes.
+            for (int i = 1; i <= 4; i++) {
+                File volume = directory.resolve(baseName + ".z0" + i).toFile();
+                Assert.assertEquals(65536, volume.length(), 100);
+            }
+            Assert.assertFalse(directory.resolve(baseName + ".z05").toFile().exists());
+
+            net.lingala.zip4j.ZipFile zf = new net.lingala.zip4j.ZipFile(archiveFile);
+            Assert.assertTrue(zf.isSplitArchive());
+            for (int i = 0; i < 3; i++) {
+                try (InputStream is = zf.getInputStream(zf.getFileHeader("file" + i))) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    IoUtil.copy(is, baos);
+                    Assert.assertArrayEquals(data, baos.toByteArray());
+                }
+            }
+
+            // "open(File)" falls back to zip4j for split archives.
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                for (int i = 0; i < 3; i++) {
+                    Assert.assertEquals("file" + i, ais.getNextEntry().getName());
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    IoUtil.copy(ais, baos);
+                    Assert.assertArrayEquals(data, baos.toByteArray());
+                }
+                Assert.assertNull(ais.getNextEntry());
+            }
+
+            // A local file header written by zip4j (for an encrypted entry) remains in the current volume iff its
+            // actual length fits. (The second entry is small, so that the central directory does not span volumes,
+            // which zip4j cannot read.)
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "true");
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPTION_METHOD, "zip_standard");
+            long localHeaderOffset;
+            int  localHeaderLength = 30 + "file1".length();
+            Zip4jAdapterTest.writeEncryptedSplitArchive(archiveFile, 1 << 20, data);
+            {
+                net.lingala.zip4j.ZipFile zf2 = new net.lingala.zip4j.ZipFile(archiveFile);
+                localHeaderOffset = zf2.getFileHeader("file1").getOffsetLocalHeader();
+                Assert.assertEquals(0, zf2.getFileHeader("file1").getDiskNumberStart());
+            }
+
+            archiveFile.delete();
+            Zip4jAdapterTest.writeEncryptedSplitArchive(archiveFile, localHeaderOffset + localHeaderLength + 10, data);
+            net.lingala.zip4j.ZipFile zf2 = new net.lingala.zip4j.ZipFile(archiveFile, "pw".toCharArray());
+            Assert.assertEquals(0, zf2.getFileHeader("file1").getDiskNumberStart());
+            Assert.assertEquals(localHeaderOffset, zf2.getFileHeader("file1").getOffsetLocalHeader());
+            try (InputStream is = zf2.getInputStream(zf2.getFileHeader("file1"))) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                IoUtil.copy(is, baos);
+                Assert.assertArrayEquals(Arrays.copyOf(data, 1000), baos.toByteArray());
+            }
+        } finally {
+            System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+            archiveFile.delete();
+            for (int i = 1; i <= 9; i++) directory.resolve(baseName + ".z0" + i).toFile().delete();
+        }
+    }
+
+    private static void
+    writeEncryptedSplitArchive(File archiveFile, long volumeSize, byte[] data) throws Exception {
+        try (ArchiveOutputStream aos = ((ZipArchiveFormat) Zip4jAdapterTest.af).archiveOutputStream(
+            VolumeSink.files(archiveFile),
+            volumeSize,
+            "pw".toCharArray()
+        )) {
+            Zip4jAdapterTest.af.writeEntry(aos, "file0", null, os -> os.write(data));
+            Zip4jAdapterTest.af.writeEntry(aos, "file1", null, os -> os.write(data, 0, 1000));
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#createResumable(File, java.util.Collection)}.
+     */
+    @Test public void
+    testResumable() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+        System.clearProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_FILE_PASSWORD);
+
+        ZipArchiveFormat zaf            = (ZipArchiveFormat) Zip4jAdapterTest.af;
+        File             archiveFile    = File.createTempFile("resumable", ".zip");
+        File             checkpointFile = new File(archiveFile.getPath() + ".checkpoint");
+        File             crashedFile    = File.createTempFile("crashed", ".zip");
+        try {
+            ZipArchiveFormat.setCheckpointInterval(0);
+            Assert.assertTrue(archiveFile.delete());
+
+            // Simulate a crash by copying the archive and the checkpoint file while the archive is being written,
+            // and by appending a torn entry.
+            List<String> completed = new ArrayList<>();
+            try (ArchiveOutputStream aos = zaf.createResumable(archiveFile, completed)) {
+                Assert.assertTrue(completed.isEmpty());
+                zaf.writeEntry(aos, "file0", null, os -> Zip4jAdapterTest.write("text0", os));
+                zaf.writeEntry(aos, "file1", null, os -> Zip4jAdapterTest.write("text1", os));
+                Files.copy(archiveFile.toPath(), crashedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.copy(
+                    checkpointFile.toPath(),
+                    new File(crashedFile.getPath() + ".checkpoint").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING
+                );
+            }
+            Assert.assertFalse(checkpointFile.exists());
+            Files.write(crashedFile.toPath(), new byte[] { 'P', 'K', 3, 4, 20, 0 }, StandardOpenOption.APPEND);
+
+            try (ArchiveOutputStream aos = zaf.createResumable(crashedFile, completed)) {
+                Assert.assertEquals(Arrays.asList("file0", "file1"), completed);
+                zaf.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write("text2", os));
+            }
+            Assert.assertFalse(new File(crashedFile.getPath() + ".checkpoint").exists());
+
+            // Without a checkpoint file, the entries are recovered by scanning the local file headers; a truncated
+            // entry and the central directory are discarded.
+            long truncateAt;
+            try (ZipFile zf = new ZipFile(crashedFile)) {
+                Assert.assertEquals(3, zf.size());
+                truncateAt = crashedFile.length() - 22 - 3 * (46 + 5) - 10;
+            }
+            try (FileChannel fc = FileChannel.open(crashedFile.toPath(), StandardOpenOption.WRITE)) {
+                fc.truncate(truncateAt);
+            }
+
+            completed.clear();
+            try (ArchiveOutputStream aos = zaf.createResumable(crashedFile, completed)) {
+                Assert.assertEquals(Arrays.asList("file0", "file1"), completed);
+                zaf.writeEntry(aos, "file2", null, os -> Zip4jAdapterTest.write("TEXT2", os));
+                zaf.writeEntry(aos, "file3", null, os -> Zip4jAdapterTest.write("text3", os));
+            }
+
+            try (ZipFile zf = new ZipFile(crashedFile)) {
+                Assert.assertEquals(4, zf.size());
+                Assert.assertEquals("text0", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("file0"))));
+                Assert.assertEquals("TEXT2", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("file2"))));
+                Assert.assertEquals("text3", Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("file3"))));
+            }
+        } finally {
+            ZipArchiveFormat.setCheckpointInterval(-1);
+            archiveFile.delete();
+            crashedFile.delete();
+            new File(crashedFile.getPath() + ".checkpoint").delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#archiveOutputStream(java.nio.channels.WritableByteChannel, char[])} and {@link
+     * ZipArchiveFormat#openChannel(File, char[], String)}.
+     */
+    @Test public void
+    testChannels() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) sb.append("line ").append(i).append('\n');
+        byte[] data = sb.toString().getBytes(Charsets.UTF_8);
+
+        ZipArchiveFormat zaf         = (ZipArchiveFormat) Zip4jAdapterTest.af;
+        File             archiveFile = File.createTempFile("channels", ".zip");
+        try {
+            try (ArchiveOutputStream aos = zaf.archiveOutputStream(
+                FileChannel.open(archiveFile.toPath(), StandardOpenOption.WRITE),
+                null
+            )) {
+                ZipArchiveFormat.writeEntry(aos, "big", null, Channels.newChannel(new ByteArrayInputStream(data)));
+                zaf.writeEntry(aos, "small", null, os -> Zip4jAdapterTest.write("text", os));
+            }
+
+            try (ReadableByteChannel rbc = ZipArchiveFormat.openChannel(archiveFile, null, "big")) {
+                ByteBuffer            buffer = ByteBuffer.allocateDirect(1000);
+                ByteArrayOutputStream baos   = new ByteArrayOutputStream();
+                while (rbc.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) baos.write(buffer.get());
+                    buffer.clear();
+                }
+                Assert.assertArrayEquals(data, baos.toByteArray());
+            }
+
+            // Not a "GatheringByteChannel".
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ArchiveOutputStream aos = zaf.archiveOutputStream(Channels.newChannel(baos), null)) {
+                ZipArchiveFormat.writeEntry(aos, "big", null, Channels.newChannel(new ByteArrayInputStream(data)));
+            }
+            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+                Assert.assertEquals("big", zis.getNextEntry().getName());
+                Assert.assertEquals(sb.toString(), Zip4jAdapterTest.read(zis));
+            }
+        } finally {
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#setParallelInflateThreads(int)}.
+     */
+    @Test public void
+    testParallelInflate() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        StringBuilder sb = new StringBuilder();
+        Random        r  = new Random(7);
+        for (int i = 0; i < 100000; i++) sb.append("line ").append(r.nextInt(1000)).append('\n');
+        String text = sb.toString();
+
+        File archiveFile = File.createTempFile("parallel", ".zip");
+        try {
+            ZipArchiveFormat.setOutputEntryIndexInterval(65536);
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "big", null, os -> Zip4jAdapterTest.write(text, os));
+                Zip4jAdapterTest.af.writeEntry(aos, "small", null, os -> Zip4jAdapterTest.write("text", os));
+            }
+
+            // Other tools read the entries as usual.
+            try (ZipFile zf = new ZipFile(archiveFile)) {
+                Assert.assertEquals(text, Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("big"))));
+            }
+
+            ZipArchiveFormat.setParallelInflateThreads(4);
+            ZipArchiveStatistics.get().reset();
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                Zip4jAdapterTest.assertEntries(new String[][] {
+                    { "big",   text   },
+                    { "small", "text" },
+                }, ais);
+            }
+
+            // Up to five segments were held in memory.
+            Assert.assertTrue(ZipArchiveStatistics.get().getMemoryPeak() >= 5 * 65536);
+
+            // Without a block index, the first read finds the access points (here: the "sync flushes" of parallel
+            // deflation), and the second read is parallel.
+            ZipArchiveFormat.setOutputEntryIndexInterval(0);
+            ZipArchiveFormat.setParallelDeflateThreads(2);
+            ZipArchiveFormat.setSeekIndexInterval(200000);
+            archiveFile.delete();
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "big", null, os -> Zip4jAdapterTest.write(text, os));
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                ZipArchiveStatistics.get().reset();
+                try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                    Zip4jAdapterTest.assertEntries(new String[][] { { "big", text } }, ais);
+                }
+                long peak = ZipArchiveStatistics.get().getMemoryPeak();
+                Assert.assertTrue(pass == 0 ? peak < 5 * 200000 : peak >= 5 * 200000);
+            }
+        } finally {
+            ZipArchiveFormat.setOutputEntryIndexInterval(0);
+            ZipArchiveFormat.setParallelInflateThreads(0);
+            ZipArchiveFormat.setParallelDeflateThreads(0);
+            ZipArchiveFormat.setSeekIndexInterval(1 << 22);
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#setParallelDeflateThreads(int)}.
+     */
+    @Test public void
+    testParallelDeflate() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        StringBuilder sb = new StringBuilder();
+        Random        r  = new Random(11);
+        for (int i = 0; i < 100000; i++) sb.append("line ").append(r.nextInt(1000)).append('\n');
+        String text = sb.toString();
+
+        File archiveFile = File.createTempFile("parallel", ".zip");
+        try {
+            ZipArchiveFormat.setParallelDeflateThreads(4);
+            ZipArchiveFormat.setOutputEntryIndexInterval(200000);
+            ZipArchiveStatistics.get().reset();
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "big", null, os -> Zip4jAdapterTest.write(text, os));
+                Zip4jAdapterTest.af.writeEntry(aos, "small", null, os -> Zip4jAdapterTest.write("text", os));
+            }
+
+            // One deflater per chunk was used.
+            ZipArchiveStatistics s = ZipArchiveStatistics.get();
+            Assert.assertTrue(s.getDeflaterPoolHits() + s.getDeflaterPoolMisses() > text.length() / (1 << 17));
+
+            // The entry is one ordinary DEFLATE stream, with the correct CRC.
+            try (ZipInputStream zis = new ZipInputStream(new FileInputStream(archiveFile))) {
+                Assert.assertEquals("big", zis.getNextEntry().getName());
+                Assert.assertEquals(text, Zip4jAdapterTest.read(zis));
+            }
+
+            // The full flush points work with parallel inflation.
+            ZipArchiveFormat.setParallelInflateThreads(4);
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                Zip4jAdapterTest.assertEntries(new String[][] {
+                    { "big",   text   },
+                    { "small", "text" },
+                }, ais);
+            }
+
+            // The parallel inflation returned its segment buffers to the memory budget.
+            Assert.assertEquals(0, s.getMemoryUsed());
+
+            // The threads + 1 recycled chunk buffers are charged to the memory budget; when the sink fails, the
+            // pending chunks are drained and the buffers are returned.
+            OutputStream failing = new OutputStream() {
+
+                int count;
+
+                @Override public void
+                write(int b) throws IOException { this.write(new byte[] { (byte) b }, 0, 1); }
+
+                @Override public void
+                write(byte[] b, int off, int len) throws IOException {
+                    if ((this.count += len) > 100_000) throw new IOException("Disk full");
+                }
+            };
+            s.reset();
+            try {
+                try (ArchiveOutputStream aos = Zip4jAdapterTest.af.archiveOutputStream(failing)) {
+                    Zip4jAdapterTest.af.writeEntry(aos, "big", null, os -> Zip4jAdapterTest.write(text, os));
+                }
+                Assert.fail();
+            } catch (IOException ioe) {
+                ;
+            }
+            Assert.assertTrue(s.getMemoryPeak() >= 5 << 17);
+            Assert.assertEquals(0, s.getMemoryUsed());
+        } finally {
+            ZipArchiveFormat.setParallelDeflateThreads(0);
+            ZipArchiveFormat.setOutputEntryIndexInterval(0);
+            ZipArchiveFormat.setParallelInflateThreads(0);
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#openSeekableChannel(File, String, File)}.
+     */
+    @Test public void
+    testSeekableChannel() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        StringBuilder sb = new StringBuilder();
+        Random        r  = new Random(13);
+        for (int i = 0; i < 200000; i++) sb.append("line ").append(r.nextInt(1000)).append('\n');
+        byte[] data = sb.toString().getBytes(Charsets.UTF_8);
+
+        File archiveFile = File.createTempFile("seekable", ".zip");
+        File indexFile   = new File(archiveFile.getPath() + ".index");
+        try {
+
+            // Parallel deflation produces a "sync flush" every 128 kB.
+            ZipArchiveFormat.setParallelDeflateThreads(2);
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                Zip4jAdapterTest.af.writeEntry(aos, "big", null, os -> os.write(data));
+            }
+            ZipArchiveFormat.setSeekIndexInterval(200000);
+
+            for (int pass = 0; pass < 2; pass++) {
+                try (SeekableByteChannel sbc = ZipArchiveFormat.openSeekableChannel(archiveFile, "big", indexFile)) {
+                    Assert.assertEquals(data.length, sbc.size());
+
+                    // Read forward through the entry (which builds the index), then at random positions.
+                    for (long position : new long[] { 0, 500000, data.length - 10, 300000, 7, 1000000 }) {
+                        ByteBuffer bb = ByteBuffer.allocate(1000);
+                        sbc.position(position);
+                        while (bb.hasRemaining() && sbc.read(bb) != -1);
+                        bb.flip();
+                        byte[] expected = Arrays.copyOfRange(data, (int) position, (int) position + bb.remaining());
+                        Assert.assertEquals(ByteBuffer.wrap(expected), bb);
+                        if (position == 0) while (sbc.read(ByteBuffer.allocate(65536)) != -1);
+                    }
+                }
+
+                // The index was persisted.
+                Assert.assertTrue(indexFile.length() > 32768);
+            }
+        } finally {
+            ZipArchiveFormat.setParallelDeflateThreads(0);
+            ZipArchiveFormat.setSeekIndexInterval(1 << 22);
+            archiveFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#partition(File, int)}.
+     */
+    @Test public void
+    testPartition() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        Random       r        = new Random(17);
+        List<String> contents = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = r.nextInt(2000); j > 0; j--) sb.append(r.nextInt());
+            contents.add(sb.toString());
+        }
+
+        File archiveFile = File.createTempFile("partition", ".zip");
+        try {
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                for (int i = 0; i < contents.size(); i++) {
+                    String text = contents.get(i);
+                    Zip4jAdapterTest.af.writeEntry(aos, "file" + i, null, os -> Zip4jAdapterTest.write(text, os));
+                }
+            }
+
+            List<ArchivePartition> partitions = ZipArchiveFormat.partition(archiveFile, 3);
+            Assert.assertEquals(3, partitions.size());
+
+            long min = Long.MAX_VALUE, max = 0;
+            for (ArchivePartition p : partitions) {
+                min = Math.min(min, p.getCompressedSize());
+                max = Math.max(max, p.getCompressedSize());
+            }
+            Assert.assertTrue(partitions.toString(), max - min < max / 5);
+
+            // Each partition is serialized, deserialized and read, like a worker process would.
+            List<String> names = new ArrayList<>();
+            for (ArchivePartition p : partitions) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+                    oos.writeObject(p);
+                }
+                ArchivePartition p2 = (ArchivePartition) new ObjectInputStream(
+                    new ByteArrayInputStream(baos.toByteArray())
+                ).readObject();
+
+                try (ArchiveInputStream ais = ZipArchiveFormat.openPartition(archiveFile, p2, null)) {
+                    for (ArchiveEntry ae; (ae = ais.getNextEntry()) != null;) {
+                        names.add(ae.getName());
+                        String expected = contents.get(Integer.parseInt(ae.getName().substring(4)));
+                        Assert.assertEquals(expected, Zip4jAdapterTest.read(ais));
+                    }
+                }
+            }
+            Assert.assertEquals(contents.size(), names.size());
+            Assert.assertEquals(contents.size(), new HashSet<>(names).size());
+        } finally {
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Tests {@link ZipArchiveFormat#setOutputSortedCentralDirectory(boolean)}.
+     */
+    @Test public void
+    testSortedCentralDirectory() throws Exception {
+
+        System.setProperty(ZipArchiveFormat.SYSTEM_PROPERTY_OUTPUT_ENTRY_ENCRYPT, "false");
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 300; i++) names.add("dir" + (i % 7) + "/file" + i);
+        names.add("\u00e4rger");
+        names.add("Zebra");
+        Collections.shuffle(names, new Random(19));
+
+        File archiveFile = File.createTempFile("sorted", ".zip");
+        try {
+            ZipArchiveFormat.setOutputSortedCentralDirectory(true);
+            try (ArchiveOutputStream aos = Zip4jAdapterTest.af.create(archiveFile)) {
+                for (String name : names) {
+                    Zip4jAdapterTest.af.writeEntry(aos, name, null, os -> Zip4jAdapterTest.write("#" + name.hashCode(), os));
+                }
+            }
+
+            List<String> sorted = new ArrayList<>(names);
+            sorted.sort(Comparator.comparing(s -> new String(s.getBytes(Charsets.UTF_8), Charsets.ISO_8859_1)));
+
+            // Other tools read the archive as usual; the first record carries the sorted central directory extra
+            // field.
+            try (ZipFile zf = new ZipFile(archiveFile)) {
+                Assert.assertEquals(names.size(), zf.size());
+                ZipEntry first = zf.entries().nextElement();
+                Assert.assertEquals(sorted.get(0), first.getName());
+                Assert.assertEquals(0x73, first.getExtra()[0]);
+                Assert.assertEquals(0x6f, first.getExtra()[1]);
+                Assert.assertEquals("#" + "Zebra".hashCode(), Zip4jAdapterTest.read(zf.getInputStream(zf.getEntry("Zebra"))));
+            }
+
+            // Look up entries by binary search (each of them, so that the sampled records are looked up as well as
+            // the others).
+            for (String name : sorted) {
+                try (ReadableByteChannel rbc = ZipArchiveFormat.openChannel(archiveFile, null, name)) {
+                    Assert.assertEquals("#" + name.hashCode(), Zip4jAdapterTest.read(Channels.newInputStream(rbc)));
+                }
+            }
+            for (String name : new String[] { "dir3/file1000", "", "dir3", "zzz" }) {
+                try {
+                    ZipArchiveFormat.openChannel(archiveFile, null, name).close();
+                    Assert.fail(name);
+                } catch (FileNotFoundException fnfe) {
+                    ;
+                }
+            }
+
+            // Iterate the entries in central directory order.
+            List<String> actual = new ArrayList<>();
+            try (ArchiveInputStream ais = Zip4jAdapterTest.af.open(archiveFile)) {
+                for (ArchiveEntry ae; (ae = ais.getNextEntry()) != null;) actual.add(ae.getName());
+            }
+            Assert.assertEquals(sorted, actual);
+        } finally {
+            ZipArchiveFormat.setOutputSortedCentralDirectory(false);
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * @return The offset after the data of the first entry of the given (non-ZIP64) archive
+     */
+    private static int
+    dataEnd(byte[] archive) {
+
+        ByteBuffer bb = ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN);
+
+        int cdOffset          = bb.getInt(archive.length - 22 + 16);
+        int compressedSize    = bb.getInt(cdOffset + 20);
+        int localHeaderOffset = bb.getInt(cdOffset + 42);
+
+        return (
+            localHeaderOffset
+            + 30
+            + bb.getShort(localHeaderOffset + 26)
+            + bb.getShort(localHeaderOffset + 28)
+            + compressedSize
+        );
+    }
+
+    private static void
+    assertEntries(String[][] expected, ArchiveInputStream ais) throws IOException {
+        for (String[] e : expected) {
+            Assert.assertEquals(e[0], ais.getNextEntry().getName());
+            Assert.assertEquals(e[1], Zip4jAdapterTest.read(ais));
+        }
+        Assert.assertNull(ais.getNextEntry());
+    }
+
+    private static long
+    sum(long[] values) {
+        long result = 0;
+        for (long v : values) result += v;
+        return result;
+    }
+
     private static String
     read(InputStream is) throws IOException {
         return Readers.readAll(new InputStreamReader(is));